@@ -57,6 +57,7 @@ import android.net.Proxy;
 import android.net.ProxyInfo;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.BaseBundle;
 import android.os.Binder;
 import android.os.Build;
 import android.os.Bundle;
@@ -86,6 +87,7 @@ import android.security.NetworkSecurityPolicy;
 import android.security.net.config.NetworkSecurityConfigProvider;
 import android.util.AndroidRuntimeException;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.DisplayMetrics;
 import android.util.EventLog;
 import android.util.Log;
@@ -1167,6 +1169,22 @@ public final class ActivityThread {
                 pw.print(assetAlloc);
             }
 
+            // Caches of small arrays shared by all ArrayMaps and ArraySets.
+            pw.println(" ");
+            pw.println(" Array Caches");
+            ArrayMap.dumpCacheStats(pw, "  ");
+            ArraySet.dumpCacheStats(pw, "  ");
+
+            // How much Bundle unmarshalling lazy unparcelling has saved.
+            pw.println(" ");
+            pw.println(" Bundles");
+            BaseBundle.dumpUnparcelStats(pw, "  ");
+
+            // Recycled Parcels and the native buffers they keep.
+            pw.println(" ");
+            pw.println(" Parcel Pool");
+            Parcel.dumpPoolStats(pw, "  ");
+
             // Unreachable native memory
             if (dumpUnreachable) {
                 boolean showContents = ((mBoundApplication != null)
@@ -36,6 +36,8 @@ import android.content.res.XmlResourceParser;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.FileUtils;
+import android.os.Parcel;
+import android.os.Parcelable;
 import android.os.PatternMatcher;
 import android.os.Trace;
 import android.os.UserHandle;
@@ -54,6 +56,7 @@ import android.util.jar.StrictJarFile;
 import android.view.Gravity;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
@@ -259,6 +262,21 @@ public class PackageParser {
     private DisplayMetrics mMetrics;
     private boolean mOnlyPowerOffAlarmApps;
 
+    /**
+     * Directory holding serialized {@link Package} results, or {@code null}
+     * when parse results should not be cached.
+     */
+    private File mCacheDir;
+
+    /**
+     * Version of the on-disk cache format. Bump this whenever the layout
+     * written by {@link Package#writeToParcel(Parcel, int)} changes.
+     */
+    private static final int PARSER_CACHE_VERSION = 1;
+
+    /** Magic value bracketing every cache entry, used to detect truncation. */
+    private static final int PARSER_CACHE_MAGIC = 0x50504b43;
+
     private static final int SDK_VERSION = Build.VERSION.SDK_INT;
     private static final String[] SDK_CODENAMES = Build.VERSION.ACTIVE_CODENAMES;
 
@@ -461,6 +479,16 @@ public class PackageParser {
         mOnlyPowerOffAlarmApps = onlyPowerOffAlarmApps;
     }
 
+    /**
+     * Sets the directory used to cache parsed packages across boots. Entries
+     * are keyed by package path and parse flags, and are only reused when the
+     * recorded modification time, size, build fingerprint and cache version
+     * all still match.
+     */
+    public void setCacheDir(File cacheDir) {
+        mCacheDir = cacheDir;
+    }
+
     public static final boolean isApkFile(File file) {
         return isApkPath(file.getName());
     }
@@ -807,10 +835,158 @@ public class PackageParser {
      * @see #parsePackageLite(File, int)
      */
     public Package parsePackage(File packageFile, int flags) throws PackageParserException {
+        // Results depend on these settings, so only cache under the default configuration.
+        final boolean useCache = mCacheDir != null && !mOnlyCoreApps && !mOnlyPowerOffAlarmApps
+                && mSeparateProcesses == null;
+        if (useCache) {
+            final Package cached = getCachedResult(packageFile, flags);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        final Package parsed;
+        if (packageFile.isDirectory()) {
+            parsed = parseClusterPackage(packageFile, flags);
+        } else {
+            parsed = parseMonolithicPackage(packageFile, flags);
+        }
+
+        if (useCache) {
+            cacheResult(packageFile, flags, parsed);
+        }
+        return parsed;
+    }
+
+    /**
+     * Returns the cache file name for the given package and parse flags. The
+     * absolute path is flattened so that entries can be mapped back to the
+     * package they were created from; see {@link #pruneCacheDir(File)}.
+     */
+    private static String getCacheKey(File packageFile, int flags) {
+        return packageFile.getAbsolutePath().replace('/', '@') + '-' + Integer.toHexString(flags);
+    }
+
+    /**
+     * Returns the most recent modification time and total size of the files
+     * making up the given package, used to validate cache entries.
+     */
+    private static long[] getPackageStamp(File packageFile) {
+        final long[] stamp = new long[2];
         if (packageFile.isDirectory()) {
-            return parseClusterPackage(packageFile, flags);
+            final File[] files = packageFile.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (isApkFile(file)) {
+                        stamp[0] = Math.max(stamp[0], file.lastModified());
+                        stamp[1] += file.length();
+                    }
+                }
+            }
         } else {
-            return parseMonolithicPackage(packageFile, flags);
+            stamp[0] = packageFile.lastModified();
+            stamp[1] = packageFile.length();
+        }
+        return stamp;
+    }
+
+    private Package getCachedResult(File packageFile, int flags) {
+        final File cacheFile = new File(mCacheDir, getCacheKey(packageFile, flags));
+        if (!cacheFile.exists()) {
+            return null;
+        }
+
+        Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER, "readPackageCache");
+        final Parcel p = Parcel.obtain();
+        try {
+            final byte[] bytes = IoUtils.readFileAsByteArray(cacheFile.getAbsolutePath());
+            p.unmarshall(bytes, 0, bytes.length);
+            p.setDataPosition(0);
+
+            final long[] stamp = getPackageStamp(packageFile);
+            if (p.readInt() != PARSER_CACHE_MAGIC
+                    || p.readInt() != PARSER_CACHE_VERSION
+                    || !Build.FINGERPRINT.equals(p.readString())
+                    || !packageFile.getAbsolutePath().equals(p.readString())
+                    || p.readInt() != flags
+                    || p.readLong() != stamp[0]
+                    || p.readLong() != stamp[1]) {
+                cacheFile.delete();
+                return null;
+            }
+
+            final Package pkg = new Package(p);
+            if (p.readInt() != PARSER_CACHE_MAGIC || p.dataAvail() != 0) {
+                Slog.w(TAG, "Discarding truncated package cache " + cacheFile);
+                cacheFile.delete();
+                return null;
+            }
+            return pkg;
+        } catch (Exception e) {
+            Slog.w(TAG, "Failed to read package cache " + cacheFile, e);
+            cacheFile.delete();
+            return null;
+        } finally {
+            p.recycle();
+            Trace.traceEnd(TRACE_TAG_PACKAGE_MANAGER);
+        }
+    }
+
+    private void cacheResult(File packageFile, int flags, Package pkg) {
+        final String cacheKey = getCacheKey(packageFile, flags);
+        final File cacheFile = new File(mCacheDir, cacheKey);
+        final File tempFile = new File(mCacheDir, cacheKey + ".tmp");
+
+        Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER, "writePackageCache");
+        final Parcel p = Parcel.obtain();
+        FileOutputStream fos = null;
+        try {
+            final long[] stamp = getPackageStamp(packageFile);
+            p.writeInt(PARSER_CACHE_MAGIC);
+            p.writeInt(PARSER_CACHE_VERSION);
+            p.writeString(Build.FINGERPRINT);
+            p.writeString(packageFile.getAbsolutePath());
+            p.writeInt(flags);
+            p.writeLong(stamp[0]);
+            p.writeLong(stamp[1]);
+            pkg.writeToParcel(p, 0);
+            p.writeInt(PARSER_CACHE_MAGIC);
+
+            fos = new FileOutputStream(tempFile);
+            fos.write(p.marshall());
+            FileUtils.sync(fos);
+            IoUtils.closeQuietly(fos);
+            fos = null;
+            if (!tempFile.renameTo(cacheFile)) {
+                tempFile.delete();
+            }
+        } catch (Exception e) {
+            // Caching is best effort; the package was parsed successfully.
+            Slog.w(TAG, "Failed to write package cache " + cacheFile, e);
+            IoUtils.closeQuietly(fos);
+            tempFile.delete();
+        } finally {
+            p.recycle();
+            Trace.traceEnd(TRACE_TAG_PACKAGE_MANAGER);
+        }
+    }
+
+    /**
+     * Deletes cache entries whose source package no longer exists, along with
+     * any temporary files left behind by interrupted writes.
+     */
+    public static void pruneCacheDir(File cacheDir) {
+        final File[] files = cacheDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            final String name = file.getName();
+            final int flagsIndex = name.lastIndexOf('-');
+            if (name.endsWith(".tmp") || flagsIndex <= 0
+                    || !new File(name.substring(0, flagsIndex).replace('@', '/')).exists()) {
+                file.delete();
+            }
         }
     }
 
@@ -1379,7 +1555,7 @@ public class PackageParser {
             final Certificate[][] certificates;
             if ((flags & PARSE_COLLECT_CERTIFICATES) != 0) {
                 // TODO: factor signature related items out of Package object
-                final Package tempPkg = new Package(null);
+                final Package tempPkg = new Package((String) null);
                 Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER, "collectCertificates");
                 try {
                     collectCertificates(tempPkg, apkFile, 0 /*parseFlags*/);
@@ -4812,7 +4988,7 @@ public class PackageParser {
         public boolean baseHardwareAccelerated;
 
         // For now we only support one application per package.
-        public final ApplicationInfo applicationInfo = new ApplicationInfo();
+        public ApplicationInfo applicationInfo = new ApplicationInfo();
 
         public final ArrayList<Permission> permissions = new ArrayList<Permission>(0);
         public final ArrayList<PermissionGroup> permissionGroups = new ArrayList<PermissionGroup>(0);
@@ -4934,6 +5110,261 @@ public class PackageParser {
             applicationInfo.uid = -1;
         }
 
+        /**
+         * Recreates a package previously flattened with
+         * {@link #writeToParcel(Parcel, int)}. Only state produced by the
+         * parser itself is restored; signatures and any state assigned later
+         * by the package manager must be collected again.
+         */
+        public Package(Parcel in) {
+            packageName = in.readString();
+            splitNames = in.readStringArray();
+            volumeUuid = in.readString();
+            codePath = in.readString();
+            baseCodePath = in.readString();
+            splitCodePaths = in.readStringArray();
+            baseRevisionCode = in.readInt();
+            splitRevisionCodes = in.createIntArray();
+            splitFlags = in.createIntArray();
+            splitPrivateFlags = in.createIntArray();
+            baseHardwareAccelerated = in.readInt() != 0;
+            applicationInfo = ApplicationInfo.CREATOR.createFromParcel(in);
+
+            int N = in.readInt();
+            for (int i = 0; i < N; i++) {
+                permissions.add(new Permission(this, in));
+            }
+            N = in.readInt();
+            for (int i = 0; i < N; i++) {
+                permissionGroups.add(new PermissionGroup(this, in));
+            }
+            N = in.readInt();
+            for (int i = 0; i < N; i++) {
+                activities.add(new Activity(this, in));
+            }
+            N = in.readInt();
+            for (int i = 0; i < N; i++) {
+                receivers.add(new Activity(this, in));
+            }
+            N = in.readInt();
+            for (int i = 0; i < N; i++) {
+                providers.add(new Provider(this, in));
+            }
+            N = in.readInt();
+            for (int i = 0; i < N; i++) {
+                services.add(new Service(this, in));
+            }
+            N = in.readInt();
+            for (int i = 0; i < N; i++) {
+                instrumentation.add(new Instrumentation(this, in));
+            }
+
+            in.readStringList(requestedPermissions);
+            N = in.readInt();
+            if (N >= 0) {
+                protectedBroadcasts = new ArrayMap<>(N);
+                for (int i = 0; i < N; i++) {
+                    protectedBroadcasts.put(in.readString(), in.readString());
+                }
+            }
+            libraryNames = in.createStringArrayList();
+            usesLibraries = in.createStringArrayList();
+            usesOptionalLibraries = in.createStringArrayList();
+
+            N = in.readInt();
+            if (N >= 0) {
+                preferredActivityFilters = new ArrayList<>(N);
+                for (int i = 0; i < N; i++) {
+                    final Activity activity = activities.get(in.readInt());
+                    preferredActivityFilters.add(new ActivityIntentInfo(activity, in));
+                }
+            }
+
+            mOriginalPackages = in.createStringArrayList();
+            mRealPackage = in.readString();
+            mAdoptPermissions = in.createStringArrayList();
+            mAppMetaData = in.readBundle();
+            mVersionCode = in.readInt();
+            mVersionName = in.readString();
+            mSharedUserId = in.readString();
+            mSharedUserLabel = in.readInt();
+            configPreferences = in.createTypedArrayList(ConfigurationInfo.CREATOR);
+            reqFeatures = in.createTypedArrayList(FeatureInfo.CREATOR);
+            featureGroups = in.createTypedArrayList(FeatureGroupInfo.CREATOR);
+            installLocation = in.readInt();
+            coreApp = in.readInt() != 0;
+            mRequiredForAllUsers = in.readInt() != 0;
+            mRestrictedAccountType = in.readString();
+            mRequiredAccountType = in.readString();
+            mOverlayTarget = in.readString();
+
+            final ArrayList<String> upgradeKeySets = in.createStringArrayList();
+            if (upgradeKeySets != null) {
+                mUpgradeKeySets = new ArraySet<>(upgradeKeySets);
+            }
+            N = in.readInt();
+            if (N >= 0) {
+                mKeySetMapping = new ArrayMap<>(N);
+                for (int i = 0; i < N; i++) {
+                    final String alias = in.readString();
+                    final int keyCount = in.readInt();
+                    final ArraySet<PublicKey> keys = new ArraySet<>(keyCount);
+                    for (int j = 0; j < keyCount; j++) {
+                        final PublicKey key = parsePublicKey(in.readString());
+                        if (key == null) {
+                            throw new IllegalStateException("Unable to restore key for "
+                                    + alias);
+                        }
+                        keys.add(key);
+                    }
+                    mKeySetMapping.put(alias, keys);
+                }
+            }
+
+            use32bitAbi = in.readInt() != 0;
+            restrictUpdateHash = in.createByteArray();
+
+            N = in.readInt();
+            if (N >= 0) {
+                childPackages = new ArrayList<>(N);
+                for (int i = 0; i < N; i++) {
+                    final Package childPkg = new Package(in);
+                    childPkg.parentPackage = this;
+                    childPackages.add(childPkg);
+                }
+            }
+        }
+
+        /**
+         * Flattens the parsed state of this package, including any child
+         * packages, so that it can be restored with {@link #Package(Parcel)}.
+         */
+        public void writeToParcel(Parcel dest, int flags) {
+            dest.writeString(packageName);
+            dest.writeStringArray(splitNames);
+            dest.writeString(volumeUuid);
+            dest.writeString(codePath);
+            dest.writeString(baseCodePath);
+            dest.writeStringArray(splitCodePaths);
+            dest.writeInt(baseRevisionCode);
+            dest.writeIntArray(splitRevisionCodes);
+            dest.writeIntArray(splitFlags);
+            dest.writeIntArray(splitPrivateFlags);
+            dest.writeInt(baseHardwareAccelerated ? 1 : 0);
+            applicationInfo.writeToParcel(dest, flags);
+
+            dest.writeInt(permissions.size());
+            for (int i = 0; i < permissions.size(); i++) {
+                permissions.get(i).writeToParcel(dest, flags);
+            }
+            dest.writeInt(permissionGroups.size());
+            for (int i = 0; i < permissionGroups.size(); i++) {
+                permissionGroups.get(i).writeToParcel(dest, flags);
+            }
+            dest.writeInt(activities.size());
+            for (int i = 0; i < activities.size(); i++) {
+                activities.get(i).writeToParcel(dest, flags);
+            }
+            dest.writeInt(receivers.size());
+            for (int i = 0; i < receivers.size(); i++) {
+                receivers.get(i).writeToParcel(dest, flags);
+            }
+            dest.writeInt(providers.size());
+            for (int i = 0; i < providers.size(); i++) {
+                providers.get(i).writeToParcel(dest, flags);
+            }
+            dest.writeInt(services.size());
+            for (int i = 0; i < services.size(); i++) {
+                services.get(i).writeToParcel(dest, flags);
+            }
+            dest.writeInt(instrumentation.size());
+            for (int i = 0; i < instrumentation.size(); i++) {
+                instrumentation.get(i).writeToParcel(dest, flags);
+            }
+
+            dest.writeStringList(requestedPermissions);
+            if (protectedBroadcasts != null) {
+                final int N = protectedBroadcasts.size();
+                dest.writeInt(N);
+                for (int i = 0; i < N; i++) {
+                    dest.writeString(protectedBroadcasts.keyAt(i));
+                    dest.writeString(protectedBroadcasts.valueAt(i));
+                }
+            } else {
+                dest.writeInt(-1);
+            }
+            dest.writeStringList(libraryNames);
+            dest.writeStringList(usesLibraries);
+            dest.writeStringList(usesOptionalLibraries);
+
+            if (preferredActivityFilters != null) {
+                final int N = preferredActivityFilters.size();
+                dest.writeInt(N);
+                for (int i = 0; i < N; i++) {
+                    final ActivityIntentInfo filter = preferredActivityFilters.get(i);
+                    final int activityIndex = activities.indexOf(filter.activity);
+                    if (activityIndex < 0) {
+                        throw new IllegalStateException("Preferred filter for unknown activity "
+                                + filter.activity);
+                    }
+                    dest.writeInt(activityIndex);
+                    filter.writeIntentInfoToParcel(dest, flags);
+                }
+            } else {
+                dest.writeInt(-1);
+            }
+
+            dest.writeStringList(mOriginalPackages);
+            dest.writeString(mRealPackage);
+            dest.writeStringList(mAdoptPermissions);
+            dest.writeBundle(mAppMetaData);
+            dest.writeInt(mVersionCode);
+            dest.writeString(mVersionName);
+            dest.writeString(mSharedUserId);
+            dest.writeInt(mSharedUserLabel);
+            dest.writeTypedList(configPreferences);
+            dest.writeTypedList(reqFeatures);
+            dest.writeTypedList(featureGroups);
+            dest.writeInt(installLocation);
+            dest.writeInt(coreApp ? 1 : 0);
+            dest.writeInt(mRequiredForAllUsers ? 1 : 0);
+            dest.writeString(mRestrictedAccountType);
+            dest.writeString(mRequiredAccountType);
+            dest.writeString(mOverlayTarget);
+
+            dest.writeStringList(mUpgradeKeySets != null
+                    ? new ArrayList<>(mUpgradeKeySets) : null);
+            if (mKeySetMapping != null) {
+                final int N = mKeySetMapping.size();
+                dest.writeInt(N);
+                for (int i = 0; i < N; i++) {
+                    dest.writeString(mKeySetMapping.keyAt(i));
+                    final ArraySet<PublicKey> keys = mKeySetMapping.valueAt(i);
+                    final int keyCount = keys.size();
+                    dest.writeInt(keyCount);
+                    for (int j = 0; j < keyCount; j++) {
+                        dest.writeString(Base64.encodeToString(keys.valueAt(j).getEncoded(),
+                                Base64.NO_WRAP));
+                    }
+                }
+            } else {
+                dest.writeInt(-1);
+            }
+
+            dest.writeInt(use32bitAbi ? 1 : 0);
+            dest.writeByteArray(restrictUpdateHash);
+
+            if (childPackages != null) {
+                final int N = childPackages.size();
+                dest.writeInt(N);
+                for (int i = 0; i < N; i++) {
+                    childPackages.get(i).writeToParcel(dest, flags);
+                }
+            } else {
+                dest.writeInt(-1);
+            }
+        }
+
         public void setApplicationVolumeUuid(String volumeUuid) {
             this.applicationInfo.volumeUuid = volumeUuid;
             if (childPackages != null) {
@@ -5290,6 +5721,48 @@ public class PackageParser {
             componentShortName = clone.componentShortName;
         }
 
+        /**
+         * Restores the state written by {@link #writeToParcel(Parcel, int)}.
+         * Subclasses read their info next, followed by
+         * {@link #readIntentsFromParcel(Parcel)} once they can construct intents.
+         */
+        protected Component(Package _owner, Parcel in) {
+            owner = _owner;
+            className = in.readString();
+            metaData = in.readBundle();
+            intents = (in.readInt() != 0) ? new ArrayList<II>() : null;
+        }
+
+        /**
+         * Writes the common component state. Subclasses must follow this with
+         * their info and then {@link #writeIntentsToParcel(Parcel, int)}.
+         */
+        public void writeToParcel(Parcel dest, int flags) {
+            dest.writeString(className);
+            dest.writeBundle(metaData);
+            dest.writeInt(intents != null ? 1 : 0);
+        }
+
+        protected void writeIntentsToParcel(Parcel dest, int flags) {
+            final int N = (intents != null) ? intents.size() : 0;
+            dest.writeInt(N);
+            for (int i = 0; i < N; i++) {
+                intents.get(i).writeIntentInfoToParcel(dest, flags);
+            }
+        }
+
+        protected void readIntentsFromParcel(Parcel in) {
+            final int N = in.readInt();
+            for (int i = 0; i < N; i++) {
+                intents.add(createIntentInfo(in));
+            }
+        }
+
+        /** Creates an intent filter of the right type for this component. */
+        protected II createIntentInfo(Parcel in) {
+            throw new IllegalStateException(getClass().getSimpleName() + " has no intents");
+        }
+
         public ComponentName getComponentName() {
             if (componentName != null) {
                 return componentName;
@@ -5330,6 +5803,19 @@ public class PackageParser {
             info = _info;
         }
 
+        public Permission(Package _owner, Parcel in) {
+            super(_owner, in);
+            info = PermissionInfo.CREATOR.createFromParcel(in);
+            tree = in.readInt() != 0;
+        }
+
+        @Override
+        public void writeToParcel(Parcel dest, int flags) {
+            super.writeToParcel(dest, flags);
+            info.writeToParcel(dest, flags);
+            dest.writeInt(tree ? 1 : 0);
+        }
+
         public void setPackageName(String packageName) {
             super.setPackageName(packageName);
             info.packageName = packageName;
@@ -5355,6 +5841,17 @@ public class PackageParser {
             info = _info;
         }
 
+        public PermissionGroup(Package _owner, Parcel in) {
+            super(_owner, in);
+            info = PermissionGroupInfo.CREATOR.createFromParcel(in);
+        }
+
+        @Override
+        public void writeToParcel(Parcel dest, int flags) {
+            super.writeToParcel(dest, flags);
+            info.writeToParcel(dest, flags);
+        }
+
         public void setPackageName(String packageName) {
             super.setPackageName(packageName);
             info.packageName = packageName;
@@ -5536,6 +6033,26 @@ public class PackageParser {
             info.applicationInfo = args.owner.applicationInfo;
         }
 
+        public Activity(Package _owner, Parcel in) {
+            super(_owner, in);
+            info = ActivityInfo.CREATOR.createFromParcel(in);
+            info.applicationInfo = _owner.applicationInfo;
+            readIntentsFromParcel(in);
+        }
+
+        @Override
+        public void writeToParcel(Parcel dest, int flags) {
+            super.writeToParcel(dest, flags);
+            // The application info is shared with the owning package.
+            info.writeToParcel(dest, flags | Parcelable.PARCELABLE_ELIDE_DUPLICATES);
+            writeIntentsToParcel(dest, flags);
+        }
+
+        @Override
+        protected ActivityIntentInfo createIntentInfo(Parcel in) {
+            return new ActivityIntentInfo(this, in);
+        }
+
         public void setPackageName(String packageName) {
             super.setPackageName(packageName);
             info.packageName = packageName;
@@ -5590,6 +6107,25 @@ public class PackageParser {
             info.applicationInfo = args.owner.applicationInfo;
         }
 
+        public Service(Package _owner, Parcel in) {
+            super(_owner, in);
+            info = ServiceInfo.CREATOR.createFromParcel(in);
+            info.applicationInfo = _owner.applicationInfo;
+            readIntentsFromParcel(in);
+        }
+
+        @Override
+        public void writeToParcel(Parcel dest, int flags) {
+            super.writeToParcel(dest, flags);
+            info.writeToParcel(dest, flags | Parcelable.PARCELABLE_ELIDE_DUPLICATES);
+            writeIntentsToParcel(dest, flags);
+        }
+
+        @Override
+        protected ServiceIntentInfo createIntentInfo(Parcel in) {
+            return new ServiceIntentInfo(this, in);
+        }
+
         public void setPackageName(String packageName) {
             super.setPackageName(packageName);
             info.packageName = packageName;
@@ -5639,6 +6175,27 @@ public class PackageParser {
             this.syncable = existingProvider.syncable;
         }
 
+        public Provider(Package _owner, Parcel in) {
+            super(_owner, in);
+            info = ProviderInfo.CREATOR.createFromParcel(in);
+            info.applicationInfo = _owner.applicationInfo;
+            syncable = in.readInt() != 0;
+            readIntentsFromParcel(in);
+        }
+
+        @Override
+        public void writeToParcel(Parcel dest, int flags) {
+            super.writeToParcel(dest, flags);
+            info.writeToParcel(dest, flags | Parcelable.PARCELABLE_ELIDE_DUPLICATES);
+            dest.writeInt(syncable ? 1 : 0);
+            writeIntentsToParcel(dest, flags);
+        }
+
+        @Override
+        protected ProviderIntentInfo createIntentInfo(Parcel in) {
+            return new ProviderIntentInfo(this, in);
+        }
+
         public void setPackageName(String packageName) {
             super.setPackageName(packageName);
             info.packageName = packageName;
@@ -5684,6 +6241,24 @@ public class PackageParser {
             info = _info;
         }
 
+        public Instrumentation(Package _owner, Parcel in) {
+            super(_owner, in);
+            info = InstrumentationInfo.CREATOR.createFromParcel(in);
+            readIntentsFromParcel(in);
+        }
+
+        @Override
+        public void writeToParcel(Parcel dest, int flags) {
+            super.writeToParcel(dest, flags);
+            info.writeToParcel(dest, flags);
+            writeIntentsToParcel(dest, flags);
+        }
+
+        @Override
+        protected IntentInfo createIntentInfo(Parcel in) {
+            return new IntentInfo(in);
+        }
+
         public void setPackageName(String packageName) {
             super.setPackageName(packageName);
             info.packageName = packageName;
@@ -5719,6 +6294,31 @@ public class PackageParser {
         public int logo;
         public int banner;
         public int preferred;
+
+        public IntentInfo() {
+        }
+
+        protected IntentInfo(Parcel in) {
+            super(in);
+            hasDefault = in.readInt() != 0;
+            labelRes = in.readInt();
+            nonLocalizedLabel = TextUtils.CHAR_SEQUENCE_CREATOR.createFromParcel(in);
+            icon = in.readInt();
+            logo = in.readInt();
+            banner = in.readInt();
+            preferred = in.readInt();
+        }
+
+        public void writeIntentInfoToParcel(Parcel dest, int flags) {
+            writeToParcel(dest, flags);
+            dest.writeInt(hasDefault ? 1 : 0);
+            dest.writeInt(labelRes);
+            TextUtils.writeToParcel(nonLocalizedLabel, dest, flags);
+            dest.writeInt(icon);
+            dest.writeInt(logo);
+            dest.writeInt(banner);
+            dest.writeInt(preferred);
+        }
     }
 
     public final static class ActivityIntentInfo extends IntentInfo {
@@ -5728,6 +6328,11 @@ public class PackageParser {
             activity = _activity;
         }
 
+        public ActivityIntentInfo(Activity _activity, Parcel in) {
+            super(in);
+            activity = _activity;
+        }
+
         public String toString() {
             StringBuilder sb = new StringBuilder(128);
             sb.append("ActivityIntentInfo{");
@@ -5746,6 +6351,11 @@ public class PackageParser {
             service = _service;
         }
 
+        public ServiceIntentInfo(Service _service, Parcel in) {
+            super(in);
+            service = _service;
+        }
+
         public String toString() {
             StringBuilder sb = new StringBuilder(128);
             sb.append("ServiceIntentInfo{");
@@ -5764,6 +6374,11 @@ public class PackageParser {
             this.provider = provider;
         }
 
+        public ProviderIntentInfo(Provider provider, Parcel in) {
+            super(in);
+            this.provider = provider;
+        }
+
         public String toString() {
             StringBuilder sb = new StringBuilder(128);
             sb.append("ProviderIntentInfo{");
@@ -232,6 +232,16 @@ public abstract class ContentObserver {
             }
         }
 
+        @Override
+        public void onChangeMultiple(boolean selfChange, Uri[] uris, int userId) {
+            ContentObserver contentObserver = mContentObserver;
+            if (contentObserver != null) {
+                for (Uri uri : uris) {
+                    contentObserver.dispatchChange(selfChange, uri, userId);
+                }
+            }
+        }
+
         public void releaseContentObserver() {
             mContentObserver = null;
         }
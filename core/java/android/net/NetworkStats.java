@@ -95,6 +95,18 @@ public class NetworkStats implements Parcelable {
     private long[] txPackets;
     private long[] operations;
 
+    /**
+     * Open-addressing hash table over the (iface, uid, set, tag, roaming) key
+     * of the first {@link #keyIndexSize} rows, holding row positions plus one,
+     * with zero marking an empty slot. Built lazily by {@link #findIndex} once
+     * there are enough rows, and never parcelled.
+     */
+    private int[] keyIndex;
+    private int keyIndexSize;
+
+    /** Below this many rows a linear scan is cheaper than the hash index. */
+    private static final int KEY_INDEX_MIN_SIZE = 16;
+
     public static class Entry {
         public String iface;
         public int uid;
@@ -410,13 +422,76 @@ public class NetworkStats implements Parcelable {
      * Find first stats index that matches the requested parameters.
      */
     public int findIndex(String iface, int uid, int set, int tag, int roaming) {
-        for (int i = 0; i < size; i++) {
-            if (uid == this.uid[i] && set == this.set[i] && tag == this.tag[i]
-                    && roaming == this.roaming[i] && Objects.equals(iface, this.iface[i])) {
+        if (size < KEY_INDEX_MIN_SIZE) {
+            for (int i = 0; i < size; i++) {
+                if (matchesKey(i, iface, uid, set, tag, roaming)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        updateKeyIndex();
+        final int mask = keyIndex.length - 1;
+        int slot = hashKey(iface, uid, set, tag, roaming) & mask;
+        while (true) {
+            final int i = keyIndex[slot] - 1;
+            if (i < 0 || matchesKey(i, iface, uid, set, tag, roaming)) {
                 return i;
             }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private boolean matchesKey(int i, String iface, int uid, int set, int tag, int roaming) {
+        return uid == this.uid[i] && set == this.set[i] && tag == this.tag[i]
+                && roaming == this.roaming[i] && Objects.equals(iface, this.iface[i]);
+    }
+
+    private static int hashKey(String iface, int uid, int set, int tag, int roaming) {
+        int hash = iface != null ? iface.hashCode() : 0;
+        hash = 31 * hash + uid;
+        hash = 31 * hash + set;
+        hash = 31 * hash + tag;
+        hash = 31 * hash + roaming;
+        // spread the bits, since only the low ones pick a slot
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Bring {@link #keyIndex} up to date with any rows added since it was
+     * last used, growing it to stay at most half full.
+     */
+    private void updateKeyIndex() {
+        if (keyIndex == null || keyIndexSize > size || keyIndex.length < size * 2) {
+            keyIndex = new int[Integer.highestOneBit(size * 4 - 1)];
+            keyIndexSize = 0;
+        }
+        final int mask = keyIndex.length - 1;
+        for (; keyIndexSize < size; keyIndexSize++) {
+            final int row = keyIndexSize;
+            int slot = hashKey(iface[row], uid[row], set[row], tag[row], roaming[row]) & mask;
+            while (true) {
+                final int i = keyIndex[slot] - 1;
+                if (i < 0) {
+                    keyIndex[slot] = row + 1;
+                    break;
+                }
+                if (matchesKey(i, iface[row], uid[row], set[row], tag[row], roaming[row])) {
+                    // keep pointing at the first matching row
+                    break;
+                }
+                slot = (slot + 1) & mask;
+            }
         }
-        return -1;
+    }
+
+    private void clearKeyIndex() {
+        if (keyIndex != null) {
+            Arrays.fill(keyIndex, 0);
+        }
+        keyIndexSize = 0;
     }
 
     /**
@@ -426,6 +501,16 @@ public class NetworkStats implements Parcelable {
     @VisibleForTesting
     public int findIndexHinted(String iface, int uid, int set, int tag, int roaming,
             int hintIndex) {
+        if (size >= KEY_INDEX_MIN_SIZE) {
+            // rows usually line up between snapshots, so the hint is worth
+            // checking before the hash index
+            final int i = hintIndex % size;
+            if (matchesKey(i, iface, uid, set, tag, roaming)) {
+                return i;
+            }
+            return findIndex(iface, uid, set, tag, roaming);
+        }
+
         for (int offset = 0; offset < size; offset++) {
             final int halfOffset = offset / 2;
 
@@ -437,8 +522,7 @@ public class NetworkStats implements Parcelable {
                 i = (size + hintIndex - halfOffset - 1) % size;
             }
 
-            if (uid == this.uid[i] && set == this.set[i] && tag == this.tag[i]
-                    && roaming == this.roaming[i] && Objects.equals(iface, this.iface[i])) {
+            if (matchesKey(i, iface, uid, set, tag, roaming)) {
                 return i;
             }
         }
@@ -628,6 +712,7 @@ public class NetworkStats implements Parcelable {
         if (recycle != null && recycle.capacity >= left.size) {
             result = recycle;
             result.size = 0;
+            result.clearKeyIndex();
             result.elapsedRealtime = deltaRealtime;
         } else {
             result = new NetworkStats(deltaRealtime, left.size);
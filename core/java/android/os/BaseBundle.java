@@ -22,9 +22,11 @@ import android.util.Log;
 import android.util.MathUtils;
 import android.util.Slog;
 
+import java.io.PrintWriter;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A mapping from String keys to values of various types. In most cases, you
@@ -65,6 +67,130 @@ public class BaseBundle {
         sShouldDefuse = shouldDefuse;
     }
 
+    private static volatile boolean sLazyUnparcel = true;
+
+    /**
+     * Set whether Bundles unparcelled in this process leave their larger
+     * values (Parcelables, nested Bundles, arrays and Serializables) in the
+     * parcel until they are asked for, rather than reading every value the
+     * first time any key is touched.
+     *
+     * @hide
+     */
+    public static void setLazyUnparcel(boolean lazyUnparcel) {
+        sLazyUnparcel = lazyUnparcel;
+    }
+
+    /**
+     * Counters showing how much unmarshalling lazy unparcelling saves; see
+     * {@link #dumpUnparcelStats}.
+     */
+    private static final class UnparcelStats {
+        static final AtomicLong sBundles = new AtomicLong();
+        static final AtomicLong sNanos = new AtomicLong();
+        static final AtomicLong sValuesRead = new AtomicLong();
+        static final AtomicLong sValuesDeferred = new AtomicLong();
+        static final AtomicLong sBytesDeferred = new AtomicLong();
+        static final AtomicLong sDeferredRead = new AtomicLong();
+        static final AtomicLong sDeferredBytesRead = new AtomicLong();
+        static final AtomicLong sDeferredNanos = new AtomicLong();
+        static final AtomicLong sDeferredCopied = new AtomicLong();
+        static final AtomicLong sDeferredBytesCopied = new AtomicLong();
+    }
+
+    /**
+     * Prints how many Bundles this process has unparcelled and how many of
+     * their values were left in the parcel, later read, or passed on to
+     * another parcel without ever being read.
+     *
+     * @hide
+     */
+    public static void dumpUnparcelStats(PrintWriter pw, String prefix) {
+        pw.print(prefix); pw.print("Bundles unparcelled: "); pw.print(UnparcelStats.sBundles.get());
+        pw.print(" in "); pw.print(UnparcelStats.sNanos.get() / 1000000); pw.print("ms");
+        pw.print(" lazy="); pw.println(sLazyUnparcel);
+        pw.print(prefix); pw.print("  values read="); pw.print(UnparcelStats.sValuesRead.get());
+        pw.print(" deferred="); pw.print(UnparcelStats.sValuesDeferred.get());
+        pw.print(" ("); pw.print(UnparcelStats.sBytesDeferred.get()); pw.println(" bytes)");
+        pw.print(prefix); pw.print("  deferred later read=");
+        pw.print(UnparcelStats.sDeferredRead.get());
+        pw.print(" ("); pw.print(UnparcelStats.sDeferredBytesRead.get()); pw.print(" bytes in ");
+        pw.print(UnparcelStats.sDeferredNanos.get() / 1000000); pw.print("ms)");
+        pw.print(" copied unread="); pw.print(UnparcelStats.sDeferredCopied.get());
+        pw.print(" ("); pw.print(UnparcelStats.sDeferredBytesCopied.get()); pw.println(" bytes)");
+    }
+
+    /**
+     * A value that a lazy {@link #unparcel()} left in the parcel it came in,
+     * to be read when somebody asks for it.  The parcel is never recycled
+     * while any of these refer to it, and copies of the Bundle share them.
+     * <p>
+     * A value is read with the ClassLoader of the Bundle holding it, unless it
+     * was copied into another Bundle unread; it is then bound to the ClassLoader
+     * of the Bundle it was copied from, as reading it before the copy would have.
+     */
+    static final class LazyValue {
+        final Parcel mSource;
+        final int mPosition;
+        final int mLength;
+        final boolean mBound;
+        final ClassLoader mLoader;
+
+        LazyValue(Parcel source, int position, int length) {
+            this(source, position, length, false, null);
+        }
+
+        private LazyValue(Parcel source, int position, int length, boolean bound,
+                ClassLoader loader) {
+            mSource = source;
+            mPosition = position;
+            mLength = length;
+            mBound = bound;
+            mLoader = loader;
+        }
+
+        /**
+         * Returns this value bound to the given ClassLoader, or this value if it
+         * is already bound to one.
+         */
+        LazyValue bindTo(ClassLoader loader) {
+            return mBound ? this : new LazyValue(mSource, mPosition, mLength, true, loader);
+        }
+
+        Object read(ClassLoader loader) {
+            final long startNanos = System.nanoTime();
+            final Object value;
+            synchronized (mSource) {
+                mSource.setDataPosition(mPosition);
+                value = mSource.readValue(mBound ? mLoader : loader);
+            }
+            UnparcelStats.sDeferredRead.incrementAndGet();
+            UnparcelStats.sDeferredBytesRead.addAndGet(mLength);
+            UnparcelStats.sDeferredNanos.addAndGet(System.nanoTime() - startNanos);
+            return value;
+        }
+
+        /**
+         * Copies the value as it was written, without reading it.
+         */
+        void writeToParcel(Parcel dest) {
+            synchronized (mSource) {
+                dest.appendFrom(mSource, mPosition, mLength);
+            }
+            UnparcelStats.sDeferredCopied.incrementAndGet();
+            UnparcelStats.sDeferredBytesCopied.addAndGet(mLength);
+        }
+
+        boolean mayHaveFileDescriptors() {
+            return mSource.hasFileDescriptors();
+        }
+
+        @Override
+        public String toString() {
+            return "LazyValue{" + mLength + " bytes}";
+        }
+    }
+
     // A parcel cannot be obtained during compile-time initialization. Put the
     // empty parcel into an inner class that can be initialized separately. This
     // allows to initialize BaseBundle, and classes depending on it.
@@ -81,7 +207,8 @@ public class BaseBundle {
     /*
      * If mParcelledData is non-null, then mMap will be null and the
      * data are stored as a Parcel containing a Bundle.  When the data
-     * are unparcelled, mParcelledData willbe set to null.
+     * are unparcelled, mParcelledData willbe set to null.  Values in mMap
+     * may then still be LazyValues, which getValue() reads on demand.
      */
     Parcel mParcelledData = null;
 
@@ -170,6 +297,12 @@ public class BaseBundle {
 
         if (b.mMap != null) {
             mMap = new ArrayMap<>(b.mMap);
+            for (int i = mMap.size() - 1; i >= 0; i--) {
+                final Object value = mMap.valueAt(i);
+                if (value instanceof LazyValue) {
+                    mMap.setValueAt(i, ((LazyValue) value).bindTo(b.mClassLoader));
+                }
+            }
         } else {
             mMap = null;
         }
@@ -195,7 +328,7 @@ public class BaseBundle {
         if (size == 0) {
             return null;
         }
-        Object o = mMap.valueAt(0);
+        Object o = getValueAt(0);
         try {
             return (String) o;
         } catch (ClassCastException e) {
@@ -265,8 +398,14 @@ public class BaseBundle {
                 map.erase();
                 map.ensureCapacity(N);
             }
+            final boolean lazy = sLazyUnparcel;
+            final long startNanos = System.nanoTime();
             try {
-                parcelledData.readArrayMapInternal(map, N, mClassLoader);
+                if (lazy) {
+                    readArrayMapLazily(parcelledData, map, N);
+                } else {
+                    parcelledData.readArrayMapInternal(map, N, mClassLoader);
+                }
             } catch (BadParcelableException e) {
                 if (sShouldDefuse) {
                     Log.w(TAG, "Failed to parse Bundle, but defusing quietly", e);
@@ -276,14 +415,100 @@ public class BaseBundle {
                 }
             } finally {
                 mMap = map;
-                parcelledData.recycle();
+                if (!lazy || !hasLazyValues(map)) {
+                    // Otherwise the parcel now belongs to the LazyValues in the map.
+                    parcelledData.recycle();
+                }
                 mParcelledData = null;
+                UnparcelStats.sBundles.incrementAndGet();
+                UnparcelStats.sNanos.addAndGet(System.nanoTime() - startNanos);
             }
             if (DEBUG) Log.d(TAG, "unparcel " + Integer.toHexString(System.identityHashCode(this))
                     + " final map: " + mMap);
         }
     }
 
+    /**
+     * Reads the map like {@link Parcel#readArrayMapInternal}, except that
+     * values the parcel can step over are left in it as LazyValues.
+     *
+     */
+    private void readArrayMapLazily(Parcel parcel, ArrayMap<String, Object> map, int N) {
+        int deferred = 0;
+        long deferredBytes = 0;
+        for (int i = 0; i < N; i++) {
+            final String key = parcel.readString();
+            final int start = parcel.dataPosition();
+            if (parcel.skipValue()) {
+                final int length = parcel.dataPosition() - start;
+                map.append(key, new LazyValue(parcel, start, length));
+                deferred++;
+                deferredBytes += length;
+            } else {
+                map.append(key, parcel.readValue(mClassLoader));
+            }
+        }
+        map.validate();
+        UnparcelStats.sValuesRead.addAndGet(N - deferred);
+        UnparcelStats.sValuesDeferred.addAndGet(deferred);
+        UnparcelStats.sBytesDeferred.addAndGet(deferredBytes);
+    }
+
+    private static boolean hasLazyValues(ArrayMap<String, Object> map) {
+        for (int i = map.size() - 1; i >= 0; i--) {
+            if (map.valueAt(i) instanceof LazyValue) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Unparcels the Bundle and reads any values still left in the parcel,
+     * for callers that go through the map's values directly.
+     */
+    /* package */ void unparcelValues() {
+        unparcel();
+        for (int i = mMap.size() - 1; i >= 0; i--) {
+            getValueAt(i);
+        }
+    }
+
+    /**
+     * Returns the value for the given key, reading it from the parcel if
+     * that has not been done yet.  The Bundle must have been unparcelled.
+     */
+    final Object getValue(String key) {
+        final int i = mMap.indexOfKey(key);
+        return i >= 0 ? getValueAt(i) : null;
+    }
+
+    final Object getValueAt(int i) {
+        Object object = mMap.valueAt(i);
+        if (object instanceof LazyValue) {
+            // Same lock as unparcel(), so that concurrent readers don't both
+            // read the value and write the map.
+            synchronized (this) {
+                object = mMap.valueAt(i);
+                if (object instanceof LazyValue) {
+                    try {
+                        object = ((LazyValue) object).read(mClassLoader);
+                    } catch (BadParcelableException e) {
+                        if (sShouldDefuse) {
+                            Log.w(TAG, "Failed to parse Bundle value " + mMap.keyAt(i)
+                                    + ", but defusing quietly", e);
+                            object = null;
+                        } else {
+                            throw e;
+                        }
+                    }
+                    mMap.setValueAt(i, object);
+                }
+            }
+        }
+        return object;
+    }
+
     /**
      * @hide
      */
@@ -300,7 +525,7 @@ public class BaseBundle {
 
     /** @hide */
     ArrayMap<String, Object> getMap() {
-        unparcel();
+        unparcelValues();
         return mMap;
     }
 
@@ -351,7 +576,7 @@ public class BaseBundle {
     @Nullable
     public Object get(String key) {
         unparcel();
-        return mMap.get(key);
+        return getValue(key);
     }
 
     /**
@@ -372,7 +597,24 @@ public class BaseBundle {
     public void putAll(PersistableBundle bundle) {
         unparcel();
         bundle.unparcel();
-        mMap.putAll(bundle.mMap);
+        putAllFrom(bundle);
+    }
+
+    /**
+     * Inserts all mappings from the given unparcelled BaseBundle into this
+     * unparcelled one.  Values it has not read yet are copied unread, bound to
+     * its ClassLoader.
+     */
+    /* package */ void putAllFrom(BaseBundle bundle) {
+        final ArrayMap<String, Object> map = bundle.mMap;
+        mMap.ensureCapacity(mMap.size() + map.size());
+        for (int i = 0; i < map.size(); i++) {
+            Object value = map.valueAt(i);
+            if (value instanceof LazyValue) {
+                value = ((LazyValue) value).bindTo(bundle.mClassLoader);
+            }
+            mMap.put(map.keyAt(i), value);
+        }
     }
 
     /**
@@ -729,7 +971,7 @@ public class BaseBundle {
      */
     public boolean getBoolean(String key, boolean defaultValue) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -763,7 +1005,7 @@ public class BaseBundle {
      */
     Byte getByte(String key, byte defaultValue) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -797,7 +1039,7 @@ public class BaseBundle {
      */
     char getChar(String key, char defaultValue) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -831,7 +1073,7 @@ public class BaseBundle {
      */
     short getShort(String key, short defaultValue) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -865,7 +1107,7 @@ public class BaseBundle {
      */
    public int getInt(String key, int defaultValue) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -899,7 +1141,7 @@ public class BaseBundle {
      */
     public long getLong(String key, long defaultValue) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -933,7 +1175,7 @@ public class BaseBundle {
      */
     float getFloat(String key, float defaultValue) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -967,7 +1209,7 @@ public class BaseBundle {
      */
     public double getDouble(String key, double defaultValue) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return defaultValue;
         }
@@ -990,7 +1232,7 @@ public class BaseBundle {
     @Nullable
     public String getString(@Nullable String key) {
         unparcel();
-        final Object o = mMap.get(key);
+        final Object o = getValue(key);
         try {
             return (String) o;
         } catch (ClassCastException e) {
@@ -1026,7 +1268,7 @@ public class BaseBundle {
     @Nullable
     CharSequence getCharSequence(@Nullable String key) {
         unparcel();
-        final Object o = mMap.get(key);
+        final Object o = getValue(key);
         try {
             return (CharSequence) o;
         } catch (ClassCastException e) {
@@ -1062,7 +1304,7 @@ public class BaseBundle {
     @Nullable
     Serializable getSerializable(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1085,7 +1327,7 @@ public class BaseBundle {
     @Nullable
     ArrayList<Integer> getIntegerArrayList(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1108,7 +1350,7 @@ public class BaseBundle {
     @Nullable
     ArrayList<String> getStringArrayList(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1131,7 +1373,7 @@ public class BaseBundle {
     @Nullable
     ArrayList<CharSequence> getCharSequenceArrayList(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1154,7 +1396,7 @@ public class BaseBundle {
     @Nullable
     public boolean[] getBooleanArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1177,7 +1419,7 @@ public class BaseBundle {
     @Nullable
     byte[] getByteArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1200,7 +1442,7 @@ public class BaseBundle {
     @Nullable
     short[] getShortArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1223,7 +1465,7 @@ public class BaseBundle {
     @Nullable
     char[] getCharArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1246,7 +1488,7 @@ public class BaseBundle {
     @Nullable
     public int[] getIntArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1269,7 +1511,7 @@ public class BaseBundle {
     @Nullable
     public long[] getLongArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1292,7 +1534,7 @@ public class BaseBundle {
     @Nullable
     float[] getFloatArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1315,7 +1557,7 @@ public class BaseBundle {
     @Nullable
     public double[] getDoubleArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1338,7 +1580,7 @@ public class BaseBundle {
     @Nullable
     public String[] getStringArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -1361,7 +1603,7 @@ public class BaseBundle {
     @Nullable
     CharSequence[] getCharSequenceArray(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -188,7 +188,9 @@ public class DropBoxManager {
          */
         public String getText(int maxBytes) {
             if ((mFlags & IS_TEXT) == 0) return null;
-            if (mData != null) return new String(mData, 0, Math.min(maxBytes, mData.length));
+            if (mData != null && (mFlags & IS_GZIPPED) == 0) {
+                return new String(mData, 0, Math.min(maxBytes, mData.length));
+            }
 
             InputStream is = null;
             try {
@@ -27,6 +27,8 @@ import android.util.SizeF;
 import android.util.SparseArray;
 import android.util.SparseBooleanArray;
 
+import com.android.internal.annotations.GuardedBy;
+
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.FileDescriptor;
@@ -35,6 +37,7 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.ObjectStreamClass;
+import java.io.PrintWriter;
 import java.io.Serializable;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
@@ -203,9 +206,43 @@ public final class Parcel {
 
     private RuntimeException mStack;
 
+    /** Capacity of the native buffer when this Parcel was handed out by {@link #obtain()}. */
+    private int mObtainedCapacity;
+
     private static final int POOL_SIZE = 6;
-    private static final Parcel[] sOwnedPool = new Parcel[POOL_SIZE];
-    private static final Parcel[] sHolderPool = new Parcel[POOL_SIZE];
+
+    /**
+     * Recycled Parcels keep their native buffer, emptied, if it is no bigger
+     * than the largest of these, and are pooled by the smallest class their
+     * buffer fits; class 0 holds Parcels whose buffer was freed.  Classes
+     * with bigger buffers keep fewer Parcels, see {@link #poolClassDepth}.
+     */
+    private static final int[] POOL_CLASS_CAPACITY = { 0, 1024, 4 * 1024, 16 * 1024 };
+    private static final int POOL_CLASSES = POOL_CLASS_CAPACITY.length;
+
+    private static final Object sPoolLock = new Object();
+    @GuardedBy("sPoolLock") private static int sPoolDepth;
+    @GuardedBy("sPoolLock")
+    private static final Parcel[][] sOwnedPool = new Parcel[POOL_CLASSES][];
+    @GuardedBy("sPoolLock") private static final int[] sOwnedPoolCount = new int[POOL_CLASSES];
+    @GuardedBy("sPoolLock") private static Parcel[] sHolderPool = new Parcel[0];
+    @GuardedBy("sPoolLock") private static int sHolderPoolCount;
+
+    // Pool statistics, see dumpPoolStats().
+    @GuardedBy("sPoolLock") private static final long[] sPoolHits = new long[POOL_CLASSES];
+    @GuardedBy("sPoolLock") private static long sPoolMisses;
+    @GuardedBy("sPoolLock") private static long sPoolGrowths;
+    @GuardedBy("sPoolLock") private static long sPoolBuffersFreed;
+    @GuardedBy("sPoolLock") private static long sPoolDropped;
+    @GuardedBy("sPoolLock") private static long sHolderPoolHits;
+    @GuardedBy("sPoolLock") private static long sHolderPoolMisses;
+
+    static {
+        for (int c = 0; c < POOL_CLASSES; c++) {
+            sOwnedPool[c] = new Parcel[0];
+        }
+        setPoolDepth(POOL_SIZE);
+    }
 
     // Keep in sync with frameworks/native/libs/binder/PersistableBundle.cpp.
     private static final int VAL_NULL = -1;
@@ -314,21 +351,32 @@ public final class Parcel {
      * Retrieve a new Parcel object from the pool.
      */
     public static Parcel obtain() {
-        final Parcel[] pool = sOwnedPool;
-        synchronized (pool) {
-            Parcel p;
-            for (int i=0; i<POOL_SIZE; i++) {
-                p = pool[i];
-                if (p != null) {
-                    pool[i] = null;
-                    if (DEBUG_RECYCLE) {
-                        p.mStack = new RuntimeException();
-                    }
-                    return p;
+        Parcel p = null;
+        synchronized (sPoolLock) {
+            // Prefer the smallest buffer already allocated; most Parcels are small.
+            for (int c = 1; c <= POOL_CLASSES; c++) {
+                final int poolClass = c % POOL_CLASSES;
+                final int count = sOwnedPoolCount[poolClass];
+                if (count > 0) {
+                    final Parcel[] pool = sOwnedPool[poolClass];
+                    p = pool[count - 1];
+                    pool[count - 1] = null;
+                    sOwnedPoolCount[poolClass] = count - 1;
+                    sPoolHits[poolClass]++;
+                    break;
                 }
             }
+            if (p == null) {
+                sPoolMisses++;
+            }
+        }
+        if (p == null) {
+            p = new Parcel(0);
+        } else if (DEBUG_RECYCLE) {
+            p.mStack = new RuntimeException();
         }
-        return new Parcel(0);
+        p.mObtainedCapacity = p.dataCapacity();
+        return p;
     }
 
     /**
@@ -337,23 +385,125 @@ public final class Parcel {
      */
     public final void recycle() {
         if (DEBUG_RECYCLE) mStack = null;
-        freeBuffer();
 
-        final Parcel[] pool;
-        if (mOwnsNativeParcelObject) {
-            pool = sOwnedPool;
-        } else {
+        if (!mOwnsNativeParcelObject) {
             mNativePtr = 0;
-            pool = sHolderPool;
+            synchronized (sPoolLock) {
+                if (sHolderPoolCount < sHolderPool.length) {
+                    sHolderPool[sHolderPoolCount++] = this;
+                }
+            }
+            return;
+        }
+
+        final int capacity = dataCapacity();
+        int poolClass = poolClassFor(capacity);
+        if (poolClass > 0) {
+            // Drop the contents, releasing any binders and file descriptors,
+            // but keep the buffer for the next user.
+            setDataSize(0);
+            setDataPosition(0);
+            nativeRestoreAllowFds(mNativePtr, true);
+            if (dataCapacity() == 0) {
+                // The data belonged to someone else, such as the binder driver.
+                poolClass = 0;
+            }
+        } else {
+            freeBuffer();
+        }
+
+        synchronized (sPoolLock) {
+            if (poolClass > 0 && capacity > mObtainedCapacity) {
+                sPoolGrowths++;
+            }
+            if (poolClass > 0 && sOwnedPoolCount[poolClass] >= poolClassDepth(poolClass)) {
+                // No room for another buffer this size; pool the Parcel without it.
+                freeBuffer();
+                sPoolBuffersFreed++;
+                poolClass = 0;
+            } else if (poolClass == 0 && capacity > 0) {
+                sPoolBuffersFreed++;
+            }
+            final int count = sOwnedPoolCount[poolClass];
+            if (count < poolClassDepth(poolClass)) {
+                sOwnedPool[poolClass][count] = this;
+                sOwnedPoolCount[poolClass] = count + 1;
+            } else {
+                sPoolDropped++;
+            }
+        }
+    }
+
+    /**
+     * Returns the pool class for a Parcel whose buffer has the given capacity,
+     * or 0 if the buffer is too big to keep.
+     */
+    private static int poolClassFor(int capacity) {
+        if (capacity <= 0) {
+            return 0;
+        }
+        for (int c = 1; c < POOL_CLASSES; c++) {
+            if (capacity <= POOL_CLASS_CAPACITY[c]) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    @GuardedBy("sPoolLock")
+    private static int poolClassDepth(int poolClass) {
+        // Halve the depth for each class of bigger buffers.
+        return poolClass == 0 ? sPoolDepth : Math.max(1, sPoolDepth >> (poolClass - 1));
+    }
+
+    /**
+     * Sets how many recycled Parcels this process keeps for each size of
+     * buffer, to be obtained again without allocating; processes handling
+     * many binder calls at once want more than the default of 6.
+     *
+     * @hide
+     */
+    public static void setPoolDepth(int depth) {
+        synchronized (sPoolLock) {
+            sPoolDepth = depth;
+            // Parcels beyond the new depth are left to the garbage collector.
+            for (int c = 0; c < POOL_CLASSES; c++) {
+                final int classDepth = poolClassDepth(c);
+                sOwnedPool[c] = Arrays.copyOf(sOwnedPool[c], classDepth);
+                sOwnedPoolCount[c] = Math.min(sOwnedPoolCount[c], classDepth);
+            }
+            sHolderPool = Arrays.copyOf(sHolderPool, depth);
+            sHolderPoolCount = Math.min(sHolderPoolCount, depth);
         }
+    }
 
-        synchronized (pool) {
-            for (int i=0; i<POOL_SIZE; i++) {
-                if (pool[i] == null) {
-                    pool[i] = this;
-                    return;
+    /**
+     * Prints how often {@link #obtain()} found a pooled Parcel, and how often
+     * pooled buffers turned out too small and had to grow.
+     *
+     * @hide
+     */
+    public static void dumpPoolStats(PrintWriter pw, String prefix) {
+        synchronized (sPoolLock) {
+            pw.print(prefix); pw.print("Parcel pool: depth="); pw.print(sPoolDepth);
+            pw.print(" misses="); pw.print(sPoolMisses);
+            pw.print(" growths="); pw.print(sPoolGrowths);
+            pw.print(" buffersFreed="); pw.print(sPoolBuffersFreed);
+            pw.print(" dropped="); pw.println(sPoolDropped);
+            for (int c = 0; c < POOL_CLASSES; c++) {
+                pw.print(prefix); pw.print("  ");
+                if (c == 0) {
+                    pw.print("no buffer");
+                } else {
+                    pw.print("<="); pw.print(POOL_CLASS_CAPACITY[c] / 1024); pw.print("KB");
                 }
+                pw.print(": pooled="); pw.print(sOwnedPoolCount[c]);
+                pw.print("/"); pw.print(poolClassDepth(c));
+                pw.print(" hits="); pw.println(sPoolHits[c]);
             }
+            pw.print(prefix); pw.print("  holders: pooled="); pw.print(sHolderPoolCount);
+            pw.print(" hits="); pw.print(sHolderPoolHits);
+            pw.print(" misses="); pw.println(sHolderPoolMisses);
         }
     }
 
@@ -721,7 +871,13 @@ public final class Parcel {
         for (int i=0; i<N; i++) {
             if (DEBUG_ARRAY_MAP) startPos = dataPosition();
             writeString(val.keyAt(i));
-            writeValue(val.valueAt(i));
+            final Object value = val.valueAt(i);
+            if (value instanceof BaseBundle.LazyValue) {
+                // Still in the parcel it came in; pass it on as it is.
+                ((BaseBundle.LazyValue) value).writeToParcel(this);
+            } else {
+                writeValue(value);
+            }
             if (DEBUG_ARRAY_MAP) Log.d(TAG, "  Write #" + i + " "
                     + (dataPosition()-startPos) + " bytes: key=0x"
                     + Integer.toHexString(val.keyAt(i) != null ? val.keyAt(i).hashCode() : 0)
@@ -1399,7 +1555,9 @@ public final class Parcel {
             // come before the Parcelable case, so that their specific VAL_*
             // types will be written.
             writeInt(VAL_PARCELABLE);
+            final int start = beginLengthPrefix();
             writeParcelable((Parcelable) v, 0);
+            endLengthPrefix(start);
         } else if (v instanceof Short) {
             writeInt(VAL_SHORT);
             writeInt(((Short) v).intValue());
@@ -1443,7 +1601,9 @@ public final class Parcel {
             writeStrongBinder((IBinder) v);
         } else if (v instanceof Parcelable[]) {
             writeInt(VAL_PARCELABLEARRAY);
+            final int start = beginLengthPrefix();
             writeParcelableArray((Parcelable[]) v, 0);
+            endLengthPrefix(start);
         } else if (v instanceof int[]) {
             writeInt(VAL_INTARRAY);
             writeIntArray((int[]) v);
@@ -1479,6 +1639,26 @@ public final class Parcel {
         }
     }
 
+    /**
+     * Parcelables can't be stepped over without unmarshalling them, so
+     * {@link #writeValue} writes their length in front of them; that lets a
+     * Bundle skip them until somebody asks for them.  Both ends of this are
+     * here, and like the rest of a Parcel it is not meant to be stored.
+     *
+     * @return the position just after the dummy length
+     */
+    private int beginLengthPrefix() {
+        writeInt(-1); // dummy, will hold length
+        return dataPosition();
+    }
+
+    private void endLengthPrefix(int start) {
+        final int end = dataPosition();
+        setDataPosition(start - 4);
+        writeInt(end - start);
+        setDataPosition(end);
+    }
+
     /**
      * Flatten the name of the class of the Parcelable and its contents
      * into the parcel.
@@ -2361,8 +2541,12 @@ public final class Parcel {
         case VAL_MAP:
             return readHashMap(loader);
 
-        case VAL_PARCELABLE:
-            return readParcelable(loader);
+        case VAL_PARCELABLE: {
+            final int end = readLengthPrefix();
+            final Parcelable p = readParcelable(loader);
+            checkLengthPrefix(end, type);
+            return p;
+        }
 
         case VAL_SHORT:
             return (short) readInt();
@@ -2415,8 +2599,12 @@ public final class Parcel {
         case VAL_SERIALIZABLE:
             return readSerializable(loader);
 
-        case VAL_PARCELABLEARRAY:
-            return readParcelableArray(loader);
+        case VAL_PARCELABLEARRAY: {
+            final int end = readLengthPrefix();
+            final Parcelable[] p = readParcelableArray(loader);
+            checkLengthPrefix(end, type);
+            return p;
+        }
 
         case VAL_SPARSEARRAY:
             return readSparseArray(loader);
@@ -2446,6 +2634,119 @@ public final class Parcel {
         }
     }
 
+    private int readLengthPrefix() {
+        final int length = readInt();
+        return length >= 0 ? dataPosition() + length : -1;
+    }
+
+    private void checkLengthPrefix(int end, int type) {
+        if (end >= 0 && end != dataPosition()) {
+            // The Parcelable read a different amount than it wrote; carry on from
+            // where the next value actually starts.
+            Log.w(TAG, "Unmarshalling type " + type + " ended at " + dataPosition()
+                    + " instead of " + end);
+            setDataPosition(end);
+        }
+    }
+
+    /**
+     * Steps over a value written by {@link #writeValue} without unmarshalling
+     * it, for the kinds of value that are costly enough to be worth skipping
+     * and whose length can be found from the parcel.  Strings, boxed
+     * primitives and the like are left alone, as are values such as lists
+     * and CharSequences that would have to be read to find their end.
+     *
+     * @return true if the value was skipped; false if the data position was
+     * left at the start of the value, which must then be read.
+     */
+    /* package */ boolean skipValue() {
+        final int start = dataPosition();
+        final int type = readInt();
+        long end;
+        switch (type) {
+            case VAL_PARCELABLE:
+            case VAL_PARCELABLEARRAY: {
+                final int length = readInt();
+                end = length >= 0 ? (long) dataPosition() + length : -1;
+                break;
+            }
+            case VAL_BUNDLE:
+            case VAL_PERSISTABLEBUNDLE: {
+                // Length, then the magic number and data unless null or empty.
+                final int length = readInt();
+                end = length > 0 ? (long) dataPosition() + 4 + length : dataPosition();
+                break;
+            }
+            case VAL_BYTEARRAY: {
+                final int n = readInt();
+                end = n > 0 ? (long) dataPosition() + ((n + 3L) & ~3L) : dataPosition();
+                break;
+            }
+            case VAL_INTARRAY:
+            case VAL_BOOLEANARRAY: {
+                final int n = readInt();
+                end = n > 0 ? (long) dataPosition() + 4L * n : dataPosition();
+                break;
+            }
+            case VAL_LONGARRAY:
+            case VAL_DOUBLEARRAY: {
+                final int n = readInt();
+                end = n > 0 ? (long) dataPosition() + 8L * n : dataPosition();
+                break;
+            }
+            case VAL_STRINGARRAY: {
+                final int n = readInt();
+                end = dataPosition();
+                for (int i = 0; i < n && end >= 0; i++) {
+                    end = skipString();
+                }
+                break;
+            }
+            case VAL_SERIALIZABLE: {
+                // Class name, then the serialized bytes unless the value was null.
+                final int nameStart = dataPosition();
+                if (readInt() < 0) {
+                    end = dataPosition();
+                    break;
+                }
+                setDataPosition(nameStart);
+                end = skipString();
+                if (end >= 0) {
+                    final int n = readInt();
+                    end = n > 0 ? (long) dataPosition() + ((n + 3L) & ~3L) : dataPosition();
+                }
+                break;
+            }
+            default:
+                end = -1;
+                break;
+        }
+        if (end < 0 || end > dataSize()) {
+            setDataPosition(start);
+            return false;
+        }
+        setDataPosition((int) end);
+        return true;
+    }
+
+    /**
+     * Steps over a string written by {@link #writeString}.
+     * @return the position after the string, or -1 if it runs off the end
+     */
+    private long skipString() {
+        final int n = readInt();
+        if (n < 0) {
+            return dataPosition();
+        }
+        // UTF-16 characters plus a terminating null, padded to 4 bytes.
+        final long end = dataPosition() + ((2L * (n + 1) + 3L) & ~3L);
+        if (end > dataSize()) {
+            return -1;
+        }
+        setDataPosition((int) end);
+        return end;
+    }
+
     /**
      * Read and return a new Parcelable from the parcel.  The given class loader
      * will be used to load any enclosed Parcelables.  If it is null, the default
@@ -2646,22 +2947,24 @@ public final class Parcel {
 
     /** @hide */
     static protected final Parcel obtain(long obj) {
-        final Parcel[] pool = sHolderPool;
-        synchronized (pool) {
-            Parcel p;
-            for (int i=0; i<POOL_SIZE; i++) {
-                p = pool[i];
-                if (p != null) {
-                    pool[i] = null;
-                    if (DEBUG_RECYCLE) {
-                        p.mStack = new RuntimeException();
-                    }
-                    p.init(obj);
-                    return p;
-                }
+        Parcel p = null;
+        synchronized (sPoolLock) {
+            if (sHolderPoolCount > 0) {
+                p = sHolderPool[--sHolderPoolCount];
+                sHolderPool[sHolderPoolCount] = null;
+                sHolderPoolHits++;
+            } else {
+                sHolderPoolMisses++;
             }
         }
-        return new Parcel(obj);
+        if (p == null) {
+            return new Parcel(obj);
+        }
+        if (DEBUG_RECYCLE) {
+            p.mStack = new RuntimeException();
+        }
+        p.init(obj);
+        return p;
     }
 
     private Parcel(long nativePtr) {
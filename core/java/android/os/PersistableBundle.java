@@ -175,7 +175,7 @@ public final class PersistableBundle extends BaseBundle implements Cloneable, Pa
     @Nullable
     public PersistableBundle getPersistableBundle(@Nullable String key) {
         unparcel();
-        Object o = mMap.get(key);
+        Object o = getValue(key);
         if (o == null) {
             return null;
         }
@@ -216,7 +216,7 @@ public final class PersistableBundle extends BaseBundle implements Cloneable, Pa
 
     /** @hide */
     public void saveToXml(XmlSerializer out) throws IOException, XmlPullParserException {
-        unparcel();
+        unparcelValues();
         XmlUtils.writeMapXml(mMap, out, this);
     }
 
@@ -283,6 +283,7 @@ public final class PersistableBundle extends BaseBundle implements Cloneable, Pa
                         mParcelledData.dataSize() + "]";
             }
         }
+        unparcelValues();
         return "PersistableBundle[" + mMap.toString() + "]";
     }
 }
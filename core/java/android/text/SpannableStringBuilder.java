@@ -72,6 +72,8 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
         mSpanEnds = EmptyArray.INT;
         mSpanFlags = EmptyArray.INT;
         mSpanMax = EmptyArray.INT;
+        mSpanKinds = EmptyArray.INT;
+        mSpanKindMask = EmptyArray.INT;
         mSpanOrder = EmptyArray.INT;
         mPrioSortBuffer = EmptyArray.INT;
         mOrderSortBuffer = EmptyArray.INT;
@@ -492,6 +494,7 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
         System.arraycopy(mSpanEnds, i + 1, mSpanEnds, i, count);
         System.arraycopy(mSpanFlags, i + 1, mSpanFlags, i, count);
         System.arraycopy(mSpanOrder, i + 1, mSpanOrder, i, count);
+        System.arraycopy(mSpanKinds, i + 1, mSpanKinds, i, count);
 
         mSpanCount--;
 
@@ -751,6 +754,7 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
         mSpanEnds = GrowingArrayUtils.append(mSpanEnds, mSpanCount, end);
         mSpanFlags = GrowingArrayUtils.append(mSpanFlags, mSpanCount, flags);
         mSpanOrder = GrowingArrayUtils.append(mSpanOrder, mSpanCount, mSpanInsertCount);
+        mSpanKinds = GrowingArrayUtils.append(mSpanKinds, mSpanCount, kindsOf(what));
         invalidateIndex(mSpanCount);
         mSpanCount++;
         mSpanInsertCount++;
@@ -760,6 +764,7 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
         int sizeOfMax = 2 * treeRoot() + 1;
         if (mSpanMax.length < sizeOfMax) {
             mSpanMax = new int[sizeOfMax];
+            mSpanKindMask = new int[sizeOfMax];
         }
 
         if (send) {
@@ -866,7 +871,8 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
                                  boolean sort) {
         if (kind == null) return (T[]) ArrayUtils.emptyArray(Object.class);
         if (mSpanCount == 0) return ArrayUtils.emptyArray(kind);
-        int count = countSpans(queryStart, queryEnd, kind, treeRoot());
+        final int kindMask = kindMask(kind);
+        int count = countSpans(queryStart, queryEnd, kind, kindMask, treeRoot());
         if (count == 0) {
             return ArrayUtils.emptyArray(kind);
         }
@@ -877,13 +883,50 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
             mPrioSortBuffer = checkSortBuffer(mPrioSortBuffer, count);
             mOrderSortBuffer = checkSortBuffer(mOrderSortBuffer, count);
         }
-        getSpansRec(queryStart, queryEnd, kind, treeRoot(), ret, mPrioSortBuffer,
-                mOrderSortBuffer, 0, sort);
-        if (sort) sort(ret, mPrioSortBuffer, mOrderSortBuffer);
+        getSpansRec(queryStart, queryEnd, kind, kindMask, treeRoot(), ret, count,
+                mPrioSortBuffer, mOrderSortBuffer, 0, sort);
+        if (sort) sort(ret, count, mPrioSortBuffer, mOrderSortBuffer);
         return ret;
     }
 
-    private int countSpans(int queryStart, int queryEnd, Class kind, int i) {
+    /**
+     * Like {@link #getSpans(int, int, Class)}, but puts the spans into the given array
+     * instead of allocating a new one, so that code querying the same buffer over and
+     * over, such as layout and drawing, can reuse it.  If the array is too small for
+     * all the spans found, it is left untouched and the number needed is returned, so
+     * the caller can retry with a big enough array.
+     *
+     * @param queryStart Start index.
+     * @param queryEnd End index.
+     * @param kind Class type to search for.
+     * @param out Array to be filled with the spans, sorted like getSpans() sorts them.
+     * @param <T>
+     * @return The number of spans found.
+     *
+     * @hide
+     */
+    public <T> int getSpans(int queryStart, int queryEnd, @Nullable Class<? extends T> kind,
+            T[] out) {
+        if (kind == null || mSpanCount == 0) return 0;
+        final int kindMask = kindMask(kind);
+        int count = countSpans(queryStart, queryEnd, kind, kindMask, treeRoot());
+        if (count == 0 || count > out.length) {
+            return count;
+        }
+
+        mPrioSortBuffer = checkSortBuffer(mPrioSortBuffer, count);
+        mOrderSortBuffer = checkSortBuffer(mOrderSortBuffer, count);
+        getSpansRec(queryStart, queryEnd, kind, kindMask, treeRoot(), out, count,
+                mPrioSortBuffer, mOrderSortBuffer, 0, true);
+        sort(out, count, mPrioSortBuffer, mOrderSortBuffer);
+        return count;
+    }
+
+    private int countSpans(int queryStart, int queryEnd, Class kind, int kindMask, int i) {
+        if (kindMask != 0 && (mSpanKindMask[i] & kindMask) == 0) {
+            // no spans of this kind under this node
+            return 0;
+        }
         int count = 0;
         if ((i & 1) != 0) {
             // internal tree node
@@ -893,7 +936,7 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
                 spanMax -= mGapLength;
             }
             if (spanMax >= queryStart) {
-                count = countSpans(queryStart, queryEnd, kind, left);
+                count = countSpans(queryStart, queryEnd, kind, kindMask, left);
             }
         }
         if (i < mSpanCount) {
@@ -909,11 +952,11 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
                 if (spanEnd >= queryStart &&
                     (spanStart == spanEnd || queryStart == queryEnd ||
                         (spanStart != queryEnd && spanEnd != queryStart)) &&
-                        (Object.class == kind || kind.isInstance(mSpans[i]))) {
+                        isSpanOfKind(i, kind, kindMask)) {
                     count++;
                 }
                 if ((i & 1) != 0) {
-                    count += countSpans(queryStart, queryEnd, kind, rightChild(i));
+                    count += countSpans(queryStart, queryEnd, kind, kindMask, rightChild(i));
                 }
             }
         }
@@ -926,8 +969,10 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
      * @param queryStart Start index for the interval query.
      * @param queryEnd End index for the interval query.
      * @param kind Class type to search for.
+     * @param kindMask Bit for kind from {@link #kindMask}, or 0 to check each span's class.
      * @param i Index of the current tree node.
      * @param ret Array to be filled with results.
+     * @param size Number of results expected.
      * @param priority Buffer to keep record of the priorities of spans found.
      * @param insertionOrder Buffer to keep record of the insertion orders of spans found.
      * @param count The number of found spans.
@@ -937,8 +982,13 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
      * @return The total number of spans found.
      */
     @SuppressWarnings("unchecked")
-    private <T> int getSpansRec(int queryStart, int queryEnd, Class<T> kind,
-            int i, T[] ret, int[] priority, int[] insertionOrder, int count, boolean sort) {
+    private <T> int getSpansRec(int queryStart, int queryEnd, Class<? extends T> kind,
+            int kindMask, int i, T[] ret, int size, int[] priority, int[] insertionOrder,
+            int count, boolean sort) {
+        if (kindMask != 0 && (mSpanKindMask[i] & kindMask) == 0) {
+            // no spans of this kind under this node
+            return count;
+        }
         if ((i & 1) != 0) {
             // internal tree node
             int left = leftChild(i);
@@ -947,8 +997,8 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
                 spanMax -= mGapLength;
             }
             if (spanMax >= queryStart) {
-                count = getSpansRec(queryStart, queryEnd, kind, left, ret, priority,
-                        insertionOrder, count, sort);
+                count = getSpansRec(queryStart, queryEnd, kind, kindMask, left, ret, size,
+                        priority, insertionOrder, count, sort);
             }
         }
         if (i >= mSpanCount) return count;
@@ -964,7 +1014,7 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
             if (spanEnd >= queryStart &&
                     (spanStart == spanEnd || queryStart == queryEnd ||
                         (spanStart != queryEnd && spanEnd != queryStart)) &&
-                        (Object.class == kind || kind.isInstance(mSpans[i]))) {
+                        isSpanOfKind(i, kind, kindMask)) {
                 int spanPriority = mSpanFlags[i] & SPAN_PRIORITY;
                 int target = count;
                 if (sort) {
@@ -983,9 +1033,9 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
                 ret[target] = (T) mSpans[i];
                 count++;
             }
-            if (count < ret.length && (i & 1) != 0) {
-                count = getSpansRec(queryStart, queryEnd, kind, rightChild(i), ret, priority,
-                        insertionOrder, count, sort);
+            if (count < size && (i & 1) != 0) {
+                count = getSpansRec(queryStart, queryEnd, kind, kindMask, rightChild(i), ret,
+                        size, priority, insertionOrder, count, sort);
             }
         }
         return count;
@@ -1013,13 +1063,13 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
      * span with a lower insertion order will be before a span with a higher insertion order.
      *
      * @param array Span array to be sorted.
+     * @param size Number of spans at the start of the array to sort.
      * @param priority Priorities of the spans
      * @param insertionOrder Insertion orders of the spans
      * @param <T> Span object type.
      * @param <T>
      */
-    private final <T> void sort(T[] array, int[] priority, int[] insertionOrder) {
-        int size = array.length;
+    private final <T> void sort(T[] array, int size, int[] priority, int[] insertionOrder) {
         for (int i = size / 2 - 1; i >= 0; i--) {
             siftDown(i, array, size, priority, insertionOrder);
         }
@@ -1105,26 +1155,30 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
         if (kind == null) {
             kind = Object.class;
         }
-        return nextSpanTransitionRec(start, limit, kind, treeRoot());
+        return nextSpanTransitionRec(start, limit, kind, kindMask(kind), treeRoot());
     }
 
-    private int nextSpanTransitionRec(int start, int limit, Class kind, int i) {
+    private int nextSpanTransitionRec(int start, int limit, Class kind, int kindMask, int i) {
+        if (kindMask != 0 && (mSpanKindMask[i] & kindMask) == 0) {
+            // no spans of this kind under this node
+            return limit;
+        }
         if ((i & 1) != 0) {
             // internal tree node
             int left = leftChild(i);
             if (resolveGap(mSpanMax[left]) > start) {
-                limit = nextSpanTransitionRec(start, limit, kind, left);
+                limit = nextSpanTransitionRec(start, limit, kind, kindMask, left);
             }
         }
         if (i < mSpanCount) {
             int st = resolveGap(mSpanStarts[i]);
             int en = resolveGap(mSpanEnds[i]);
-            if (st > start && st < limit && kind.isInstance(mSpans[i]))
+            if (st > start && st < limit && isSpanOfKind(i, kind, kindMask))
                 limit = st;
-            if (en > start && en < limit && kind.isInstance(mSpans[i]))
+            if (en > start && en < limit && isSpanOfKind(i, kind, kindMask))
                 limit = en;
             if (st < limit && (i & 1) != 0) {
-                limit = nextSpanTransitionRec(start, limit, kind, rightChild(i));
+                limit = nextSpanTransitionRec(start, limit, kind, kindMask, rightChild(i));
             }
         }
 
@@ -1632,22 +1686,93 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
     // Note that mSpanMax[] also has a valid valuefor interior nodes of index >= n, but which have
     // descendants of index < n. In these cases, it simply represents the maximum span end of its
     // descendants. This is a consequence of the perfect binary tree structure.
+    // The same traversal also fills mSpanKindMask[], which holds for each node the kinds of
+    // span (see kindMask()) found at that node and its descendants, so that queries for one
+    // kind can skip subtrees that hold none of it.
     private int calcMax(int i) {
         int max = 0;
+        int kinds = 0;
         if ((i & 1) != 0) {
             // internal tree node
-            max = calcMax(leftChild(i));
+            int left = leftChild(i);
+            max = calcMax(left);
+            kinds = mSpanKindMask[left];
         }
         if (i < mSpanCount) {
             max = Math.max(max, mSpanEnds[i]);
+            kinds |= mSpanKinds[i];
             if ((i & 1) != 0) {
-                max = Math.max(max, calcMax(rightChild(i)));
+                int right = rightChild(i);
+                max = Math.max(max, calcMax(right));
+                kinds |= mSpanKindMask[right];
             }
         }
         mSpanMax[i] = max;
+        mSpanKindMask[i] = kinds;
         return max;
     }
 
+    // Span kinds: each Class passed to getSpans() or nextSpanTransition() gets one of the bits
+    // of an int, up to MAX_KINDS of them; mSpanKinds[] has the bits of the kinds each span is
+    // an instance of. Which kinds a span class belongs to is worked out once per class, so
+    // queries don't need to call Class.isInstance() on every span they visit.
+
+    /**
+     * Returns the bit for spans of the given kind, assigning one if needed, or 0 if the
+     * kind is Object or there are no bits left; callers then check each span's class.
+     */
+    private int kindMask(Class<?> kind) {
+        if (kind == Object.class) return 0;
+        for (int k = 0; k < mKindCount; k++) {
+            if (mKinds[k] == kind) return 1 << k;
+        }
+        if (mKindCount == MAX_KINDS) return 0;
+
+        final int bit = 1 << mKindCount;
+        mKinds = GrowingArrayUtils.append(mKinds, mKindCount, kind);
+        mKindCount++;
+        for (int j = 0; j < mSpanClassCount; j++) {
+            if (kind.isAssignableFrom(mSpanClasses[j])) {
+                mSpanClassKinds[j] |= bit;
+            }
+        }
+        if (mSpanCount != 0) {
+            for (int i = 0; i < mSpanCount; i++) {
+                mSpanKinds[i] = kindsOf(mSpans[i]);
+            }
+            calcMax(treeRoot());
+        }
+        return bit;
+    }
+
+    /**
+     * Returns the bits of the kinds the given span is an instance of.
+     */
+    private int kindsOf(Object span) {
+        if (mKindCount == 0 || span == null) return 0;
+        final Class<?> c = span.getClass();
+        for (int j = 0; j < mSpanClassCount; j++) {
+            if (mSpanClasses[j] == c) return mSpanClassKinds[j];
+        }
+        int kinds = 0;
+        for (int k = 0; k < mKindCount; k++) {
+            if (mKinds[k].isAssignableFrom(c)) {
+                kinds |= 1 << k;
+            }
+        }
+        mSpanClasses = GrowingArrayUtils.append(mSpanClasses, mSpanClassCount, c);
+        mSpanClassKinds = GrowingArrayUtils.append(mSpanClassKinds, mSpanClassCount, kinds);
+        mSpanClassCount++;
+        return kinds;
+    }
+
+    private boolean isSpanOfKind(int i, Class kind, int kindMask) {
+        if (kindMask != 0) {
+            return (mSpanKinds[i] & kindMask) != 0;
+        }
+        return Object.class == kind || kind.isInstance(mSpans[i]);
+    }
+
     // restores binary interval tree invariants after any mutation of span structure
     private void restoreInvariants() {
         if (mSpanCount == 0) return;
@@ -1662,6 +1787,7 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
                 int end = mSpanEnds[i];
                 int flags = mSpanFlags[i];
                 int insertionOrder = mSpanOrder[i];
+                int kinds = mSpanKinds[i];
                 int j = i;
                 do {
                     mSpans[j] = mSpans[j - 1];
@@ -1669,6 +1795,7 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
                     mSpanEnds[j] = mSpanEnds[j - 1];
                     mSpanFlags[j] = mSpanFlags[j - 1];
                     mSpanOrder[j] = mSpanOrder[j - 1];
+                    mSpanKinds[j] = mSpanKinds[j - 1];
                     j--;
                 } while (j > 0 && start < mSpanStarts[j - 1]);
                 mSpans[j] = span;
@@ -1676,6 +1803,7 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
                 mSpanEnds[j] = end;
                 mSpanFlags[j] = flags;
                 mSpanOrder[j] = insertionOrder;
+                mSpanKinds[j] = kinds;
                 invalidateIndex(j);
             }
         }
@@ -1714,6 +1842,8 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
     private int[] mSpanMax;  // see calcMax() for an explanation of what this array stores
     private int[] mSpanFlags;
     private int[] mSpanOrder;  // store the order of span insertion
+    private int[] mSpanKinds;  // see kindMask() for an explanation of what this array stores
+    private int[] mSpanKindMask;  // see calcMax() for an explanation of what this array stores
     private int mSpanInsertCount;  // counter for the span insertion
     private int[] mPrioSortBuffer;  // buffer used to sort getSpans result
     private int[] mOrderSortBuffer;  // buffer used to sort getSpans result
@@ -1722,6 +1852,13 @@ public class SpannableStringBuilder implements CharSequence, GetChars, Spannable
     private IdentityHashMap<Object, Integer> mIndexOfSpan;
     private int mLowWaterMark;  // indices below this have not been touched
 
+    private static final int MAX_KINDS = 32;
+    private Class<?>[] mKinds = new Class<?>[0];  // span kinds queried, by bit
+    private int mKindCount;
+    private Class<?>[] mSpanClasses = new Class<?>[0];  // span classes seen, and their kinds
+    private int[] mSpanClassKinds = EmptyArray.INT;
+    private int mSpanClassCount;
+
     // TextWatcher callbacks may trigger changes that trigger more callbacks. This keeps track of
     // how deep the callbacks go.
     private int mTextWatcherDepth;
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Caches of small array objects for {@link ArrayMap} and {@link ArraySet}, to avoid
+ * spamming garbage.  Only arrays for containers of the base capacity and twice that
+ * are kept.
+ * <p>
+ * The cache is split into stripes, picked by the id of the calling thread, each with its
+ * own lock; that way binder threads creating Bundles at the same time don't all queue up
+ * on a single class lock.  Each stripe keeps its arrays in linked lists: the first entry
+ * of a cached array points to the next array in the list, and the second entry to the
+ * int[] hash code array that goes with it.
+ */
+final class ArrayCache {
+    private static final String TAG = "ArrayCache";
+
+    /** Number of stripes; must be a power of two. */
+    private static final int STRIPE_COUNT = 8;
+
+    private static final class Stripe {
+        Object[] baseCache;
+        int baseCacheSize;
+        Object[] twiceBaseCache;
+        int twiceBaseCacheSize;
+
+        /**
+         * Threads holding or waiting for the stripe lock.  A thread that finds it non-zero
+         * before taking the lock had to wait, and counts that in {@link #contended}.
+         */
+        final AtomicInteger users = new AtomicInteger();
+
+        long hits;
+        long misses;
+        long contended;
+    }
+
+    private final String mName;
+    private final int mBaseSize;
+    private final Stripe[] mStripes = new Stripe[STRIPE_COUNT];
+
+    /** Maximum number of arrays of each size kept per stripe. */
+    private volatile int mMaxDepth;
+
+    ArrayCache(String name, int baseSize, int maxDepth) {
+        mName = name;
+        mBaseSize = baseSize;
+        mMaxDepth = maxDepth;
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            mStripes[i] = new Stripe();
+        }
+    }
+
+    private Stripe stripeForCurrentThread() {
+        return mStripes[(int) Thread.currentThread().getId() & (STRIPE_COUNT - 1)];
+    }
+
+    /**
+     * Takes a cached array for a container of the given capacity, if there is one.
+     * @return the array with its int[] hash codes in entry 1, or null
+     */
+    Object[] obtain(int capacity) {
+        if (capacity != mBaseSize && capacity != mBaseSize * 2) {
+            return null;
+        }
+        final boolean base = capacity == mBaseSize;
+        final Stripe stripe = stripeForCurrentThread();
+        final boolean contended = stripe.users.getAndIncrement() != 0;
+        synchronized (stripe) {
+            if (contended) stripe.contended++;
+            Object[] array = base ? stripe.baseCache : stripe.twiceBaseCache;
+            if (array != null && !(array[1] instanceof int[]
+                    && (array[0] == null || array[0] instanceof Object[]))) {
+                // Whoops!  Someone trampled the array (probably due to not protecting
+                // their access with a lock).  Our cache is corrupt; report and give up.
+                Slog.wtf(TAG, "Found corrupt " + mName + " cache: [0]=" + array[0]
+                        + " [1]=" + array[1]);
+                if (base) {
+                    stripe.baseCache = null;
+                    stripe.baseCacheSize = 0;
+                } else {
+                    stripe.twiceBaseCache = null;
+                    stripe.twiceBaseCacheSize = 0;
+                }
+                array = null;
+            } else if (array != null) {
+                if (base) {
+                    stripe.baseCache = (Object[]) array[0];
+                    stripe.baseCacheSize--;
+                } else {
+                    stripe.twiceBaseCache = (Object[]) array[0];
+                    stripe.twiceBaseCacheSize--;
+                }
+                array[0] = null;
+            }
+            if (array != null) {
+                stripe.hits++;
+            } else {
+                stripe.misses++;
+            }
+            stripe.users.decrementAndGet();
+            return array;
+        }
+    }
+
+    /**
+     * Offers a container's arrays to the cache once the container is done with them.
+     * @param hashes the hash code array, which decides whether the arrays are kept
+     * @param array the array holding the container's contents
+     * @param used number of leading entries of the array that may be non-null
+     */
+    void recycle(int[] hashes, Object[] array, int used) {
+        if (hashes.length != mBaseSize && hashes.length != mBaseSize * 2) {
+            return;
+        }
+        final boolean base = hashes.length == mBaseSize;
+        final int maxDepth = mMaxDepth;
+        final Stripe stripe = stripeForCurrentThread();
+        final boolean contended = stripe.users.getAndIncrement() != 0;
+        synchronized (stripe) {
+            if (contended) stripe.contended++;
+            final int depth = base ? stripe.baseCacheSize : stripe.twiceBaseCacheSize;
+            if (depth < maxDepth) {
+                array[0] = base ? stripe.baseCache : stripe.twiceBaseCache;
+                array[1] = hashes;
+                for (int i = used - 1; i >= 2; i--) {
+                    array[i] = null;
+                }
+                if (base) {
+                    stripe.baseCache = array;
+                    stripe.baseCacheSize++;
+                } else {
+                    stripe.twiceBaseCache = array;
+                    stripe.twiceBaseCacheSize++;
+                }
+            }
+            stripe.users.decrementAndGet();
+        }
+    }
+
+    /**
+     * Sets how many arrays of each size each stripe may keep.  Arrays already cached
+     * beyond a lower depth stay there until they are taken.
+     */
+    void setMaxDepth(int maxDepth) {
+        mMaxDepth = maxDepth;
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        long hits = 0, misses = 0, contended = 0;
+        int cached = 0;
+        for (Stripe stripe : mStripes) {
+            synchronized (stripe) {
+                hits += stripe.hits;
+                misses += stripe.misses;
+                contended += stripe.contended;
+                cached += stripe.baseCacheSize + stripe.twiceBaseCacheSize;
+            }
+        }
+        pw.print(prefix); pw.print(mName); pw.print(" array cache: depth="); pw.print(mMaxDepth);
+        pw.print(" stripes="); pw.print(STRIPE_COUNT);
+        pw.print(" cached="); pw.print(cached);
+        pw.print(" hits="); pw.print(hits);
+        pw.print(" misses="); pw.print(misses);
+        pw.print(" contended="); pw.println(contended);
+    }
+}
@@ -18,6 +18,7 @@ package android.util;
 
 import libcore.util.EmptyArray;
 
+import java.io.PrintWriter;
 import java.util.Collection;
 import java.util.Map;
 import java.util.Set;
@@ -55,7 +56,7 @@ public final class ArrayMap<K, V> implements Map<K, V> {
     private static final int BASE_SIZE = 4;
 
     /**
-     * Maximum number of entries to have in array caches.
+     * Default maximum number of entries to have in each stripe of the array caches.
      */
     private static final int CACHE_SIZE = 10;
 
@@ -70,15 +71,9 @@ public final class ArrayMap<K, V> implements Map<K, V> {
     public static final ArrayMap EMPTY = new ArrayMap<>(-1);
 
     /**
-     * Caches of small array objects to avoid spamming garbage.  The cache
-     * Object[] variable is a pointer to a linked list of array objects.
-     * The first entry in the array is a pointer to the next array in the
-     * list; the second entry is a pointer to the int[] hash code array for it.
+     * Caches of small array objects to avoid spamming garbage.
      */
-    static Object[] mBaseCache;
-    static int mBaseCacheSize;
-    static Object[] mTwiceBaseCache;
-    static int mTwiceBaseCacheSize;
+    static final ArrayCache sCache = new ArrayCache("ArrayMap", BASE_SIZE, CACHE_SIZE);
 
     final boolean mIdentityHashCode;
     int[] mHashes;
@@ -166,34 +161,13 @@ public final class ArrayMap<K, V> implements Map<K, V> {
         if (mHashes == EMPTY_IMMUTABLE_INTS) {
             throw new UnsupportedOperationException("ArrayMap is immutable");
         }
-        if (size == (BASE_SIZE*2)) {
-            synchronized (ArrayMap.class) {
-                if (mTwiceBaseCache != null) {
-                    final Object[] array = mTwiceBaseCache;
-                    mArray = array;
-                    mTwiceBaseCache = (Object[])array[0];
-                    mHashes = (int[])array[1];
-                    array[0] = array[1] = null;
-                    mTwiceBaseCacheSize--;
-                    if (DEBUG) Log.d(TAG, "Retrieving 2x cache " + mHashes
-                            + " now have " + mTwiceBaseCacheSize + " entries");
-                    return;
-                }
-            }
-        } else if (size == BASE_SIZE) {
-            synchronized (ArrayMap.class) {
-                if (mBaseCache != null) {
-                    final Object[] array = mBaseCache;
-                    mArray = array;
-                    mBaseCache = (Object[])array[0];
-                    mHashes = (int[])array[1];
-                    array[0] = array[1] = null;
-                    mBaseCacheSize--;
-                    if (DEBUG) Log.d(TAG, "Retrieving 1x cache " + mHashes
-                            + " now have " + mBaseCacheSize + " entries");
-                    return;
-                }
-            }
+        final Object[] array = sCache.obtain(size);
+        if (array != null) {
+            mArray = array;
+            mHashes = (int[]) array[1];
+            array[1] = null;
+            if (DEBUG) Log.d(TAG, "Retrieving cache " + mHashes);
+            return;
         }
 
         mHashes = new int[size];
@@ -201,35 +175,23 @@ public final class ArrayMap<K, V> implements Map<K, V> {
     }
 
     private static void freeArrays(final int[] hashes, final Object[] array, final int size) {
-        if (hashes.length == (BASE_SIZE*2)) {
-            synchronized (ArrayMap.class) {
-                if (mTwiceBaseCacheSize < CACHE_SIZE) {
-                    array[0] = mTwiceBaseCache;
-                    array[1] = hashes;
-                    for (int i=(size<<1)-1; i>=2; i--) {
-                        array[i] = null;
-                    }
-                    mTwiceBaseCache = array;
-                    mTwiceBaseCacheSize++;
-                    if (DEBUG) Log.d(TAG, "Storing 2x cache " + array
-                            + " now have " + mTwiceBaseCacheSize + " entries");
-                }
-            }
-        } else if (hashes.length == BASE_SIZE) {
-            synchronized (ArrayMap.class) {
-                if (mBaseCacheSize < CACHE_SIZE) {
-                    array[0] = mBaseCache;
-                    array[1] = hashes;
-                    for (int i=(size<<1)-1; i>=2; i--) {
-                        array[i] = null;
-                    }
-                    mBaseCache = array;
-                    mBaseCacheSize++;
-                    if (DEBUG) Log.d(TAG, "Storing 1x cache " + array
-                            + " now have " + mBaseCacheSize + " entries");
-                }
-            }
-        }
+        sCache.recycle(hashes, array, size<<1);
+    }
+
+    /**
+     * Sets how many arrays of each small size the ArrayMap cache keeps per stripe.
+     * @hide
+     */
+    public static void setCacheDepth(int depth) {
+        sCache.setMaxDepth(depth);
+    }
+
+    /**
+     * Prints the hit, miss and lock contention counts of the ArrayMap array cache.
+     * @hide
+     */
+    public static void dumpCacheStats(PrintWriter pw, String prefix) {
+        sCache.dump(pw, prefix);
     }
 
     /**
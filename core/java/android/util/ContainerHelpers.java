@@ -56,4 +56,71 @@ class ContainerHelpers {
         }
         return ~lo;  // value not present
     }
+
+    // The hash maps (IntObjectHashMap and friends) keep their mappings in dense arrays,
+    // plus a linear-probing table whose slots hold (index into those arrays + 1), with
+    // 0 marking an empty slot.  The table is kept at most half full.
+
+    static int hashTableSizeFor(int capacity) {
+        if (capacity <= 0) return 0;
+        return Math.max(4, Integer.highestOneBit(capacity * 2 - 1) << 1);
+    }
+
+    static int hashSlot(int key, int mask) {
+        final int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    static int hashSlot(long key, int mask) {
+        return hashSlot((int) (key ^ (key >>> 32)), mask);
+    }
+
+    // Returns the slot holding the key, or the empty slot where it would go.
+    static int findSlot(int[] table, int[] keys, int key) {
+        final int mask = table.length - 1;
+        int slot = hashSlot(key, mask);
+        while (table[slot] != 0 && keys[table[slot] - 1] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    static int findSlot(int[] table, long[] keys, long key) {
+        final int mask = table.length - 1;
+        int slot = hashSlot(key, mask);
+        while (table[slot] != 0 && keys[table[slot] - 1] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    // Empties a slot, shifting back later entries of the probe run so that lookups
+    // never need tombstones.
+    static void clearSlot(int[] table, int[] keys, int slot) {
+        final int mask = table.length - 1;
+        int hole = slot;
+        table[hole] = 0;
+        for (int i = (hole + 1) & mask; table[i] != 0; i = (i + 1) & mask) {
+            final int home = hashSlot(keys[table[i] - 1], mask);
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                table[hole] = table[i];
+                table[i] = 0;
+                hole = i;
+            }
+        }
+    }
+
+    static void clearSlot(int[] table, long[] keys, int slot) {
+        final int mask = table.length - 1;
+        int hole = slot;
+        table[hole] = 0;
+        for (int i = (hole + 1) & mask; table[i] != 0; i = (i + 1) & mask) {
+            final int home = hashSlot(keys[table[i] - 1], mask);
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                table[hole] = table[i];
+                table[i] = 0;
+                hole = i;
+            }
+        }
+    }
 }
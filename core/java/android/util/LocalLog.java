@@ -19,45 +19,147 @@ package android.util;
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.util.Calendar;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.IllegalFormatException;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
+ * Fixed-size ring buffer of timestamped log lines, kept for dumpsys.
+ * <p>
+ * Records are preallocated, and {@link #log(String, Object...)} only stores the format
+ * and arguments; the line is formatted when the log is dumped. Arguments should
+ * therefore be immutable (strings, boxed primitives). {@link #log(String, long)} keeps
+ * its argument unboxed, so logging with it allocates nothing. Appending takes no lock,
+ * so any number of threads can log at once; a record may be dropped from a dump if it
+ * is overwritten while being read.
+ *
  * @hide
  */
 public final class LocalLog {
 
-    private LinkedList<String> mLog;
-    private int mMaxLines;
-    private long mNow;
+    /** Stands in for the arguments of a record whose single argument is in mLongArgs. */
+    private static final Object[] LONG_ARG = new Object[0];
+
+    private final int mMaxLines;
+
+    /** Sequence number the next record gets; record n lives in slot n % mMaxLines. */
+    private final AtomicLong mNextSeq = new AtomicLong();
+
+    /**
+     * State of each slot: 2n + 1 while record n is being written into it, 2n + 2 once
+     * record n is published, 0 before anything was.  The record fields are only read and
+     * written through atomic arrays, so a reader that sees the same published state before
+     * and after reading them knows they all belong to that record.
+     */
+    private final AtomicLongArray mSlotStates;
+    private final AtomicLongArray mTimes;
+    private final AtomicReferenceArray<String> mFormats;
+    private final AtomicReferenceArray<Object[]> mArgs;
+    private final AtomicLongArray mLongArgs;
 
     public LocalLog(int maxLines) {
-        mLog = new LinkedList<String>();
-        mMaxLines = maxLines;
+        mMaxLines = Math.max(0, maxLines);
+        mSlotStates = new AtomicLongArray(mMaxLines);
+        mTimes = new AtomicLongArray(mMaxLines);
+        mFormats = new AtomicReferenceArray<>(mMaxLines);
+        mArgs = new AtomicReferenceArray<>(mMaxLines);
+        mLongArgs = new AtomicLongArray(mMaxLines);
+    }
+
+    public void log(String msg) {
+        append(msg, null, 0);
+    }
+
+    /**
+     * Logs a line formatted with {@link String#format(String, Object...)}, but only
+     * when the log is dumped.
+     */
+    public void log(String format, Object... args) {
+        append(format, args, 0);
     }
 
-    public synchronized void log(String msg) {
-        if (mMaxLines > 0) {
-            mNow = System.currentTimeMillis();
-            StringBuilder sb = new StringBuilder();
-            Calendar c = Calendar.getInstance();
-            c.setTimeInMillis(mNow);
-            sb.append(String.format("%tm-%td %tH:%tM:%tS.%tL", c, c, c, c, c, c));
-            mLog.add(sb.toString() + " - " + msg);
-            while (mLog.size() > mMaxLines) mLog.remove();
+    /**
+     * Like {@link #log(String, Object...)} with a single integral argument, which is
+     * kept without boxing it.
+     */
+    public void log(String format, long arg) {
+        append(format, LONG_ARG, arg);
+    }
+
+    private void append(String format, Object[] args, long longArg) {
+        if (mMaxLines <= 0) return;
+        final long seq = mNextSeq.getAndIncrement();
+        final int slot = (int) (seq % mMaxLines);
+        final long writing = 2 * seq + 1;
+        while (true) {
+            final long state = mSlotStates.get(slot);
+            // A writer that wrapped around may have got here first; never replace its
+            // newer record with this one.
+            if (state > writing) return;
+            if ((state & 1) != 0) {
+                // An older record is still being written; it is about to be done.
+                Thread.yield();
+                continue;
+            }
+            if (mSlotStates.compareAndSet(slot, state, writing)) break;
+        }
+        mTimes.set(slot, System.currentTimeMillis());
+        mFormats.set(slot, format);
+        mArgs.set(slot, args);
+        mLongArgs.set(slot, longArg);
+        mSlotStates.set(slot, writing + 1);
+    }
+
+    /**
+     * Returns the formatted line for the given record, or null if it has been
+     * overwritten or is still being written.
+     */
+    private String getLine(long seq, Calendar c) {
+        final int slot = (int) (seq % mMaxLines);
+        final long published = 2 * seq + 2;
+        if (mSlotStates.get(slot) != published) return null;
+        final long time = mTimes.get(slot);
+        final String format = mFormats.get(slot);
+        Object[] args = mArgs.get(slot);
+        final long longArg = mLongArgs.get(slot);
+        if (mSlotStates.get(slot) != published) return null;
+        if (args == LONG_ARG) {
+            args = new Object[] { longArg };
+        }
+
+        c.setTimeInMillis(time);
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ROOT, "%tm-%td %tH:%tM:%tS.%tL", c, c, c, c, c, c));
+        sb.append(" - ");
+        if (args == null) {
+            sb.append(format);
+        } else {
+            try {
+                sb.append(String.format(Locale.ROOT, format, args));
+            } catch (IllegalFormatException e) {
+                sb.append(format).append(" (").append(e).append(")");
+            }
         }
+        return sb.toString();
     }
 
-    public synchronized void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
-        Iterator<String> itr = mLog.listIterator(0);
-        while (itr.hasNext()) {
-            pw.println(itr.next());
+    public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        final long end = mNextSeq.get();
+        final Calendar c = Calendar.getInstance();
+        for (long seq = Math.max(0, end - mMaxLines); seq < end; seq++) {
+            final String line = getLine(seq, c);
+            if (line != null) pw.println(line);
         }
     }
 
-    public synchronized void reverseDump(FileDescriptor fd, PrintWriter pw, String[] args) {
-        for (int i = mLog.size() - 1; i >= 0; i--) {
-            pw.println(mLog.get(i));
+    public void reverseDump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        final long end = mNextSeq.get();
+        final Calendar c = Calendar.getInstance();
+        for (long seq = end - 1; seq >= 0 && seq >= end - mMaxLines; seq--) {
+            final String line = getLine(seq, c);
+            if (line != null) pw.println(line);
         }
     }
 
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import com.android.internal.util.RecordJournal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Append-only file of incremental battery stats checkpoints.
+ * <p>
+ * The journal belongs to one full snapshot of batterystats.bin, identified by
+ * the length and checksum of its bytes, and is only replayed on top of that
+ * snapshot. Each record is an opaque blob written by {@link BatteryStatsImpl}.
+ */
+final class BatteryStatsCheckpointJournal {
+    private static final int JOURNAL_MAGIC = 0x42534350;
+    private static final int JOURNAL_VERSION = 1;
+
+    /** Upper bound for a single record, used to reject corrupt lengths. */
+    private static final int MAX_RECORD_SIZE = 4 * 1024 * 1024;
+
+    private final RecordJournal mJournal;
+
+    BatteryStatsCheckpointJournal(File file) {
+        mJournal = new RecordJournal(file, JOURNAL_MAGIC, JOURNAL_VERSION, MAX_RECORD_SIZE);
+    }
+
+    long length() {
+        return mJournal.length();
+    }
+
+    void delete() {
+        mJournal.delete();
+    }
+
+    /**
+     * Discards all records and starts an empty journal on top of the given
+     * snapshot.
+     */
+    void reset(byte[] snapshot) throws IOException {
+        mJournal.reset(token(snapshot));
+    }
+
+    /**
+     * Appends the given records. The journal must have been started with
+     * {@link #reset(byte[])} first.
+     */
+    void append(ArrayList<byte[]> records) throws IOException {
+        mJournal.append(records);
+    }
+
+    /**
+     * Returns the records written on top of the given snapshot, or null if
+     * the journal is missing, unreadable or belongs to another snapshot.
+     */
+    ArrayList<byte[]> read(byte[] snapshot) {
+        final ArrayList<byte[]> records = new ArrayList<>();
+        final int count = mJournal.read(token(snapshot), new RecordJournal.RecordHandler() {
+            @Override
+            public void onRecord(byte[] data, int length) {
+                records.add(Arrays.copyOf(data, length));
+            }
+        });
+        return count >= 0 ? records : null;
+    }
+
+    /** Identifies a snapshot by its length and checksum. */
+    private static long token(byte[] snapshot) {
+        return ((long) snapshot.length << 32)
+                | RecordJournal.checksum(snapshot, 0, snapshot.length);
+    }
+}
@@ -82,12 +82,14 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
 
 /**
  * All information we are collecting about things that can happen that impact
@@ -130,6 +132,7 @@ public class BatteryStatsImpl extends BatteryStats {
     protected Clocks mClocks;
 
     private final JournaledFile mFile;
+    private final BatteryStatsCheckpointJournal mCheckpointJournal;
     public final AtomicFile mCheckinFile;
     public final AtomicFile mDailyFile;
 
@@ -294,6 +297,10 @@ public class BatteryStatsImpl extends BatteryStats {
     int mNextHistoryTagIdx = 0;
     int mNumHistoryTagChars = 0;
     int mHistoryBufferLastPos = -1;
+    // Size of the history buffer already covered by the last checkpoint, or -1
+    // if the next checkpoint must carry the whole history.
+    int mHistoryCheckpointPos = -1;
+    int mHistoryCheckpointTagIdx = 0;
     boolean mHistoryOverflow = false;
     int mActiveHistoryStates = 0xffffffff;
     int mActiveHistoryStates2 = 0xffffffff;
@@ -592,6 +599,7 @@ public class BatteryStatsImpl extends BatteryStats {
     public BatteryStatsImpl(Clocks clocks) {
         init(clocks);
         mFile = null;
+        mCheckpointJournal = null;
         mCheckinFile = null;
         mDailyFile = null;
         mHandler = null;
@@ -2850,6 +2858,9 @@ public class BatteryStatsImpl extends BatteryStats {
             if (DEBUG) Slog.i(TAG, "ADD: rewinding back to " + mHistoryBufferLastPos);
             mHistoryBuffer.setDataSize(mHistoryBufferLastPos);
             mHistoryBuffer.setDataPosition(mHistoryBufferLastPos);
+            if (mHistoryBufferLastPos < mHistoryCheckpointPos) {
+                mHistoryCheckpointPos = mHistoryBufferLastPos;
+            }
             mHistoryBufferLastPos = -1;
             elapsedRealtimeMs = mHistoryLastWritten.time - mHistoryBaseTime;
             // If the last written history had a wakelock tag, we need to retain it.
@@ -3096,6 +3107,7 @@ public class BatteryStatsImpl extends BatteryStats {
         mNextHistoryTagIdx = 0;
         mNumHistoryTagChars = 0;
         mHistoryBufferLastPos = -1;
+        mHistoryCheckpointPos = -1;
         mHistoryOverflow = false;
         mActiveHistoryStates = 0xffffffff;
         mActiveHistoryStates2 = 0xffffffff;
@@ -3103,6 +3115,7 @@ public class BatteryStatsImpl extends BatteryStats {
 
     public void updateTimeBasesLocked(boolean unplugged, boolean screenOff, long uptime,
             long realtime) {
+        markAllUidsCheckpointDirtyLocked();
         mOnBatteryTimeBase.setRunning(unplugged, uptime, realtime);
 
         boolean unpluggedScreenOff = unplugged && screenOff;
@@ -5276,6 +5289,14 @@ public class BatteryStatsImpl extends BatteryStats {
          */
         final SparseArray<Pid> mPids = new SparseArray<>();
 
+        /**
+         * Set when the summary of this uid may have changed since the last
+         * checkpoint, see {@link BatteryStatsImpl#writeCheckpointLocked}.
+         * Processes and services are handed out to callers that update them
+         * directly, so they carry their own flag.
+         */
+        boolean mCheckpointDirty = true;
+
         public Uid(BatteryStatsImpl bsi, int uid) {
             mBsi = bsi;
             mUid = uid;
@@ -5475,6 +5496,7 @@ public class BatteryStatsImpl extends BatteryStats {
         }
 
         public ControllerActivityCounterImpl getOrCreateWifiControllerActivityLocked() {
+            mCheckpointDirty = true;
             if (mWifiControllerActivity == null) {
                 mWifiControllerActivity = new ControllerActivityCounterImpl(mBsi.mOnBatteryTimeBase,
                         NUM_BT_TX_LEVELS);
@@ -5483,6 +5505,7 @@ public class BatteryStatsImpl extends BatteryStats {
         }
 
         public ControllerActivityCounterImpl getOrCreateBluetoothControllerActivityLocked() {
+            mCheckpointDirty = true;
             if (mBluetoothControllerActivity == null) {
                 mBluetoothControllerActivity = new ControllerActivityCounterImpl(mBsi.mOnBatteryTimeBase,
                         NUM_BT_TX_LEVELS);
@@ -5491,6 +5514,7 @@ public class BatteryStatsImpl extends BatteryStats {
         }
 
         public ControllerActivityCounterImpl getOrCreateModemControllerActivityLocked() {
+            mCheckpointDirty = true;
             if (mModemControllerActivity == null) {
                 mModemControllerActivity = new ControllerActivityCounterImpl(mBsi.mOnBatteryTimeBase,
                         ModemActivityInfo.TX_POWER_LEVELS);
@@ -5498,6 +5522,30 @@ public class BatteryStatsImpl extends BatteryStats {
             return mModemControllerActivity;
         }
 
+        /**
+         * Returns whether the summary of this uid, its processes or its services
+         * may have changed since the last checkpoint, and clears the flags.
+         */
+        boolean takeCheckpointDirtyLocked() {
+            boolean dirty = mCheckpointDirty;
+            mCheckpointDirty = false;
+            for (int ip = mProcessStats.size() - 1; ip >= 0; ip--) {
+                final Proc proc = mProcessStats.valueAt(ip);
+                dirty |= proc.mCheckpointDirty;
+                proc.mCheckpointDirty = false;
+            }
+            for (int ipkg = mPackageStats.size() - 1; ipkg >= 0; ipkg--) {
+                final ArrayMap<String, Pkg.Serv> services =
+                        mPackageStats.valueAt(ipkg).mServiceStats;
+                for (int is = services.size() - 1; is >= 0; is--) {
+                    final Pkg.Serv serv = services.valueAt(is);
+                    dirty |= serv.mCheckpointDirty;
+                    serv.mCheckpointDirty = false;
+                }
+            }
+            return dirty;
+        }
+
         public StopwatchTimer createAudioTurnedOnTimerLocked() {
             if (mAudioTurnedOnTimer == null) {
                 mAudioTurnedOnTimer = new StopwatchTimer(mBsi.mClocks, Uid.this, AUDIO_TURNED_ON,
@@ -7032,6 +7080,11 @@ public class BatteryStatsImpl extends BatteryStats {
 
             ArrayList<ExcessivePower> mExcessivePower;
 
+            /**
+             * Set when this process changed since the last checkpoint.
+             */
+            boolean mCheckpointDirty = true;
+
             public Proc(BatteryStatsImpl bsi, String name) {
                 mBsi = bsi;
                 mName = name;
@@ -7067,6 +7120,7 @@ public class BatteryStatsImpl extends BatteryStats {
             }
 
             public void addExcessiveWake(long overTime, long usedTime) {
+                mCheckpointDirty = true;
                 if (mExcessivePower == null) {
                     mExcessivePower = new ArrayList<ExcessivePower>();
                 }
@@ -7078,6 +7132,7 @@ public class BatteryStatsImpl extends BatteryStats {
             }
 
             public void addExcessiveCpu(long overTime, long usedTime) {
+                mCheckpointDirty = true;
                 if (mExcessivePower == null) {
                     mExcessivePower = new ArrayList<ExcessivePower>();
                 }
@@ -7171,23 +7226,28 @@ public class BatteryStatsImpl extends BatteryStats {
             }
 
             public void addCpuTimeLocked(int utime, int stime) {
+                mCheckpointDirty = true;
                 mUserTime += utime;
                 mSystemTime += stime;
             }
 
             public void addForegroundTimeLocked(long ttime) {
+                mCheckpointDirty = true;
                 mForegroundTime += ttime;
             }
 
             public void incStartsLocked() {
+                mCheckpointDirty = true;
                 mStarts++;
             }
 
             public void incNumCrashesLocked() {
+                mCheckpointDirty = true;
                 mNumCrashes++;
             }
 
             public void incNumAnrsLocked() {
+                mCheckpointDirty = true;
                 mNumAnrs++;
             }
 
@@ -7456,6 +7516,11 @@ public class BatteryStatsImpl extends BatteryStats {
                  */
                 protected int mUnpluggedLaunches;
 
+                /**
+                 * Set when this service changed since the last checkpoint.
+                 */
+                boolean mCheckpointDirty = true;
+
                 /**
                  * Construct a Serv. Also adds it to the on-battery time base as a listener.
                  */
@@ -7530,6 +7595,7 @@ public class BatteryStatsImpl extends BatteryStats {
                 }
 
                 public void startLaunchedLocked() {
+                    mCheckpointDirty = true;
                     if (!mLaunched) {
                         mLaunches++;
                         mLaunchedSince = mBsi.getBatteryUptimeLocked();
@@ -7538,6 +7604,7 @@ public class BatteryStatsImpl extends BatteryStats {
                 }
 
                 public void stopLaunchedLocked() {
+                    mCheckpointDirty = true;
                     if (mLaunched) {
                         long time = mBsi.getBatteryUptimeLocked() - mLaunchedSince;
                         if (time > 0) {
@@ -7550,6 +7617,7 @@ public class BatteryStatsImpl extends BatteryStats {
                 }
 
                 public void startRunningLocked() {
+                    mCheckpointDirty = true;
                     if (!mRunning) {
                         mStarts++;
                         mRunningSince = mBsi.getBatteryUptimeLocked();
@@ -7558,6 +7626,7 @@ public class BatteryStatsImpl extends BatteryStats {
                 }
 
                 public void stopRunningLocked() {
+                    mCheckpointDirty = true;
                     if (mRunning) {
                         long time = mBsi.getBatteryUptimeLocked() - mRunningSince;
                         if (time > 0) {
@@ -7879,8 +7948,11 @@ public class BatteryStatsImpl extends BatteryStats {
         if (systemDir != null) {
             mFile = new JournaledFile(new File(systemDir, "batterystats.bin"),
                     new File(systemDir, "batterystats.bin.tmp"));
+            mCheckpointJournal = new BatteryStatsCheckpointJournal(
+                    new File(systemDir, "batterystats-checkpoint.bin"));
         } else {
             mFile = null;
+            mCheckpointJournal = null;
         }
         mCheckinFile = new AtomicFile(new File(systemDir, "batterystats-checkin.bin"));
         mDailyFile = new AtomicFile(new File(systemDir, "batterystats-daily.xml"));
@@ -7971,6 +8043,7 @@ public class BatteryStatsImpl extends BatteryStats {
     public BatteryStatsImpl(Clocks clocks, Parcel p) {
         init(clocks);
         mFile = null;
+        mCheckpointJournal = null;
         mCheckinFile = null;
         mDailyFile = null;
         mHandler = null;
@@ -8542,6 +8615,7 @@ public class BatteryStatsImpl extends BatteryStats {
     }
 
     private void resetAllStatsLocked() {
+        mSnapshotNeeded = true;
         final long uptimeMillis = mClocks.uptimeMillis();
         final long elapsedRealtimeMillis = mClocks.elapsedRealtime();
         mStartCount = 0;
@@ -10159,9 +10233,16 @@ public class BatteryStatsImpl extends BatteryStats {
             u = new Uid(this, uid);
             mUidStats.put(uid, u);
         }
+        u.mCheckpointDirty = true;
         return u;
     }
 
+    void markAllUidsCheckpointDirtyLocked() {
+        for (int i = mUidStats.size() - 1; i >= 0; i--) {
+            mUidStats.valueAt(i).mCheckpointDirty = true;
+        }
+    }
+
     /**
      * Remove the statistics object for a particular uid.
      */
@@ -10209,6 +10290,34 @@ public class BatteryStatsImpl extends BatteryStats {
     Parcel mPendingWrite = null;
     final ReentrantLock mWriteLock = new ReentrantLock();
 
+    // A full snapshot of the stats is only written to mFile every so often.
+    // Asynchronous writes in between append a checkpoint to mCheckpointJournal
+    // instead, holding the history written since the previous checkpoint,
+    // the global stats, and the summary of each uid whose summary changed.
+    static final int MAX_CHECKPOINTS_PER_SNAPSHOT = 30;
+
+    // Checkpoints waiting to be appended, all relative to snapshot
+    // mSnapshotGeneration.
+    final ArrayList<Parcel> mPendingCheckpoints = new ArrayList<>();
+    boolean mSnapshotNeeded = true;
+    int mSnapshotGeneration;
+    int mCheckpointsSinceSnapshot;
+    long mCheckpointBytesSinceSnapshot;
+    long mLastSnapshotBytes;
+    // Checksum of the summary of each uid as of the last checkpoint. Only
+    // uids flagged by Uid.takeCheckpointDirtyLocked() are written and
+    // compared again; a uid whose summary changed stays flagged for the next
+    // checkpoint too, as its running timers may still be adding up.
+    final SparseLongArray mUidCheckpointChecksums = new SparseLongArray();
+    final CRC32 mCheckpointCrc = new CRC32();
+
+    // Set when writing to disk failed, so that the next write is a snapshot.
+    volatile boolean mCheckpointWriteFailed;
+
+    // Generation of the snapshot that mCheckpointJournal currently belongs to.
+    // Guarded by mWriteLock.
+    int mCommittedSnapshotGeneration = -1;
+
     public void writeAsyncLocked() {
         writeLocked(false);
     }
@@ -10227,14 +10336,40 @@ public class BatteryStatsImpl extends BatteryStats {
             return;
         }
 
-        Parcel out = Parcel.obtain();
-        writeSummaryToParcel(out, true);
-        mLastWriteTime = mClocks.elapsedRealtime();
+        if (mCheckpointWriteFailed) {
+            mCheckpointWriteFailed = false;
+            mSnapshotNeeded = true;
+        }
 
-        if (mPendingWrite != null) {
-            mPendingWrite.recycle();
+        Parcel out = Parcel.obtain();
+        if (sync || mSnapshotNeeded || mCheckpointsSinceSnapshot >= MAX_CHECKPOINTS_PER_SNAPSHOT
+                || mCheckpointBytesSinceSnapshot > mLastSnapshotBytes / 2) {
+            mUidCheckpointChecksums.clear();
+            writeSummaryToParcelLocked(out, true, mUidCheckpointChecksums);
+            mHistoryCheckpointPos = mHistoryBuffer.dataSize();
+            mHistoryCheckpointTagIdx = mNextHistoryTagIdx;
+            mSnapshotNeeded = false;
+            mSnapshotGeneration++;
+            mCheckpointsSinceSnapshot = 0;
+            mCheckpointBytesSinceSnapshot = 0;
+            mLastSnapshotBytes = out.dataSize();
+
+            if (mPendingWrite != null) {
+                mPendingWrite.recycle();
+            }
+            mPendingWrite = out;
+            // The new snapshot supersedes any checkpoint not yet written.
+            for (int i = 0; i < mPendingCheckpoints.size(); i++) {
+                mPendingCheckpoints.get(i).recycle();
+            }
+            mPendingCheckpoints.clear();
+        } else {
+            writeCheckpointLocked(out);
+            mCheckpointsSinceSnapshot++;
+            mCheckpointBytesSinceSnapshot += out.dataSize();
+            mPendingCheckpoints.add(out);
         }
-        mPendingWrite = out;
+        mLastWriteTime = mClocks.elapsedRealtime();
 
         if (sync) {
             commitPendingDataToDisk();
@@ -10249,32 +10384,270 @@ public class BatteryStatsImpl extends BatteryStats {
 
     public void commitPendingDataToDisk() {
         final Parcel next;
+        final ArrayList<Parcel> checkpoints;
+        final int generation;
         synchronized (this) {
             next = mPendingWrite;
             mPendingWrite = null;
-            if (next == null) {
+            if (mPendingCheckpoints.isEmpty()) {
+                checkpoints = null;
+            } else {
+                checkpoints = new ArrayList<>(mPendingCheckpoints);
+                mPendingCheckpoints.clear();
+            }
+            if (next == null && checkpoints == null) {
                 return;
             }
+            generation = mSnapshotGeneration;
 
             mWriteLock.lock();
         }
 
         try {
-            FileOutputStream stream = new FileOutputStream(mFile.chooseForWrite());
-            stream.write(next.marshall());
-            stream.flush();
-            FileUtils.sync(stream);
-            stream.close();
-            mFile.commit();
-        } catch (IOException e) {
-            Slog.w("BatteryStats", "Error writing battery statistics", e);
-            mFile.rollback();
+            if (next != null) {
+                final byte[] data = next.marshall();
+                try {
+                    FileOutputStream stream = new FileOutputStream(mFile.chooseForWrite());
+                    stream.write(data);
+                    stream.flush();
+                    FileUtils.sync(stream);
+                    stream.close();
+                    mFile.commit();
+                } catch (IOException e) {
+                    Slog.w("BatteryStats", "Error writing battery statistics", e);
+                    mFile.rollback();
+                    mCheckpointWriteFailed = true;
+                    return;
+                }
+                try {
+                    mCheckpointJournal.reset(data);
+                    mCommittedSnapshotGeneration = generation;
+                } catch (IOException e) {
+                    Slog.w("BatteryStats", "Error resetting battery statistics checkpoints", e);
+                    mCheckpointJournal.delete();
+                    mCommittedSnapshotGeneration = -1;
+                    mCheckpointWriteFailed = true;
+                }
+            }
+
+            // Checkpoints are only meaningful on top of the snapshot they were
+            // taken after; drop them if that snapshot never made it to disk.
+            if (checkpoints != null && mCommittedSnapshotGeneration == generation) {
+                final ArrayList<byte[]> records = new ArrayList<>(checkpoints.size());
+                for (int i = 0; i < checkpoints.size(); i++) {
+                    records.add(checkpoints.get(i).marshall());
+                }
+                try {
+                    mCheckpointJournal.append(records);
+                } catch (IOException e) {
+                    Slog.w("BatteryStats", "Error writing battery statistics checkpoint", e);
+                    mCommittedSnapshotGeneration = -1;
+                    mCheckpointWriteFailed = true;
+                }
+            }
         } finally {
-            next.recycle();
+            if (next != null) {
+                next.recycle();
+            }
+            if (checkpoints != null) {
+                for (int i = 0; i < checkpoints.size(); i++) {
+                    checkpoints.get(i).recycle();
+                }
+            }
             mWriteLock.unlock();
         }
     }
 
+    /**
+     * Writes everything that changed since the last snapshot or checkpoint.
+     * Replayed by {@link #readCheckpointLocked}.
+     */
+    void writeCheckpointLocked(Parcel out) {
+        pullPendingStateUpdatesLocked();
+
+        long startClockTime = getStartClockTime();
+
+        final long NOW_SYS = mClocks.uptimeMillis() * 1000;
+        final long NOWREAL_SYS = mClocks.elapsedRealtime() * 1000;
+
+        out.writeInt(VERSION);
+
+        // History: the tags and buffer contents added since the last
+        // checkpoint, or all of them if the history was cleared in between.
+        final boolean restart = mHistoryCheckpointPos < 0;
+        final int firstTagIdx = restart ? 0 : mHistoryCheckpointTagIdx;
+        final int keep = restart ? 0 : mHistoryCheckpointPos;
+        out.writeLong(mHistoryBaseTime + mLastHistoryElapsedRealtime);
+        out.writeInt(restart ? 1 : 0);
+        int numTags = 0;
+        for (Integer idx : mHistoryTagPool.values()) {
+            if (idx >= firstTagIdx) {
+                numTags++;
+            }
+        }
+        out.writeInt(numTags);
+        for (HashMap.Entry<HistoryTag, Integer> ent : mHistoryTagPool.entrySet()) {
+            if (ent.getValue() >= firstTagIdx) {
+                HistoryTag tag = ent.getKey();
+                out.writeInt(ent.getValue());
+                out.writeString(tag.string);
+                out.writeInt(tag.uid);
+            }
+        }
+        final int size = mHistoryBuffer.dataSize();
+        out.writeInt(keep);
+        out.writeInt(size - keep);
+        out.appendFrom(mHistoryBuffer, keep, size - keep);
+        mHistoryCheckpointPos = size;
+        mHistoryCheckpointTagIdx = mNextHistoryTagIdx;
+
+        writeSummaryGlobalsToParcelLocked(out, startClockTime, NOW_SYS, NOWREAL_SYS);
+
+        // All current uids, so that removed ones can be dropped on replay,
+        // followed by the summary of each uid that changed.
+        final int NU = mUidStats.size();
+        out.writeInt(NU);
+        for (int iu = 0; iu < NU; iu++) {
+            out.writeInt(mUidStats.keyAt(iu));
+        }
+        final int countPos = out.dataPosition();
+        out.writeInt(0);
+        int numChanged = 0;
+        final Parcel uidParcel = Parcel.obtain();
+        try {
+            for (int iu = 0; iu < NU; iu++) {
+                final int uid = mUidStats.keyAt(iu);
+                final Uid u = mUidStats.valueAt(iu);
+                final int index = mUidCheckpointChecksums.indexOfKey(uid);
+                if (!u.takeCheckpointDirtyLocked() && index >= 0) {
+                    continue;
+                }
+                final long checksum = writeUidCheckpointLocked(uidParcel, u, NOW_SYS,
+                        NOWREAL_SYS);
+                if (index >= 0 && mUidCheckpointChecksums.valueAt(index) == checksum) {
+                    continue;
+                }
+                // Its timers may still be running; look at it again next time.
+                u.mCheckpointDirty = true;
+                mUidCheckpointChecksums.put(uid, checksum);
+                out.writeInt(uid);
+                out.appendFrom(uidParcel, 0, uidParcel.dataSize());
+                numChanged++;
+            }
+        } finally {
+            uidParcel.recycle();
+        }
+        for (int i = mUidCheckpointChecksums.size() - 1; i >= 0; i--) {
+            if (mUidStats.indexOfKey(mUidCheckpointChecksums.keyAt(i)) < 0) {
+                mUidCheckpointChecksums.removeAt(i);
+            }
+        }
+        final int endPos = out.dataPosition();
+        out.setDataPosition(countPos);
+        out.writeInt(numChanged);
+        out.setDataPosition(endPos);
+    }
+
+    /**
+     * Writes the summary of the given uid to {@code p}, replacing its contents,
+     * and returns a checksum of it.
+     */
+    private long writeUidCheckpointLocked(Parcel p, Uid u, long NOW_SYS, long NOWREAL_SYS) {
+        p.setDataSize(0);
+        p.setDataPosition(0);
+        writeUidSummaryToParcelLocked(p, u, NOW_SYS, NOWREAL_SYS);
+        final byte[] bytes = p.marshall();
+        mCheckpointCrc.reset();
+        mCheckpointCrc.update(bytes);
+        return (mCheckpointCrc.getValue() << 32) | bytes.length;
+    }
+
+    /**
+     * Applies a checkpoint written by {@link #writeCheckpointLocked} on top of
+     * the state read so far.
+     *
+     * @return false if the checkpoint is from a different version.
+     */
+    boolean readCheckpointLocked(Parcel in) throws ParcelFormatException {
+        final int version = in.readInt();
+        if (version != VERSION) {
+            return false;
+        }
+
+        final long historyBaseTime = in.readLong();
+        if (in.readInt() != 0) {
+            mHistoryBuffer.setDataSize(0);
+            mHistoryBuffer.setDataPosition(0);
+            mHistoryTagPool.clear();
+            mNextHistoryTagIdx = 0;
+            mNumHistoryTagChars = 0;
+        }
+        readHistoryTagsLocked(in);
+        final int keep = in.readInt();
+        final int bufSize = in.readInt();
+        if (keep < 0 || keep > mHistoryBuffer.dataSize() || (keep&~3) != keep) {
+            throw new ParcelFormatException("File corrupt: bad history checkpoint " + keep);
+        } else if (bufSize < 0 || keep + bufSize >= (MAX_MAX_HISTORY_BUFFER*3)
+                || (bufSize&~3) != bufSize) {
+            throw new ParcelFormatException("File corrupt: bad history checkpoint size "
+                    + bufSize);
+        }
+        mHistoryBuffer.setDataSize(keep);
+        mHistoryBuffer.setDataPosition(keep);
+        final int curPos = in.dataPosition();
+        mHistoryBuffer.appendFrom(in, curPos, bufSize);
+        in.setDataPosition(curPos + bufSize);
+        setHistoryBaseTimeLocked(historyBaseTime);
+
+        readSummaryGlobalsFromParcelLocked(in);
+
+        final int NU = in.readInt();
+        if (NU > 10000) {
+            throw new ParcelFormatException("File corrupt: too many uids " + NU);
+        }
+        final int[] uids = new int[NU];
+        for (int iu = 0; iu < NU; iu++) {
+            uids[iu] = in.readInt();
+        }
+        for (int i = mUidStats.size() - 1; i >= 0; i--) {
+            if (Arrays.binarySearch(uids, mUidStats.keyAt(i)) < 0) {
+                mUidStats.removeAt(i);
+            }
+        }
+        final int numChanged = in.readInt();
+        if (numChanged > NU) {
+            throw new ParcelFormatException("File corrupt: too many changed uids " + numChanged);
+        }
+        for (int iu = 0; iu < numChanged; iu++) {
+            int uid = in.readInt();
+            Uid u = new Uid(this, uid);
+            mUidStats.put(uid, u);
+
+            readUidSummaryFromParcelLocked(in, u);
+        }
+        return true;
+    }
+
+    void readCheckpointsLocked(byte[] snapshot) throws ParcelFormatException {
+        final ArrayList<byte[]> records = mCheckpointJournal.read(snapshot);
+        if (records == null) {
+            return;
+        }
+        final Parcel in = Parcel.obtain();
+        try {
+            for (int i = 0; i < records.size(); i++) {
+                final byte[] record = records.get(i);
+                in.unmarshall(record, 0, record.length);
+                in.setDataPosition(0);
+                if (!readCheckpointLocked(in)) {
+                    break;
+                }
+            }
+        } finally {
+            in.recycle();
+        }
+    }
+
     public void readLocked() {
         if (mDailyFile != null) {
             readDailyStatsLocked();
@@ -10301,6 +10674,7 @@ public class BatteryStatsImpl extends BatteryStats {
             stream.close();
 
             readSummaryFromParcel(in);
+            readCheckpointsLocked(raw);
         } catch(Exception e) {
             Slog.e("BatteryStats", "Error reading battery statistics", e);
             resetAllStatsLocked();
@@ -10334,25 +10708,9 @@ public class BatteryStatsImpl extends BatteryStats {
         mHistoryTagPool.clear();
         mNextHistoryTagIdx = 0;
         mNumHistoryTagChars = 0;
+        mHistoryCheckpointPos = -1;
 
-        int numTags = in.readInt();
-        for (int i=0; i<numTags; i++) {
-            int idx = in.readInt();
-            String str = in.readString();
-            if (str == null) {
-                throw new ParcelFormatException("null history tag string");
-            }
-            int uid = in.readInt();
-            HistoryTag tag = new HistoryTag();
-            tag.string = str;
-            tag.uid = uid;
-            tag.poolIdx = idx;
-            mHistoryTagPool.put(tag, idx);
-            if (idx >= mNextHistoryTagIdx) {
-                mNextHistoryTagIdx = idx+1;
-            }
-            mNumHistoryTagChars += tag.string.length() + 1;
-        }
+        readHistoryTagsLocked(in);
 
         int bufSize = in.readInt();
         int curPos = in.dataPosition();
@@ -10373,6 +10731,31 @@ public class BatteryStatsImpl extends BatteryStats {
             readOldHistory(in);
         }
 
+        setHistoryBaseTimeLocked(historyBaseTime);
+    }
+
+    void readHistoryTagsLocked(Parcel in) throws ParcelFormatException {
+        int numTags = in.readInt();
+        for (int i=0; i<numTags; i++) {
+            int idx = in.readInt();
+            String str = in.readString();
+            if (str == null) {
+                throw new ParcelFormatException("null history tag string");
+            }
+            int uid = in.readInt();
+            HistoryTag tag = new HistoryTag();
+            tag.string = str;
+            tag.uid = uid;
+            tag.poolIdx = idx;
+            mHistoryTagPool.put(tag, idx);
+            if (idx >= mNextHistoryTagIdx) {
+                mNextHistoryTagIdx = idx+1;
+            }
+            mNumHistoryTagChars += tag.string.length() + 1;
+        }
+    }
+
+    void setHistoryBaseTimeLocked(long historyBaseTime) {
         if (DEBUG_HISTORY) {
             StringBuilder sb = new StringBuilder(128);
             sb.append("****************** OLD mHistoryBaseTime: ");
@@ -10467,6 +10850,22 @@ public class BatteryStatsImpl extends BatteryStats {
 
         readHistory(in, true);
 
+        readSummaryGlobalsFromParcelLocked(in);
+
+        final int NU = in.readInt();
+        if (NU > 10000) {
+            throw new ParcelFormatException("File corrupt: too many uids " + NU);
+        }
+        for (int iu = 0; iu < NU; iu++) {
+            int uid = in.readInt();
+            Uid u = new Uid(this, uid);
+            mUidStats.put(uid, u);
+
+            readUidSummaryFromParcelLocked(in, u);
+        }
+    }
+
+    void readSummaryGlobalsFromParcelLocked(Parcel in) throws ParcelFormatException {
         mStartCount = in.readInt();
         mUptime = in.readLong();
         mRealtime = in.readLong();
@@ -10593,223 +10992,215 @@ public class BatteryStatsImpl extends BatteryStats {
                 getWakeupReasonTimerLocked(reasonName).readSummaryFromParcelLocked(in);
             }
         }
+    }
 
-        final int NU = in.readInt();
-        if (NU > 10000) {
-            throw new ParcelFormatException("File corrupt: too many uids " + NU);
+    void readUidSummaryFromParcelLocked(Parcel in, Uid u) throws ParcelFormatException {
+        u.mWifiRunning = false;
+        if (in.readInt() != 0) {
+            u.mWifiRunningTimer.readSummaryFromParcelLocked(in);
         }
-        for (int iu = 0; iu < NU; iu++) {
-            int uid = in.readInt();
-            Uid u = new Uid(this, uid);
-            mUidStats.put(uid, u);
-
-            u.mWifiRunning = false;
-            if (in.readInt() != 0) {
-                u.mWifiRunningTimer.readSummaryFromParcelLocked(in);
-            }
-            u.mFullWifiLockOut = false;
-            if (in.readInt() != 0) {
-                u.mFullWifiLockTimer.readSummaryFromParcelLocked(in);
-            }
-            u.mWifiScanStarted = false;
-            if (in.readInt() != 0) {
-                u.mWifiScanTimer.readSummaryFromParcelLocked(in);
-            }
-            u.mWifiBatchedScanBinStarted = Uid.NO_BATCHED_SCAN_STARTED;
-            for (int i = 0; i < Uid.NUM_WIFI_BATCHED_SCAN_BINS; i++) {
-                if (in.readInt() != 0) {
-                    u.makeWifiBatchedScanBin(i, null);
-                    u.mWifiBatchedScanTimer[i].readSummaryFromParcelLocked(in);
-                }
-            }
-            u.mWifiMulticastEnabled = false;
-            if (in.readInt() != 0) {
-                u.mWifiMulticastTimer.readSummaryFromParcelLocked(in);
-            }
-            if (in.readInt() != 0) {
-                u.createAudioTurnedOnTimerLocked().readSummaryFromParcelLocked(in);
-            }
-            if (in.readInt() != 0) {
-                u.createVideoTurnedOnTimerLocked().readSummaryFromParcelLocked(in);
-            }
-            if (in.readInt() != 0) {
-                u.createFlashlightTurnedOnTimerLocked().readSummaryFromParcelLocked(in);
-            }
-            if (in.readInt() != 0) {
-                u.createCameraTurnedOnTimerLocked().readSummaryFromParcelLocked(in);
-            }
+        u.mFullWifiLockOut = false;
+        if (in.readInt() != 0) {
+            u.mFullWifiLockTimer.readSummaryFromParcelLocked(in);
+        }
+        u.mWifiScanStarted = false;
+        if (in.readInt() != 0) {
+            u.mWifiScanTimer.readSummaryFromParcelLocked(in);
+        }
+        u.mWifiBatchedScanBinStarted = Uid.NO_BATCHED_SCAN_STARTED;
+        for (int i = 0; i < Uid.NUM_WIFI_BATCHED_SCAN_BINS; i++) {
             if (in.readInt() != 0) {
-                u.createForegroundActivityTimerLocked().readSummaryFromParcelLocked(in);
+                u.makeWifiBatchedScanBin(i, null);
+                u.mWifiBatchedScanTimer[i].readSummaryFromParcelLocked(in);
             }
+        }
+        u.mWifiMulticastEnabled = false;
+        if (in.readInt() != 0) {
+            u.mWifiMulticastTimer.readSummaryFromParcelLocked(in);
+        }
+        if (in.readInt() != 0) {
+            u.createAudioTurnedOnTimerLocked().readSummaryFromParcelLocked(in);
+        }
+        if (in.readInt() != 0) {
+            u.createVideoTurnedOnTimerLocked().readSummaryFromParcelLocked(in);
+        }
+        if (in.readInt() != 0) {
+            u.createFlashlightTurnedOnTimerLocked().readSummaryFromParcelLocked(in);
+        }
+        if (in.readInt() != 0) {
+            u.createCameraTurnedOnTimerLocked().readSummaryFromParcelLocked(in);
+        }
+        if (in.readInt() != 0) {
+            u.createForegroundActivityTimerLocked().readSummaryFromParcelLocked(in);
+        }
+        if (in.readInt() != 0) {
+            u.createBluetoothScanTimerLocked().readSummaryFromParcelLocked(in);
+        }
+        u.mProcessState = ActivityManager.PROCESS_STATE_NONEXISTENT;
+        for (int i = 0; i < Uid.NUM_PROCESS_STATE; i++) {
             if (in.readInt() != 0) {
-                u.createBluetoothScanTimerLocked().readSummaryFromParcelLocked(in);
+                u.makeProcessState(i, null);
+                u.mProcessStateTimer[i].readSummaryFromParcelLocked(in);
             }
-            u.mProcessState = ActivityManager.PROCESS_STATE_NONEXISTENT;
-            for (int i = 0; i < Uid.NUM_PROCESS_STATE; i++) {
-                if (in.readInt() != 0) {
-                    u.makeProcessState(i, null);
-                    u.mProcessStateTimer[i].readSummaryFromParcelLocked(in);
-                }
+        }
+        if (in.readInt() != 0) {
+            u.createVibratorOnTimerLocked().readSummaryFromParcelLocked(in);
+        }
+
+        if (in.readInt() != 0) {
+            if (u.mUserActivityCounters == null) {
+                u.initUserActivityLocked();
             }
-            if (in.readInt() != 0) {
-                u.createVibratorOnTimerLocked().readSummaryFromParcelLocked(in);
+            for (int i=0; i<Uid.NUM_USER_ACTIVITY_TYPES; i++) {
+                u.mUserActivityCounters[i].readSummaryFromParcelLocked(in);
             }
+        }
 
-            if (in.readInt() != 0) {
-                if (u.mUserActivityCounters == null) {
-                    u.initUserActivityLocked();
-                }
-                for (int i=0; i<Uid.NUM_USER_ACTIVITY_TYPES; i++) {
-                    u.mUserActivityCounters[i].readSummaryFromParcelLocked(in);
-                }
+        if (in.readInt() != 0) {
+            if (u.mNetworkByteActivityCounters == null) {
+                u.initNetworkActivityLocked();
             }
-
-            if (in.readInt() != 0) {
-                if (u.mNetworkByteActivityCounters == null) {
-                    u.initNetworkActivityLocked();
-                }
-                for (int i = 0; i < NUM_NETWORK_ACTIVITY_TYPES; i++) {
-                    u.mNetworkByteActivityCounters[i].readSummaryFromParcelLocked(in);
-                    u.mNetworkPacketActivityCounters[i].readSummaryFromParcelLocked(in);
-                }
-                u.mMobileRadioActiveTime.readSummaryFromParcelLocked(in);
-                u.mMobileRadioActiveCount.readSummaryFromParcelLocked(in);
+            for (int i = 0; i < NUM_NETWORK_ACTIVITY_TYPES; i++) {
+                u.mNetworkByteActivityCounters[i].readSummaryFromParcelLocked(in);
+                u.mNetworkPacketActivityCounters[i].readSummaryFromParcelLocked(in);
             }
+            u.mMobileRadioActiveTime.readSummaryFromParcelLocked(in);
+            u.mMobileRadioActiveCount.readSummaryFromParcelLocked(in);
+        }
 
-            u.mUserCpuTime.readSummaryFromParcelLocked(in);
-            u.mSystemCpuTime.readSummaryFromParcelLocked(in);
-            u.mCpuPower.readSummaryFromParcelLocked(in);
+        u.mUserCpuTime.readSummaryFromParcelLocked(in);
+        u.mSystemCpuTime.readSummaryFromParcelLocked(in);
+        u.mCpuPower.readSummaryFromParcelLocked(in);
 
-            if (in.readInt() != 0) {
-                final int numClusters = in.readInt();
-                if (mPowerProfile != null && mPowerProfile.getNumCpuClusters() != numClusters) {
-                    throw new ParcelFormatException("Incompatible cpu cluster arrangement");
-                }
+        if (in.readInt() != 0) {
+            final int numClusters = in.readInt();
+            if (mPowerProfile != null && mPowerProfile.getNumCpuClusters() != numClusters) {
+                throw new ParcelFormatException("Incompatible cpu cluster arrangement");
+            }
 
-                u.mCpuClusterSpeed = new LongSamplingCounter[numClusters][];
-                for (int cluster = 0; cluster < numClusters; cluster++) {
-                    if (in.readInt() != 0) {
-                        final int NSB = in.readInt();
-                        if (mPowerProfile != null &&
-                                mPowerProfile.getNumSpeedStepsInCpuCluster(cluster) != NSB) {
-                            throw new ParcelFormatException("File corrupt: too many speed bins " +
-                                    NSB);
-                        }
+            u.mCpuClusterSpeed = new LongSamplingCounter[numClusters][];
+            for (int cluster = 0; cluster < numClusters; cluster++) {
+                if (in.readInt() != 0) {
+                    final int NSB = in.readInt();
+                    if (mPowerProfile != null &&
+                            mPowerProfile.getNumSpeedStepsInCpuCluster(cluster) != NSB) {
+                        throw new ParcelFormatException("File corrupt: too many speed bins " +
+                                NSB);
+                    }
 
-                        u.mCpuClusterSpeed[cluster] = new LongSamplingCounter[NSB];
-                        for (int speed = 0; speed < NSB; speed++) {
-                            if (in.readInt() != 0) {
-                                u.mCpuClusterSpeed[cluster][speed] = new LongSamplingCounter(
-                                        mOnBatteryTimeBase);
-                                u.mCpuClusterSpeed[cluster][speed].readSummaryFromParcelLocked(in);
-                            }
+                    u.mCpuClusterSpeed[cluster] = new LongSamplingCounter[NSB];
+                    for (int speed = 0; speed < NSB; speed++) {
+                        if (in.readInt() != 0) {
+                            u.mCpuClusterSpeed[cluster][speed] = new LongSamplingCounter(
+                                    mOnBatteryTimeBase);
+                            u.mCpuClusterSpeed[cluster][speed].readSummaryFromParcelLocked(in);
                         }
-                    } else {
-                        u.mCpuClusterSpeed[cluster] = null;
                     }
+                } else {
+                    u.mCpuClusterSpeed[cluster] = null;
                 }
-            } else {
-                u.mCpuClusterSpeed = null;
             }
+        } else {
+            u.mCpuClusterSpeed = null;
+        }
 
-            if (in.readInt() != 0) {
-                u.mMobileRadioApWakeupCount = new LongSamplingCounter(mOnBatteryTimeBase);
-                u.mMobileRadioApWakeupCount.readSummaryFromParcelLocked(in);
-            } else {
-                u.mMobileRadioApWakeupCount = null;
-            }
+        if (in.readInt() != 0) {
+            u.mMobileRadioApWakeupCount = new LongSamplingCounter(mOnBatteryTimeBase);
+            u.mMobileRadioApWakeupCount.readSummaryFromParcelLocked(in);
+        } else {
+            u.mMobileRadioApWakeupCount = null;
+        }
 
-            if (in.readInt() != 0) {
-                u.mWifiRadioApWakeupCount = new LongSamplingCounter(mOnBatteryTimeBase);
-                u.mWifiRadioApWakeupCount.readSummaryFromParcelLocked(in);
-            } else {
-                u.mWifiRadioApWakeupCount = null;
-            }
+        if (in.readInt() != 0) {
+            u.mWifiRadioApWakeupCount = new LongSamplingCounter(mOnBatteryTimeBase);
+            u.mWifiRadioApWakeupCount.readSummaryFromParcelLocked(in);
+        } else {
+            u.mWifiRadioApWakeupCount = null;
+        }
 
-            int NW = in.readInt();
-            if (NW > (MAX_WAKELOCKS_PER_UID+1)) {
-                throw new ParcelFormatException("File corrupt: too many wake locks " + NW);
-            }
-            for (int iw = 0; iw < NW; iw++) {
-                String wlName = in.readString();
-                u.readWakeSummaryFromParcelLocked(wlName, in);
-            }
+        int NW = in.readInt();
+        if (NW > (MAX_WAKELOCKS_PER_UID+1)) {
+            throw new ParcelFormatException("File corrupt: too many wake locks " + NW);
+        }
+        for (int iw = 0; iw < NW; iw++) {
+            String wlName = in.readString();
+            u.readWakeSummaryFromParcelLocked(wlName, in);
+        }
 
-            int NS = in.readInt();
-            if (NS > (MAX_WAKELOCKS_PER_UID+1)) {
-                throw new ParcelFormatException("File corrupt: too many syncs " + NS);
-            }
-            for (int is = 0; is < NS; is++) {
-                String name = in.readString();
-                u.readSyncSummaryFromParcelLocked(name, in);
-            }
+        int NS = in.readInt();
+        if (NS > (MAX_WAKELOCKS_PER_UID+1)) {
+            throw new ParcelFormatException("File corrupt: too many syncs " + NS);
+        }
+        for (int is = 0; is < NS; is++) {
+            String name = in.readString();
+            u.readSyncSummaryFromParcelLocked(name, in);
+        }
 
-            int NJ = in.readInt();
-            if (NJ > (MAX_WAKELOCKS_PER_UID+1)) {
-                throw new ParcelFormatException("File corrupt: too many job timers " + NJ);
-            }
-            for (int ij = 0; ij < NJ; ij++) {
-                String name = in.readString();
-                u.readJobSummaryFromParcelLocked(name, in);
-            }
+        int NJ = in.readInt();
+        if (NJ > (MAX_WAKELOCKS_PER_UID+1)) {
+            throw new ParcelFormatException("File corrupt: too many job timers " + NJ);
+        }
+        for (int ij = 0; ij < NJ; ij++) {
+            String name = in.readString();
+            u.readJobSummaryFromParcelLocked(name, in);
+        }
 
-            int NP = in.readInt();
-            if (NP > 1000) {
-                throw new ParcelFormatException("File corrupt: too many sensors " + NP);
-            }
-            for (int is = 0; is < NP; is++) {
-                int seNumber = in.readInt();
-                if (in.readInt() != 0) {
-                    u.getSensorTimerLocked(seNumber, true)
-                            .readSummaryFromParcelLocked(in);
-                }
+        int NP = in.readInt();
+        if (NP > 1000) {
+            throw new ParcelFormatException("File corrupt: too many sensors " + NP);
+        }
+        for (int is = 0; is < NP; is++) {
+            int seNumber = in.readInt();
+            if (in.readInt() != 0) {
+                u.getSensorTimerLocked(seNumber, true)
+                        .readSummaryFromParcelLocked(in);
             }
+        }
 
-            NP = in.readInt();
-            if (NP > 1000) {
-                throw new ParcelFormatException("File corrupt: too many processes " + NP);
+        NP = in.readInt();
+        if (NP > 1000) {
+            throw new ParcelFormatException("File corrupt: too many processes " + NP);
+        }
+        for (int ip = 0; ip < NP; ip++) {
+            String procName = in.readString();
+            Uid.Proc p = u.getProcessStatsLocked(procName);
+            p.mUserTime = p.mLoadedUserTime = in.readLong();
+            p.mSystemTime = p.mLoadedSystemTime = in.readLong();
+            p.mForegroundTime = p.mLoadedForegroundTime = in.readLong();
+            p.mStarts = p.mLoadedStarts = in.readInt();
+            p.mNumCrashes = p.mLoadedNumCrashes = in.readInt();
+            p.mNumAnrs = p.mLoadedNumAnrs = in.readInt();
+            p.readExcessivePowerFromParcelLocked(in);
+        }
+
+        NP = in.readInt();
+        if (NP > 10000) {
+            throw new ParcelFormatException("File corrupt: too many packages " + NP);
+        }
+        for (int ip = 0; ip < NP; ip++) {
+            String pkgName = in.readString();
+            Uid.Pkg p = u.getPackageStatsLocked(pkgName);
+            final int NWA = in.readInt();
+            if (NWA > 1000) {
+                throw new ParcelFormatException("File corrupt: too many wakeup alarms " + NWA);
             }
-            for (int ip = 0; ip < NP; ip++) {
-                String procName = in.readString();
-                Uid.Proc p = u.getProcessStatsLocked(procName);
-                p.mUserTime = p.mLoadedUserTime = in.readLong();
-                p.mSystemTime = p.mLoadedSystemTime = in.readLong();
-                p.mForegroundTime = p.mLoadedForegroundTime = in.readLong();
-                p.mStarts = p.mLoadedStarts = in.readInt();
-                p.mNumCrashes = p.mLoadedNumCrashes = in.readInt();
-                p.mNumAnrs = p.mLoadedNumAnrs = in.readInt();
-                p.readExcessivePowerFromParcelLocked(in);
+            p.mWakeupAlarms.clear();
+            for (int iwa=0; iwa<NWA; iwa++) {
+                String tag = in.readString();
+                Counter c = new Counter(mOnBatteryTimeBase);
+                c.readSummaryFromParcelLocked(in);
+                p.mWakeupAlarms.put(tag, c);
             }
-
-            NP = in.readInt();
-            if (NP > 10000) {
-                throw new ParcelFormatException("File corrupt: too many packages " + NP);
+            NS = in.readInt();
+            if (NS > 1000) {
+                throw new ParcelFormatException("File corrupt: too many services " + NS);
             }
-            for (int ip = 0; ip < NP; ip++) {
-                String pkgName = in.readString();
-                Uid.Pkg p = u.getPackageStatsLocked(pkgName);
-                final int NWA = in.readInt();
-                if (NWA > 1000) {
-                    throw new ParcelFormatException("File corrupt: too many wakeup alarms " + NWA);
-                }
-                p.mWakeupAlarms.clear();
-                for (int iwa=0; iwa<NWA; iwa++) {
-                    String tag = in.readString();
-                    Counter c = new Counter(mOnBatteryTimeBase);
-                    c.readSummaryFromParcelLocked(in);
-                    p.mWakeupAlarms.put(tag, c);
-                }
-                NS = in.readInt();
-                if (NS > 1000) {
-                    throw new ParcelFormatException("File corrupt: too many services " + NS);
-                }
-                for (int is = 0; is < NS; is++) {
-                    String servName = in.readString();
-                    Uid.Pkg.Serv s = u.getServiceStatsLocked(pkgName, servName);
-                    s.mStartTime = s.mLoadedStartTime = in.readLong();
-                    s.mStarts = s.mLoadedStarts = in.readInt();
-                    s.mLaunches = s.mLoadedLaunches = in.readInt();
-                }
+            for (int is = 0; is < NS; is++) {
+                String servName = in.readString();
+                Uid.Pkg.Serv s = u.getServiceStatsLocked(pkgName, servName);
+                s.mStartTime = s.mLoadedStartTime = in.readLong();
+                s.mStarts = s.mLoadedStarts = in.readInt();
+                s.mLaunches = s.mLoadedLaunches = in.readInt();
             }
         }
     }
@@ -10821,6 +11212,15 @@ public class BatteryStatsImpl extends BatteryStats {
      * @param out the Parcel to be written to.
      */
     public void writeSummaryToParcel(Parcel out, boolean inclHistory) {
+        writeSummaryToParcelLocked(out, inclHistory, null);
+    }
+
+    /**
+     * Like {@link #writeSummaryToParcel(Parcel, boolean)}, also storing the
+     * checksum of each uid's summary in {@code uidChecksums} if not null.
+     */
+    void writeSummaryToParcelLocked(Parcel out, boolean inclHistory,
+            SparseLongArray uidChecksums) {
         pullPendingStateUpdatesLocked();
 
         // Pull the clock time.  This may update the time and make a new history entry
@@ -10834,6 +11234,32 @@ public class BatteryStatsImpl extends BatteryStats {
 
         writeHistory(out, inclHistory, true);
 
+        writeSummaryGlobalsToParcelLocked(out, startClockTime, NOW_SYS, NOWREAL_SYS);
+
+        final int NU = mUidStats.size();
+        out.writeInt(NU);
+        final Parcel uidParcel = uidChecksums != null ? Parcel.obtain() : null;
+        try {
+            for (int iu = 0; iu < NU; iu++) {
+                out.writeInt(mUidStats.keyAt(iu));
+                if (uidParcel != null) {
+                    uidChecksums.put(mUidStats.keyAt(iu), writeUidCheckpointLocked(uidParcel,
+                            mUidStats.valueAt(iu), NOW_SYS, NOWREAL_SYS));
+                    out.appendFrom(uidParcel, 0, uidParcel.dataSize());
+                } else {
+                    writeUidSummaryToParcelLocked(out, mUidStats.valueAt(iu), NOW_SYS,
+                            NOWREAL_SYS);
+                }
+            }
+        } finally {
+            if (uidParcel != null) {
+                uidParcel.recycle();
+            }
+        }
+    }
+
+    void writeSummaryGlobalsToParcelLocked(Parcel out, long startClockTime, long NOW_SYS,
+            long NOWREAL_SYS) {
         out.writeInt(mStartCount);
         out.writeLong(computeUptime(NOW_SYS, STATS_SINCE_CHARGED));
         out.writeLong(computeRealtime(NOWREAL_SYS, STATS_SINCE_CHARGED));
@@ -10948,257 +11374,252 @@ public class BatteryStatsImpl extends BatteryStats {
                 out.writeInt(0);
             }
         }
+    }
 
-        final int NU = mUidStats.size();
-        out.writeInt(NU);
-        for (int iu = 0; iu < NU; iu++) {
-            out.writeInt(mUidStats.keyAt(iu));
-            Uid u = mUidStats.valueAt(iu);
-
-            if (u.mWifiRunningTimer != null) {
+    void writeUidSummaryToParcelLocked(Parcel out, Uid u, long NOW_SYS, long NOWREAL_SYS) {
+        if (u.mWifiRunningTimer != null) {
+            out.writeInt(1);
+            u.mWifiRunningTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mFullWifiLockTimer != null) {
+            out.writeInt(1);
+            u.mFullWifiLockTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mWifiScanTimer != null) {
+            out.writeInt(1);
+            u.mWifiScanTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        for (int i = 0; i < Uid.NUM_WIFI_BATCHED_SCAN_BINS; i++) {
+            if (u.mWifiBatchedScanTimer[i] != null) {
                 out.writeInt(1);
-                u.mWifiRunningTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+                u.mWifiBatchedScanTimer[i].writeSummaryFromParcelLocked(out, NOWREAL_SYS);
             } else {
                 out.writeInt(0);
             }
-            if (u.mFullWifiLockTimer != null) {
+        }
+        if (u.mWifiMulticastTimer != null) {
+            out.writeInt(1);
+            u.mWifiMulticastTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mAudioTurnedOnTimer != null) {
+            out.writeInt(1);
+            u.mAudioTurnedOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mVideoTurnedOnTimer != null) {
+            out.writeInt(1);
+            u.mVideoTurnedOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mFlashlightTurnedOnTimer != null) {
+            out.writeInt(1);
+            u.mFlashlightTurnedOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mCameraTurnedOnTimer != null) {
+            out.writeInt(1);
+            u.mCameraTurnedOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mForegroundActivityTimer != null) {
+            out.writeInt(1);
+            u.mForegroundActivityTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        if (u.mBluetoothScanTimer != null) {
+            out.writeInt(1);
+            u.mBluetoothScanTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+        for (int i = 0; i < Uid.NUM_PROCESS_STATE; i++) {
+            if (u.mProcessStateTimer[i] != null) {
                 out.writeInt(1);
-                u.mFullWifiLockTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+                u.mProcessStateTimer[i].writeSummaryFromParcelLocked(out, NOWREAL_SYS);
             } else {
                 out.writeInt(0);
             }
-            if (u.mWifiScanTimer != null) {
-                out.writeInt(1);
-                u.mWifiScanTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            } else {
-                out.writeInt(0);
+        }
+        if (u.mVibratorOnTimer != null) {
+            out.writeInt(1);
+            u.mVibratorOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        } else {
+            out.writeInt(0);
+        }
+
+        if (u.mUserActivityCounters == null) {
+            out.writeInt(0);
+        } else {
+            out.writeInt(1);
+            for (int i=0; i<Uid.NUM_USER_ACTIVITY_TYPES; i++) {
+                u.mUserActivityCounters[i].writeSummaryFromParcelLocked(out);
+            }
+        }
+
+        if (u.mNetworkByteActivityCounters == null) {
+            out.writeInt(0);
+        } else {
+            out.writeInt(1);
+            for (int i = 0; i < NUM_NETWORK_ACTIVITY_TYPES; i++) {
+                u.mNetworkByteActivityCounters[i].writeSummaryFromParcelLocked(out);
+                u.mNetworkPacketActivityCounters[i].writeSummaryFromParcelLocked(out);
             }
-            for (int i = 0; i < Uid.NUM_WIFI_BATCHED_SCAN_BINS; i++) {
-                if (u.mWifiBatchedScanTimer[i] != null) {
+            u.mMobileRadioActiveTime.writeSummaryFromParcelLocked(out);
+            u.mMobileRadioActiveCount.writeSummaryFromParcelLocked(out);
+        }
+
+        u.mUserCpuTime.writeSummaryFromParcelLocked(out);
+        u.mSystemCpuTime.writeSummaryFromParcelLocked(out);
+        u.mCpuPower.writeSummaryFromParcelLocked(out);
+
+        if (u.mCpuClusterSpeed != null) {
+            out.writeInt(1);
+            out.writeInt(u.mCpuClusterSpeed.length);
+            for (LongSamplingCounter[] cpuSpeeds : u.mCpuClusterSpeed) {
+                if (cpuSpeeds != null) {
                     out.writeInt(1);
-                    u.mWifiBatchedScanTimer[i].writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+                    out.writeInt(cpuSpeeds.length);
+                    for (LongSamplingCounter c : cpuSpeeds) {
+                        if (c != null) {
+                            out.writeInt(1);
+                            c.writeSummaryFromParcelLocked(out);
+                        } else {
+                            out.writeInt(0);
+                        }
+                    }
                 } else {
                     out.writeInt(0);
                 }
             }
-            if (u.mWifiMulticastTimer != null) {
-                out.writeInt(1);
-                u.mWifiMulticastTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            } else {
-                out.writeInt(0);
-            }
-            if (u.mAudioTurnedOnTimer != null) {
-                out.writeInt(1);
-                u.mAudioTurnedOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            } else {
-                out.writeInt(0);
-            }
-            if (u.mVideoTurnedOnTimer != null) {
-                out.writeInt(1);
-                u.mVideoTurnedOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            } else {
-                out.writeInt(0);
-            }
-            if (u.mFlashlightTurnedOnTimer != null) {
-                out.writeInt(1);
-                u.mFlashlightTurnedOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            } else {
-                out.writeInt(0);
-            }
-            if (u.mCameraTurnedOnTimer != null) {
+        } else {
+            out.writeInt(0);
+        }
+
+        if (u.mMobileRadioApWakeupCount != null) {
+            out.writeInt(1);
+            u.mMobileRadioApWakeupCount.writeSummaryFromParcelLocked(out);
+        } else {
+            out.writeInt(0);
+        }
+
+        if (u.mWifiRadioApWakeupCount != null) {
+            out.writeInt(1);
+            u.mWifiRadioApWakeupCount.writeSummaryFromParcelLocked(out);
+        } else {
+            out.writeInt(0);
+        }
+
+        final ArrayMap<String, Uid.Wakelock> wakeStats = u.mWakelockStats.getMap();
+        int NW = wakeStats.size();
+        out.writeInt(NW);
+        for (int iw=0; iw<NW; iw++) {
+            out.writeString(wakeStats.keyAt(iw));
+            Uid.Wakelock wl = wakeStats.valueAt(iw);
+            if (wl.mTimerFull != null) {
                 out.writeInt(1);
-                u.mCameraTurnedOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+                wl.mTimerFull.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
             } else {
                 out.writeInt(0);
             }
-            if (u.mForegroundActivityTimer != null) {
+            if (wl.mTimerPartial != null) {
                 out.writeInt(1);
-                u.mForegroundActivityTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+                wl.mTimerPartial.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
             } else {
                 out.writeInt(0);
             }
-            if (u.mBluetoothScanTimer != null) {
+            if (wl.mTimerWindow != null) {
                 out.writeInt(1);
-                u.mBluetoothScanTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+                wl.mTimerWindow.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
             } else {
                 out.writeInt(0);
             }
-            for (int i = 0; i < Uid.NUM_PROCESS_STATE; i++) {
-                if (u.mProcessStateTimer[i] != null) {
-                    out.writeInt(1);
-                    u.mProcessStateTimer[i].writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-                } else {
-                    out.writeInt(0);
-                }
-            }
-            if (u.mVibratorOnTimer != null) {
+            if (wl.mTimerDraw != null) {
                 out.writeInt(1);
-                u.mVibratorOnTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+                wl.mTimerDraw.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
             } else {
                 out.writeInt(0);
             }
+        }
 
-            if (u.mUserActivityCounters == null) {
-                out.writeInt(0);
-            } else {
-                out.writeInt(1);
-                for (int i=0; i<Uid.NUM_USER_ACTIVITY_TYPES; i++) {
-                    u.mUserActivityCounters[i].writeSummaryFromParcelLocked(out);
-                }
-            }
-
-            if (u.mNetworkByteActivityCounters == null) {
-                out.writeInt(0);
-            } else {
-                out.writeInt(1);
-                for (int i = 0; i < NUM_NETWORK_ACTIVITY_TYPES; i++) {
-                    u.mNetworkByteActivityCounters[i].writeSummaryFromParcelLocked(out);
-                    u.mNetworkPacketActivityCounters[i].writeSummaryFromParcelLocked(out);
-                }
-                u.mMobileRadioActiveTime.writeSummaryFromParcelLocked(out);
-                u.mMobileRadioActiveCount.writeSummaryFromParcelLocked(out);
-            }
-
-            u.mUserCpuTime.writeSummaryFromParcelLocked(out);
-            u.mSystemCpuTime.writeSummaryFromParcelLocked(out);
-            u.mCpuPower.writeSummaryFromParcelLocked(out);
-
-            if (u.mCpuClusterSpeed != null) {
-                out.writeInt(1);
-                out.writeInt(u.mCpuClusterSpeed.length);
-                for (LongSamplingCounter[] cpuSpeeds : u.mCpuClusterSpeed) {
-                    if (cpuSpeeds != null) {
-                        out.writeInt(1);
-                        out.writeInt(cpuSpeeds.length);
-                        for (LongSamplingCounter c : cpuSpeeds) {
-                            if (c != null) {
-                                out.writeInt(1);
-                                c.writeSummaryFromParcelLocked(out);
-                            } else {
-                                out.writeInt(0);
-                            }
-                        }
-                    } else {
-                        out.writeInt(0);
-                    }
-                }
-            } else {
-                out.writeInt(0);
-            }
+        final ArrayMap<String, StopwatchTimer> syncStats = u.mSyncStats.getMap();
+        int NS = syncStats.size();
+        out.writeInt(NS);
+        for (int is=0; is<NS; is++) {
+            out.writeString(syncStats.keyAt(is));
+            syncStats.valueAt(is).writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        }
 
-            if (u.mMobileRadioApWakeupCount != null) {
-                out.writeInt(1);
-                u.mMobileRadioApWakeupCount.writeSummaryFromParcelLocked(out);
-            } else {
-                out.writeInt(0);
-            }
+        final ArrayMap<String, StopwatchTimer> jobStats = u.mJobStats.getMap();
+        int NJ = jobStats.size();
+        out.writeInt(NJ);
+        for (int ij=0; ij<NJ; ij++) {
+            out.writeString(jobStats.keyAt(ij));
+            jobStats.valueAt(ij).writeSummaryFromParcelLocked(out, NOWREAL_SYS);
+        }
 
-            if (u.mWifiRadioApWakeupCount != null) {
+        int NSE = u.mSensorStats.size();
+        out.writeInt(NSE);
+        for (int ise=0; ise<NSE; ise++) {
+            out.writeInt(u.mSensorStats.keyAt(ise));
+            Uid.Sensor se = u.mSensorStats.valueAt(ise);
+            if (se.mTimer != null) {
                 out.writeInt(1);
-                u.mWifiRadioApWakeupCount.writeSummaryFromParcelLocked(out);
+                se.mTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
             } else {
                 out.writeInt(0);
             }
+        }
 
-            final ArrayMap<String, Uid.Wakelock> wakeStats = u.mWakelockStats.getMap();
-            int NW = wakeStats.size();
-            out.writeInt(NW);
-            for (int iw=0; iw<NW; iw++) {
-                out.writeString(wakeStats.keyAt(iw));
-                Uid.Wakelock wl = wakeStats.valueAt(iw);
-                if (wl.mTimerFull != null) {
-                    out.writeInt(1);
-                    wl.mTimerFull.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-                } else {
-                    out.writeInt(0);
-                }
-                if (wl.mTimerPartial != null) {
-                    out.writeInt(1);
-                    wl.mTimerPartial.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-                } else {
-                    out.writeInt(0);
-                }
-                if (wl.mTimerWindow != null) {
-                    out.writeInt(1);
-                    wl.mTimerWindow.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-                } else {
-                    out.writeInt(0);
-                }
-                if (wl.mTimerDraw != null) {
-                    out.writeInt(1);
-                    wl.mTimerDraw.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-                } else {
-                    out.writeInt(0);
-                }
-            }
-
-            final ArrayMap<String, StopwatchTimer> syncStats = u.mSyncStats.getMap();
-            int NS = syncStats.size();
-            out.writeInt(NS);
-            for (int is=0; is<NS; is++) {
-                out.writeString(syncStats.keyAt(is));
-                syncStats.valueAt(is).writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            }
-
-            final ArrayMap<String, StopwatchTimer> jobStats = u.mJobStats.getMap();
-            int NJ = jobStats.size();
-            out.writeInt(NJ);
-            for (int ij=0; ij<NJ; ij++) {
-                out.writeString(jobStats.keyAt(ij));
-                jobStats.valueAt(ij).writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-            }
+        int NP = u.mProcessStats.size();
+        out.writeInt(NP);
+        for (int ip=0; ip<NP; ip++) {
+            out.writeString(u.mProcessStats.keyAt(ip));
+            Uid.Proc ps = u.mProcessStats.valueAt(ip);
+            out.writeLong(ps.mUserTime);
+            out.writeLong(ps.mSystemTime);
+            out.writeLong(ps.mForegroundTime);
+            out.writeInt(ps.mStarts);
+            out.writeInt(ps.mNumCrashes);
+            out.writeInt(ps.mNumAnrs);
+            ps.writeExcessivePowerToParcelLocked(out);
+        }
 
-            int NSE = u.mSensorStats.size();
-            out.writeInt(NSE);
-            for (int ise=0; ise<NSE; ise++) {
-                out.writeInt(u.mSensorStats.keyAt(ise));
-                Uid.Sensor se = u.mSensorStats.valueAt(ise);
-                if (se.mTimer != null) {
-                    out.writeInt(1);
-                    se.mTimer.writeSummaryFromParcelLocked(out, NOWREAL_SYS);
-                } else {
-                    out.writeInt(0);
+        NP = u.mPackageStats.size();
+        out.writeInt(NP);
+        if (NP > 0) {
+            for (Map.Entry<String, BatteryStatsImpl.Uid.Pkg> ent
+                : u.mPackageStats.entrySet()) {
+                out.writeString(ent.getKey());
+                Uid.Pkg ps = ent.getValue();
+                final int NWA = ps.mWakeupAlarms.size();
+                out.writeInt(NWA);
+                for (int iwa=0; iwa<NWA; iwa++) {
+                    out.writeString(ps.mWakeupAlarms.keyAt(iwa));
+                    ps.mWakeupAlarms.valueAt(iwa).writeSummaryFromParcelLocked(out);
                 }
-            }
-
-            int NP = u.mProcessStats.size();
-            out.writeInt(NP);
-            for (int ip=0; ip<NP; ip++) {
-                out.writeString(u.mProcessStats.keyAt(ip));
-                Uid.Proc ps = u.mProcessStats.valueAt(ip);
-                out.writeLong(ps.mUserTime);
-                out.writeLong(ps.mSystemTime);
-                out.writeLong(ps.mForegroundTime);
-                out.writeInt(ps.mStarts);
-                out.writeInt(ps.mNumCrashes);
-                out.writeInt(ps.mNumAnrs);
-                ps.writeExcessivePowerToParcelLocked(out);
-            }
-
-            NP = u.mPackageStats.size();
-            out.writeInt(NP);
-            if (NP > 0) {
-                for (Map.Entry<String, BatteryStatsImpl.Uid.Pkg> ent
-                    : u.mPackageStats.entrySet()) {
-                    out.writeString(ent.getKey());
-                    Uid.Pkg ps = ent.getValue();
-                    final int NWA = ps.mWakeupAlarms.size();
-                    out.writeInt(NWA);
-                    for (int iwa=0; iwa<NWA; iwa++) {
-                        out.writeString(ps.mWakeupAlarms.keyAt(iwa));
-                        ps.mWakeupAlarms.valueAt(iwa).writeSummaryFromParcelLocked(out);
-                    }
-                    NS = ps.mServiceStats.size();
-                    out.writeInt(NS);
-                    for (int is=0; is<NS; is++) {
-                        out.writeString(ps.mServiceStats.keyAt(is));
-                        BatteryStatsImpl.Uid.Pkg.Serv ss = ps.mServiceStats.valueAt(is);
-                        long time = ss.getStartTimeToNowLocked(
-                                mOnBatteryTimeBase.getUptime(NOW_SYS));
-                        out.writeLong(time);
-                        out.writeInt(ss.mStarts);
-                        out.writeInt(ss.mLaunches);
-                    }
+                NS = ps.mServiceStats.size();
+                out.writeInt(NS);
+                for (int is=0; is<NS; is++) {
+                    out.writeString(ps.mServiceStats.keyAt(is));
+                    BatteryStatsImpl.Uid.Pkg.Serv ss = ps.mServiceStats.valueAt(is);
+                    long time = ss.getStartTimeToNowLocked(
+                            mOnBatteryTimeBase.getUptime(NOW_SYS));
+                    out.writeLong(time);
+                    out.writeInt(ss.mStarts);
+                    out.writeInt(ss.mLaunches);
                 }
             }
         }
@@ -25,17 +25,18 @@ import android.os.SystemClock;
 import android.system.OsConstants;
 import android.util.Slog;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.FastPrintWriter;
 
 import libcore.io.IoUtils;
 import libcore.io.Libcore;
 
-import java.io.File;
 import java.io.FileInputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
@@ -135,6 +136,11 @@ public class ProcessCpuTracker {
 
     private final boolean mIncludeThreads;
 
+    // Root of the proc filesystem; only replaced by tests and benchmarks.
+    private final String mProcRoot;
+    private final String mSystemStatFile;
+    private final String mLoadAverageFile;
+
     // How long a CPU jiffy is in milliseconds.
     private final long mJiffyMillis;
 
@@ -171,6 +177,11 @@ public class ProcessCpuTracker {
     private int[] mCurThreadPids;
 
     private final ArrayList<Stats> mProcStats = new ArrayList<Stats>();
+
+    // Scratch lists used by collectStats() to rebuild a stats list in a single
+    // pass; one for processes and one for the threads of the current process.
+    private final ArrayList<Stats> mPrevProcStats = new ArrayList<Stats>();
+    private final ArrayList<Stats> mPrevThreadStats = new ArrayList<Stats>();
     private final ArrayList<Stats> mWorkingProcs = new ArrayList<Stats>();
     private boolean mWorkingProcsSorted;
 
@@ -244,13 +255,13 @@ public class ProcessCpuTracker {
         public boolean added;
         public boolean removed;
 
-        Stats(int _pid, int parentPid, boolean includeThreads) {
+        Stats(String procRoot, int _pid, int parentPid, boolean includeThreads) {
             pid = _pid;
             if (parentPid < 0) {
-                final File procDir = new File("/proc", Integer.toString(pid));
-                statFile = new File(procDir, "stat").toString();
-                cmdlineFile = new File(procDir, "cmdline").toString();
-                threadsDir = (new File(procDir, "task")).toString();
+                final String procDir = procRoot + "/" + pid;
+                statFile = procDir + "/stat";
+                cmdlineFile = procDir + "/cmdline";
+                threadsDir = procDir + "/task";
                 if (includeThreads) {
                     threadStats = new ArrayList<Stats>();
                     workingThreads = new ArrayList<Stats>();
@@ -259,17 +270,13 @@ public class ProcessCpuTracker {
                     workingThreads = null;
                 }
             } else {
-                final File procDir = new File("/proc", Integer.toString(
-                        parentPid));
-                final File taskDir = new File(
-                        new File(procDir, "task"), Integer.toString(pid));
-                statFile = new File(taskDir, "stat").toString();
+                statFile = procRoot + "/" + parentPid + "/task/" + pid + "/stat";
                 cmdlineFile = null;
                 threadsDir = null;
                 threadStats = null;
                 workingThreads = null;
             }
-            uid = FileUtils.getUid(statFile.toString());
+            uid = FileUtils.getUid(statFile);
         }
     }
 
@@ -293,7 +300,15 @@ public class ProcessCpuTracker {
 
 
     public ProcessCpuTracker(boolean includeThreads) {
+        this(includeThreads, "/proc");
+    }
+
+    @VisibleForTesting
+    public ProcessCpuTracker(boolean includeThreads, String procRoot) {
         mIncludeThreads = includeThreads;
+        mProcRoot = procRoot;
+        mSystemStatFile = procRoot + "/stat";
+        mLoadAverageFile = procRoot + "/loadavg";
         long jiffyHz = Libcore.os.sysconf(OsConstants._SC_CLK_TCK);
         mJiffyMillis = 1000/jiffyHz;
     }
@@ -319,7 +334,7 @@ public class ProcessCpuTracker {
         final long nowWallTime = System.currentTimeMillis();
 
         final long[] sysCpu = mSystemCpuData;
-        if (Process.readProcFile("/proc/stat", SYSTEM_CPU_FORMAT,
+        if (Process.readProcFile(mSystemStatFile, SYSTEM_CPU_FORMAT,
                 null, sysCpu, null)) {
             // Total user time is user + nice time.
             final long usertime = (sysCpu[0]+sysCpu[1]) * mJiffyMillis;
@@ -384,13 +399,13 @@ public class ProcessCpuTracker {
 
         final StrictMode.ThreadPolicy savedPolicy = StrictMode.allowThreadDiskReads();
         try {
-            mCurPids = collectStats("/proc", -1, mFirst, mCurPids, mProcStats);
+            mCurPids = collectStats(mProcRoot, -1, mFirst, mCurPids, mProcStats);
         } finally {
             StrictMode.setThreadPolicy(savedPolicy);
         }
 
         final float[] loadAverages = mLoadAverageData;
-        if (Process.readProcFile("/proc/loadavg", LOAD_AVERAGE_FORMAT,
+        if (Process.readProcFile(mLoadAverageFile, LOAD_AVERAGE_FORMAT,
                 null, null, loadAverages)) {
             float load1 = loadAverages[0];
             float load5 = loadAverages[1];
@@ -415,30 +430,48 @@ public class ProcessCpuTracker {
 
         int[] pids = Process.getPids(statsFile, curPids);
         int NP = (pids == null) ? 0 : pids.length;
-        int NS = allProcs.size();
-        int curStatsIndex = 0;
         for (int i=0; i<NP; i++) {
-            int pid = pids[i];
-            if (pid < 0) {
-                NP = pid;
+            if (pids[i] < 0) {
+                NP = i;
                 break;
             }
-            Stats st = curStatsIndex < NS ? allProcs.get(curStatsIndex) : null;
+        }
+        // The kernel lists pids in ascending order, which the merge below
+        // relies on; this is a cheap check in that case.
+        if (NP > 1) {
+            Arrays.sort(pids, 0, NP);
+        }
+
+        // Rebuild allProcs from a copy of its previous contents instead of
+        // inserting and removing in place, which is quadratic when many
+        // processes come and go between samples.
+        final ArrayList<Stats> prevProcs = parentPid < 0 ? mPrevProcStats : mPrevThreadStats;
+        prevProcs.clear();
+        final int NS = allProcs.size();
+        for (int i=0; i<NS; i++) {
+            prevProcs.add(allProcs.get(i));
+        }
+        allProcs.clear();
+
+        final long uptime = mCurrentSampleTime;
+        int curStatsIndex = 0;
+        for (int i=0; i<NP; i++) {
+            int pid = pids[i];
+            Stats st = curStatsIndex < NS ? prevProcs.get(curStatsIndex) : null;
 
             if (st != null && st.pid == pid) {
                 // Update an existing process...
                 st.added = false;
                 st.working = false;
                 curStatsIndex++;
+                allProcs.add(st);
                 if (DEBUG) Slog.v(TAG, "Existing "
                         + (parentPid < 0 ? "process" : "thread")
                         + " pid " + pid + ": " + st);
 
                 if (st.interesting) {
-                    final long uptime = SystemClock.uptimeMillis();
-
                     final long[] procStats = mProcessStatsData;
-                    if (!Process.readProcFile(st.statFile.toString(),
+                    if (!Process.readProcFile(st.statFile,
                             PROCESS_STATS_FORMAT, null, procStats, null)) {
                         continue;
                     }
@@ -495,21 +528,18 @@ public class ProcessCpuTracker {
 
             if (st == null || st.pid > pid) {
                 // We have a new process!
-                st = new Stats(pid, parentPid, mIncludeThreads);
-                allProcs.add(curStatsIndex, st);
-                curStatsIndex++;
-                NS++;
+                st = new Stats(mProcRoot, pid, parentPid, mIncludeThreads);
+                allProcs.add(st);
                 if (DEBUG) Slog.v(TAG, "New "
                         + (parentPid < 0 ? "process" : "thread")
                         + " pid " + pid + ": " + st);
 
                 final String[] procStatsString = mProcessFullStatsStringData;
                 final long[] procStats = mProcessFullStatsData;
-                st.base_uptime = SystemClock.uptimeMillis();
-                String path = st.statFile.toString();
-                //Slog.d(TAG, "Reading proc file: " + path);
-                if (Process.readProcFile(path, PROCESS_FULL_STATS_FORMAT, procStatsString,
-                        procStats, null)) {
+                st.base_uptime = uptime;
+                //Slog.d(TAG, "Reading proc file: " + st.statFile);
+                if (Process.readProcFile(st.statFile, PROCESS_FULL_STATS_FORMAT,
+                        procStatsString, procStats, null)) {
                     // This is a possible way to filter out processes that
                     // are actually kernel threads...  do we want to?  Some
                     // of them do use CPU, but there can be a *lot* that are
@@ -561,47 +591,44 @@ public class ProcessCpuTracker {
             }
 
             // This process has gone away!
-            st.rel_utime = 0;
-            st.rel_stime = 0;
-            st.rel_minfaults = 0;
-            st.rel_majfaults = 0;
-            st.removed = true;
-            st.working = true;
-            allProcs.remove(curStatsIndex);
-            NS--;
+            markRemoved(st);
+            curStatsIndex++;
             if (DEBUG) Slog.v(TAG, "Removed "
                     + (parentPid < 0 ? "process" : "thread")
                     + " pid " + pid + ": " + st);
             // Decrement the loop counter so that we process the current pid
             // again the next time through the loop.
             i--;
-            continue;
         }
 
         while (curStatsIndex < NS) {
             // This process has gone away!
-            final Stats st = allProcs.get(curStatsIndex);
-            st.rel_utime = 0;
-            st.rel_stime = 0;
-            st.rel_minfaults = 0;
-            st.rel_majfaults = 0;
-            st.removed = true;
-            st.working = true;
-            allProcs.remove(curStatsIndex);
-            NS--;
+            final Stats st = prevProcs.get(curStatsIndex);
+            markRemoved(st);
+            curStatsIndex++;
             if (localLOGV) Slog.v(TAG, "Removed pid " + st.pid + ": " + st);
         }
 
+        prevProcs.clear();
         return pids;
     }
 
+    private static void markRemoved(Stats st) {
+        st.rel_utime = 0;
+        st.rel_stime = 0;
+        st.rel_minfaults = 0;
+        st.rel_majfaults = 0;
+        st.removed = true;
+        st.working = true;
+    }
+
     /**
      * Returns the total time (in milliseconds) spent executing in
      * both user and system code.  Safe to call without lock held.
      */
     public long getCpuTimeForPid(int pid) {
         synchronized (mSinglePidStatsData) {
-            final String statFile = "/proc/" + pid + "/stat";
+            final String statFile = mProcRoot + "/" + pid + "/stat";
             final long[] statsData = mSinglePidStatsData;
             if (Process.readProcFile(statFile, PROCESS_STATS_FORMAT,
                     null, statsData, null)) {
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.util;
+
+import android.os.FileUtils;
+import android.util.Slog;
+
+import libcore.io.IoUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only file of opaque, checksummed records, for state that is kept as a
+ * full snapshot plus the changes made since.
+ * <p>
+ * The file starts with a header holding a magic number, a format version and a
+ * token chosen by the owner, usually identifying the snapshot the records apply
+ * to; records are only read back when all three match. Each record is framed by
+ * its length and a CRC32 of its bytes. A torn or corrupt tail, typically left by
+ * a crash mid-append, is cut off on read so that later appends stay readable.
+ */
+public final class RecordJournal {
+    private static final String TAG = "RecordJournal";
+
+    /** Size of the file header: magic, version and token. */
+    public static final int HEADER_SIZE = 16;
+
+    /** Bytes added around each record: its length before and its checksum after. */
+    public static final int RECORD_OVERHEAD = 12;
+
+    public interface RecordHandler {
+        /**
+         * Called for every intact record, in the order they were appended. The
+         * array is reused for the next record, so it must not be kept.
+         *
+         * @throws IOException if the record cannot be decoded; the journal is then
+         *         cut off before it.
+         */
+        void onRecord(byte[] data, int length) throws IOException;
+    }
+
+    private final File mFile;
+    private final int mMagic;
+    private final int mVersion;
+    private final int mMaxRecordSize;
+
+    /**
+     * @param maxRecordSize upper bound for a single record, used to reject corrupt
+     *        lengths
+     */
+    public RecordJournal(File file, int magic, int version, int maxRecordSize) {
+        mFile = file;
+        mMagic = magic;
+        mVersion = version;
+        mMaxRecordSize = maxRecordSize;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public boolean exists() {
+        return mFile.exists();
+    }
+
+    /** Returns the number of bytes in the journal, including its header. */
+    public long length() {
+        return mFile.length();
+    }
+
+    /**
+     * Returns whether the journal has been started with {@link #reset(long)}, so
+     * that records may be appended to it.
+     */
+    public boolean isStarted() {
+        return mFile.length() >= HEADER_SIZE;
+    }
+
+    public void delete() {
+        mFile.delete();
+    }
+
+    /** Discards all records and starts an empty journal with the given token. */
+    public void reset(long token) throws IOException {
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(mFile, false);
+            final DataOutputStream out = new DataOutputStream(fos);
+            writeHeader(out, token);
+            out.flush();
+            FileUtils.sync(fos);
+        } finally {
+            IoUtils.closeQuietly(fos);
+        }
+    }
+
+    /**
+     * Appends the given records. The journal must have been started with
+     * {@link #reset(long)} first.
+     */
+    public void append(List<byte[]> records) throws IOException {
+        write(false, 0, records);
+    }
+
+    /**
+     * Discards all records and starts a journal with the given token and records,
+     * in a single write.
+     */
+    public void rewrite(long token, List<byte[]> records) throws IOException {
+        write(true, token, records);
+    }
+
+    private void write(boolean reset, long token, List<byte[]> records) throws IOException {
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(mFile, !reset);
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            if (reset) {
+                writeHeader(out, token);
+            }
+            final CRC32 crc = new CRC32();
+            for (int i = 0; i < records.size(); i++) {
+                final byte[] record = records.get(i);
+                crc.reset();
+                crc.update(record, 0, record.length);
+                out.writeInt(record.length);
+                out.write(record);
+                out.writeLong(crc.getValue());
+            }
+            out.flush();
+            FileUtils.sync(fos);
+        } finally {
+            IoUtils.closeQuietly(fos);
+        }
+    }
+
+    private void writeHeader(DataOutputStream out, long token) throws IOException {
+        out.writeInt(mMagic);
+        out.writeInt(mVersion);
+        out.writeLong(token);
+    }
+
+    /**
+     * Hands the records written with the given token to {@code handler}.
+     *
+     * @return the number of records read, or -1 if the journal is missing,
+     *         unreadable or was started with another token.
+     */
+    public int read(long token, RecordHandler handler) {
+        if (!mFile.exists()) {
+            return -1;
+        }
+        long validLength = 0;
+        int records = 0;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != mMagic || in.readInt() != mVersion || in.readLong() != token) {
+                return -1;
+            }
+            validLength = HEADER_SIZE;
+
+            final CRC32 crc = new CRC32();
+            byte[] buffer = new byte[256];
+            while (true) {
+                final int size;
+                try {
+                    size = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (size <= 0 || size > mMaxRecordSize) {
+                    throw new IOException("Bad record size " + size);
+                }
+                if (size > buffer.length) {
+                    buffer = new byte[Math.max(size, buffer.length * 2)];
+                }
+                in.readFully(buffer, 0, size);
+                crc.reset();
+                crc.update(buffer, 0, size);
+                if (in.readLong() != crc.getValue()) {
+                    throw new IOException("Bad record checksum");
+                }
+                handler.onRecord(buffer, size);
+                validLength += RECORD_OVERHEAD + size;
+                records++;
+            }
+        } catch (IOException e) {
+            Slog.w(TAG, "Truncating " + mFile + " after " + records + " records", e);
+            IoUtils.closeQuietly(in);
+            in = null;
+            truncate(validLength);
+            if (validLength == 0) {
+                return -1;
+            }
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+        return records;
+    }
+
+    private void truncate(long length) {
+        if (length < HEADER_SIZE) {
+            mFile.delete();
+            return;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(mFile, "rw");
+            raf.setLength(length);
+            raf.getFD().sync();
+        } catch (IOException e) {
+            Slog.w(TAG, "Unable to truncate " + mFile + ", deleting", e);
+            mFile.delete();
+        } finally {
+            IoUtils.closeQuietly(raf);
+        }
+    }
+
+    /** Returns the CRC32 of the given bytes, for owners deriving a token from them. */
+    public static long checksum(byte[] data, int offset, int length) {
+        final CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        return crc.getValue();
+    }
+}
@@ -24,9 +24,11 @@ public class NetworkStatsBenchmark {
     private static final String TUN_IFACE = "tun0";
     private static final int TUN_UID = 999999999;
 
-    @Param({"100", "1000"})
+    @Param({"100", "1000", "10000"})
     private int mSize;
     private NetworkStats mNetworkStats;
+    private NetworkStats mPreviousStats;
+    private NetworkStats mRecycle;
 
     @BeforeExperiment
     protected void setUp() throws Exception {
@@ -58,6 +60,38 @@ public class NetworkStatsBenchmark {
         recycle.txPackets = 1200 * mSize;
         recycle.operations = 0;
         mNetworkStats.addValues(recycle);
+
+        // an older snapshot with the same rows in a different order, as
+        // happens when the kernel reports uids in another order between polls
+        mPreviousStats = new NetworkStats(0, mSize + 2);
+        NetworkStats.Entry entry = null;
+        for (int i = mNetworkStats.size() - 1; i >= 0; i--) {
+            entry = mNetworkStats.getValues(i, entry);
+            entry.rxBytes /= 2;
+            entry.txBytes /= 2;
+            mPreviousStats.addValues(entry);
+        }
+        mRecycle = new NetworkStats(0, mSize + 2);
+    }
+
+    public void timeSubtract(int reps) {
+        for (int i = 0; i < reps; i++) {
+            NetworkStats.subtract(mNetworkStats, mPreviousStats, null, null, mRecycle);
+        }
+    }
+
+    public void timeGroupedByUid(int reps) {
+        for (int i = 0; i < reps; i++) {
+            mNetworkStats.groupedByUid();
+        }
+    }
+
+    public void timeCombineAllValues(int reps) {
+        for (int i = 0; i < reps; i++) {
+            final NetworkStats stats = new NetworkStats(0, mSize + 2);
+            stats.combineAllValues(mPreviousStats);
+            stats.combineAllValues(mNetworkStats);
+        }
     }
 
     public void timeMigrateTun(int reps) {
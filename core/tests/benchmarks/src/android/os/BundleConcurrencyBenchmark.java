@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package android.os;
+
+import com.google.caliper.Param;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Builds small Bundles from many threads at once, the way binder threads in system_server
+ * do, to measure contention on the ArrayMap array cache.
+ */
+public class BundleConcurrencyBenchmark {
+    @Param({"1", "4", "16"})
+    private int mThreads;
+
+    public int timeBuildBundles(final int reps) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final Thread[] threads = new Thread[mThreads];
+        final int[] sizes = new int[mThreads];
+        for (int t = 0; t < mThreads; t++) {
+            final int index = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    int size = 0;
+                    for (int i = index; i < reps; i += mThreads) {
+                        final Bundle bundle = new Bundle();
+                        bundle.putInt("uid", i);
+                        bundle.putString("package", "com.example");
+                        bundle.putBoolean("enabled", true);
+                        size += bundle.size();
+                        bundle.clear();
+                    }
+                    sizes[index] = size;
+                }
+            };
+            threads[t].start();
+        }
+        start.countDown();
+        int total = 0;
+        for (int t = 0; t < mThreads; t++) {
+            threads[t].join();
+            total += sizes[t];
+        }
+        return total;
+    }
+}
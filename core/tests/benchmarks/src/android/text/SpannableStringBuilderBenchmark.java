@@ -29,11 +29,12 @@ public class SpannableStringBuilderBenchmark {
             "java.lang.Object"})
     private String paramType;
 
-    @Param({"1", "4", "16"})
+    @Param({"1", "4", "16", "100"})
     private String paramStringMult;
 
     private Class clazz;
     private SpannableStringBuilder builder;
+    private Object[] spans;
 
     @BeforeExperiment
     protected void setUp() throws Exception {
@@ -44,6 +45,7 @@ public class SpannableStringBuilderBenchmark {
             strBuilder.append(TEST_STRING);
         }
         builder = new SpannableStringBuilder(Html.fromHtml(strBuilder.toString()));
+        spans = new Object[builder.getSpans(0, builder.length(), clazz).length];
     }
 
     @AfterExperiment
@@ -59,6 +61,22 @@ public class SpannableStringBuilderBenchmark {
         }
     }
 
+    @Benchmark
+    public void timeGetSpansIntoArray(int reps) throws Exception {
+        for (int i = 0; i < reps; i++) {
+            builder.getSpans(0, builder.length(), clazz, spans);
+        }
+    }
+
+    @Benchmark
+    public void timeNextSpanTransition(int reps) throws Exception {
+        final int length = builder.length();
+        for (int i = 0; i < reps; i++) {
+            for (int pos = 0; pos < length; pos = builder.nextSpanTransition(pos, length, clazz)) {
+            }
+        }
+    }
+
     //contains 0 ImageSpans, 2 ParagraphSpans, 53 CharacterStyleSpans
     public static String TEST_STRING =
             "<p><span><a href=\"http://android.com\">some link</a></span></p>\n" +
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package android.util;
+
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Param;
+
+import java.util.Random;
+
+/**
+ * Compares the hash maps keyed by primitives with the sparse arrays they complement,
+ * using uid-like keys.
+ */
+public class IntHashMapBenchmark {
+    @Param({"10", "100", "1000", "10000"})
+    private int mSize;
+
+    private int[] mKeys;
+    private SparseArray<Object> mSparseArray;
+    private IntObjectHashMap<Object> mIntObjectHashMap;
+    private LongSparseArray<Object> mLongSparseArray;
+    private LongObjectHashMap<Object> mLongObjectHashMap;
+    private SparseIntArray mSparseIntArray;
+    private IntIntHashMap mIntIntHashMap;
+
+    @BeforeExperiment
+    protected void setUp() throws Exception {
+        final Random random = new Random(0);
+        mKeys = new int[mSize];
+        mSparseArray = new SparseArray<>();
+        mIntObjectHashMap = new IntObjectHashMap<>();
+        mLongSparseArray = new LongSparseArray<>();
+        mLongObjectHashMap = new LongObjectHashMap<>();
+        mSparseIntArray = new SparseIntArray();
+        mIntIntHashMap = new IntIntHashMap();
+        for (int i = 0; i < mSize; i++) {
+            final int key = 10000 + random.nextInt(100000);
+            mKeys[i] = key;
+            mSparseArray.put(key, this);
+            mIntObjectHashMap.put(key, this);
+            mLongSparseArray.put(key, this);
+            mLongObjectHashMap.put(key, this);
+            mSparseIntArray.put(key, i);
+            mIntIntHashMap.put(key, i);
+        }
+    }
+
+    public int timeSparseArrayGet(int reps) {
+        int found = 0;
+        for (int i = 0; i < reps; i++) {
+            if (mSparseArray.get(mKeys[i % mSize]) != null) found++;
+        }
+        return found;
+    }
+
+    public int timeIntObjectHashMapGet(int reps) {
+        int found = 0;
+        for (int i = 0; i < reps; i++) {
+            if (mIntObjectHashMap.get(mKeys[i % mSize]) != null) found++;
+        }
+        return found;
+    }
+
+    public int timeLongSparseArrayGet(int reps) {
+        int found = 0;
+        for (int i = 0; i < reps; i++) {
+            if (mLongSparseArray.get(mKeys[i % mSize]) != null) found++;
+        }
+        return found;
+    }
+
+    public int timeLongObjectHashMapGet(int reps) {
+        int found = 0;
+        for (int i = 0; i < reps; i++) {
+            if (mLongObjectHashMap.get(mKeys[i % mSize]) != null) found++;
+        }
+        return found;
+    }
+
+    public int timeSparseIntArrayGet(int reps) {
+        int sum = 0;
+        for (int i = 0; i < reps; i++) {
+            sum += mSparseIntArray.get(mKeys[i % mSize]);
+        }
+        return sum;
+    }
+
+    public int timeIntIntHashMapGet(int reps) {
+        int sum = 0;
+        for (int i = 0; i < reps; i++) {
+            sum += mIntIntHashMap.get(mKeys[i % mSize]);
+        }
+        return sum;
+    }
+
+    public int timeSparseArrayFill(int reps) {
+        int size = 0;
+        for (int i = 0; i < reps; i++) {
+            final SparseArray<Object> map = new SparseArray<>();
+            for (int j = 0; j < mSize; j++) {
+                map.put(mKeys[j], this);
+            }
+            size += map.size();
+        }
+        return size;
+    }
+
+    public int timeIntObjectHashMapFill(int reps) {
+        int size = 0;
+        for (int i = 0; i < reps; i++) {
+            final IntObjectHashMap<Object> map = new IntObjectHashMap<>();
+            for (int j = 0; j < mSize; j++) {
+                map.put(mKeys[j], this);
+            }
+            size += map.size();
+        }
+        return size;
+    }
+
+    public int timeSparseIntArrayFill(int reps) {
+        int size = 0;
+        for (int i = 0; i < reps; i++) {
+            final SparseIntArray map = new SparseIntArray();
+            for (int j = 0; j < mSize; j++) {
+                map.put(mKeys[j], j);
+            }
+            size += map.size();
+        }
+        return size;
+    }
+
+    public int timeIntIntHashMapFill(int reps) {
+        int size = 0;
+        for (int i = 0; i < reps; i++) {
+            final IntIntHashMap map = new IntIntHashMap();
+            for (int j = 0; j < mSize; j++) {
+                map.put(mKeys[j], j);
+            }
+            size += map.size();
+        }
+        return size;
+    }
+
+    public int timeSparseArrayRemoveAndPut(int reps) {
+        for (int i = 0; i < reps; i++) {
+            final int key = mKeys[i % mSize];
+            mSparseArray.remove(key);
+            mSparseArray.put(key, this);
+        }
+        return mSparseArray.size();
+    }
+
+    public int timeIntObjectHashMapRemoveAndPut(int reps) {
+        for (int i = 0; i < reps; i++) {
+            final int key = mKeys[i % mSize];
+            mIntObjectHashMap.remove(key);
+            mIntObjectHashMap.put(key, this);
+        }
+        return mIntObjectHashMap.size();
+    }
+
+    public int timeSparseIntArrayRemoveAndPut(int reps) {
+        for (int i = 0; i < reps; i++) {
+            final int key = mKeys[i % mSize];
+            mSparseIntArray.delete(key);
+            mSparseIntArray.put(key, i);
+        }
+        return mSparseIntArray.size();
+    }
+
+    public int timeIntIntHashMapRemoveAndPut(int reps) {
+        for (int i = 0; i < reps; i++) {
+            final int key = mKeys[i % mSize];
+            mIntIntHashMap.delete(key);
+            mIntIntHashMap.put(key, i);
+        }
+        return mIntIntHashMap.size();
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import android.os.Debug;
+import android.os.FileUtils;
+import android.util.Log;
+
+import com.google.caliper.AfterExperiment;
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Param;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Samples a fake proc tree with a configurable number of processes, so that
+ * the cost of {@link ProcessCpuTracker#update()} can be compared across
+ * changes without depending on what happens to run on the device.
+ * <p>
+ * Caliper only reports time, so {@link #timeUpdateCountingAllocations} also logs
+ * the objects allocated per steady state sample.
+ */
+public class ProcessCpuTrackerBenchmark {
+    private static final String TAG = "ProcessCpuTrackerBenchmark";
+
+    private static final int FIRST_PID = 1000;
+
+    @Param({"100", "500", "1000"})
+    private int processCount;
+
+    private File mProcRoot;
+    private ProcessCpuTracker mTracker;
+
+    @BeforeExperiment
+    protected void setUp() throws IOException {
+        mProcRoot = File.createTempFile("proc", "");
+        mProcRoot.delete();
+        mProcRoot.mkdirs();
+
+        FileUtils.stringToFile(new File(mProcRoot, "stat"),
+                "cpu  1000 20 300 40000 50 6 7 0 0 0\n");
+        FileUtils.stringToFile(new File(mProcRoot, "loadavg"),
+                "1.00 0.50 0.25 1/" + processCount + " " + FIRST_PID + "\n");
+        for (int i = 0; i < processCount; i++) {
+            final int pid = FIRST_PID + i;
+            final File dir = new File(mProcRoot, Integer.toString(pid));
+            new File(dir, "task").mkdirs();
+            FileUtils.stringToFile(new File(dir, "stat"), pid + " (proc" + i + ") S 1 " + pid
+                    + " " + pid + " 0 -1 4194624 " + (i * 10) + " 0 " + i + " 0 "
+                    + (i * 3) + " " + i + " 0 0 20 0 1 0 100 " + (1024 * 1024 * (i + 1))
+                    + " 500 18446744073709551615 0 0 0 0 0 0 0 0 0 0 0 0 17 0 0 0 0 0 0\n");
+            FileUtils.stringToFile(new File(dir, "cmdline"), "com.example.proc" + i + "\0");
+        }
+
+        mTracker = new ProcessCpuTracker(false, mProcRoot.getAbsolutePath());
+        mTracker.init();
+    }
+
+    @AfterExperiment
+    protected void tearDown() {
+        mTracker = null;
+        FileUtils.deleteContents(mProcRoot);
+        mProcRoot.delete();
+    }
+
+    /** Steady state: every process was already known from the previous sample. */
+    public void timeUpdate(int reps) {
+        for (int i = 0; i < reps; i++) {
+            mTracker.update();
+        }
+    }
+
+    /**
+     * Steady state again, counting the objects allocated on this thread.  The count is
+     * logged instead of timed; counting slows allocation down, so compare the times of
+     * {@link #timeUpdate} instead.
+     */
+    public void timeUpdateCountingAllocations(int reps) {
+        Debug.startAllocCounting();
+        for (int i = 0; i < reps; i++) {
+            mTracker.update();
+        }
+        Debug.stopAllocCounting();
+        if (reps > 0) {
+            Log.i(TAG, processCount + " processes: "
+                    + (float) Debug.getThreadAllocCount() / reps + " allocations per update");
+        }
+    }
+
+    /** First sample: every process is new and has to be set up. */
+    public void timeInit(int reps) {
+        for (int i = 0; i < reps; i++) {
+            new ProcessCpuTracker(false, mProcRoot.getAbsolutePath()).init();
+        }
+    }
+}
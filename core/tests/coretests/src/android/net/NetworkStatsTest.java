@@ -100,6 +100,63 @@ public class NetworkStatsTest extends TestCase {
         }
     }
 
+    public void testFindIndexLarge() {
+        final NetworkStats stats = new NetworkStats(TEST_START, 0);
+        for (int i = 0; i < 500; i++) {
+            stats.addValues(i % 2 == 0 ? TEST_IFACE : TEST_IFACE2, 1000 + i / 4, SET_DEFAULT,
+                    i % 4 < 2 ? TAG_NONE : 0xF00D, ROAMING_NO, i, 1L, 0L, 0L, 0);
+        }
+        // duplicate key should resolve to the first row
+        stats.addValues(TEST_IFACE, 1000, SET_DEFAULT, TAG_NONE, ROAMING_NO, 0L, 0L, 0L, 0L, 0);
+
+        for (int i = 0; i < 500; i++) {
+            final String iface = i % 2 == 0 ? TEST_IFACE : TEST_IFACE2;
+            final int tag = i % 4 < 2 ? TAG_NONE : 0xF00D;
+            assertEquals(i, stats.findIndex(iface, 1000 + i / 4, SET_DEFAULT, tag, ROAMING_NO));
+            assertEquals(i, stats.findIndexHinted(iface, 1000 + i / 4, SET_DEFAULT, tag,
+                    ROAMING_NO, 499 - i));
+        }
+        assertEquals(-1, stats.findIndex(TEST_IFACE, 1000, SET_FOREGROUND, TAG_NONE,
+                ROAMING_NO));
+        assertEquals(-1, stats.findIndex(TEST_IFACE, 1000, SET_DEFAULT, TAG_NONE,
+                ROAMING_YES));
+
+        // rows added after a lookup are still found
+        stats.combineValues(new NetworkStats.Entry(TEST_IFACE, 5000, SET_DEFAULT, TAG_NONE,
+                ROAMING_NO, 10L, 1L, 0L, 0L, 0L));
+        stats.combineValues(new NetworkStats.Entry(TEST_IFACE, 5000, SET_DEFAULT, TAG_NONE,
+                ROAMING_NO, 10L, 1L, 0L, 0L, 0L));
+        assertEquals(502, stats.size());
+        assertValues(stats, 501, TEST_IFACE, 5000, SET_DEFAULT, TAG_NONE, ROAMING_NO, 20L, 2L,
+                0L, 0L, 0L);
+    }
+
+    public void testSubtractRecycledLarge() {
+        final NetworkStats before = new NetworkStats(TEST_START, 0);
+        final NetworkStats after = new NetworkStats(TEST_START, 0);
+        for (int i = 0; i < 100; i++) {
+            before.addValues(TEST_IFACE, 1000 + i, SET_DEFAULT, TAG_NONE, ROAMING_NO, 1024L, 8L,
+                    0L, 0L, 0);
+            // same rows in reverse order, so hints never match
+            after.addValues(TEST_IFACE, 1099 - i, SET_DEFAULT, TAG_NONE, ROAMING_NO, 2048L, 16L,
+                    0L, 0L, 0);
+        }
+
+        final NetworkStats recycle = new NetworkStats(TEST_START, 100);
+        NetworkStats delta = NetworkStats.subtract(after, before, null, null, recycle);
+        assertSame(recycle, delta);
+        assertEquals(100, delta.size());
+        assertEquals(0, delta.findIndex(TEST_IFACE, 1099, SET_DEFAULT, TAG_NONE, ROAMING_NO));
+        assertValues(delta, 0, TEST_IFACE, 1099, SET_DEFAULT, TAG_NONE, ROAMING_NO, 1024L, 8L,
+                0L, 0L, 0L);
+
+        // reusing the result must not find rows from the previous round
+        delta = NetworkStats.subtract(before, before, null, null, recycle);
+        assertSame(recycle, delta);
+        assertEquals(0, delta.findIndex(TEST_IFACE, 1000, SET_DEFAULT, TAG_NONE, ROAMING_NO));
+        assertEquals(99, delta.findIndex(TEST_IFACE, 1099, SET_DEFAULT, TAG_NONE, ROAMING_NO));
+    }
+
     public void testAddEntryGrow() throws Exception {
         final NetworkStats stats = new NetworkStats(TEST_START, 3);
 
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import android.content.Intent;
+import android.graphics.Rect;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+public class BundleTest extends TestCase {
+
+    @Override
+    protected void tearDown() throws Exception {
+        BaseBundle.setLazyUnparcel(true);
+        super.tearDown();
+    }
+
+    @SmallTest
+    public void testLazyValuesReadOnDemand() throws Exception {
+        final Bundle bundle = roundTrip(createBundle());
+
+        assertEquals(42, bundle.getInt("int"));
+        assertEquals("string", bundle.getString("string"));
+        assertTrue(isLazy(bundle, "rect"));
+        assertTrue(isLazy(bundle, "intent"));
+        assertTrue(isLazy(bundle, "bundle"));
+
+        assertEquals(new Rect(1, 2, 3, 4), bundle.getParcelable("rect"));
+        assertFalse(isLazy(bundle, "rect"));
+        assertTrue(isLazy(bundle, "intent"));
+    }
+
+    @SmallTest
+    public void testAllValuesSurvive() throws Exception {
+        checkValues(roundTrip(createBundle()));
+
+        BaseBundle.setLazyUnparcel(false);
+        final Bundle bundle = roundTrip(createBundle());
+        assertFalse(isLazy(bundle, "rect"));
+        checkValues(bundle);
+    }
+
+    @SmallTest
+    public void testUnreadValuesPassedOn() throws Exception {
+        final Bundle bundle = roundTrip(createBundle());
+        bundle.putString("added", "later");
+        assertTrue(isLazy(bundle, "intent"));
+
+        // Written on without reading the values left in the parcel.
+        final Bundle forwarded = roundTrip(bundle);
+        assertTrue(isLazy(bundle, "intent"));
+        assertEquals("later", forwarded.getString("added"));
+        checkValues(forwarded);
+    }
+
+    @SmallTest
+    public void testCopiesShareUnreadValues() throws Exception {
+        final Bundle bundle = roundTrip(createBundle());
+        bundle.size();
+        final Bundle copy = new Bundle(bundle);
+        checkValues(copy);
+        checkValues(bundle);
+        assertFalse(bundle.hasFileDescriptors());
+    }
+
+    @SmallTest
+    public void testCopiedUnreadValuesKeepTheirClassLoader() throws Exception {
+        final RecordingClassLoader sourceLoader = new RecordingClassLoader();
+        final RecordingClassLoader copyLoader = new RecordingClassLoader();
+        final Bundle bundle = roundTrip(createBundle());
+        bundle.setClassLoader(sourceLoader);
+        assertTrue(isLazy(bundle, "intent"));
+
+        final Bundle copy = new Bundle(bundle);
+        copy.setClassLoader(copyLoader);
+        final Bundle merged = new Bundle();
+        merged.setClassLoader(copyLoader);
+        merged.putAll(bundle);
+
+        copy.getParcelable("intent");
+        merged.getParcelable("rect");
+        assertTrue(sourceLoader.mLoaded.contains(Intent.class.getName()));
+        assertTrue(sourceLoader.mLoaded.contains(Rect.class.getName()));
+        assertTrue(copyLoader.mLoaded.isEmpty());
+        assertTrue(isLazy(bundle, "intent"));
+    }
+
+    @SmallTest
+    public void testToStringShowsUnreadValues() throws Exception {
+        final Bundle bundle = roundTrip(createBundle());
+        assertTrue(isLazy(bundle, "rect"));
+
+        final String string = bundle.toString();
+        assertTrue(string, string.contains(new Rect(1, 2, 3, 4).toString()));
+        assertFalse(string, string.contains("LazyValue"));
+    }
+
+    private static class RecordingClassLoader extends ClassLoader {
+        final Set<String> mLoaded = Collections.synchronizedSet(new HashSet<String>());
+
+        RecordingClassLoader() {
+            super(BundleTest.class.getClassLoader());
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve)
+                throws ClassNotFoundException {
+            mLoaded.add(name);
+            return super.loadClass(name, resolve);
+        }
+    }
+
+    private static Bundle createBundle() {
+        final Bundle inner = new Bundle();
+        inner.putString("inner", "value");
+
+        final Bundle bundle = new Bundle();
+        bundle.putInt("int", 42);
+        bundle.putString("string", "string");
+        bundle.putParcelable("rect", new Rect(1, 2, 3, 4));
+        bundle.putParcelable("intent", new Intent("action").putExtra("extra", 7));
+        bundle.putParcelableArray("rects", new Rect[] { new Rect(), null });
+        bundle.putBundle("bundle", inner);
+        bundle.putIntArray("ints", new int[] { 1, 2, 3 });
+        bundle.putLongArray("longs", new long[] { 4L });
+        bundle.putByteArray("bytes", new byte[] { 5, 6, 7 });
+        bundle.putStringArray("strings", new String[] { "a", null, "bcd" });
+        bundle.putSerializable("set", new HashSet<>(Arrays.asList("x", "y")));
+        bundle.putCharSequence("text", "text");
+        bundle.putStringArrayList("list", new ArrayList<>(Arrays.asList("z")));
+        bundle.putParcelable("null", null);
+        return bundle;
+    }
+
+    private static void checkValues(Bundle bundle) {
+        assertEquals(42, bundle.getInt("int"));
+        assertEquals("string", bundle.getString("string"));
+        assertEquals(new Rect(1, 2, 3, 4), bundle.getParcelable("rect"));
+        final Intent intent = bundle.getParcelable("intent");
+        assertEquals("action", intent.getAction());
+        assertEquals(7, intent.getIntExtra("extra", 0));
+        final Parcelable[] rects = bundle.getParcelableArray("rects");
+        assertEquals(2, rects.length);
+        assertEquals(new Rect(), rects[0]);
+        assertNull(rects[1]);
+        assertEquals("value", bundle.getBundle("bundle").getString("inner"));
+        assertTrue(Arrays.equals(new int[] { 1, 2, 3 }, bundle.getIntArray("ints")));
+        assertTrue(Arrays.equals(new long[] { 4L }, bundle.getLongArray("longs")));
+        assertTrue(Arrays.equals(new byte[] { 5, 6, 7 }, bundle.getByteArray("bytes")));
+        assertTrue(Arrays.equals(new String[] { "a", null, "bcd" },
+                bundle.getStringArray("strings")));
+        assertEquals(new HashSet<>(Arrays.asList("x", "y")), bundle.getSerializable("set"));
+        assertEquals("text", bundle.getCharSequence("text").toString());
+        assertEquals(Arrays.asList("z"), bundle.getStringArrayList("list"));
+        assertNull(bundle.getParcelable("null"));
+        assertTrue(bundle.containsKey("null"));
+    }
+
+    private static Bundle roundTrip(Bundle bundle) {
+        final Parcel p = Parcel.obtain();
+        try {
+            bundle.writeToParcel(p, 0);
+            p.setDataPosition(0);
+            return p.readBundle();
+        } finally {
+            p.recycle();
+        }
+    }
+
+    private static boolean isLazy(Bundle bundle, String key) {
+        bundle.unparcel();
+        return bundle.mMap.get(key) instanceof BaseBundle.LazyValue;
+    }
+}
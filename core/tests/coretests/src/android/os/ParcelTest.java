@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.ref.WeakReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+public class ParcelTest extends TestCase {
+
+    @Override
+    protected void tearDown() throws Exception {
+        Parcel.setPoolDepth(6);
+        super.tearDown();
+    }
+
+    @SmallTest
+    public void testRecycledParcelIsEmpty() throws Exception {
+        final Parcel p = Parcel.obtain();
+        for (int i = 0; i < 100; i++) {
+            p.writeInt(i);
+        }
+        final WeakReference<Binder> binder = writeBinder(p);
+        final int capacity = p.dataCapacity();
+        p.recycle();
+
+        // The binder is no longer referenced by the pooled buffer.
+        assertTrue(isCollected(binder));
+
+        final Parcel q = Parcel.obtain();
+        try {
+            assertEquals(0, q.dataSize());
+            assertEquals(0, q.dataPosition());
+            assertTrue(q.dataCapacity() <= capacity);
+            q.writeString("reused");
+            q.setDataPosition(0);
+            assertEquals("reused", q.readString());
+        } finally {
+            q.recycle();
+        }
+    }
+
+    @SmallTest
+    public void testPoolCounters() throws Exception {
+        Parcel.setPoolDepth(2);
+
+        // Obtaining more Parcels than are pooled misses, and leaves the pool empty.
+        final Parcel[] held = new Parcel[16];
+        long[] before = poolStats();
+        for (int i = 0; i < held.length; i++) {
+            held[i] = Parcel.obtain();
+        }
+        long[] after = poolStats();
+        assertTrue(after[MISSES] - before[MISSES] >= held.length - 8);
+
+        try {
+            // A small buffer is kept and handed out again.
+            final Parcel p = Parcel.obtain();
+            for (int i = 0; i < 100; i++) {
+                p.writeInt(i);
+            }
+            final int capacity = p.dataCapacity();
+            assertTrue(capacity > 0 && capacity <= 1024);
+            p.recycle();
+
+            before = poolStats();
+            final Parcel q = Parcel.obtain();
+            after = poolStats();
+            assertSame(p, q);
+            assertEquals(capacity, q.dataCapacity());
+            assertEquals(before[HITS_1KB] + 1, after[HITS_1KB]);
+            assertEquals(before[MISSES], after[MISSES]);
+
+            // Growing it past the buffer it was obtained with counts as a growth,
+            // and the bigger buffer is pooled in its own class.
+            q.writeByteArray(new byte[2048]);
+            before = poolStats();
+            q.recycle();
+            after = poolStats();
+            assertEquals(before[GROWTHS] + 1, after[GROWTHS]);
+
+            before = poolStats();
+            final Parcel r = Parcel.obtain();
+            after = poolStats();
+            assertSame(q, r);
+            assertTrue(r.dataCapacity() > 1024);
+            assertEquals(before[HITS_4KB] + 1, after[HITS_4KB]);
+            r.recycle();
+        } finally {
+            for (Parcel parcel : held) {
+                parcel.recycle();
+            }
+        }
+    }
+
+    @SmallTest
+    public void testLargeBuffersNotKept() throws Exception {
+        final Parcel p = Parcel.obtain();
+        p.writeByteArray(new byte[64 * 1024]);
+        p.recycle();
+
+        final Parcel q = Parcel.obtain();
+        try {
+            assertTrue(q.dataCapacity() < 64 * 1024);
+        } finally {
+            q.recycle();
+        }
+    }
+
+    @SmallTest
+    public void testPoolDepth() throws Exception {
+        Parcel.setPoolDepth(0);
+        final Parcel p = Parcel.obtain();
+        p.writeInt(1);
+        p.recycle();
+
+        Parcel.setPoolDepth(2);
+        final Parcel[] parcels = new Parcel[4];
+        for (int i = 0; i < parcels.length; i++) {
+            parcels[i] = Parcel.obtain();
+            parcels[i].writeInt(i);
+        }
+        for (Parcel parcel : parcels) {
+            parcel.recycle();
+        }
+
+        assertTrue(dumpPoolStats().contains("Parcel pool: depth=2"));
+    }
+
+    private static final int MISSES = 0;
+    private static final int GROWTHS = 1;
+    private static final int HITS_1KB = 2;
+    private static final int HITS_4KB = 3;
+
+    private static final Pattern POOL_STATS = Pattern.compile(
+            "misses=(\\d+) growths=(\\d+)"
+            + ".*<=1KB: [^\\n]* hits=(\\d+).*<=4KB: [^\\n]* hits=(\\d+)", Pattern.DOTALL);
+
+    /** Returns the counters indexed by MISSES, GROWTHS, HITS_1KB and HITS_4KB. */
+    private static long[] poolStats() {
+        final Matcher m = POOL_STATS.matcher(dumpPoolStats());
+        assertTrue(m.find());
+        final long[] stats = new long[4];
+        for (int i = 0; i < stats.length; i++) {
+            stats[i] = Long.parseLong(m.group(i + 1));
+        }
+        return stats;
+    }
+
+    private static String dumpPoolStats() {
+        final StringWriter sw = new StringWriter();
+        final PrintWriter pw = new PrintWriter(sw);
+        Parcel.dumpPoolStats(pw, "");
+        pw.flush();
+        return sw.toString();
+    }
+
+    private static WeakReference<Binder> writeBinder(Parcel p) {
+        final Binder binder = new Binder();
+        p.writeStrongBinder(binder);
+        return new WeakReference<>(binder);
+    }
+
+    private static boolean isCollected(WeakReference<?> ref) throws InterruptedException {
+        for (int i = 0; i < 20 && ref.get() != null; i++) {
+            Runtime.getRuntime().gc();
+            System.runFinalization();
+            Thread.sleep(10);
+        }
+        return ref.get() == null;
+    }
+}
@@ -16,12 +16,90 @@
 
 package android.text;
 
+import android.test.suitebuilder.annotation.SmallTest;
 import android.text.Spannable;
 import android.text.SpannableStringBuilder;
+import android.text.style.CharacterStyle;
+import android.text.style.ParagraphStyle;
+import android.text.style.QuoteSpan;
+import android.text.style.StyleSpan;
+import android.text.style.UnderlineSpan;
+
+import java.util.Arrays;
 
 public class SpannableStringBuilderTest extends SpannableTest {
 
     protected Spannable newSpannableWithText(String text) {
         return new SpannableStringBuilder(text);
     }
+
+    @SmallTest
+    public void testGetSpansByKind() throws Exception {
+        final SpannableStringBuilder builder = newBuilderWithSpans();
+        final Object[] all = builder.getSpans(0, builder.length(), Object.class);
+        assertEquals(300, all.length);
+
+        for (Class<?> kind : new Class<?>[] { CharacterStyle.class, ParagraphStyle.class,
+                UnderlineSpan.class, QuoteSpan.class }) {
+            int expected = 0;
+            for (Object span : all) {
+                if (kind.isInstance(span)) expected++;
+            }
+            assertEquals(expected, builder.getSpans(0, builder.length(), kind).length);
+            assertEquals(expected, builder.getSpans(0, builder.length(), kind, new Object[0]));
+        }
+
+        final QuoteSpan[] quotes = builder.getSpans(10, 20, QuoteSpan.class);
+        assertEquals(1, quotes.length);
+        assertEquals(0, builder.getSpans(10, 20, String.class).length);
+    }
+
+    @SmallTest
+    public void testGetSpansIntoArray() throws Exception {
+        final SpannableStringBuilder builder = newBuilderWithSpans();
+        final StyleSpan[] expected = builder.getSpans(40, 90, StyleSpan.class);
+
+        final StyleSpan[] tooSmall = new StyleSpan[expected.length - 1];
+        assertEquals(expected.length, builder.getSpans(40, 90, StyleSpan.class, tooSmall));
+        for (StyleSpan span : tooSmall) {
+            assertNull(span);
+        }
+
+        final StyleSpan[] out = new StyleSpan[expected.length + 2];
+        assertEquals(expected.length, builder.getSpans(40, 90, StyleSpan.class, out));
+        assertTrue(Arrays.equals(expected, Arrays.copyOf(out, expected.length)));
+    }
+
+    @SmallTest
+    public void testNextSpanTransitionByKind() throws Exception {
+        final SpannableStringBuilder builder = newBuilderWithSpans();
+        assertEquals(100, builder.nextSpanTransition(0, builder.length(), QuoteSpan.class));
+        assertEquals(builder.length(),
+                builder.nextSpanTransition(0, builder.length(), String.class));
+
+        builder.removeSpan(builder.getSpans(0, 100, QuoteSpan.class)[0]);
+        builder.removeSpan(builder.getSpans(100, 200, QuoteSpan.class)[0]);
+        assertEquals(200, builder.nextSpanTransition(0, builder.length(), QuoteSpan.class));
+    }
+
+    private static SpannableStringBuilder newBuilderWithSpans() {
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            text.append('x');
+        }
+        final SpannableStringBuilder builder = new SpannableStringBuilder(text);
+        for (int i = 0; i < 100; i++) {
+            builder.setSpan(new StyleSpan(i % 4), i * 3, i * 3 + 5,
+                    Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            builder.setSpan(new UnderlineSpan(), i, i + 1, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+        for (int i = 0; i < 3; i++) {
+            builder.setSpan(new QuoteSpan(), i * 100, i * 100 + 100,
+                    Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+        for (int i = 0; i < 97; i++) {
+            builder.setSpan(new Object(), i * 3, i * 3 + 2, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+        return builder;
+    }
 }
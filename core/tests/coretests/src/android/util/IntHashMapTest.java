@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Tests for {@link IntIntHashMap}, {@link IntObjectHashMap} and {@link LongObjectHashMap}.
+ */
+public class IntHashMapTest extends TestCase {
+
+    public void testPutGetRemove() throws Exception {
+        final IntIntHashMap map = new IntIntHashMap(0);
+        for (int i = 0; i < 100; i++) {
+            map.put(i * 1000, i);
+        }
+        assertEquals(100, map.size());
+        assertEquals(42, map.get(42000));
+        assertEquals(-1, map.get(42001, -1));
+
+        map.delete(42000);
+        assertEquals(99, map.size());
+        assertEquals(-1, map.get(42000, -1));
+        assertTrue(map.indexOfKey(42000) < 0);
+        for (int i = 0; i < map.size(); i++) {
+            assertEquals(map.keyAt(i) / 1000, map.valueAt(i));
+            assertEquals(i, map.indexOfKey(map.keyAt(i)));
+        }
+
+        map.clear();
+        assertEquals(0, map.size());
+        assertEquals(0, map.get(1000));
+    }
+
+    public void testObjectValues() throws Exception {
+        final IntObjectHashMap<String> map = new IntObjectHashMap<>();
+        map.put(-5, "minus five");
+        map.put(Integer.MAX_VALUE, "max");
+        assertEquals("minus five", map.get(-5));
+        assertEquals("max", map.get(Integer.MAX_VALUE));
+        assertNull(map.get(0));
+        assertEquals("default", map.get(0, "default"));
+
+        map.remove(-5);
+        assertEquals(1, map.size());
+        assertEquals("max", map.valueAt(0));
+        assertEquals(0, map.indexOfValue("max"));
+    }
+
+    public void testLongKeys() throws Exception {
+        final LongObjectHashMap<String> map = new LongObjectHashMap<>();
+        map.put(1L << 40, "high");
+        map.put(1L, "low");
+        assertEquals("high", map.get(1L << 40));
+        assertEquals("low", map.get(1L));
+        assertNull(map.get((1L << 40) + 1));
+    }
+
+    public void testFuzz() throws Exception {
+        final Random r = new Random();
+
+        final HashMap<Integer, Integer> expected = new HashMap<Integer, Integer>();
+        final IntIntHashMap map = new IntIntHashMap(r.nextInt(128));
+        final IntObjectHashMap<Integer> objectMap = new IntObjectHashMap<>(r.nextInt(128));
+        final LongObjectHashMap<Integer> longMap = new LongObjectHashMap<>(r.nextInt(128));
+
+        for (int i = 0; i < 10240; i++) {
+            final int key = r.nextInt(2048) - 1024;
+            if (r.nextInt(3) == 0) {
+                expected.remove(key);
+                map.delete(key);
+                objectMap.delete(key);
+                longMap.delete(key * 31L << 32);
+            } else {
+                final int value = r.nextInt();
+                expected.put(key, value);
+                map.put(key, value);
+                objectMap.put(key, value);
+                longMap.put(key * 31L << 32, value);
+            }
+        }
+
+        assertEquals(expected.size(), map.size());
+        assertEquals(expected.size(), objectMap.size());
+        assertEquals(expected.size(), longMap.size());
+        for (Map.Entry<Integer, Integer> e : expected.entrySet()) {
+            final int key = e.getKey();
+            assertEquals((int) e.getValue(), map.get(key));
+            assertEquals(e.getValue(), objectMap.get(key));
+            assertEquals(e.getValue(), longMap.get(key * 31L << 32));
+        }
+        for (int i = 0; i < map.size(); i++) {
+            assertEquals((int) expected.get(map.keyAt(i)), map.valueAt(i));
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import junit.framework.TestCase;
+
+public class LocalLogTest extends TestCase {
+
+    @SmallTest
+    public void testKeepsLastLines() throws Exception {
+        final LocalLog log = new LocalLog(3);
+        for (int i = 0; i < 5; i++) {
+            log.log("line " + i);
+        }
+        final String[] lines = dump(log, false);
+        assertEquals(3, lines.length);
+        assertTrue(lines[0].endsWith(" - line 2"));
+        assertTrue(lines[2].endsWith(" - line 4"));
+
+        final String[] reversed = dump(log, true);
+        assertEquals(3, reversed.length);
+        assertTrue(reversed[0].endsWith(" - line 4"));
+        assertTrue(reversed[2].endsWith(" - line 2"));
+    }
+
+    @SmallTest
+    public void testFormatsWhenDumped() throws Exception {
+        final LocalLog log = new LocalLog(10);
+        log.log("BLOCKED %d", 1000);
+        log.log("100% literal");
+        log.log("bad %d", "format");
+        final String[] lines = dump(log, false);
+        assertEquals(3, lines.length);
+        assertTrue(lines[0].endsWith(" - BLOCKED 1000"));
+        assertTrue(lines[1].endsWith(" - 100% literal"));
+        assertTrue(lines[2].contains(" - bad %d"));
+    }
+
+    @SmallTest
+    public void testReusedSlotsKeepTheirOwnArguments() throws Exception {
+        final LocalLog log = new LocalLog(2);
+        log.log("BLOCKED %d", 1000);
+        log.log("%s and %s", "a", "b");
+        log.log("UNBLOCKED %d", 2000L);
+        log.log("plain");
+        final String[] lines = dump(log, false);
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].endsWith(" - UNBLOCKED 2000"));
+        assertTrue(lines[1].endsWith(" - plain"));
+    }
+
+    @SmallTest
+    public void testNoLines() throws Exception {
+        final LocalLog log = new LocalLog(0);
+        log.log("dropped");
+        assertEquals(0, dump(log, false).length);
+    }
+
+    @SmallTest
+    public void testConcurrentWriters() throws Exception {
+        final LocalLog log = new LocalLog(50);
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int id = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 1000; i++) {
+                        log.log("thread %d line %d", id, i);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(50, dump(log, false).length);
+    }
+
+    private static String[] dump(LocalLog log, boolean reverse) {
+        final StringWriter sw = new StringWriter();
+        final PrintWriter pw = new PrintWriter(sw);
+        if (reverse) {
+            log.reverseDump(null, pw, null);
+        } else {
+            log.dump(null, pw, null);
+        }
+        pw.flush();
+        final String out = sw.toString();
+        return out.isEmpty() ? new String[0] : out.split("\n");
+    }
+}
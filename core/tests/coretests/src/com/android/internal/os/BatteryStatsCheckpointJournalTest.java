@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Provides test cases for {@link BatteryStatsCheckpointJournal}.
+ */
+public class BatteryStatsCheckpointJournalTest extends TestCase {
+    private static final byte[] SNAPSHOT = "snapshot".getBytes();
+
+    private File mFile;
+    private BatteryStatsCheckpointJournal mJournal;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = File.createTempFile("batterystats-checkpoint", ".bin");
+        mFile.delete();
+        mJournal = new BatteryStatsCheckpointJournal(mFile);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    @SmallTest
+    public void testMissingJournal() {
+        assertNull(mJournal.read(SNAPSHOT));
+    }
+
+    @SmallTest
+    public void testRoundTrip() throws Exception {
+        mJournal.reset(SNAPSHOT);
+        mJournal.append(records(new byte[] { 1, 2, 3 }));
+        mJournal.append(records(new byte[] { 4 }, new byte[] { 5, 6 }));
+
+        final ArrayList<byte[]> read = mJournal.read(SNAPSHOT);
+        assertEquals(3, read.size());
+        assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, read.get(0)));
+        assertTrue(Arrays.equals(new byte[] { 4 }, read.get(1)));
+        assertTrue(Arrays.equals(new byte[] { 5, 6 }, read.get(2)));
+    }
+
+    @SmallTest
+    public void testOtherSnapshot() throws Exception {
+        mJournal.reset(SNAPSHOT);
+        mJournal.append(records(new byte[] { 1 }));
+        assertNull(mJournal.read("other snapshot".getBytes()));
+    }
+
+    @SmallTest
+    public void testTornTailIsTruncated() throws Exception {
+        mJournal.reset(SNAPSHOT);
+        mJournal.append(records(new byte[] { 1, 2, 3 }));
+        final long goodLength = mJournal.length();
+        mJournal.append(records(new byte[] { 4, 5, 6 }));
+
+        final RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        try {
+            raf.setLength(mJournal.length() - 2);
+        } finally {
+            raf.close();
+        }
+
+        assertEquals(1, mJournal.read(SNAPSHOT).size());
+        assertEquals(goodLength, mJournal.length());
+
+        mJournal.append(records(new byte[] { 7 }));
+        assertEquals(2, mJournal.read(SNAPSHOT).size());
+    }
+
+    private static ArrayList<byte[]> records(byte[]... records) {
+        return new ArrayList<>(Arrays.asList(records));
+    }
+}
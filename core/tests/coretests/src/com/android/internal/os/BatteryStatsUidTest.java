@@ -50,5 +50,34 @@ public class BatteryStatsUidTest extends TestCase {
     @SmallTest
     public void testParceling() throws Exception  {
     }
+
+    /**
+     * Test that updates through the uid, its processes and its services flag
+     * it for the next checkpoint.
+     */
+    @SmallTest
+    public void testCheckpointDirty() throws Exception {
+        final MockBatteryStatsImpl bsi = new MockBatteryStatsImpl();
+        final BatteryStatsImpl.Uid uid = bsi.getUidStatsLocked(10000);
+        final BatteryStatsImpl.Uid.Proc proc = uid.getProcessStatsLocked("proc");
+        final BatteryStatsImpl.Uid.Pkg.Serv serv = uid.getServiceStatsLocked("pkg", "serv");
+        Assert.assertTrue(uid.takeCheckpointDirtyLocked());
+        Assert.assertFalse(uid.takeCheckpointDirtyLocked());
+
+        proc.addCpuTimeLocked(10, 20);
+        Assert.assertTrue(uid.takeCheckpointDirtyLocked());
+        Assert.assertFalse(uid.takeCheckpointDirtyLocked());
+
+        serv.startRunningLocked();
+        Assert.assertTrue(uid.takeCheckpointDirtyLocked());
+        Assert.assertFalse(uid.takeCheckpointDirtyLocked());
+
+        bsi.getUidStatsLocked(10000);
+        Assert.assertTrue(uid.takeCheckpointDirtyLocked());
+
+        bsi.updateTimeBasesLocked(true, false, 0, 0);
+        Assert.assertTrue(uid.takeCheckpointDirtyLocked());
+        Assert.assertFalse(uid.takeCheckpointDirtyLocked());
+    }
 }
 
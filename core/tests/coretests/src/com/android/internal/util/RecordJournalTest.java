@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.util;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Provides test cases for {@link RecordJournal}.
+ */
+public class RecordJournalTest extends TestCase {
+    private static final int MAGIC = 0x54455354;
+
+    private File mFile;
+    private RecordJournal mJournal;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = File.createTempFile("record-journal", ".bin");
+        mFile.delete();
+        mJournal = new RecordJournal(mFile, MAGIC, 1, 1024);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    @SmallTest
+    public void testMissingJournal() {
+        assertFalse(mJournal.isStarted());
+        assertEquals(-1, mJournal.read(0, new Collector()));
+    }
+
+    @SmallTest
+    public void testRoundTrip() throws Exception {
+        mJournal.reset(7);
+        assertTrue(mJournal.isStarted());
+        assertEquals(RecordJournal.HEADER_SIZE, mJournal.length());
+        mJournal.append(records(new byte[] { 1, 2, 3 }));
+        mJournal.append(records(new byte[] { 4 }, new byte[] { 5, 6 }));
+        assertEquals(RecordJournal.HEADER_SIZE + 3 * RecordJournal.RECORD_OVERHEAD + 6,
+                mJournal.length());
+
+        final Collector collector = new Collector();
+        assertEquals(3, mJournal.read(7, collector));
+        assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, collector.records.get(0)));
+        assertTrue(Arrays.equals(new byte[] { 4 }, collector.records.get(1)));
+        assertTrue(Arrays.equals(new byte[] { 5, 6 }, collector.records.get(2)));
+    }
+
+    @SmallTest
+    public void testRewrite() throws Exception {
+        mJournal.reset(1);
+        mJournal.append(records(new byte[] { 1 }));
+        mJournal.rewrite(2, records(new byte[] { 2 }));
+
+        assertEquals(-1, mJournal.read(1, new Collector()));
+        final Collector collector = new Collector();
+        assertEquals(1, mJournal.read(2, collector));
+        assertTrue(Arrays.equals(new byte[] { 2 }, collector.records.get(0)));
+    }
+
+    @SmallTest
+    public void testOtherTokenOrFormat() throws Exception {
+        mJournal.reset(1);
+        mJournal.append(records(new byte[] { 1 }));
+        assertEquals(-1, mJournal.read(2, new Collector()));
+        assertEquals(-1, new RecordJournal(mFile, MAGIC, 2, 1024).read(1, new Collector()));
+        assertEquals(-1, new RecordJournal(mFile, MAGIC + 1, 1, 1024).read(1, new Collector()));
+
+        // Records of another token are ignored, not discarded.
+        assertEquals(1, mJournal.read(1, new Collector()));
+    }
+
+    @SmallTest
+    public void testTornTailIsTruncated() throws Exception {
+        mJournal.reset(1);
+        mJournal.append(records(new byte[] { 1, 2, 3 }));
+        final long goodLength = mJournal.length();
+        mJournal.append(records(new byte[] { 4, 5, 6 }));
+        setLength(mJournal.length() - 2);
+
+        assertEquals(1, mJournal.read(1, new Collector()));
+        assertEquals(goodLength, mJournal.length());
+
+        mJournal.append(records(new byte[] { 7 }));
+        assertEquals(2, mJournal.read(1, new Collector()));
+    }
+
+    @SmallTest
+    public void testCorruptRecordIsTruncated() throws Exception {
+        mJournal.reset(1);
+        mJournal.append(records(new byte[] { 1, 2, 3 }));
+        final long goodLength = mJournal.length();
+        mJournal.append(records(new byte[] { 4, 5, 6 }));
+
+        final RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        try {
+            raf.seek(goodLength + 4);
+            raf.write(9);
+        } finally {
+            raf.close();
+        }
+
+        assertEquals(1, mJournal.read(1, new Collector()));
+        assertEquals(goodLength, mJournal.length());
+    }
+
+    @SmallTest
+    public void testUndecodableRecordIsTruncated() throws Exception {
+        mJournal.reset(1);
+        mJournal.append(records(new byte[] { 1 }, new byte[] { 2 }, new byte[] { 3 }));
+
+        final int read = mJournal.read(1, new RecordJournal.RecordHandler() {
+            @Override
+            public void onRecord(byte[] data, int length) throws IOException {
+                if (data[0] == 2) {
+                    throw new IOException("undecodable");
+                }
+            }
+        });
+        assertEquals(1, read);
+        assertEquals(RecordJournal.HEADER_SIZE + RecordJournal.RECORD_OVERHEAD + 1,
+                mJournal.length());
+    }
+
+    @SmallTest
+    public void testTornHeaderIsDeleted() throws Exception {
+        mJournal.reset(1);
+        setLength(RecordJournal.HEADER_SIZE - 1);
+        assertFalse(mJournal.isStarted());
+
+        assertEquals(-1, mJournal.read(1, new Collector()));
+        assertFalse(mJournal.exists());
+    }
+
+    private void setLength(long length) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static ArrayList<byte[]> records(byte[]... records) {
+        return new ArrayList<>(Arrays.asList(records));
+    }
+
+    private static class Collector implements RecordJournal.RecordHandler {
+        final ArrayList<byte[]> records = new ArrayList<>();
+
+        @Override
+        public void onRecord(byte[] data, int length) {
+            records.add(Arrays.copyOf(data, length));
+        }
+    }
+}
@@ -1648,9 +1648,14 @@ public class SettingsProvider extends ContentProvider {
     final class SettingsRegistry {
         private static final String DROPBOX_TAG_USERLOG = "restricted_profile_ssaid";
 
-        private static final String SETTINGS_FILE_GLOBAL = "settings_global.xml";
-        private static final String SETTINGS_FILE_SYSTEM = "settings_system.xml";
-        private static final String SETTINGS_FILE_SECURE = "settings_secure.xml";
+        private static final String SETTINGS_FILE_GLOBAL = "settings_global.bin";
+        private static final String SETTINGS_FILE_SYSTEM = "settings_system.bin";
+        private static final String SETTINGS_FILE_SECURE = "settings_secure.bin";
+
+        // Files in the XML format, migrated to the ones above when first read.
+        private static final String LEGACY_SETTINGS_FILE_GLOBAL = "settings_global.xml";
+        private static final String LEGACY_SETTINGS_FILE_SYSTEM = "settings_system.xml";
+        private static final String LEGACY_SETTINGS_FILE_SECURE = "settings_secure.xml";
 
         private final SparseArray<SettingsState> mSettingsStates = new SparseArray<>();
 
@@ -1708,8 +1713,9 @@ public class SettingsProvider extends ContentProvider {
         private void ensureSettingsStateLocked(int key) {
             if (mSettingsStates.get(key) == null) {
                 final int maxBytesPerPackage = getMaxBytesPerPackageForType(getTypeFromKey(key));
-                SettingsState settingsState = new SettingsState(mLock, getSettingsFile(key), key,
-                        maxBytesPerPackage, mHandlerThread.getLooper());
+                SettingsState settingsState = new SettingsState(mLock, getSettingsFile(key),
+                        getLegacySettingsFile(key), key, maxBytesPerPackage,
+                        mHandlerThread.getLooper());
                 mSettingsStates.put(key, settingsState);
             }
         }
@@ -1828,7 +1834,7 @@ public class SettingsProvider extends ContentProvider {
             synchronized (mLock) {
                 final int key = makeKey(SETTINGS_TYPE_GLOBAL, UserHandle.USER_SYSTEM);
                 File globalFile = getSettingsFile(key);
-                if (globalFile.exists()) {
+                if (globalFile.exists() || getLegacySettingsFile(key).exists()) {
                     return;
                 }
 
@@ -1863,7 +1869,7 @@ public class SettingsProvider extends ContentProvider {
             // Every user has secure settings and if no file we need to migrate.
             final int secureKey = makeKey(SETTINGS_TYPE_SECURE, userId);
             File secureFile = getSettingsFile(secureKey);
-            if (secureFile.exists()) {
+            if (secureFile.exists() || getLegacySettingsFile(secureKey).exists()) {
                 return;
             }
 
@@ -2051,6 +2057,24 @@ public class SettingsProvider extends ContentProvider {
             }
         }
 
+        private File getLegacySettingsFile(int key) {
+            if (isGlobalSettingsKey(key)) {
+                final int userId = getUserIdFromKey(key);
+                return new File(Environment.getUserSystemDirectory(userId),
+                        LEGACY_SETTINGS_FILE_GLOBAL);
+            } else if (isSystemSettingsKey(key)) {
+                final int userId = getUserIdFromKey(key);
+                return new File(Environment.getUserSystemDirectory(userId),
+                        LEGACY_SETTINGS_FILE_SYSTEM);
+            } else if (isSecureSettingsKey(key)) {
+                final int userId = getUserIdFromKey(key);
+                return new File(Environment.getUserSystemDirectory(userId),
+                        LEGACY_SETTINGS_FILE_SECURE);
+            } else {
+                throw new IllegalArgumentException("Invalid settings key:" + key);
+            }
+        }
+
         private Uri getNotificationUriFor(int key, String name) {
             if (isGlobalSettingsKey(key)) {
                 return (name != null) ? Uri.withAppendedPath(Settings.Global.CONTENT_URI, name)
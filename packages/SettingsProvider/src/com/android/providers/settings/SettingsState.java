@@ -34,22 +34,36 @@ import libcore.io.IoUtils;
 import libcore.util.Objects;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
-import org.xmlpull.v1.XmlSerializer;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
 
 /**
  * This class contains the state for one type of settings. It is responsible
- * for saving the state asynchronously to an XML file after a mutation and
- * loading the from an XML file on construction.
+ * for saving the state asynchronously to a file after a mutation and
+ * loading the from a file on construction.
+ * <p>
+ * The state is persisted in a compact binary format. A state that exists
+ * only in the older XML file is read from there once, rewritten in the
+ * binary format and the XML file is then deleted.
+ * </p>
  * <p>
  * This class uses the same lock as the settings provider to ensure that
  * multiple changes made by the settings provider, e,g, upgrade, bulk insert,
@@ -83,19 +97,33 @@ final class SettingsState {
     private static final String ATTR_ID = "id";
     private static final String ATTR_NAME = "name";
 
-    /** Non-binary value will be written in this attribute. */
+    /** Non-binary value was written in this attribute. */
     private static final String ATTR_VALUE = "value";
 
     /**
-     * KXmlSerializer won't like some characters.  We encode such characters in base64 and
-     * store in this attribute.
-     * NOTE: A null value will have NEITHER ATTR_VALUE nor ATTR_VALUE_BASE64.
+     * Values KXmlSerializer wouldn't take were base64 encoded in this attribute.
+     * NOTE: A null value has NEITHER ATTR_VALUE nor ATTR_VALUE_BASE64.
      */
     private static final String ATTR_VALUE_BASE64 = "valueBase64";
 
     // This was used in version 120 and before.
     private static final String NULL_VALUE_OLD_STYLE = "null";
 
+    /**
+     * Binary state layout: magic, format version, then a CRC32-checked body
+     * holding the settings version, a pool of the distinct package names and
+     * the settings, each referring to its package by pool index.
+     */
+    private static final int BINARY_MAGIC = 0x53455453; // "SETS"
+    private static final int BINARY_FORMAT_VERSION = 1;
+
+    private static final byte STRING_NULL = 0;
+    private static final byte STRING_UTF = 1;
+    private static final byte STRING_CHARS = 2;
+
+    // Longest string for which DataOutput.writeUTF is guaranteed not to overflow.
+    private static final int MAX_UTF_STRING_LENGTH = 65535 / 3;
+
     private static final int HISTORICAL_OPERATION_COUNT = 20;
     private static final String HISTORICAL_OPERATION_UPDATE = "update";
     private static final String HISTORICAL_OPERATION_DELETE = "delete";
@@ -118,6 +146,9 @@ final class SettingsState {
     @GuardedBy("mLock")
     private final File mStatePersistFile;
 
+    @GuardedBy("mLock")
+    private File mLegacyStatePersistFile;
+
     private final Setting mNullSetting = new Setting(null, null, null) {
         @Override
         public boolean isNull() {
@@ -151,11 +182,21 @@ final class SettingsState {
 
     public SettingsState(Object lock, File file, int key, int maxBytesPerAppPackage,
             Looper looper) {
+        this(lock, file, null, key, maxBytesPerAppPackage, looper);
+    }
+
+    /**
+     * @param legacyFile XML file to migrate the state from if {@code file} doesn't
+     *     exist yet, or {@code null}.
+     */
+    public SettingsState(Object lock, File file, File legacyFile, int key,
+            int maxBytesPerAppPackage, Looper looper) {
         // It is important that we use the same lock as the settings provider
         // to ensure multiple mutations on this state are atomicaly persisted
         // as the async persistence should be blocked while we make changes.
         mLock = lock;
         mStatePersistFile = file;
+        mLegacyStatePersistFile = legacyFile;
         mKey = key;
         mHandler = new MyHandler(looper);
         if (maxBytesPerAppPackage == MAX_BYTES_PER_APP_PACKAGE_LIMITED) {
@@ -442,10 +483,12 @@ final class SettingsState {
 
         final int version;
         final ArrayMap<String, Setting> settings;
+        final File legacyFile;
 
         synchronized (mLock) {
             version = mVersion;
             settings = new ArrayMap<>(mSettings);
+            legacyFile = mLegacyStatePersistFile;
             mDirty = false;
             mWriteScheduled = false;
         }
@@ -454,30 +497,20 @@ final class SettingsState {
         try {
             out = destination.startWrite();
 
-            XmlSerializer serializer = Xml.newSerializer();
-            serializer.setOutput(out, StandardCharsets.UTF_8.name());
-            serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
-            serializer.startDocument(null, true);
-            serializer.startTag(null, TAG_SETTINGS);
-            serializer.attribute(null, ATTR_VERSION, String.valueOf(version));
-
-            final int settingCount = settings.size();
-            for (int i = 0; i < settingCount; i++) {
-                Setting setting = settings.valueAt(i);
-
-                writeSingleSetting(mVersion, serializer, setting.getId(), setting.getName(),
-                        setting.getValue(), setting.getPackageName());
+            final BufferedOutputStream bufferedOut = new BufferedOutputStream(out);
+            writeStateBinary(bufferedOut, version, settings);
+            bufferedOut.flush();
+            destination.finishWrite(out);
 
-                if (DEBUG_PERSISTENCE) {
-                    Slog.i(LOG_TAG, "[PERSISTED]" + setting.getName() + "=" + setting.getValue());
-                }
+            if (legacyFile != null) {
+                // The state now lives in the binary file.
+                new AtomicFile(legacyFile).delete();
             }
 
-            serializer.endTag(null, TAG_SETTINGS);
-            serializer.endDocument();
-            destination.finishWrite(out);
-
             synchronized (mLock) {
+                if (mLegacyStatePersistFile == legacyFile) {
+                    mLegacyStatePersistFile = null;
+                }
                 addHistoricalOperationLocked(HISTORICAL_OPERATION_PERSIST, null);
             }
 
@@ -492,38 +525,105 @@ final class SettingsState {
         }
     }
 
-    static void writeSingleSetting(int version, XmlSerializer serializer, String id,
-            String name, String value, String packageName) throws IOException {
-        if (id == null || isBinary(id) || name == null || isBinary(name)
-                || packageName == null || isBinary(packageName)) {
-            // This shouldn't happen.
-            return;
+    /**
+     * Writes the given settings in the binary format.
+     */
+    static void writeStateBinary(OutputStream out, int version, ArrayMap<String, Setting> settings)
+            throws IOException {
+        final DataOutputStream header = new DataOutputStream(out);
+        header.writeInt(BINARY_MAGIC);
+        header.writeInt(BINARY_FORMAT_VERSION);
+
+        final CheckedOutputStream checkedOut = new CheckedOutputStream(out, new CRC32());
+        final DataOutputStream body = new DataOutputStream(checkedOut);
+        body.writeInt(version);
+
+        // Most settings of a table come from a handful of packages.
+        final ArrayMap<String, Integer> packagePool = new ArrayMap<>();
+        final int settingCount = settings.size();
+        int writableCount = 0;
+        for (int i = 0; i < settingCount; i++) {
+            Setting setting = settings.valueAt(i);
+            if (!isWritable(setting)) {
+                continue;
+            }
+            writableCount++;
+            if (!packagePool.containsKey(setting.getPackageName())) {
+                packagePool.put(setting.getPackageName(), packagePool.size());
+            }
         }
-        serializer.startTag(null, TAG_SETTING);
-        serializer.attribute(null, ATTR_ID, id);
-        serializer.attribute(null, ATTR_NAME, name);
-        setValueAttribute(version, serializer, value);
-        serializer.attribute(null, ATTR_PACKAGE, packageName);
-        serializer.endTag(null, TAG_SETTING);
-    }
 
-    static void setValueAttribute(int version, XmlSerializer serializer, String value)
-            throws IOException {
-        if (version >= SETTINGS_VERSION_NEW_ENCODING) {
-            if (value == null) {
-                // Null value -> No ATTR_VALUE nor ATTR_VALUE_BASE64.
-            } else if (isBinary(value)) {
-                serializer.attribute(null, ATTR_VALUE_BASE64, base64Encode(value));
-            } else {
-                serializer.attribute(null, ATTR_VALUE, value);
+        // Pool indices were handed out in insertion order, not key order.
+        final String[] packageNames = new String[packagePool.size()];
+        for (int i = 0; i < packagePool.size(); i++) {
+            packageNames[packagePool.valueAt(i)] = packagePool.keyAt(i);
+        }
+        body.writeInt(packageNames.length);
+        for (String packageName : packageNames) {
+            writeString(body, packageName);
+        }
+
+        body.writeInt(writableCount);
+        for (int i = 0; i < settingCount; i++) {
+            Setting setting = settings.valueAt(i);
+            if (!isWritable(setting)) {
+                continue;
             }
+            body.writeLong(Long.parseLong(setting.getId()));
+            writeString(body, setting.getName());
+            writeString(body, setting.getValue());
+            body.writeInt(packagePool.get(setting.getPackageName()));
+
+            if (DEBUG_PERSISTENCE) {
+                Slog.i(LOG_TAG, "[PERSISTED]" + setting.getName() + "=" + setting.getValue());
+            }
+        }
+        body.flush();
+
+        header.writeLong(checkedOut.getChecksum().getValue());
+        header.flush();
+    }
+
+    private static boolean isWritable(Setting setting) {
+        // Settings missing any of these never made it to disk in the XML format either.
+        return setting.getId() != null && setting.getName() != null
+                && setting.getPackageName() != null;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeByte(STRING_NULL);
+        } else if (value.length() <= MAX_UTF_STRING_LENGTH) {
+            // Modified UTF-8 encodes each char on its own, so broken surrogates survive.
+            out.writeByte(STRING_UTF);
+            out.writeUTF(value);
         } else {
-            // Old encoding.
-            if (value == null) {
-                serializer.attribute(null, ATTR_VALUE, NULL_VALUE_OLD_STYLE);
-            } else {
-                serializer.attribute(null, ATTR_VALUE, value);
+            out.writeByte(STRING_CHARS);
+            out.writeInt(value.length());
+            out.writeChars(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        final byte kind = in.readByte();
+        switch (kind) {
+            case STRING_NULL:
+                return null;
+            case STRING_UTF:
+                return in.readUTF();
+            case STRING_CHARS: {
+                final int length = in.readInt();
+                if (length < 0) {
+                    throw new IOException("Bad string length " + length);
+                }
+                final char[] chars = new char[length];
+                for (int i = 0; i < length; i++) {
+                    chars[i] = in.readChar();
+                }
+                return new String(chars);
             }
+            default:
+                throw new IOException("Bad string kind " + kind);
         }
     }
 
@@ -551,12 +651,18 @@ final class SettingsState {
     }
 
     private void readStateSyncLocked() {
-        FileInputStream in;
         if (!mStatePersistFile.exists()) {
+            if (mLegacyStatePersistFile != null && mLegacyStatePersistFile.exists()) {
+                readLegacyStateSyncLocked();
+                return;
+            }
             Slog.i(LOG_TAG, "No settings state " + mStatePersistFile);
             addHistoricalOperationLocked(HISTORICAL_OPERATION_INITIALIZE, null);
             return;
         }
+        // Don't let a stale XML file overwrite the binary state on a later boot.
+        mLegacyStatePersistFile = null;
+        FileInputStream in;
         try {
             in = new AtomicFile(mStatePersistFile).openRead();
         } catch (FileNotFoundException fnfe) {
@@ -566,10 +672,8 @@ final class SettingsState {
             return;
         }
         try {
-            XmlPullParser parser = Xml.newPullParser();
-            parser.setInput(in, StandardCharsets.UTF_8.name());
-            parseStateLocked(parser);
-        } catch (XmlPullParserException | IOException e) {
+            readStateLocked(new BufferedInputStream(in));
+        } catch (IOException e) {
             String message = "Failed parsing settings file: " + mStatePersistFile;
             Slog.wtf(LOG_TAG, message);
             throw new IllegalStateException(message , e);
@@ -578,6 +682,110 @@ final class SettingsState {
         }
     }
 
+    private void readLegacyStateSyncLocked() {
+        FileInputStream in;
+        try {
+            in = new AtomicFile(mLegacyStatePersistFile).openRead();
+        } catch (FileNotFoundException fnfe) {
+            String message = "No settings state " + mLegacyStatePersistFile;
+            Slog.wtf(LOG_TAG, message);
+            Slog.i(LOG_TAG, message);
+            return;
+        }
+        try {
+            readLegacyStateLocked(new BufferedInputStream(in));
+        } catch (XmlPullParserException | IOException e) {
+            String message = "Failed parsing settings file: " + mLegacyStatePersistFile;
+            Slog.wtf(LOG_TAG, message);
+            throw new IllegalStateException(message , e);
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+        // Migrate to the binary file, which deletes the XML one once written.
+        scheduleWriteIfNeededLocked();
+    }
+
+    /**
+     * Reads state written by {@link #writeStateBinary}.
+     */
+    void readStateLocked(InputStream in) throws IOException {
+        final DataInputStream header = new DataInputStream(in);
+        final int magic;
+        try {
+            magic = header.readInt();
+        } catch (EOFException e) {
+            throw new IOException("Empty settings state", e);
+        }
+        if (magic != BINARY_MAGIC) {
+            throw new IOException("Bad settings magic " + Integer.toHexString(magic));
+        }
+        parseStateBinaryLocked(in);
+    }
+
+    /**
+     * Reads state from the XML format used before the binary one.
+     */
+    void readLegacyStateLocked(InputStream in) throws IOException, XmlPullParserException {
+        XmlPullParser parser = Xml.newPullParser();
+        parser.setInput(in, StandardCharsets.UTF_8.name());
+        parseStateLocked(parser);
+    }
+
+    private void parseStateBinaryLocked(InputStream in) throws IOException {
+        final DataInputStream header = new DataInputStream(in);
+        final int formatVersion = header.readInt();
+        if (formatVersion != BINARY_FORMAT_VERSION) {
+            throw new IOException("Unknown settings format version " + formatVersion);
+        }
+
+        final CheckedInputStream checkedIn = new CheckedInputStream(in, new CRC32());
+        final DataInputStream body = new DataInputStream(checkedIn);
+        final int version = body.readInt();
+
+        final int packageCount = body.readInt();
+        if (packageCount < 0) {
+            throw new IOException("Bad package count " + packageCount);
+        }
+        final String[] packageNames = new String[packageCount];
+        for (int i = 0; i < packageCount; i++) {
+            packageNames[i] = readString(body);
+        }
+
+        final int settingCount = body.readInt();
+        if (settingCount < 0) {
+            throw new IOException("Bad setting count " + settingCount);
+        }
+        final ArrayList<Setting> settings = new ArrayList<>(settingCount);
+        for (int i = 0; i < settingCount; i++) {
+            final long id = body.readLong();
+            final String name = readString(body);
+            final String value = readString(body);
+            final int packageIndex = body.readInt();
+            if (packageIndex < 0 || packageIndex >= packageCount) {
+                throw new IOException("Bad package index " + packageIndex);
+            }
+            settings.add(new Setting(name, value, packageNames[packageIndex],
+                    String.valueOf(id)));
+        }
+
+        final long checksum = checkedIn.getChecksum().getValue();
+        if (header.readLong() != checksum) {
+            throw new IOException("Settings checksum mismatch");
+        }
+
+        // Only publish the state once it is known to be intact.
+        mVersion = version;
+        mSettings.ensureCapacity(mSettings.size() + settingCount);
+        for (int i = 0; i < settingCount; i++) {
+            final Setting setting = settings.get(i);
+            mSettings.put(setting.getName(), setting);
+
+            if (DEBUG_PERSISTENCE) {
+                Slog.i(LOG_TAG, "[RESTORED] " + setting.getName() + "=" + setting.getValue());
+            }
+        }
+    }
+
     private void parseStateLocked(XmlPullParser parser)
             throws IOException, XmlPullParserException {
         final int outerDepth = parser.getDepth();
@@ -726,47 +934,13 @@ final class SettingsState {
         }
     }
 
-    /**
-     * @return TRUE if a string is considered "binary" from KXML's point of view.  NOTE DO NOT
-     * pass null.
-     */
-    public static boolean isBinary(String s) {
-        if (s == null) {
-            throw new NullPointerException();
-        }
-        // See KXmlSerializer.writeEscaped
-        for (int i = 0; i < s.length(); i++) {
-            char c = s.charAt(i);
-            boolean allowedInXml = (c >= 0x20 && c <= 0xd7ff) || (c >= 0xe000 && c <= 0xfffd);
-            if (!allowedInXml) {
-                return true;
-            }
-        }
-        return false;
-    }
-
-    private static String base64Encode(String s) {
-        return Base64.encodeToString(toBytes(s), Base64.NO_WRAP);
-    }
-
     private static String base64Decode(String s) {
         return fromBytes(Base64.decode(s, Base64.DEFAULT));
     }
 
-    // Note the followings are basically just UTF-16 encode/decode.  But we want to preserve
-    // contents as-is, even if it contains broken surrogate pairs, we do it by ourselves,
-    // since I don't know how Charset would treat them.
-
-    private static byte[] toBytes(String s) {
-        final byte[] result = new byte[s.length() * 2];
-        int resultIndex = 0;
-        for (int i = 0; i < s.length(); ++i) {
-            char ch = s.charAt(i);
-            result[resultIndex++] = (byte) (ch >> 8);
-            result[resultIndex++] = (byte) ch;
-        }
-        return result;
-    }
+    // Note this is basically just UTF-16 decode.  But we want to preserve contents as-is,
+    // even if it contains broken surrogate pairs, we do it by ourselves, since I don't know
+    // how Charset would treat them.
 
     private static String fromBytes(byte[] bytes) {
         final StringBuffer sb = new StringBuffer(bytes.length / 2);
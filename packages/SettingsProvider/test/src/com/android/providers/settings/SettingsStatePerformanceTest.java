@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.settings;
+
+import android.os.Looper;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.ArrayMap;
+import android.util.Log;
+import android.util.Xml;
+
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Measures the binary persistence format of {@link SettingsState} for a
+ * secure table with 1,000 keys against the legacy XML format it replaced.
+ */
+public class SettingsStatePerformanceTest extends AndroidTestCase {
+    private static final String LOG_TAG = "SettingsStatePerformanceTest";
+
+    private static final int SETTING_COUNT = 1000;
+
+    private static final int ITERATION_COUNT = 50;
+
+    private static final int MICRO_SECONDS_IN_MILLISECOND = 1000;
+
+    private final Object mLock = new Object();
+
+    private SettingsState mSettingsState;
+
+    private ArrayMap<String, SettingsState.Setting> mSettings;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final File file = new File(getContext().getCacheDir(), "settings_perf.bin");
+        file.delete();
+        mSettingsState = new SettingsState(mLock, file, 0,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+
+        // Secure settings are dominated by a few system packages.
+        final String[] packages = {"android", "com.android.settings",
+                "com.android.systemui", "com.android.providers.settings"};
+        mSettings = new ArrayMap<>(SETTING_COUNT);
+        for (int i = 0; i < SETTING_COUNT; i++) {
+            final String name = "secure_setting_" + i;
+            final String value = (i % 3 == 0) ? String.valueOf(i)
+                    : "com.example.component/.Service" + i + ":enabled";
+            mSettings.put(name, mSettingsState.new Setting(name, value,
+                    packages[i % packages.length]));
+        }
+    }
+
+    public void testXmlVersusBinary() throws Exception {
+        final int version = SettingsState.SETTINGS_VERSION_NEW_ENCODING;
+
+        final byte[] xml = writeLegacyXml(version);
+        final byte[] binary = writeBinary(version);
+
+        long startTimeMicro = SystemClock.currentTimeMicro();
+        for (int i = 0; i < ITERATION_COUNT; i++) {
+            writeBinary(version);
+        }
+        final long binaryWriteMicro = (SystemClock.currentTimeMicro() - startTimeMicro)
+                / ITERATION_COUNT;
+
+        startTimeMicro = SystemClock.currentTimeMicro();
+        for (int i = 0; i < ITERATION_COUNT; i++) {
+            synchronized (mLock) {
+                mSettingsState.readLegacyStateLocked(new ByteArrayInputStream(xml));
+            }
+        }
+        final long xmlReadMicro = (SystemClock.currentTimeMicro() - startTimeMicro)
+                / ITERATION_COUNT;
+
+        startTimeMicro = SystemClock.currentTimeMicro();
+        for (int i = 0; i < ITERATION_COUNT; i++) {
+            synchronized (mLock) {
+                mSettingsState.readStateLocked(new ByteArrayInputStream(binary));
+            }
+        }
+        final long binaryReadMicro = (SystemClock.currentTimeMicro() - startTimeMicro)
+                / ITERATION_COUNT;
+
+        Log.i(LOG_TAG, "XML: " + xml.length + " bytes, read "
+                + (float) xmlReadMicro / MICRO_SECONDS_IN_MILLISECOND + " ms");
+        Log.i(LOG_TAG, "Binary: " + binary.length + " bytes, write "
+                + (float) binaryWriteMicro / MICRO_SECONDS_IN_MILLISECOND + " ms, read "
+                + (float) binaryReadMicro / MICRO_SECONDS_IN_MILLISECOND + " ms");
+
+        assertTrue("Binary settings are larger than XML", binary.length < xml.length);
+        synchronized (mLock) {
+            assertEquals(SETTING_COUNT, mSettingsState.getSettingNamesLocked().size());
+            assertEquals("3", mSettingsState.getSettingLocked("secure_setting_3").getValue());
+        }
+    }
+
+    /** Writes the settings the way the XML format did; the values need no base64. */
+    private byte[] writeLegacyXml(int version) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final XmlSerializer serializer = Xml.newSerializer();
+        serializer.setOutput(out, StandardCharsets.UTF_8.name());
+        serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
+        serializer.startDocument(null, true);
+        serializer.startTag(null, "settings");
+        serializer.attribute(null, "version", String.valueOf(version));
+        for (int i = 0; i < mSettings.size(); i++) {
+            final SettingsState.Setting setting = mSettings.valueAt(i);
+            serializer.startTag(null, "setting");
+            serializer.attribute(null, "id", setting.getId());
+            serializer.attribute(null, "name", setting.getName());
+            serializer.attribute(null, "value", setting.getValue());
+            serializer.attribute(null, "package", setting.getPackageName());
+            serializer.endTag(null, "setting");
+        }
+        serializer.endTag(null, "settings");
+        serializer.endDocument();
+        return out.toByteArray();
+    }
+
+    private byte[] writeBinary(int version) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SettingsState.writeStateBinary(out, version, mSettings);
+        return out.toByteArray();
+    }
+}
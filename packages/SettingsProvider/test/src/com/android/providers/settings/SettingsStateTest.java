@@ -17,15 +17,16 @@ package com.android.providers.settings;
 
 import android.os.Looper;
 import android.test.AndroidTestCase;
-import android.util.Xml;
-
-import org.xmlpull.v1.XmlSerializer;
+import android.util.ArrayMap;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
-import java.nio.charset.StandardCharsets;
 
 public class SettingsStateTest extends AndroidTestCase {
     public static final String CRAZY_STRING =
@@ -46,83 +47,14 @@ public class SettingsStateTest extends AndroidTestCase {
             "\uD800ab\uDC00 " + // broken surrogate pairs
             "日本語";
 
+    private static final int BINARY_MAGIC = 0x53455453;
 
-    public void testIsBinary() {
-        assertFalse(SettingsState.isBinary(" abc 日本語"));
-
-        for (char ch = 0x20; ch < 0xd800; ch++) {
-            assertFalse("ch=" + Integer.toString(ch, 16),
-                    SettingsState.isBinary(String.valueOf(ch)));
-        }
-        for (char ch = 0xe000; ch < 0xfffe; ch++) {
-            assertFalse("ch=" + Integer.toString(ch, 16),
-                    SettingsState.isBinary(String.valueOf(ch)));
-        }
-
-        for (char ch = 0x0000; ch < 0x20; ch++) {
-            assertTrue("ch=" + Integer.toString(ch, 16),
-                    SettingsState.isBinary(String.valueOf(ch)));
-        }
-        for (char ch = 0xd800; ch < 0xe000; ch++) {
-            assertTrue("ch=" + Integer.toString(ch, 16),
-                    SettingsState.isBinary(String.valueOf(ch)));
-        }
-        assertTrue(SettingsState.isBinary("\ufffe"));
-        assertTrue(SettingsState.isBinary("\uffff"));
-        try {
-            assertFalse(SettingsState.isBinary(null));
-            fail("NullPointerException expected");
-        } catch (NullPointerException expected) {
-        }
-    }
-
-    /** Make sure we won't pass invalid characters to XML serializer. */
-    public void testWriteReadNoCrash() throws Exception {
-        ByteArrayOutputStream os = new ByteArrayOutputStream();
-
-        XmlSerializer serializer = Xml.newSerializer();
-        serializer.setOutput(os, StandardCharsets.UTF_8.name());
-        serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
-        serializer.startDocument(null, true);
-
-        for (int ch = 0; ch < 0x10000; ch++) {
-            checkWriteSingleSetting("char=0x" + Integer.toString(ch, 16), serializer,
-                    "key", String.valueOf((char) ch));
-        }
-        checkWriteSingleSetting(serializer, "k", "");
-        checkWriteSingleSetting(serializer, "x", "abc");
-        checkWriteSingleSetting(serializer, "abc", CRAZY_STRING);
-        checkWriteSingleSetting(serializer, "def", null);
-
-        // Invlid input, but shouoldn't crash.
-        checkWriteSingleSetting(serializer, null, null);
-        checkWriteSingleSetting(serializer, CRAZY_STRING, null);
-        SettingsState.writeSingleSetting(
-                SettingsState.SETTINGS_VERSION_NEW_ENCODING,
-                serializer, null, "k", "v", "package");
-        SettingsState.writeSingleSetting(
-                SettingsState.SETTINGS_VERSION_NEW_ENCODING,
-                serializer, "1", "k", "v", null);
-    }
-
-    private void checkWriteSingleSetting(XmlSerializer serializer, String key, String value)
-            throws Exception {
-        checkWriteSingleSetting(key + "/" + value, serializer, key, value);
-    }
-
-    private void checkWriteSingleSetting(String msg, XmlSerializer serializer,
-            String key, String value) throws Exception {
-        // Make sure the XML serializer won't crash.
-        SettingsState.writeSingleSetting(
-                SettingsState.SETTINGS_VERSION_NEW_ENCODING,
-                serializer, "1", key, value, "package");
-    }
 
     /**
      * Make sure settings can be written to a file and also can be read.
      */
     public void testReadWrite() {
-        final File file = new File(getContext().getCacheDir(), "setting.xml");
+        final File file = new File(getContext().getCacheDir(), "setting.bin");
         file.delete();
         final Object lock = new Object();
 
@@ -148,14 +80,151 @@ public class SettingsStateTest extends AndroidTestCase {
         }
     }
 
+    /**
+     * Make sure values too long for a single modified UTF-8 chunk survive a round trip.
+     */
+    public void testReadWriteLongValue() {
+        final File file = new File(getContext().getCacheDir(), "setting.bin");
+        file.delete();
+        final Object lock = new Object();
+
+        final StringBuilder longValue = new StringBuilder();
+        while (longValue.length() < 100000) {
+            longValue.append(CRAZY_STRING);
+        }
+
+        final SettingsState ssWriter = new SettingsState(lock, file, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        ssWriter.setVersionLocked(SettingsState.SETTINGS_VERSION_NEW_ENCODING);
+        ssWriter.insertSettingLocked("k1", longValue.toString(), "package");
+        synchronized (lock) {
+            ssWriter.persistSyncLocked();
+        }
+
+        final SettingsState ssReader = new SettingsState(lock, file, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        synchronized (lock) {
+            assertEquals(longValue.toString(), ssReader.getSettingLocked("k1").getValue());
+            assertEquals("package", ssReader.getSettingLocked("k1").getPackageName());
+        }
+    }
+
+    /**
+     * Make sure the binary format carries its magic and that damaged state is rejected.
+     */
+    public void testBinaryFormat() throws Exception {
+        final File file = new File(getContext().getCacheDir(), "setting.bin");
+        file.delete();
+        final Object lock = new Object();
+
+        final SettingsState ssWriter = new SettingsState(lock, file, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        final ArrayMap<String, SettingsState.Setting> settings = new ArrayMap<>();
+        settings.put("k1", ssWriter.new Setting("k1", CRAZY_STRING, "p1"));
+        settings.put("k2", ssWriter.new Setting("k2", null, "p2"));
+        settings.put("k3", ssWriter.new Setting("k3", "v3", "p1"));
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SettingsState.writeStateBinary(out, SettingsState.SETTINGS_VERSION_NEW_ENCODING,
+                settings);
+        final byte[] state = out.toByteArray();
+        assertEquals(BINARY_MAGIC,
+                new DataInputStream(new ByteArrayInputStream(state)).readInt());
+
+        final SettingsState ssReader = new SettingsState(lock, file, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        synchronized (lock) {
+            ssReader.readStateLocked(new ByteArrayInputStream(state));
+            assertEquals(SettingsState.SETTINGS_VERSION_NEW_ENCODING,
+                    ssReader.getVersionLocked());
+            assertEquals(CRAZY_STRING, ssReader.getSettingLocked("k1").getValue());
+            assertEquals("p1", ssReader.getSettingLocked("k1").getPackageName());
+            assertEquals(null, ssReader.getSettingLocked("k2").getValue());
+            assertEquals("p2", ssReader.getSettingLocked("k2").getPackageName());
+            assertEquals("v3", ssReader.getSettingLocked("k3").getValue());
+            assertEquals("p1", ssReader.getSettingLocked("k3").getPackageName());
+            assertEquals(settings.get("k3").getId(), ssReader.getSettingLocked("k3").getId());
+        }
+
+        // Point the last setting at the other package; only the checksum can tell.
+        final byte[] damaged = state.clone();
+        damaged[damaged.length - 9] ^= 0x01;
+        final SettingsState ssDamaged = new SettingsState(lock, file, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        synchronized (lock) {
+            try {
+                ssDamaged.readStateLocked(new ByteArrayInputStream(damaged));
+                fail("IOException expected");
+            } catch (IOException expected) {
+            }
+            // Nothing of a damaged state is published.
+            assertTrue(ssDamaged.getSettingNamesLocked().isEmpty());
+
+            try {
+                ssDamaged.readStateLocked(new ByteArrayInputStream(
+                        "<?xml version='1.0' ?>".getBytes("UTF-8")));
+                fail("IOException expected");
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    /**
+     * Settings stored as XML are rewritten in the binary format without losing anything.
+     */
+    public void testMigrateXmlToBinary() throws Exception {
+        final File file = new File(getContext().getCacheDir(), "setting.bin");
+        final File legacyFile = new File(getContext().getCacheDir(), "setting.xml");
+        file.delete();
+        legacyFile.delete();
+        final Object lock = new Object();
+        final PrintStream os = new PrintStream(new FileOutputStream(legacyFile));
+        os.print(
+                "<?xml version='1.0' encoding='UTF-8' standalone='yes' ?>" +
+                "<settings version=\"121\">" +
+                "  <setting id=\"3\" name=\"k1\" value=\"v1\" package=\"p1\" />" +
+                "  <setting id=\"7\" name=\"k2\" package=\"p2\" />" +
+                "</settings>");
+        os.close();
+
+        final SettingsState ssMigrated = new SettingsState(lock, file, legacyFile, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        synchronized (lock) {
+            ssMigrated.persistSyncLocked();
+        }
+        assertFalse(legacyFile.exists());
+        final DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            assertEquals(BINARY_MAGIC, in.readInt());
+        } finally {
+            in.close();
+        }
+
+        final SettingsState ss = new SettingsState(lock, file, legacyFile, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        synchronized (lock) {
+            assertEquals(121, ss.getVersionLocked());
+            assertEquals("v1", ss.getSettingLocked("k1").getValue());
+            assertEquals("p1", ss.getSettingLocked("k1").getPackageName());
+            assertEquals("3", ss.getSettingLocked("k1").getId());
+            assertEquals(null, ss.getSettingLocked("k2").getValue());
+            assertEquals("7", ss.getSettingLocked("k2").getId());
+
+            // New ids must not collide with restored ones.
+            ss.insertSettingLocked("k3", "v3", "p3");
+            assertEquals("8", ss.getSettingLocked("k3").getId());
+        }
+    }
+
     /**
      * In version 120, value "null" meant {code NULL}.
      */
     public void testUpgrade() throws Exception {
-        final File file = new File(getContext().getCacheDir(), "setting.xml");
+        final File file = new File(getContext().getCacheDir(), "setting.bin");
+        final File legacyFile = new File(getContext().getCacheDir(), "setting.xml");
         file.delete();
+        legacyFile.delete();
         final Object lock = new Object();
-        final PrintStream os = new PrintStream(new FileOutputStream(file));
+        final PrintStream os = new PrintStream(new FileOutputStream(legacyFile));
         os.print(
                 "<?xml version='1.0' encoding='UTF-8' standalone='yes' ?>" +
                 "<settings version=\"120\">" +
@@ -165,7 +234,7 @@ public class SettingsStateTest extends AndroidTestCase {
                 "</settings>");
         os.close();
 
-        final SettingsState ss = new SettingsState(lock, file, 1,
+        final SettingsState ss = new SettingsState(lock, file, legacyFile, 1,
                 SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
         synchronized (lock) {
             SettingsState.Setting s;
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * Ordered list of alarm batch windows, kept as an interval tree.
+ * <p>
+ * Entries are ordered by the start of their window, entries with equal
+ * starts in insertion order. Each entry remembers the window it was added
+ * with; callers must remove and re-add an entry whenever its window changes.
+ * The tree is a treap whose nodes also track the size of their subtree, for
+ * positional access, and the latest window end of any coalescable entry in
+ * their subtree, which lets {@link #findFirstOverlapping} skip every subtree
+ * that cannot hold an alarm. Adding, removing, positional access and
+ * {@link #findFirstOverlapping} are all O(log n) expected.
+ */
+final class AlarmBatchTree<T> implements Iterable<T> {
+    private static final class Node<T> {
+        final T item;
+        final long start;
+        final long end;
+        final boolean coalescable;
+        final int priority;
+
+        Node<T> left;
+        Node<T> right;
+        int size;
+        long maxEnd;
+
+        Node(T item, long start, long end, boolean coalescable, int priority) {
+            this.item = item;
+            this.start = start;
+            this.end = end;
+            this.coalescable = coalescable;
+            this.priority = priority;
+            update();
+        }
+
+        void update() {
+            size = 1;
+            maxEnd = coalescable ? end : Long.MIN_VALUE;
+            if (left != null) {
+                size += left.size;
+                maxEnd = Math.max(maxEnd, left.maxEnd);
+            }
+            if (right != null) {
+                size += right.size;
+                maxEnd = Math.max(maxEnd, right.maxEnd);
+            }
+        }
+    }
+
+    private final Random mRandom = new Random();
+    private Node<T> mRoot;
+
+    // Results of the last split; only valid right after calling one.
+    private Node<T> mSplitLeft;
+    private Node<T> mSplitRight;
+
+    public int size() {
+        return mRoot != null ? mRoot.size : 0;
+    }
+
+    public void clear() {
+        mRoot = null;
+    }
+
+    /**
+     * Adds an entry for the window [start, end], after all entries with the
+     * same start.
+     *
+     * @param coalescable whether {@link #findFirstOverlapping} may return it.
+     * @return the position of the new entry.
+     */
+    public int add(T item, long start, long end, boolean coalescable) {
+        final Node<T> node = new Node<>(item, start, end, coalescable, mRandom.nextInt());
+        splitByStart(mRoot, start);
+        final Node<T> right = mSplitRight;
+        final int index = mSplitLeft != null ? mSplitLeft.size : 0;
+        mRoot = merge(merge(mSplitLeft, node), right);
+        return index;
+    }
+
+    public T get(int index) {
+        checkIndex(index);
+        Node<T> node = mRoot;
+        while (true) {
+            final int leftSize = node.left != null ? node.left.size : 0;
+            if (index < leftSize) {
+                node = node.left;
+            } else if (index == leftSize) {
+                return node.item;
+            } else {
+                index -= leftSize + 1;
+                node = node.right;
+            }
+        }
+    }
+
+    public T removeAt(int index) {
+        checkIndex(index);
+        splitByPosition(mRoot, index);
+        final Node<T> left = mSplitLeft;
+        splitByPosition(mSplitRight, 1);
+        final Node<T> removed = mSplitLeft;
+        mRoot = merge(left, mSplitRight);
+        return removed.item;
+    }
+
+    /**
+     * Returns the position of the first coalescable entry whose window
+     * overlaps [whenElapsed, maxWhen], or -1 if there is none.
+     */
+    public int findFirstOverlapping(long whenElapsed, long maxWhen) {
+        return findFirstOverlapping(mRoot, whenElapsed, maxWhen, 0);
+    }
+
+    private static <T> int findFirstOverlapping(Node<T> node, long whenElapsed, long maxWhen,
+            int offset) {
+        while (node != null && node.maxEnd >= whenElapsed) {
+            // Everything to the left starts no later than this node, so look
+            // there first.  If nothing there fits because of its start, then
+            // nothing at or after this node can fit either.
+            final int found = findFirstOverlapping(node.left, whenElapsed, maxWhen, offset);
+            if (found >= 0) {
+                return found;
+            }
+            if (node.start > maxWhen) {
+                return -1;
+            }
+            final int index = offset + (node.left != null ? node.left.size : 0);
+            if (node.coalescable && node.end >= whenElapsed) {
+                return index;
+            }
+            offset = index + 1;
+            node = node.right;
+        }
+        return -1;
+    }
+
+    /** Returns the entries in order. */
+    public ArrayList<T> toList() {
+        final ArrayList<T> list = new ArrayList<>(size());
+        addToList(mRoot, list);
+        return list;
+    }
+
+    private static <T> void addToList(Node<T> node, ArrayList<T> list) {
+        while (node != null) {
+            addToList(node.left, list);
+            list.add(node.item);
+            node = node.right;
+        }
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        final ArrayList<Node<T>> stack = new ArrayList<>();
+        for (Node<T> node = mRoot; node != null; node = node.left) {
+            stack.add(node);
+        }
+        return new Iterator<T>() {
+            @Override
+            public boolean hasNext() {
+                return !stack.isEmpty();
+            }
+
+            @Override
+            public T next() {
+                if (stack.isEmpty()) {
+                    throw new NoSuchElementException();
+                }
+                final Node<T> node = stack.remove(stack.size() - 1);
+                for (Node<T> n = node.right; n != null; n = n.left) {
+                    stack.add(n);
+                }
+                return node.item;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("index=" + index + " size=" + size());
+        }
+    }
+
+    /** Splits into entries starting at or before {@code start} and the rest. */
+    private void splitByStart(Node<T> node, long start) {
+        if (node == null) {
+            mSplitLeft = mSplitRight = null;
+        } else if (node.start <= start) {
+            splitByStart(node.right, start);
+            node.right = mSplitLeft;
+            node.update();
+            mSplitLeft = node;
+        } else {
+            splitByStart(node.left, start);
+            node.left = mSplitRight;
+            node.update();
+            mSplitRight = node;
+        }
+    }
+
+    /** Splits into the first {@code count} entries and the rest. */
+    private void splitByPosition(Node<T> node, int count) {
+        if (node == null) {
+            mSplitLeft = mSplitRight = null;
+            return;
+        }
+        final int leftSize = node.left != null ? node.left.size : 0;
+        if (count <= leftSize) {
+            splitByPosition(node.left, count);
+            node.left = mSplitRight;
+            node.update();
+            mSplitRight = node;
+        } else {
+            splitByPosition(node.right, count - leftSize - 1);
+            node.right = mSplitLeft;
+            node.update();
+            mSplitLeft = node;
+        }
+    }
+
+    private static <T> Node<T> merge(Node<T> left, Node<T> right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        if (left.priority > right.priority) {
+            left.right = merge(left.right, right);
+            left.update();
+            return left;
+        } else {
+            right.left = merge(left, right.left);
+            right.update();
+            return right;
+        }
+    }
+}
@@ -657,20 +657,6 @@ class AlarmManagerService extends SystemService {
         }
     }
 
-    static class BatchTimeOrder implements Comparator<Batch> {
-        public int compare(Batch b1, Batch b2) {
-            long when1 = b1.start;
-            long when2 = b2.start;
-            if (when1 > when2) {
-                return 1;
-            }
-            if (when1 < when2) {
-                return -1;
-            }
-            return 0;
-        }
-    }
-
     final Comparator<Alarm> mAlarmDispatchComparator = new Comparator<Alarm>() {
         @Override
         public int compare(Alarm lhs, Alarm rhs) {
@@ -736,8 +722,9 @@ class AlarmManagerService extends SystemService {
 
     // minimum recurrence period or alarm futurity for us to be able to fuzz it
     static final long MIN_FUZZABLE_INTERVAL = 10000;
-    static final BatchTimeOrder sBatchOrder = new BatchTimeOrder();
-    final ArrayList<Batch> mAlarmBatches = new ArrayList<>();
+    // ordered by batch start; a batch must be removed and re-added whenever
+    // its window changes
+    final AlarmBatchTree<Batch> mAlarmBatches = new AlarmBatchTree<>();
 
     // set to null if in idle mode; while in this mode, any alarms we don't want
     // to run during this time are placed in mPendingWhileIdleAlarms
@@ -776,25 +763,16 @@ class AlarmManagerService extends SystemService {
     }
 
     // returns true if the batch was added at the head
-    static boolean addBatchLocked(ArrayList<Batch> list, Batch newBatch) {
-        int index = Collections.binarySearch(list, newBatch, sBatchOrder);
-        if (index < 0) {
-            index = 0 - index - 1;
-        }
-        list.add(index, newBatch);
+    static boolean addBatchLocked(AlarmBatchTree<Batch> list, Batch newBatch) {
+        final int index = list.add(newBatch, newBatch.start, newBatch.end,
+                (newBatch.flags&AlarmManager.FLAG_STANDALONE) == 0);
         return (index == 0);
     }
 
-    // Return the index of the matching batch, or -1 if none found.
+    // Return the index of the first non-standalone batch that can hold the
+    // given window, or -1 if none found.
     int attemptCoalesceLocked(long whenElapsed, long maxWhen) {
-        final int N = mAlarmBatches.size();
-        for (int i = 0; i < N; i++) {
-            Batch b = mAlarmBatches.get(i);
-            if ((b.flags&AlarmManager.FLAG_STANDALONE) == 0 && b.canHold(whenElapsed, maxWhen)) {
-                return i;
-            }
-        }
-        return -1;
+        return mAlarmBatches.findFirstOverlapping(whenElapsed, maxWhen);
     }
 
     // The RTC clock has moved arbitrarily, so we need to recalculate all the batching
@@ -805,7 +783,7 @@ class AlarmManagerService extends SystemService {
     }
 
     void rebatchAllAlarmsLocked(boolean doValidate) {
-        ArrayList<Batch> oldSet = (ArrayList<Batch>) mAlarmBatches.clone();
+        ArrayList<Batch> oldSet = mAlarmBatches.toList();
         mAlarmBatches.clear();
         Alarm oldPendingIdleUntil = mPendingIdleUntil;
         final long nowElapsed = SystemClock.elapsedRealtime();
@@ -1271,13 +1249,11 @@ class AlarmManagerService extends SystemService {
             Batch batch = new Batch(a);
             addBatchLocked(mAlarmBatches, batch);
         } else {
-            Batch batch = mAlarmBatches.get(whichBatch);
-            if (batch.add(a)) {
-                // The start time of this batch advanced, so batch ordering may
-                // have just been broken.  Move it to where it now belongs.
-                mAlarmBatches.remove(whichBatch);
-                addBatchLocked(mAlarmBatches, batch);
-            }
+            // Adding the alarm may narrow the batch window, which moves the
+            // batch and changes the bounds indexed for it, so re-insert it.
+            Batch batch = mAlarmBatches.removeAt(whichBatch);
+            batch.add(a);
+            addBatchLocked(mAlarmBatches, batch);
         }
 
         if (a.alarmClock != null) {
@@ -2062,7 +2038,7 @@ class AlarmManagerService extends SystemService {
             }
             didRemove |= b.remove(operation, directReceiver);
             if (b.size() == 0) {
-                mAlarmBatches.remove(i);
+                mAlarmBatches.removeAt(i);
             }
         }
         for (int i = mPendingWhileIdleAlarms.size() - 1; i >= 0; i--) {
@@ -2098,7 +2074,7 @@ class AlarmManagerService extends SystemService {
             Batch b = mAlarmBatches.get(i);
             didRemove |= b.remove(packageName);
             if (b.size() == 0) {
-                mAlarmBatches.remove(i);
+                mAlarmBatches.removeAt(i);
             }
         }
         for (int i = mPendingWhileIdleAlarms.size() - 1; i >= 0; i--) {
@@ -2125,7 +2101,7 @@ class AlarmManagerService extends SystemService {
             Batch b = mAlarmBatches.get(i);
             didRemove |= b.removeForStopped(uid);
             if (b.size() == 0) {
-                mAlarmBatches.remove(i);
+                mAlarmBatches.removeAt(i);
             }
         }
         for (int i = mPendingWhileIdleAlarms.size() - 1; i >= 0; i--) {
@@ -2156,7 +2132,7 @@ class AlarmManagerService extends SystemService {
             Batch b = mAlarmBatches.get(i);
             didRemove |= b.remove(userHandle);
             if (b.size() == 0) {
-                mAlarmBatches.remove(i);
+                mAlarmBatches.removeAt(i);
             }
         }
         for (int i = mPendingWhileIdleAlarms.size() - 1; i >= 0; i--) {
@@ -2304,7 +2280,7 @@ class AlarmManagerService extends SystemService {
 
             // We will (re)schedule some alarms now; don't let that interfere
             // with delivery of this current batch
-            mAlarmBatches.remove(0);
+            mAlarmBatches.removeAt(0);
 
             final int N = batch.size();
             for (int i = 0; i < N; i++) {
@@ -2539,7 +2515,7 @@ class AlarmManagerService extends SystemService {
         }
     }
 
-    void recordWakeupAlarms(ArrayList<Batch> batches, long nowELAPSED, long nowRTC) {
+    void recordWakeupAlarms(AlarmBatchTree<Batch> batches, long nowELAPSED, long nowRTC) {
         final int numBatches = batches.size();
         for (int nextBatch = 0; nextBatch < numBatches; nextBatch++) {
             Batch b = batches.get(nextBatch);
@@ -1090,10 +1090,10 @@ public class ConnectivityService extends IConnectivityManager.Stub
         }
         if (added) {
             log("Returning blocked NetworkInfo to uid=" + uid);
-            mNetworkInfoBlockingLogs.log("BLOCKED " + uid);
+            mNetworkInfoBlockingLogs.log("BLOCKED %d", uid);
         } else if (removed) {
             log("Returning unblocked NetworkInfo to uid=" + uid);
-            mNetworkInfoBlockingLogs.log("UNBLOCKED " + uid);
+            mNetworkInfoBlockingLogs.log("UNBLOCKED %d", uid);
         }
     }
 
@@ -35,25 +35,36 @@ import android.os.SystemClock;
 import android.os.UserHandle;
 import android.provider.Settings;
 import android.text.format.Time;
+import android.util.ArraySet;
+import android.util.LongSparseArray;
 import android.util.Slog;
 
 import libcore.io.IoUtils;
 
 import com.android.internal.os.IDropBoxManagerService;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.zip.CRC32;
 import java.util.zip.GZIPOutputStream;
 
 /**
@@ -69,14 +80,29 @@ public final class DropBoxManagerService extends SystemService {
     private static final int DEFAULT_RESERVE_PERCENT = 10;
     private static final int QUOTA_RESCAN_MILLIS = 5000;
 
+    // Entries whose stored data is no bigger than this are appended to a shared
+    // segment file instead of getting a file of their own.
+    private static final int MAX_SEGMENT_ENTRY_BYTES = 16 * 1024;
+    // A new segment file is started once the current one has grown this big.
+    private static final int MAX_SEGMENT_BYTES = 256 * 1024;
+    // Uncompressed segment entries at least this big are gzipped if that saves space.
+    private static final int MIN_COMPRESS_BYTES = 512;
+    // Upper bound for a segment record, used to reject corrupt lengths.
+    private static final int MAX_RECORD_BYTES = MAX_SEGMENT_ENTRY_BYTES + 1024;
+    // Bytes a record takes in a segment besides its contents: its size and checksum.
+    private static final int RECORD_OVERHEAD_BYTES = 4 + 8;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+
     // mHandler 'what' value.
     private static final int MSG_SEND_BROADCAST = 1;
 
     private static final boolean PROFILE_DUMP = false;
 
-    // TODO: This implementation currently uses one file per entry, which is
-    // inefficient for smallish entries -- consider using a single queue file
-    // per tag (or even globally) instead.
+    // Big entries get one file each, named after their tag and timestamp.  Small
+    // entries and tombstones are appended to segment files instead (see Segment),
+    // so that chatty tags don't cost a file and a directory entry apiece.
 
     // The cached context and derived objects
 
@@ -88,11 +114,21 @@ public final class DropBoxManagerService extends SystemService {
     private FileList mAllFiles = null;
     private HashMap<String, FileList> mFilesByTag = null;
 
+    // Segment files holding enrolled entries, the one new records are appended to,
+    // and the number to give the next one.
+    private final ArrayList<Segment> mSegments = new ArrayList<Segment>();
+    private Segment mCurrentSegment = null;
+    private long mNextSegmentNumber = 0;
+
+    // Entries up to this timestamp were expunged by age or count (see trimExpired()).
+    // It is recorded in the segments, so that their dead records stay dead on replay.
+    private long mExpungedMillis = 0;
+
     // Various bits of disk information
 
     private StatFs mStatFs = null;
     private int mBlockSize = 0;
-    private int mCachedQuotaBlocks = 0;  // Space we can use: computed from free space, etc.
+    private long mCachedQuotaBytes = 0;  // Space we can use: computed from free space, etc.
     private long mCachedQuotaUptimeMillis = 0;
 
     private volatile boolean mBooted = false;
@@ -337,10 +373,9 @@ public final class DropBoxManagerService extends SystemService {
                 return new DropBoxManager.Entry(entry.tag, entry.timestampMillis);
             }
             try {
-                return new DropBoxManager.Entry(
-                        entry.tag, entry.timestampMillis, entry.file, entry.flags);
+                return openEntry(entry);
             } catch (IOException e) {
-                Slog.e(TAG, "Can't read: " + entry.file, e);
+                Slog.e(TAG, "Can't read: " + entry.getPath(), e);
                 // Continue to next file
             }
         }
@@ -404,7 +439,7 @@ public final class DropBoxManagerService extends SystemService {
             numFound++;
             if (doPrint) out.append("========================================\n");
             out.append(date).append(" ").append(entry.tag == null ? "(no tag)" : entry.tag);
-            if (entry.file == null) {
+            if (entry.file == null && entry.segment == null) {
                 out.append(" (no file)\n");
                 continue;
             } else if ((entry.flags & DropBoxManager.IS_EMPTY) != 0) {
@@ -414,20 +449,20 @@ public final class DropBoxManagerService extends SystemService {
                 out.append(" (");
                 if ((entry.flags & DropBoxManager.IS_GZIPPED) != 0) out.append("compressed ");
                 out.append((entry.flags & DropBoxManager.IS_TEXT) != 0 ? "text" : "data");
-                out.append(", ").append(entry.file.length()).append(" bytes)\n");
+                out.append(", ").append(entry.file != null ? entry.file.length() : entry.length);
+                out.append(" bytes)\n");
             }
 
             if (doFile || (doPrint && (entry.flags & DropBoxManager.IS_TEXT) == 0)) {
                 if (!doPrint) out.append("    ");
-                out.append(entry.file.getPath()).append("\n");
+                out.append(entry.getPath()).append("\n");
             }
 
             if ((entry.flags & DropBoxManager.IS_TEXT) != 0 && (doPrint || !doFile)) {
                 DropBoxManager.Entry dbe = null;
                 InputStreamReader isr = null;
                 try {
-                    dbe = new DropBoxManager.Entry(
-                             entry.tag, entry.timestampMillis, entry.file, entry.flags);
+                    dbe = openEntry(entry);
 
                     if (doPrint) {
                         isr = new InputStreamReader(dbe.getInputStream());
@@ -460,7 +495,7 @@ public final class DropBoxManagerService extends SystemService {
                     }
                 } catch (IOException e) {
                     out.append("*** ").append(e.toString()).append("\n");
-                    Slog.e(TAG, "Can't read: " + entry.file, e);
+                    Slog.e(TAG, "Can't read: " + entry.getPath(), e);
                 } finally {
                     if (dbe != null) dbe.close();
                     if (isr != null) {
@@ -490,12 +525,12 @@ public final class DropBoxManagerService extends SystemService {
 
     /** Chronologically sorted list of {@link EntryFile} */
     private static final class FileList implements Comparable<FileList> {
-        public int blocks = 0;
+        public long bytes = 0;
         public final TreeSet<EntryFile> contents = new TreeSet<EntryFile>();
 
         /** Sorts bigger FileList instances before smaller ones. */
         public final int compareTo(FileList o) {
-            if (blocks != o.blocks) return o.blocks - blocks;
+            if (bytes != o.bytes) return o.bytes > bytes ? 1 : -1;
             if (this == o) return 0;
             if (hashCode() < o.hashCode()) return -1;
             if (hashCode() > o.hashCode()) return 1;
@@ -503,13 +538,46 @@ public final class DropBoxManagerService extends SystemService {
         }
     }
 
-    /** Metadata describing an on-disk log file. */
+    /**
+     * An append-only file holding the data of many small entries.  Each record is
+     * [int size][UTF tag][long timestamp][int flags][long replaced timestamp][data][long crc32].
+     * A record supersedes any earlier record with the same timestamp, and the record
+     * with its replaced timestamp (0 for none); that is how tombstones and entries
+     * dragged back from the future are written without touching older segments.
+     * Records of entries that are gone stay in the file until it is compacted (see
+     * compactSegments()), so the file can be bigger than its live records.
+     * A record with timestamp 0 is not an entry: its replaced timestamp is the
+     * {@link #mExpungedMillis} watermark at the time it was written.
+     */
+    private static final class Segment {
+        public final File file;
+        public final long number;
+        public long length;
+        /** Enrolled entries whose data lives in this file. */
+        public final ArraySet<EntryFile> entries = new ArraySet<EntryFile>();
+        /** Bytes taken by the records of those entries. */
+        public long liveBytes = 0;
+
+        public Segment(File file, long number, long length) {
+            this.file = file;
+            this.number = number;
+            this.length = length;
+        }
+    }
+
+    /** Metadata describing an on-disk log file, or a record in a {@link Segment}. */
     private static final class EntryFile implements Comparable<EntryFile> {
         public final String tag;
         public final long timestampMillis;
         public final int flags;
         public final File file;
-        public final int blocks;
+        /** Space charged to the entry: whole blocks for a file, the record for a segment. */
+        public final long bytes;
+        public final Segment segment;
+        public final long offset;
+        public final int length;
+        public final int recordBytes;
+        public final long replacedMillis;
 
         /** Sorts earlier EntryFile instances before later ones. */
         public final int compareTo(EntryFile o) {
@@ -548,23 +616,37 @@ public final class DropBoxManagerService extends SystemService {
             if (!temp.renameTo(this.file)) {
                 throw new IOException("Can't rename " + temp + " to " + this.file);
             }
-            this.blocks = (int) ((this.file.length() + blockSize - 1) / blockSize);
+            this.bytes = (this.file.length() + blockSize - 1) / blockSize * blockSize;
+            this.segment = null;
+            this.offset = 0;
+            this.length = 0;
+            this.recordBytes = 0;
+            this.replacedMillis = 0;
         }
 
         /**
-         * Creates a zero-length tombstone for a file whose contents were lost.
-         * @param dir to store file in
-         * @param tag to use for new log file name
-         * @param timestampMillis of log entry
-         * @throws IOException if the file can't be created.
+         * Describes an entry stored as a record in a segment file.
+         * @param segment holding the record
+         * @param tag of the entry
+         * @param timestampMillis of the entry
+         * @param flags for the entry data
+         * @param replacedMillis timestamp of an entry the record replaces, or 0
+         * @param offset of the entry data within the segment file
+         * @param length of the entry data, 0 for tombstones
+         * @param recordBytes taken by the whole record in the segment file
          */
-        public EntryFile(File dir, String tag, long timestampMillis) throws IOException {
+        public EntryFile(Segment segment, String tag, long timestampMillis, int flags,
+                         long replacedMillis, long offset, int length, int recordBytes) {
             this.tag = tag;
             this.timestampMillis = timestampMillis;
-            this.flags = DropBoxManager.IS_EMPTY;
-            this.file = new File(dir, Uri.encode(tag) + "@" + timestampMillis + ".lost");
-            this.blocks = 0;
-            new FileOutputStream(this.file).close();
+            this.flags = flags;
+            this.file = null;
+            this.bytes = recordBytes;
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.recordBytes = recordBytes;
+            this.replacedMillis = replacedMillis;
         }
 
         /**
@@ -574,7 +656,12 @@ public final class DropBoxManagerService extends SystemService {
          */
         public EntryFile(File file, int blockSize) {
             this.file = file;
-            this.blocks = (int) ((this.file.length() + blockSize - 1) / blockSize);
+            this.bytes = (this.file.length() + blockSize - 1) / blockSize * blockSize;
+            this.segment = null;
+            this.offset = 0;
+            this.length = 0;
+            this.recordBytes = 0;
+            this.replacedMillis = 0;
 
             String name = file.getName();
             int at = name.lastIndexOf('@');
@@ -620,7 +707,18 @@ public final class DropBoxManagerService extends SystemService {
             this.timestampMillis = millis;
             this.flags = DropBoxManager.IS_EMPTY;
             this.file = null;
-            this.blocks = 0;
+            this.bytes = 0;
+            this.segment = null;
+            this.offset = 0;
+            this.length = 0;
+            this.recordBytes = 0;
+            this.replacedMillis = 0;
+        }
+
+        /** Describes where the entry data is stored, for logs and dumps. */
+        public String getPath() {
+            if (segment != null) return segment.file.getPath() + " @" + offset;
+            return file != null ? file.getPath() : null;
         }
     }
 
@@ -646,15 +744,31 @@ public final class DropBoxManagerService extends SystemService {
 
             mAllFiles = new FileList();
             mFilesByTag = new HashMap<String, FileList>();
+            mSegments.clear();
+            mCurrentSegment = null;
+            mNextSegmentNumber = 0;
+            mExpungedMillis = 0;
+            LongSparseArray<File> segmentFiles = new LongSparseArray<File>();
 
             // Scan pre-existing files.
             for (File file : files) {
-                if (file.getName().endsWith(".tmp")) {
+                final String name = file.getName();
+                if (name.endsWith(".tmp")) {
                     Slog.i(TAG, "Cleaning temp file: " + file);
                     file.delete();
                     continue;
                 }
 
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        segmentFiles.put(Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                                name.length() - SEGMENT_SUFFIX.length())), file);
+                    } catch (NumberFormatException e) {
+                        Slog.w(TAG, "Unrecognized file: " + file);
+                    }
+                    continue;
+                }
+
                 EntryFile entry = new EntryFile(file, mBlockSize);
                 if (entry.tag == null) {
                     Slog.w(TAG, "Unrecognized file: " + file);
@@ -667,29 +781,292 @@ public final class DropBoxManagerService extends SystemService {
 
                 enrollEntry(entry);
             }
+
+            // Replay segments oldest first, so that later records supersede earlier ones.
+            LongSparseArray<EntryFile> segmentEntries = new LongSparseArray<EntryFile>();
+            Segment[] segments = new Segment[segmentFiles.size()];
+            for (int i = 0; i < segments.length; i++) {
+                segments[i] = new Segment(segmentFiles.valueAt(i), segmentFiles.keyAt(i), 0);
+                readSegment(segments[i], segmentEntries);
+            }
+            for (int i = 0; i < segmentEntries.size(); i++) {
+                EntryFile entry = segmentEntries.valueAt(i);
+                if (entry.timestampMillis > mExpungedMillis) enrollEntry(entry);
+            }
+            boolean deletedSegments = false;
+            for (Segment segment : segments) {
+                if (segment.entries.isEmpty()) {
+                    segment.file.delete();
+                    deletedSegments = true;
+                } else {
+                    mSegments.add(segment);
+                    mCurrentSegment = segment;
+                }
+                mNextSegmentNumber = segment.number + 1;
+            }
+            if (deletedSegments) appendExpungeRecord();
+
+            // The age and count limits may have been lowered since the last boot.
+            trimExpired();
+        }
+    }
+
+    /**
+     * Reads the records of a segment file into a map from timestamp to entry, cutting
+     * off a torn tail left by a crash mid-append.
+     */
+    private void readSegment(Segment segment, LongSparseArray<EntryFile> entries) {
+        long validLength = 0;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file)));
+            while (true) {
+                final int size;
+                try {
+                    size = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (size <= 0 || size > MAX_RECORD_BYTES) {
+                    throw new IOException("Bad record size " + size);
+                }
+                final byte[] record = new byte[size];
+                in.readFully(record);
+                if (in.readLong() != checksum(record)) {
+                    throw new IOException("Bad record checksum");
+                }
+
+                final DataInputStream recordIn =
+                        new DataInputStream(new ByteArrayInputStream(record));
+                final String tag = recordIn.readUTF();
+                final long timestampMillis = recordIn.readLong();
+                final int flags = recordIn.readInt();
+                final long replacedMillis = recordIn.readLong();
+                final int length = recordIn.available();
+                validLength += RECORD_OVERHEAD_BYTES + size;
+                if (timestampMillis == 0) {
+                    mExpungedMillis = Math.max(mExpungedMillis, replacedMillis);
+                    continue;
+                }
+                if (replacedMillis != 0) entries.remove(replacedMillis);
+                entries.put(timestampMillis, new EntryFile(segment, tag, timestampMillis, flags,
+                        replacedMillis, validLength - 8 - length, length,
+                        RECORD_OVERHEAD_BYTES + size));
+            }
+        } catch (IOException e) {
+            Slog.w(TAG, "Truncating " + segment.file + " to " + validLength + " bytes", e);
+            IoUtils.closeQuietly(in);
+            in = null;
+            RandomAccessFile raf = null;
+            try {
+                raf = new RandomAccessFile(segment.file, "rw");
+                raf.setLength(validLength);
+            } catch (IOException te) {
+                Slog.e(TAG, "Can't truncate: " + segment.file, te);
+            } finally {
+                IoUtils.closeQuietly(raf);
+            }
+        } finally {
+            IoUtils.closeQuietly(in);
         }
+        segment.length = validLength;
+    }
+
+    /**
+     * Appends a record to the current segment file, starting a new one if needed.
+     * @param tag of the entry
+     * @param timestampMillis of the entry
+     * @param flags for the entry data
+     * @param replacedMillis timestamp of an entry this one replaces, or 0
+     * @param data of the entry, or null for a tombstone
+     * @return the new entry, not yet enrolled
+     * @throws IOException if the record can't be written
+     */
+    private EntryFile appendToSegment(String tag, long timestampMillis, int flags,
+            long replacedMillis, byte[] data) throws IOException {
+        if (mCurrentSegment == null || mCurrentSegment.length >= MAX_SEGMENT_BYTES) {
+            long number = mNextSegmentNumber++;
+            mCurrentSegment = new Segment(new File(mDropBoxDir,
+                    SEGMENT_PREFIX + number + SEGMENT_SUFFIX), number, 0);
+            mSegments.add(mCurrentSegment);
+        }
+        final Segment segment = mCurrentSegment;
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream recordOut = new DataOutputStream(bytes);
+        recordOut.writeUTF(tag);
+        recordOut.writeLong(timestampMillis);
+        recordOut.writeInt(flags);
+        recordOut.writeLong(replacedMillis);
+        final int headerSize = recordOut.size();
+        if (data != null) recordOut.write(data);
+        recordOut.flush();
+        final byte[] record = bytes.toByteArray();
+
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(segment.file, true);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(record.length);
+            out.write(record);
+            out.writeLong(checksum(record));
+            out.flush();
+            FileUtils.sync(fos);
+        } catch (IOException e) {
+            // Whatever made it to disk is cut off when the segment is next read;
+            // don't append anything after it.
+            mCurrentSegment = null;
+            throw e;
+        } finally {
+            IoUtils.closeQuietly(fos);
+        }
+
+        final long offset = segment.length + 4 + headerSize;
+        segment.length += RECORD_OVERHEAD_BYTES + record.length;
+        return new EntryFile(segment, tag, timestampMillis, flags, replacedMillis, offset,
+                record.length - headerSize, RECORD_OVERHEAD_BYTES + record.length);
+    }
+
+    /**
+     * Appends a record of {@link #mExpungedMillis} to the current segment.  This is
+     * done whenever it moves on, and whenever a segment that may hold the latest such
+     * record is deleted while segments with records of expunged entries remain.
+     */
+    private void appendExpungeRecord() {
+        if (mExpungedMillis == 0 || mSegments.isEmpty()) return;
+        try {
+            appendToSegment("", 0, DropBoxManager.IS_EMPTY, mExpungedMillis, null);
+        } catch (IOException e) {
+            Slog.e(TAG, "Can't write expunge record", e);
+        }
+    }
+
+    /** Opens the data of an entry that isn't a tombstone. */
+    private DropBoxManager.Entry openEntry(EntryFile entry) throws IOException {
+        if (entry.segment == null) {
+            return new DropBoxManager.Entry(
+                    entry.tag, entry.timestampMillis, entry.file, entry.flags);
+        }
+        return new DropBoxManager.Entry(
+                entry.tag, entry.timestampMillis, readEntryData(entry), entry.flags);
+    }
+
+    /** Reads the data of an entry stored in a segment, seeking straight to its record. */
+    private static byte[] readEntryData(EntryFile entry) throws IOException {
+        byte[] data = new byte[entry.length];
+        RandomAccessFile raf = new RandomAccessFile(entry.segment.file, "r");
+        try {
+            raf.seek(entry.offset);
+            raf.readFully(data);
+        } finally {
+            IoUtils.closeQuietly(raf);
+        }
+        return data;
+    }
+
+    /**
+     * Deletes the data of an entry that has been removed from the in-memory lists.
+     * Segment files are deleted once none of their entries are left.
+     */
+    private void deleteEntryData(EntryFile entry) {
+        if (entry.file != null) entry.file.delete();
+        final Segment segment = entry.segment;
+        if (segment != null && segment.entries.remove(entry)) {
+            segment.liveBytes -= entry.recordBytes;
+            if (segment.entries.isEmpty()) deleteSegment(segment);
+        }
+    }
+
+    /** Deletes a segment file none of whose entries are left. */
+    private void deleteSegment(Segment segment) {
+        segment.file.delete();
+        mSegments.remove(segment);
+        if (segment == mCurrentSegment) mCurrentSegment = null;
+        appendExpungeRecord();
+    }
+
+    /** Removes an entry from the in-memory lists, without touching its data. */
+    private void unenrollEntry(EntryFile entry) {
+        FileList tag = mFilesByTag.get(entry.tag);
+        if (tag != null && tag.contents.remove(entry)) tag.bytes -= entry.bytes;
+        if (mAllFiles.contents.remove(entry)) mAllFiles.bytes -= entry.bytes;
+    }
+
+    /**
+     * Copies the live records out of full segments that are mostly taken up by records of
+     * entries that are gone, and deletes those segments.  Otherwise a single long-lived
+     * entry would keep a whole segment on disk.  Moved records keep the timestamp they
+     * replace, so that the replaced record stays dead when older segments are replayed.
+     */
+    private void compactSegments() {
+        for (int i = mSegments.size() - 1; i >= 0; i--) {
+            if (i >= mSegments.size()) continue;
+            Segment segment = mSegments.get(i);
+            if (segment == mCurrentSegment || segment.liveBytes * 2 > segment.length) continue;
+
+            EntryFile[] live = segment.entries.toArray(new EntryFile[segment.entries.size()]);
+            for (EntryFile entry : live) {
+                try {
+                    byte[] data = (entry.flags & DropBoxManager.IS_EMPTY) != 0
+                            ? null : readEntryData(entry);
+                    EntryFile moved = appendToSegment(entry.tag, entry.timestampMillis,
+                            entry.flags, entry.replacedMillis, data);
+                    unenrollEntry(entry);
+                    deleteEntryData(entry);
+                    enrollEntry(moved);
+                } catch (IOException e) {
+                    Slog.e(TAG, "Can't compact " + segment.file, e);
+                    return;
+                }
+            }
+            // A segment holding nothing but expunge records has no entries to delete it.
+            if (live.length == 0) deleteSegment(segment);
+        }
+    }
+
+    /** Returns the bytes taken by records of entries that are gone, until compacted. */
+    private long getDeadSegmentBytes() {
+        long deadBytes = 0;
+        for (int i = 0; i < mSegments.size(); i++) {
+            Segment segment = mSegments.get(i);
+            deadBytes += segment.length - segment.liveBytes;
+        }
+        return deadBytes;
+    }
+
+    private static long checksum(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return crc.getValue();
     }
 
     /** Adds a disk log file to in-memory tracking for accounting and enumeration. */
     private synchronized void enrollEntry(EntryFile entry) {
         mAllFiles.contents.add(entry);
-        mAllFiles.blocks += entry.blocks;
+        mAllFiles.bytes += entry.bytes;
+        if (entry.segment != null && entry.segment.entries.add(entry)) {
+            entry.segment.liveBytes += entry.recordBytes;
+        }
 
         // mFilesByTag is used for trimming, so don't list empty files.
         // (Zero-length/lost files are trimmed by date from mAllFiles.)
 
-        if (entry.tag != null && entry.file != null && entry.blocks > 0) {
+        if (entry.tag != null && entry.bytes > 0
+                && (entry.flags & DropBoxManager.IS_EMPTY) == 0) {
             FileList tagFiles = mFilesByTag.get(entry.tag);
             if (tagFiles == null) {
                 tagFiles = new FileList();
                 mFilesByTag.put(entry.tag, tagFiles);
             }
             tagFiles.contents.add(entry);
-            tagFiles.blocks += entry.blocks;
+            tagFiles.bytes += entry.bytes;
         }
     }
 
-    /** Moves a temporary file to a final log filename and enrolls it. */
+    /**
+     * Moves a temporary file to a final log filename, or appends its contents to a
+     * segment if small enough, and enrolls it.
+     */
     private synchronized long createEntry(File temp, String tag, int flags) throws IOException {
         long t = System.currentTimeMillis();
 
@@ -710,51 +1087,86 @@ public final class DropBoxManagerService extends SystemService {
 
         if (future != null) {
             for (EntryFile late : future) {
-                mAllFiles.blocks -= late.blocks;
+                mAllFiles.bytes -= late.bytes;
                 FileList tagFiles = mFilesByTag.get(late.tag);
                 if (tagFiles != null && tagFiles.contents.remove(late)) {
-                    tagFiles.blocks -= late.blocks;
+                    tagFiles.bytes -= late.bytes;
                 }
-                if ((late.flags & DropBoxManager.IS_EMPTY) == 0) {
+                if ((late.flags & DropBoxManager.IS_EMPTY) != 0) {
+                    enrollEntry(appendToSegment(late.tag, t++, DropBoxManager.IS_EMPTY,
+                            late.timestampMillis, null));
+                    deleteEntryData(late);
+                } else if (late.segment != null) {
+                    byte[] data = readEntryData(late);
+                    enrollEntry(appendToSegment(late.tag, t++, late.flags,
+                            late.timestampMillis, data));
+                    deleteEntryData(late);
+                } else {
                     enrollEntry(new EntryFile(
                             late.file, mDropBoxDir, late.tag, t++, late.flags, mBlockSize));
-                } else {
-                    enrollEntry(new EntryFile(mDropBoxDir, late.tag, t++));
                 }
             }
         }
 
         if (temp == null) {
-            enrollEntry(new EntryFile(mDropBoxDir, tag, t));
+            enrollEntry(appendToSegment(tag, t, DropBoxManager.IS_EMPTY, 0, null));
+        } else if (temp.length() <= MAX_SEGMENT_ENTRY_BYTES) {
+            byte[] data = IoUtils.readFileAsByteArray(temp.getPath());
+            if ((flags & DropBoxManager.IS_GZIPPED) == 0 && data.length >= MIN_COMPRESS_BYTES) {
+                byte[] compressed = gzip(data);
+                if (compressed.length < data.length) {
+                    data = compressed;
+                    flags |= DropBoxManager.IS_GZIPPED;
+                }
+            }
+            enrollEntry(appendToSegment(tag, t, flags, 0, data));
+            temp.delete();
         } else {
             enrollEntry(new EntryFile(temp, mDropBoxDir, tag, t, flags, mBlockSize));
         }
         return t;
     }
 
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length);
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        out.write(data);
+        out.close();
+        return bytes.toByteArray();
+    }
+
     /**
-     * Trims the files on disk to make sure they aren't using too much space.
-     * @return the overall quota for storage (in bytes)
+     * Expunges aged items (including tombstones marking deleted data), oldest first,
+     * and records how far that got in the segments.
      */
-    private synchronized long trimToFit() {
-        // Expunge aged items (including tombstones marking deleted data).
-
+    private void trimExpired() {
         int ageSeconds = Settings.Global.getInt(mContentResolver,
                 Settings.Global.DROPBOX_AGE_SECONDS, DEFAULT_AGE_SECONDS);
         int maxFiles = Settings.Global.getInt(mContentResolver,
                 Settings.Global.DROPBOX_MAX_FILES, DEFAULT_MAX_FILES);
         long cutoffMillis = System.currentTimeMillis() - ageSeconds * 1000;
+        boolean expungedSegmentEntries = false;
         while (!mAllFiles.contents.isEmpty()) {
             EntryFile entry = mAllFiles.contents.first();
             if (entry.timestampMillis > cutoffMillis && mAllFiles.contents.size() < maxFiles) break;
 
-            FileList tag = mFilesByTag.get(entry.tag);
-            if (tag != null && tag.contents.remove(entry)) tag.blocks -= entry.blocks;
-            if (mAllFiles.contents.remove(entry)) mAllFiles.blocks -= entry.blocks;
-            if (entry.file != null) entry.file.delete();
+            unenrollEntry(entry);
+            mExpungedMillis = Math.max(mExpungedMillis, entry.timestampMillis);
+            expungedSegmentEntries |= entry.segment != null;
+            deleteEntryData(entry);
         }
+        if (expungedSegmentEntries) appendExpungeRecord();
+    }
 
-        // Compute overall quota (a fraction of available free space) in blocks.
+    /**
+     * Trims the files on disk to make sure they aren't using too much space.
+     * @return the overall quota for storage (in bytes)
+     */
+    private synchronized long trimToFit() {
+        trimExpired();
+        compactSegments();
+
+        // Compute overall quota (a fraction of available free space) in bytes.
         // The quota changes dynamically based on the amount of free space;
         // that way when lots of data is available we can use it, but we'll get
         // out of the way if storage starts getting tight.
@@ -771,8 +1183,9 @@ public final class DropBoxManagerService extends SystemService {
             mStatFs.restat(mDropBoxDir.getPath());
             int available = mStatFs.getAvailableBlocks();
             int nonreserved = available - mStatFs.getBlockCount() * reservePercent / 100;
-            int maximum = quotaKb * 1024 / mBlockSize;
-            mCachedQuotaBlocks = Math.min(maximum, Math.max(0, nonreserved * quotaPercent / 100));
+            long maximum = quotaKb * 1024L;
+            mCachedQuotaBytes = Math.min(maximum,
+                    (long) Math.max(0, nonreserved * quotaPercent / 100) * mBlockSize);
             mCachedQuotaUptimeMillis = uptimeMillis;
         }
 
@@ -788,39 +1201,45 @@ public final class DropBoxManagerService extends SystemService {
         // well-behaved data streams (event statistics, profile data, etc).
         //
         // Deleted files are replaced with zero-length tombstones to mark what
-        // was lost.  Tombstones are expunged by age (see above).
+        // was lost.  Tombstones are expunged by age (see trimExpired()).
+        //
+        // Records of gone entries still take space until their segment is
+        // compacted, so that space is taken off the quota for live entries.
 
-        if (mAllFiles.blocks > mCachedQuotaBlocks) {
+        long quotaBytes = Math.max(0, mCachedQuotaBytes - getDeadSegmentBytes());
+        if (mAllFiles.bytes > quotaBytes) {
             // Find a fair share amount of space to limit each tag
-            int unsqueezed = mAllFiles.blocks, squeezed = 0;
+            long unsqueezed = mAllFiles.bytes;
+            int squeezed = 0;
             TreeSet<FileList> tags = new TreeSet<FileList>(mFilesByTag.values());
             for (FileList tag : tags) {
-                if (squeezed > 0 && tag.blocks <= (mCachedQuotaBlocks - unsqueezed) / squeezed) {
+                if (squeezed > 0 && tag.bytes <= (quotaBytes - unsqueezed) / squeezed) {
                     break;
                 }
-                unsqueezed -= tag.blocks;
+                unsqueezed -= tag.bytes;
                 squeezed++;
             }
-            int tagQuota = (mCachedQuotaBlocks - unsqueezed) / squeezed;
+            long tagQuota = (quotaBytes - unsqueezed) / squeezed;
 
             // Remove old items from each tag until it meets the per-tag quota.
             for (FileList tag : tags) {
-                if (mAllFiles.blocks < mCachedQuotaBlocks) break;
-                while (tag.blocks > tagQuota && !tag.contents.isEmpty()) {
+                if (mAllFiles.bytes < quotaBytes) break;
+                while (tag.bytes > tagQuota && !tag.contents.isEmpty()) {
                     EntryFile entry = tag.contents.first();
-                    if (tag.contents.remove(entry)) tag.blocks -= entry.blocks;
-                    if (mAllFiles.contents.remove(entry)) mAllFiles.blocks -= entry.blocks;
+                    unenrollEntry(entry);
 
                     try {
-                        if (entry.file != null) entry.file.delete();
-                        enrollEntry(new EntryFile(mDropBoxDir, entry.tag, entry.timestampMillis));
+                        deleteEntryData(entry);
+                        enrollEntry(appendToSegment(entry.tag, entry.timestampMillis,
+                                DropBoxManager.IS_EMPTY, entry.replacedMillis, null));
                     } catch (IOException e) {
-                        Slog.e(TAG, "Can't write tombstone file", e);
+                        Slog.e(TAG, "Can't write tombstone record", e);
                     }
                 }
             }
+            compactSegments();
         }
 
-        return mCachedQuotaBlocks * mBlockSize;
+        return mCachedQuotaBytes;
     }
 }
@@ -30,6 +30,7 @@ import android.util.FastImmutableArraySet;
 import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Log;
+import android.util.LruCache;
 import android.util.MutableInt;
 import android.util.PrintWriterPrinter;
 import android.util.Slog;
@@ -57,6 +58,7 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         }
 
         mFilters.add(f);
+        invalidateResolutionCache();
         int numS = register_intent_filter(f, f.schemesIterator(),
                 mSchemeToFilter, "      Scheme: ");
         int numT = register_mime_types(f, "      Type: ");
@@ -200,6 +202,7 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
             Slog.v(TAG, "    Cleaning Lookup Maps:");
         }
 
+        invalidateResolutionCache();
         int numS = unregister_intent_filter(f, f.schemesIterator(),
                 mSchemeToFilter, "      Scheme: ");
         int numT = unregister_mime_types(f, "      Type: ");
@@ -308,9 +311,30 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
                 mTypedActionToFilter, packageName, printFilter, collapseDuplicates)) {
             curPrefix = sepPrefix;
         }
+        if (packageName == null
+                && (mResolutionCache.hitCount() + mResolutionCache.missCount()) > 0) {
+            out.print(curPrefix); out.println("Resolution Cache:");
+            dumpResolutionCacheStats(out, innerPrefix);
+            curPrefix = sepPrefix;
+        }
         return curPrefix == sepPrefix;
     }
 
+    void dumpResolutionCacheStats(PrintWriter out, String prefix) {
+        final int hits = mResolutionCache.hitCount();
+        final int misses = mResolutionCache.missCount();
+        out.print(prefix); out.print("size="); out.print(mResolutionCache.size());
+                out.print("/"); out.print(mResolutionCache.maxSize());
+                out.print(" generation="); out.println(mGeneration);
+        out.print(prefix); out.print("hits="); out.print(hits);
+                out.print(" misses="); out.print(misses);
+                out.print(" hitRate=");
+                out.print(hits + misses > 0 ? (hits * 100) / (hits + misses) : 0);
+                out.println("%");
+        out.print(prefix); out.print("filterMatches="); out.print(mMatchCount);
+                out.print(" evictions="); out.println(mResolutionCache.evictionCount());
+    }
+
     private class IteratorWrapper implements Iterator<F> {
         private final Iterator<F> mI;
         private F mCur;
@@ -362,7 +386,7 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         int N = listCut.size();
         for (int i = 0; i < N; ++i) {
             buildResolveList(intent, categories, debug, defaultOnly,
-                    resolvedType, scheme, listCut.get(i), resultList, userId);
+                    resolvedType, scheme, listCut.get(i), resultList, userId, null);
         }
         filterResults(resultList);
         sortResults(resultList);
@@ -441,22 +465,39 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
             if (debug) Slog.v(TAG, "Action list: " + Arrays.toString(firstTypeCut));
         }
 
-        FastImmutableArraySet<String> categories = getFastIntentCategories(intent);
-        if (firstTypeCut != null) {
-            buildResolveList(intent, categories, debug, defaultOnly,
-                    resolvedType, scheme, firstTypeCut, finalList, userId);
-        }
-        if (secondTypeCut != null) {
-            buildResolveList(intent, categories, debug, defaultOnly,
-                    resolvedType, scheme, secondTypeCut, finalList, userId);
-        }
-        if (thirdTypeCut != null) {
-            buildResolveList(intent, categories, debug, defaultOnly,
-                    resolvedType, scheme, thirdTypeCut, finalList, userId);
-        }
-        if (schemeCut != null) {
-            buildResolveList(intent, categories, debug, defaultOnly,
-                    resolvedType, scheme, schemeCut, finalList, userId);
+        // Which filters match only depends on the intent's action, type, categories
+        // and data, so for intents without data it can be remembered until the
+        // filters change; everything that depends on the caller is still
+        // evaluated for each query.
+        final ResolutionKey cacheKey = (!debug && intent.getData() == null)
+                ? new ResolutionKey(intent.getAction(), resolvedType, intent.getCategories())
+                : null;
+        final CachedMatches<F> cached = cacheKey != null ? mResolutionCache.get(cacheKey) : null;
+        if (cached != null) {
+            buildResolveListFromMatches(intent, defaultOnly, cached, finalList, userId);
+        } else {
+            final int generation = mGeneration;
+            final MatchRecorder<F> recorder = cacheKey != null ? new MatchRecorder<F>() : null;
+            FastImmutableArraySet<String> categories = getFastIntentCategories(intent);
+            if (firstTypeCut != null) {
+                buildResolveList(intent, categories, debug, defaultOnly,
+                        resolvedType, scheme, firstTypeCut, finalList, userId, recorder);
+            }
+            if (secondTypeCut != null) {
+                buildResolveList(intent, categories, debug, defaultOnly,
+                        resolvedType, scheme, secondTypeCut, finalList, userId, recorder);
+            }
+            if (thirdTypeCut != null) {
+                buildResolveList(intent, categories, debug, defaultOnly,
+                        resolvedType, scheme, thirdTypeCut, finalList, userId, recorder);
+            }
+            if (schemeCut != null) {
+                buildResolveList(intent, categories, debug, defaultOnly,
+                        resolvedType, scheme, schemeCut, finalList, userId, recorder);
+            }
+            if (recorder != null && generation == mGeneration) {
+                mResolutionCache.put(cacheKey, recorder.toCachedMatches(this));
+            }
         }
         filterResults(finalList);
         sortResults(finalList);
@@ -693,9 +734,14 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         return new FastImmutableArraySet<String>(categories.toArray(new String[categories.size()]));
     }
 
+    /**
+     * @param recorder if not null, receives every filter of {@code src} that
+     *        matches the intent, whether or not it makes it into the results.
+     */
     private void buildResolveList(Intent intent, FastImmutableArraySet<String> categories,
             boolean debug, boolean defaultOnly,
-            String resolvedType, String scheme, F[] src, List<R> dest, int userId) {
+            String resolvedType, String scheme, F[] src, List<R> dest, int userId,
+            MatchRecorder<F> recorder) {
         final String action = intent.getAction();
         final Uri data = intent.getData();
         final String packageName = intent.getPackage();
@@ -717,9 +763,19 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         int i;
         F filter;
         for (i=0; i<N && (filter=src[i]) != null; i++) {
-            int match;
+            int match = IntentFilter.NO_MATCH_ACTION;
             if (debug) Slog.v(TAG, "Matching against filter " + filter);
 
+            if (recorder != null) {
+                // The match is cached for later callers, which may not share
+                // this caller's package, stopped state or results so far.
+                mMatchCount++;
+                match = filter.match(action, resolvedType, scheme, data, categories, TAG);
+                if (match >= 0) {
+                    recorder.add(filter, match);
+                }
+            }
+
             if (excludingStopped && isFilterStopped(filter, userId)) {
                 if (debug) {
                     Slog.v(TAG, "  Filter's target is stopped; skipping");
@@ -754,7 +810,10 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
                 continue;
             }
 
-            match = filter.match(action, resolvedType, scheme, data, categories, TAG);
+            if (recorder == null) {
+                mMatchCount++;
+                match = filter.match(action, resolvedType, scheme, data, categories, TAG);
+            }
             if (match >= 0) {
                 if (debug) Slog.v(TAG, "  Filter matched!  match=0x" +
                         Integer.toHexString(match) + " hasDefault="
@@ -796,6 +855,134 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         }
     }
 
+    /**
+     * Same as {@link #buildResolveList} for filters that are already known to
+     * match, in the order in which they were originally matched.
+     */
+    private void buildResolveListFromMatches(Intent intent, boolean defaultOnly,
+            CachedMatches<F> cached, List<R> dest, int userId) {
+        final String packageName = intent.getPackage();
+        final boolean excludingStopped = intent.isExcludingStopped();
+
+        final F[] filters = cached.filters;
+        final int[] matches = cached.matches;
+        for (int i = 0; i < filters.length; i++) {
+            final F filter = filters[i];
+            if (excludingStopped && isFilterStopped(filter, userId)) {
+                continue;
+            }
+            if (packageName != null && !isPackageForFilter(packageName, filter)) {
+                continue;
+            }
+            if (!allowFilterResult(filter, dest)) {
+                continue;
+            }
+            if (!defaultOnly || filter.hasCategory(Intent.CATEGORY_DEFAULT)) {
+                final R oneResult = newResult(filter, matches[i], userId);
+                if (oneResult != null) {
+                    dest.add(oneResult);
+                }
+            }
+        }
+    }
+
+    private void invalidateResolutionCache() {
+        mGeneration++;
+        mResolutionCache.evictAll();
+    }
+
+    /**
+     * Identifies the inputs of {@link IntentFilter#match} for an intent
+     * without data.
+     */
+    private static final class ResolutionKey {
+        final String action;
+        final String resolvedType;
+        final String[] categories;
+        final int hashCode;
+
+        ResolutionKey(String action, String resolvedType, Set<String> categories) {
+            this.action = action;
+            this.resolvedType = resolvedType;
+            if (categories == null || categories.isEmpty()) {
+                this.categories = null;
+            } else {
+                this.categories = categories.toArray(new String[categories.size()]);
+                Arrays.sort(this.categories);
+            }
+            int result = action != null ? action.hashCode() : 0;
+            result = 31 * result + (resolvedType != null ? resolvedType.hashCode() : 0);
+            result = 31 * result + Arrays.hashCode(this.categories);
+            hashCode = result;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof ResolutionKey)) {
+                return false;
+            }
+            final ResolutionKey other = (ResolutionKey) o;
+            return hashCode == other.hashCode
+                    && (action != null ? action.equals(other.action) : other.action == null)
+                    && (resolvedType != null ? resolvedType.equals(other.resolvedType)
+                            : other.resolvedType == null)
+                    && Arrays.equals(categories, other.categories);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    /** The filters that matched a {@link ResolutionKey}, with their match codes. */
+    private static final class CachedMatches<F> {
+        final F[] filters;
+        final int[] matches;
+
+        CachedMatches(F[] filters, int[] matches) {
+            this.filters = filters;
+            this.matches = matches;
+        }
+    }
+
+    private static final class MatchRecorder<F extends IntentFilter> {
+        private final ArrayList<F> mFilters = new ArrayList<>();
+        private int[] mMatches = new int[4];
+
+        void add(F filter, int match) {
+            if (mFilters.size() == mMatches.length) {
+                mMatches = Arrays.copyOf(mMatches, mMatches.length * 2);
+            }
+            mMatches[mFilters.size()] = match;
+            mFilters.add(filter);
+        }
+
+        CachedMatches<F> toCachedMatches(IntentResolver<F, ?> resolver) {
+            final int size = mFilters.size();
+            return new CachedMatches<F>(mFilters.toArray(resolver.newArray(size)),
+                    Arrays.copyOf(mMatches, size));
+        }
+    }
+
+    private static final int RESOLUTION_CACHE_SIZE = 256;
+
+    /**
+     * Recently resolved intents without data, invalidated whenever a filter
+     * is added or removed.
+     */
+    private final LruCache<ResolutionKey, CachedMatches<F>> mResolutionCache =
+            new LruCache<ResolutionKey, CachedMatches<F>>(RESOLUTION_CACHE_SIZE);
+
+    /** Bumped whenever the set of filters changes. */
+    private int mGeneration;
+
+    /** Number of {@link IntentFilter#match} calls made while resolving. */
+    private long mMatchCount;
+
     // Sorts a List of IntentFilter objects into descending priority order.
     @SuppressWarnings("rawtypes")
     private static final Comparator mResolvePrioritySorter = new Comparator() {
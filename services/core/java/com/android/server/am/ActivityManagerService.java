@@ -21,6 +21,7 @@ import com.google.android.collect.Lists;
 import com.google.android.collect.Maps;
 import com.android.internal.R;
 import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.app.AssistUtils;
 import com.android.internal.app.DumpHeapActivity;
 import com.android.internal.app.IAppOpsCallback;
@@ -586,9 +587,18 @@ public final class ActivityManagerService extends ActivityManagerNative
 
     BroadcastQueue mFgBroadcastQueue;
     BroadcastQueue mBgBroadcastQueue;
+    // Additional background queues, only created when broadcast lanes are
+    // enabled; see broadcastLaneForReceiversLocked().
+    final BroadcastQueue[] mBgBroadcastLanes;
     // Convenient for easy iteration over the queues. Foreground is first
     // so that dispatch of foreground broadcasts gets precedence.
-    final BroadcastQueue[] mBroadcastQueues = new BroadcastQueue[2];
+    final BroadcastQueue[] mBroadcastQueues;
+
+    /**
+     * Number of background broadcast lanes; 0 disables them.
+     */
+    static final String BROADCAST_LANES_PROPERTY = "persist.sys.broadcast_lanes";
+    static final int MAX_BROADCAST_LANES = 4;
 
     BroadcastStats mLastBroadcastStats;
     BroadcastStats mCurBroadcastStats;
@@ -601,6 +611,65 @@ public final class ActivityManagerService extends ActivityManagerNative
         return (isFg) ? mFgBroadcastQueue : mBgBroadcastQueue;
     }
 
+    /**
+     * Picks the queue for a serialized background broadcast that was not sent
+     * as ordered, so none of its receivers can see or abort each other's
+     * results. If all of its receivers live in one package, it goes to the
+     * lane of that package: a slow receiver then only holds up broadcasts to
+     * packages sharing its lane. Everything else stays on the given queue.
+     * <p>
+     * A lane broadcast may be delivered before a broadcast to the same package
+     * that is enqueued on the given queue, in either order. So a broadcast only
+     * goes to a lane while the given queue has nothing pending for its package,
+     * and actions whose order apps rely on never do.
+     */
+    BroadcastQueue broadcastLaneForReceiversLocked(BroadcastQueue queue, Intent intent,
+            List receivers) {
+        if (queue != mBgBroadcastQueue || mBgBroadcastLanes.length == 0
+                || isOrderingSensitiveAction(intent.getAction())) {
+            return queue;
+        }
+        String packageName = null;
+        for (int i = receivers.size() - 1; i >= 0; i--) {
+            final Object receiver = receivers.get(i);
+            if (!(receiver instanceof ResolveInfo)) {
+                return queue;
+            }
+            final String receiverPackage = ((ResolveInfo) receiver).activityInfo.packageName;
+            if (packageName == null) {
+                packageName = receiverPackage;
+            } else if (!packageName.equals(receiverPackage)) {
+                return queue;
+            }
+        }
+        if (packageName == null || queue.hasOrderedReceiverInPackageLocked(packageName)) {
+            return queue;
+        }
+        return mBgBroadcastLanes[(packageName.hashCode() & Integer.MAX_VALUE)
+                % mBgBroadcastLanes.length];
+    }
+
+    private static boolean isOrderingSensitiveAction(String action) {
+        if (action == null) {
+            return false;
+        }
+        switch (action) {
+            case Intent.ACTION_LOCKED_BOOT_COMPLETED:
+            case Intent.ACTION_BOOT_COMPLETED:
+            case Intent.ACTION_PACKAGE_ADDED:
+            case Intent.ACTION_PACKAGE_REPLACED:
+            case Intent.ACTION_PACKAGE_CHANGED:
+            case Intent.ACTION_PACKAGE_REMOVED:
+            case Intent.ACTION_PACKAGE_FULLY_REMOVED:
+            case Intent.ACTION_MY_PACKAGE_REPLACED:
+            case Intent.ACTION_PACKAGES_SUSPENDED:
+            case Intent.ACTION_PACKAGES_UNSUSPENDED:
+                return true;
+            default:
+                return false;
+        }
+    }
+
     /**
      * Activity we have told the window manager to have key focus.
      */
@@ -1285,6 +1354,36 @@ public final class ActivityManagerService extends ActivityManagerNative
      */
     int mAdjSeq = 0;
 
+    /**
+     * Partial oom_adj updates only look at the changed process and at the
+     * processes it is a client of, so after this many of them, or this much
+     * time since the last full update, the next one is turned into a full update.
+     */
+    static final int MAX_PARTIAL_OOM_ADJ_UPDATES = 64;
+    static final long MAX_PARTIAL_OOM_ADJ_INTERVAL = 60 * 1000;
+
+    /**
+     * Largest number of dependent processes a partial oom_adj update will
+     * recompute before giving up and doing a full update.
+     */
+    static final int MAX_PARTIAL_OOM_ADJ_PROCESSES = 16;
+
+    final ArrayList<ProcessRecord> mTmpOomAdjQueue = new ArrayList<>();
+
+    int mNumFullOomAdjUpdates;
+    int mNumPartialOomAdjUpdates;
+    int mNumPartialOomAdjFallbacks;
+    int mNumPartialOomAdjSinceFull;
+    long mFullOomAdjUpdateNanos;
+    long mPartialOomAdjUpdateNanos;
+    long mLastFullOomAdjTime;
+
+    /**
+     * The top app as of the last oom_adj update, so that a partial update
+     * after the top app changed also recomputes the one that stopped being it.
+     */
+    ProcessRecord mOomAdjTopApp;
+
     /**
      * Current sequence id for process LRU updating.
      */
@@ -2823,8 +2922,17 @@ public final class ActivityManagerService extends ActivityManagerNative
                 "foreground", BROADCAST_FG_TIMEOUT, false);
         mBgBroadcastQueue = new BroadcastQueue(this, mHandler,
                 "background", BROADCAST_BG_TIMEOUT, true);
+        final int numLanes = Math.max(0, Math.min(MAX_BROADCAST_LANES,
+                SystemProperties.getInt(BROADCAST_LANES_PROPERTY, 0)));
+        mBgBroadcastLanes = new BroadcastQueue[numLanes];
+        mBroadcastQueues = new BroadcastQueue[2 + numLanes];
         mBroadcastQueues[0] = mFgBroadcastQueue;
         mBroadcastQueues[1] = mBgBroadcastQueue;
+        for (int i = 0; i < numLanes; i++) {
+            mBgBroadcastLanes[i] = new BroadcastQueue(this, mHandler,
+                    "background_lane" + i, BROADCAST_BG_TIMEOUT, true);
+            mBroadcastQueues[2 + i] = mBgBroadcastLanes[i];
+        }
 
         mServices = new ActiveServices(this);
         mProviderMap = new ProviderMap(this);
@@ -11311,7 +11419,12 @@ public final class ActivityManagerService extends ActivityManagerNative
                     throw new NullPointerException("connection is null");
                 }
                 if (decProviderCountLocked(conn, null, null, stable)) {
-                    updateOomAdjLocked();
+                    // Only the provider's process can have lost importance.
+                    if (conn.provider.proc != null) {
+                        updateOomAdjLocked(conn.provider.proc);
+                    } else {
+                        updateOomAdjLocked();
+                    }
                 }
             }
         } finally {
@@ -15179,6 +15292,11 @@ public final class ActivityManagerService extends ActivityManagerNative
                 pw.println("  mGoingToSleep=" + mStackSupervisor.mGoingToSleep);
                 pw.println("  mLaunchingActivity=" + mStackSupervisor.mLaunchingActivity);
                 pw.println("  mAdjSeq=" + mAdjSeq + " mLruSeq=" + mLruSeq);
+                pw.println("  mNumFullOomAdjUpdates=" + mNumFullOomAdjUpdates
+                        + " (" + mFullOomAdjUpdateNanos / 1000000 + "ms)"
+                        + " mNumPartialOomAdjUpdates=" + mNumPartialOomAdjUpdates
+                        + " (" + mPartialOomAdjUpdateNanos / 1000000 + "ms)"
+                        + " mNumPartialOomAdjFallbacks=" + mNumPartialOomAdjFallbacks);
                 pw.println("  mNumNonCachedProcs=" + mNumNonCachedProcs
                         + " (" + mLruProcesses.size() + " total)"
                         + " mNumCachedHiddenProcs=" + mNumCachedHiddenProcs
@@ -17728,8 +17846,12 @@ public final class ActivityManagerService extends ActivityManagerNative
     // =========================================================
 
     boolean isPendingBroadcastProcessLocked(int pid) {
-        return mFgBroadcastQueue.isPendingBroadcastProcessLocked(pid)
-                || mBgBroadcastQueue.isPendingBroadcastProcessLocked(pid);
+        for (BroadcastQueue queue : mBroadcastQueues) {
+            if (queue.isPendingBroadcastProcessLocked(pid)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     void skipPendingBroadcastLocked(int pid) {
@@ -18699,6 +18821,9 @@ public final class ActivityManagerService extends ActivityManagerNative
         if ((receivers != null && receivers.size() > 0)
                 || resultTo != null) {
             BroadcastQueue queue = broadcastQueueForIntent(intent);
+            if (!ordered && resultTo == null) {
+                queue = broadcastLaneForReceiversLocked(queue, intent, receivers);
+            }
             BroadcastRecord r = new BroadcastRecord(queue, intent, callerApp,
                     callerPackage, callingPid, callingUid, resolvedType,
                     requiredPermissions, appOp, brOptions, receivers, resultTo, resultCode,
@@ -18877,9 +19002,17 @@ public final class ActivityManagerService extends ActivityManagerNative
             BroadcastRecord r;
 
             synchronized(this) {
-                BroadcastQueue queue = (flags & Intent.FLAG_RECEIVER_FOREGROUND) != 0
-                        ? mFgBroadcastQueue : mBgBroadcastQueue;
+                final boolean isFg = (flags & Intent.FLAG_RECEIVER_FOREGROUND) != 0;
+                BroadcastQueue queue = isFg ? mFgBroadcastQueue : mBgBroadcastQueue;
                 r = queue.getMatchingOrderedReceiver(who);
+                if (r == null && !isFg) {
+                    for (BroadcastQueue lane : mBgBroadcastLanes) {
+                        r = lane.getMatchingOrderedReceiver(who);
+                        if (r != null) {
+                            break;
+                        }
+                    }
+                }
                 if (r != null) {
                     doNext = r.queue.finishReceiverLocked(r, resultCode,
                         resultData, resultExtras, resultAbort, true);
@@ -21161,9 +21294,11 @@ public final class ActivityManagerService extends ActivityManagerNative
     }
 
     final boolean updateOomAdjLocked(ProcessRecord app) {
+        final long startNanos = System.nanoTime();
         final ActivityRecord TOP_ACT = resumedAppLocked();
         final ProcessRecord TOP_APP = TOP_ACT != null ? TOP_ACT.app : null;
         final boolean wasCached = app.cached;
+        final long now = SystemClock.uptimeMillis();
 
         mAdjSeq++;
 
@@ -21173,17 +21308,99 @@ public final class ActivityManagerService extends ActivityManagerNative
         // need to do a complete oom adj.
         final int cachedAdj = app.curRawAdj >= ProcessList.CACHED_APP_MIN_ADJ
                 ? app.curRawAdj : ProcessList.UNKNOWN_ADJ;
-        boolean success = updateOomAdjLocked(app, cachedAdj, TOP_APP, false,
-                SystemClock.uptimeMillis());
-        if (wasCached != app.cached || app.curRawAdj == ProcessList.UNKNOWN_ADJ) {
+        boolean success = updateOomAdjLocked(app, cachedAdj, TOP_APP, false, now);
+        if (wasCached != app.cached || app.curRawAdj == ProcessList.UNKNOWN_ADJ
+                || !updateOomAdjDependentsLocked(app, TOP_APP, now)) {
             // Changed to/from cached state, so apps after it in the LRU
             // list may also be changed.
+            mNumPartialOomAdjFallbacks++;
+            updateOomAdjLocked();
+        } else if (mNumPartialOomAdjSinceFull >= MAX_PARTIAL_OOM_ADJ_UPDATES
+                || now - mLastFullOomAdjTime >= MAX_PARTIAL_OOM_ADJ_INTERVAL) {
+            // Catch up on everything partial updates don't look at, such as
+            // the LRU order of cached processes and memory trimming.
             updateOomAdjLocked();
+        } else {
+            mNumPartialOomAdjSinceFull++;
+            mNumPartialOomAdjUpdates++;
+            mPartialOomAdjUpdateNanos += System.nanoTime() - startNanos;
         }
         return success;
     }
 
+    /**
+     * The importance of a process hosting a service or provider is derived
+     * from its clients, so after the oom_adj of a client changed, recompute
+     * the processes it is bound to, and so on for as long as they change.
+     *
+     * @return false if a full update is needed instead, because a dependent
+     *         moved into or out of the cached state or too many processes
+     *         are affected.
+     */
+    private boolean updateOomAdjDependentsLocked(ProcessRecord app, ProcessRecord TOP_APP,
+            long now) {
+        final ArrayList<ProcessRecord> queue = mTmpOomAdjQueue;
+        queue.clear();
+        queue.add(app);
+        if (mOomAdjTopApp != TOP_APP) {
+            addOomAdjDependentLocked(mOomAdjTopApp, queue);
+            mOomAdjTopApp = TOP_APP;
+        }
+        addOomAdjDependentsLocked(app, queue);
+        boolean result = true;
+        for (int i = 1; i < queue.size(); i++) {
+            if (i > MAX_PARTIAL_OOM_ADJ_PROCESSES) {
+                result = false;
+                break;
+            }
+            final ProcessRecord dep = queue.get(i);
+            final boolean wasCached = dep.cached;
+            final int oldRawAdj = dep.setRawAdj;
+            final int oldProcState = dep.setProcState;
+            final int oldSchedGroup = dep.setSchedGroup;
+            final int cachedAdj = dep.curRawAdj >= ProcessList.CACHED_APP_MIN_ADJ
+                    ? dep.curRawAdj : ProcessList.UNKNOWN_ADJ;
+            updateOomAdjLocked(dep, cachedAdj, TOP_APP, false, now);
+            if (wasCached != dep.cached || dep.curRawAdj == ProcessList.UNKNOWN_ADJ) {
+                result = false;
+                break;
+            }
+            if (dep.setRawAdj != oldRawAdj || dep.setProcState != oldProcState
+                    || dep.setSchedGroup != oldSchedGroup) {
+                addOomAdjDependentsLocked(dep, queue);
+            }
+        }
+        queue.clear();
+        return result;
+    }
+
+    /**
+     * Queues the live processes hosting the services and providers app is a
+     * client of, unless already queued.
+     */
+    @VisibleForTesting
+    static void addOomAdjDependentsLocked(ProcessRecord app,
+            ArrayList<ProcessRecord> queue) {
+        for (int i = app.connections.size() - 1; i >= 0; i--) {
+            final ConnectionRecord cr = app.connections.valueAt(i);
+            addOomAdjDependentLocked(cr.binding.service.app, queue);
+        }
+        for (int i = app.conProviders.size() - 1; i >= 0; i--) {
+            final ContentProviderConnection conn = app.conProviders.get(i);
+            addOomAdjDependentLocked(conn.provider.proc, queue);
+        }
+    }
+
+    @VisibleForTesting
+    static void addOomAdjDependentLocked(ProcessRecord host,
+            ArrayList<ProcessRecord> queue) {
+        if (host != null && host.thread != null && !queue.contains(host)) {
+            queue.add(host);
+        }
+    }
+
     final void updateOomAdjLocked() {
+        final long startNanos = System.nanoTime();
         final ActivityRecord TOP_ACT = resumedAppLocked();
         final ProcessRecord TOP_APP = TOP_ACT != null ? TOP_ACT.app : null;
         final long now = SystemClock.uptimeMillis();
@@ -21639,6 +21856,12 @@ public final class ActivityManagerService extends ActivityManagerNative
             });
         }
 
+        mNumFullOomAdjUpdates++;
+        mFullOomAdjUpdateNanos += System.nanoTime() - startNanos;
+        mNumPartialOomAdjSinceFull = 0;
+        mLastFullOomAdjTime = now;
+        mOomAdjTopApp = TOP_APP;
+
         if (DEBUG_OOM_ADJ) {
             final long duration = SystemClock.uptimeMillis() - now;
             if (false) {
@@ -2469,7 +2469,8 @@ final class ActivityStack {
             mRecentTasks.addLocked(next.task);
             mService.updateLruProcessLocked(next.app, true, null);
             updateLRUListLocked(next);
-            mService.updateOomAdjLocked();
+            // Also recomputes the process that stops being the top app.
+            mService.updateOomAdjLocked(next.app);
 
             // Have the window manager re-evaluate the orientation of
             // the screen based on the new activity order.
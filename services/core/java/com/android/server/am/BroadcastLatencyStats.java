@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.util.ArrayMap;
+
+import java.io.PrintWriter;
+
+/**
+ * Per-action latency histograms of a broadcast queue: how long broadcasts
+ * waited in the queue before their dispatch started, and how long it then
+ * took until they were finished.
+ */
+final class BroadcastLatencyStats {
+    /** Upper bounds in milliseconds of all but the last, open-ended bucket. */
+    private static final long[] BUCKET_LIMITS = {
+            10, 50, 100, 500, 1000, 5000, 10000, 60000 };
+
+    /**
+     * Most entries kept, including {@link #OTHER_ACTION}, into which any further
+     * actions are folded.
+     */
+    private static final int MAX_ACTIONS = 100;
+
+    private static final String OTHER_ACTION = "<other>";
+    private static final String NO_ACTION = "<none>";
+
+    private static final class Histogram {
+        final int[] counts = new int[BUCKET_LIMITS.length + 1];
+        long max;
+
+        void add(long millis) {
+            int bucket = 0;
+            while (bucket < BUCKET_LIMITS.length && millis >= BUCKET_LIMITS[bucket]) {
+                bucket++;
+            }
+            counts[bucket]++;
+            if (millis > max) {
+                max = millis;
+            }
+        }
+
+        void dump(PrintWriter pw) {
+            for (int i = 0; i < counts.length; i++) {
+                if (i > 0) {
+                    pw.print(' ');
+                }
+                pw.print(counts[i]);
+            }
+            pw.print(" max="); pw.print(max); pw.print("ms");
+        }
+    }
+
+    private static final class Entry {
+        int count;
+        final Histogram enqueueToDispatch = new Histogram();
+        final Histogram dispatchToFinish = new Histogram();
+    }
+
+    private final ArrayMap<String, Entry> mEntries = new ArrayMap<>();
+
+    void noteBroadcastLocked(String action, long enqueueToDispatchMs, long dispatchToFinishMs) {
+        if (action == null) {
+            action = NO_ACTION;
+        }
+        Entry entry = mEntries.get(action);
+        if (entry == null) {
+            // Keep the last slot for the actions that don't get one of their own.
+            if (mEntries.size() >= MAX_ACTIONS - 1) {
+                action = OTHER_ACTION;
+                entry = mEntries.get(action);
+            }
+            if (entry == null) {
+                entry = new Entry();
+                mEntries.put(action, entry);
+            }
+        }
+        entry.count++;
+        entry.enqueueToDispatch.add(Math.max(enqueueToDispatchMs, 0));
+        entry.dispatchToFinish.add(Math.max(dispatchToFinishMs, 0));
+    }
+
+    boolean isEmpty() {
+        return mEntries.isEmpty();
+    }
+
+    void dumpLocked(PrintWriter pw, String prefix) {
+        pw.print(prefix); pw.print("Buckets (ms): <");
+        for (int i = 0; i < BUCKET_LIMITS.length; i++) {
+            pw.print(BUCKET_LIMITS[i]);
+            pw.print(" <");
+        }
+        pw.println("inf");
+        for (int i = 0; i < mEntries.size(); i++) {
+            final Entry entry = mEntries.valueAt(i);
+            pw.print(prefix); pw.print(mEntries.keyAt(i));
+            pw.print(" count="); pw.println(entry.count);
+            pw.print(prefix); pw.print("  enqueue->dispatch: ");
+            entry.enqueueToDispatch.dump(pw);
+            pw.println();
+            pw.print(prefix); pw.print("  dispatch->finish: ");
+            entry.dispatchToFinish.dump(pw);
+            pw.println();
+        }
+    }
+}
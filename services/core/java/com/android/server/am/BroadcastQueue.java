@@ -127,6 +127,17 @@ public final class BroadcastQueue {
     final long[] mSummaryHistoryDispatchTime = new  long[MAX_BROADCAST_SUMMARY_HISTORY];
     final long[] mSummaryHistoryFinishTime = new  long[MAX_BROADCAST_SUMMARY_HISTORY];
 
+    /**
+     * Queue latency of every finished broadcast, by action.
+     */
+    final BroadcastLatencyStats mLatencyStats = new BroadcastLatencyStats();
+
+    /**
+     * Processes that stopped running a receiver since their oom_adj was last
+     * updated by this queue.
+     */
+    final ArrayList<ProcessRecord> mFinishedReceiverApps = new ArrayList<>();
+
     /**
      * Set when we current have a BROADCAST_INTENT_MSG in flight.
      */
@@ -215,6 +226,26 @@ public final class BroadcastQueue {
         return mPendingBroadcast != null && mPendingBroadcast.curApp.pid == pid;
     }
 
+    /**
+     * Returns whether a serialized broadcast in this queue still has to be
+     * delivered, or is being delivered, to a receiver in the given package.
+     */
+    public boolean hasOrderedReceiverInPackageLocked(String packageName) {
+        for (int i = mOrderedBroadcasts.size() - 1; i >= 0; i--) {
+            final BroadcastRecord r = mOrderedBroadcasts.get(i);
+            for (int j = Math.max(0, r.nextReceiver - 1); j < r.receivers.size(); j++) {
+                final Object receiver = r.receivers.get(j);
+                final String receiverPackage = receiver instanceof BroadcastFilter
+                        ? ((BroadcastFilter) receiver).packageName
+                        : ((ResolveInfo) receiver).activityInfo.packageName;
+                if (packageName.equals(receiverPackage)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     public void enqueueParallelBroadcastLocked(BroadcastRecord r) {
         mParallelBroadcasts.add(r);
         r.enqueueClockTime = System.currentTimeMillis();
@@ -269,7 +300,9 @@ public final class BroadcastQueue {
         app.curReceivers.add(r);
         app.forceProcessStateUpTo(ActivityManager.PROCESS_STATE_RECEIVER);
         mService.updateLruProcessLocked(app, false, null);
-        mService.updateOomAdjLocked();
+        mFinishedReceiverApps.remove(app);
+        updateFinishedReceiverAppsOomAdjLocked();
+        mService.updateOomAdjLocked(app);
 
         // Tell the application to launch this receiver.
         r.intent.setComponent(r.curComponent);
@@ -385,6 +418,20 @@ public final class BroadcastQueue {
         return null;
     }
 
+    /**
+     * Updates the oom_adj of the processes that stopped running a receiver, and of
+     * what they are bound to, one at a time instead of with a full update.
+     */
+    private void updateFinishedReceiverAppsOomAdjLocked() {
+        for (int i = mFinishedReceiverApps.size() - 1; i >= 0; i--) {
+            final ProcessRecord app = mFinishedReceiverApps.get(i);
+            if (app.thread != null) {
+                mService.updateOomAdjLocked(app);
+            }
+        }
+        mFinishedReceiverApps.clear();
+    }
+
     public boolean finishReceiverLocked(BroadcastRecord r, int resultCode,
             String resultData, Bundle resultExtras, boolean resultAbort, boolean waitForServices) {
         final int state = r.state;
@@ -401,6 +448,9 @@ public final class BroadcastQueue {
         if (r.curFilter != null) {
             r.curFilter.receiverList.curBroadcast = null;
         }
+        if (r.curApp != null && !mFinishedReceiverApps.contains(r.curApp)) {
+            mFinishedReceiverApps.add(r.curApp);
+        }
         r.curFilter = null;
         r.curReceiver = null;
         r.curApp = null;
@@ -650,6 +700,8 @@ public final class BroadcastQueue {
                 // are already core system stuff so don't matter for this.
                 r.curApp = filter.receiverList.app;
                 filter.receiverList.app.curReceivers.add(r);
+                mFinishedReceiverApps.remove(r.curApp);
+                updateFinishedReceiverAppsOomAdjLocked();
                 mService.updateOomAdjLocked(r.curApp);
             }
         }
@@ -827,9 +879,10 @@ public final class BroadcastQueue {
                     mService.scheduleAppGcsLocked();
                     if (looped) {
                         // If we had finished the last ordered broadcast, then
-                        // make sure all processes have correct oom and sched
-                        // adjustments.
-                        mService.updateOomAdjLocked();
+                        // make sure the processes that ran its receivers have
+                        // correct oom and sched adjustments.  One that drops
+                        // into the cached state makes this a full update.
+                        updateFinishedReceiverAppsOomAdjLocked();
                     }
                     return;
                 }
@@ -1417,6 +1470,11 @@ public final class BroadcastQueue {
         mSummaryHistoryDispatchTime[mSummaryHistoryNext] = r.dispatchClockTime;
         mSummaryHistoryFinishTime[mSummaryHistoryNext] = System.currentTimeMillis();
         mSummaryHistoryNext = ringAdvance(mSummaryHistoryNext, 1, MAX_BROADCAST_SUMMARY_HISTORY);
+
+        if (r.dispatchTime > 0) {
+            mLatencyStats.noteBroadcastLocked(r.intent.getAction(),
+                    r.dispatchClockTime - r.enqueueClockTime, r.finishTime - r.dispatchTime);
+        }
     }
 
     boolean cleanupDisabledPackageReceiversLocked(
@@ -1625,6 +1683,15 @@ public final class BroadcastQueue {
                     pw.print("    extras: "); pw.println(bundle.toString());
                 }
             } while (ringIndex != lastIndex);
+
+            if (!mLatencyStats.isEmpty()) {
+                if (needSep) {
+                    pw.println();
+                }
+                needSep = true;
+                pw.println("  Broadcast latency [" + mQueueName + "]:");
+                mLatencyStats.dumpLocked(pw, "    ");
+            }
         }
 
         return needSep;
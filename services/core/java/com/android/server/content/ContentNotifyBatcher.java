@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.content;
+
+import android.database.IContentObserver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Objects;
+
+/**
+ * Delivers content change notifications to observers, optionally holding them back for a
+ * short window so that a burst of changes reaches each observer in a single
+ * {@link IContentObserver#onChangeMultiple} transaction instead of one transaction per change.
+ * While batching, also keeps per-authority counts of the notifications collected and of
+ * the binder calls made to deliver them.
+ */
+final class ContentNotifyBatcher {
+    private static final String TAG = "ContentService";
+
+    /** Number of changes held back for one observer at which everything is flushed. */
+    @VisibleForTesting
+    static final int MAX_BATCH_SIZE = 64;
+
+    private static final int STAT_COLLECTED = 0;
+    private static final int STAT_DELIVERED = 1;
+
+    private final Handler mHandler;
+    private final long mWindowMillis;
+
+    private final Object mLock = new Object();
+
+    /** Changes not delivered yet, by observer binder, in the order they happened. */
+    @GuardedBy("mLock")
+    private ArrayMap<IBinder, PendingChanges> mPending = new ArrayMap<>();
+
+    @GuardedBy("mLock")
+    private boolean mFlushScheduled;
+
+    /** Notifications collected and binder calls made, by authority; only kept while batching. */
+    @GuardedBy("mLock")
+    private final ArrayMap<String, long[]> mStats = new ArrayMap<>();
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private static final class Change {
+        final Uri uri;
+        final boolean selfChange;
+        final int userId;
+
+        Change(Uri uri, boolean selfChange, int userId) {
+            this.uri = uri;
+            this.selfChange = selfChange;
+            this.userId = userId;
+        }
+
+        boolean sameAs(Uri uri, boolean selfChange, int userId) {
+            return this.selfChange == selfChange && this.userId == userId
+                    && this.uri.equals(uri);
+        }
+    }
+
+    private static final class PendingChanges {
+        final IContentObserver observer;
+        final ArrayList<Change> changes = new ArrayList<>();
+
+        PendingChanges(IContentObserver observer) {
+            this.observer = observer;
+        }
+    }
+
+    /**
+     * @param windowMillis How long to hold back changes; 0 delivers each change right away.
+     */
+    ContentNotifyBatcher(Handler handler, long windowMillis) {
+        mHandler = handler;
+        mWindowMillis = windowMillis;
+    }
+
+    boolean isBatching() {
+        return mWindowMillis > 0;
+    }
+
+    /**
+     * Delivers a change to an observer, or queues it if batching.
+     *
+     * @throws RemoteException if the change was delivered right away and the observer died.
+     */
+    void notifyChange(IContentObserver observer, boolean selfChange, Uri uri, int userId)
+            throws RemoteException {
+        if (!isBatching()) {
+            // Nothing to count: every change is one call.  Keep the lock off this path.
+            observer.onChange(selfChange, uri, userId);
+            return;
+        }
+
+        synchronized (mLock) {
+            getStatsLocked(uri.getAuthority())[STAT_COLLECTED]++;
+            final IBinder binder = observer.asBinder();
+            PendingChanges pending = mPending.get(binder);
+            if (pending == null) {
+                pending = new PendingChanges(observer);
+                mPending.put(binder, pending);
+            }
+            final ArrayList<Change> changes = pending.changes;
+            for (int i = changes.size() - 1; i >= 0; i--) {
+                if (changes.get(i).sameAs(uri, selfChange, userId)) {
+                    // Already going to tell the observer about this one.
+                    return;
+                }
+            }
+            changes.add(new Change(uri, selfChange, userId));
+            if (changes.size() >= MAX_BATCH_SIZE) {
+                // Don't let the batch grow without bound; deliver it, still from the
+                // handler so that batches for an observer stay in order.
+                mHandler.removeCallbacks(mFlushRunnable);
+                mHandler.post(mFlushRunnable);
+                mFlushScheduled = true;
+            } else if (!mFlushScheduled) {
+                mFlushScheduled = true;
+                mHandler.postDelayed(mFlushRunnable, mWindowMillis);
+            }
+        }
+    }
+
+    /**
+     * Delivers all queued changes now.
+     */
+    @VisibleForTesting
+    void flush() {
+        final ArrayMap<IBinder, PendingChanges> pending;
+        synchronized (mLock) {
+            pending = mPending;
+            mPending = new ArrayMap<>();
+            mFlushScheduled = false;
+            mHandler.removeCallbacks(mFlushRunnable);
+        }
+        for (int i = 0; i < pending.size(); i++) {
+            deliver(pending.valueAt(i));
+        }
+    }
+
+    /**
+     * Sends the changes to the observer, one call per run of changes that share the self
+     * change flag, user and authority.
+     */
+    private void deliver(PendingChanges pending) {
+        final ArrayList<Change> changes = pending.changes;
+        final int count = changes.size();
+        int start = 0;
+        while (start < count) {
+            final Change first = changes.get(start);
+            final String authority = first.uri.getAuthority();
+            int end = start + 1;
+            while (end < count) {
+                final Change next = changes.get(end);
+                if (next.selfChange != first.selfChange || next.userId != first.userId
+                        || !Objects.equals(authority, next.uri.getAuthority())) {
+                    break;
+                }
+                end++;
+            }
+            try {
+                if (end - start == 1) {
+                    pending.observer.onChange(first.selfChange, first.uri, first.userId);
+                } else {
+                    final Uri[] uris = new Uri[end - start];
+                    for (int i = start; i < end; i++) {
+                        uris[i - start] = changes.get(i).uri;
+                    }
+                    pending.observer.onChangeMultiple(first.selfChange, uris, first.userId);
+                }
+            } catch (RemoteException e) {
+                // The observer entry unregisters itself when it gets the death notification.
+                Log.w(TAG, "Found dead observer, dropping " + (count - start) + " changes");
+                return;
+            }
+            synchronized (mLock) {
+                getStatsLocked(authority)[STAT_DELIVERED]++;
+            }
+            start = end;
+        }
+    }
+
+    @GuardedBy("mLock")
+    private long[] getStatsLocked(String authority) {
+        long[] stats = mStats.get(authority);
+        if (stats == null) {
+            stats = new long[2];
+            mStats.put(authority, stats);
+        }
+        return stats;
+    }
+
+    @VisibleForTesting
+    long getCollectedCount(String authority) {
+        synchronized (mLock) {
+            final long[] stats = mStats.get(authority);
+            return stats != null ? stats[STAT_COLLECTED] : 0;
+        }
+    }
+
+    @VisibleForTesting
+    long getDeliveredCount(String authority) {
+        synchronized (mLock) {
+            final long[] stats = mStats.get(authority);
+            return stats != null ? stats[STAT_DELIVERED] : 0;
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        if (!isBatching()) {
+            pw.println("Change notifications: not batched");
+            return;
+        }
+        synchronized (mLock) {
+            pw.print("Change notifications (batch window "); pw.print(mWindowMillis);
+            pw.println("ms):");
+            for (int i = 0; i < mStats.size(); i++) {
+                final long[] stats = mStats.valueAt(i);
+                pw.print("  "); pw.print(mStats.keyAt(i));
+                pw.print(": collected="); pw.print(stats[STAT_COLLECTED]);
+                pw.print(" delivered="); pw.println(stats[STAT_DELIVERED]);
+            }
+        }
+    }
+}
@@ -60,6 +60,7 @@ import android.util.SparseArray;
 import android.util.SparseIntArray;
 
 import com.android.internal.annotations.GuardedBy;
+import com.android.internal.os.BackgroundThread;
 import com.android.internal.util.IndentingPrintWriter;
 import com.android.server.LocalServices;
 import com.android.server.SystemService;
@@ -113,6 +114,16 @@ public final class ContentService extends IContentService.Stub {
 
     private final ObserverNode mRootNode = new ObserverNode("");
 
+    /**
+     * How long change notifications are held back so that they can be sent to each observer
+     * in one call; 0 sends each of them right away.
+     */
+    private static final long NOTIFY_BATCH_WINDOW_MS =
+            SystemProperties.getLong("persist.sys.content_notify_batch_ms", 0);
+
+    private final ContentNotifyBatcher mNotifyBatcher =
+            new ContentNotifyBatcher(BackgroundThread.getHandler(), NOTIFY_BATCH_WINDOW_MS);
+
     private SyncManager mSyncManager = null;
     private final Object mSyncManagerLock = new Object();
 
@@ -210,6 +221,8 @@ public final class ContentService extends IContentService.Stub {
                 pw.print(" Total number of nodes: "); pw.println(counts[0]);
                 pw.print(" Total number of observers: "); pw.println(counts[1]);
             }
+            pw.println();
+            mNotifyBatcher.dump(pw);
 
             synchronized (mCache) {
                 pw.println();
@@ -377,7 +390,7 @@ public final class ContentService extends IContentService.Stub {
             for (int i=0; i<numCalls; i++) {
                 ObserverCall oc = calls.get(i);
                 try {
-                    oc.mObserver.onChange(oc.mSelfChange, uri, userHandle);
+                    mNotifyBatcher.notifyChange(oc.mObserver, oc.mSelfChange, uri, userHandle);
                     if (DEBUG) Slog.d(TAG, "Notified " + oc.mObserver + " of " + "update at "
                             + uri);
                 } catch (RemoteException ex) {
@@ -1224,7 +1237,8 @@ public final class ContentService extends IContentService.Stub {
         public static final int DELETE_TYPE = 2;
 
         private String mName;
-        private ArrayList<ObserverNode> mChildren = new ArrayList<ObserverNode>();
+        // Children by uri segment, so that walking down a uri doesn't scan every sibling.
+        private ArrayMap<String, ObserverNode> mChildren = new ArrayMap<String, ObserverNode>();
         private ArrayList<ObserverEntry> mObservers = new ArrayList<ObserverEntry>();
 
         public ObserverNode(String name) {
@@ -1256,7 +1270,7 @@ public final class ContentService extends IContentService.Stub {
                 }
                 for (int i=0; i<mChildren.size(); i++) {
                     counts[0]++;
-                    mChildren.get(i).dumpLocked(fd, pw, args, innerName, prefix,
+                    mChildren.valueAt(i).dumpLocked(fd, pw, args, innerName, prefix,
                             counts, pidCounts);
                 }
             }
@@ -1304,36 +1318,26 @@ public final class ContentService extends IContentService.Stub {
             if (segment == null) {
                 throw new IllegalArgumentException("Invalid Uri (" + uri + ") used for observer");
             }
-            int N = mChildren.size();
-            for (int i = 0; i < N; i++) {
-                ObserverNode node = mChildren.get(i);
-                if (node.mName.equals(segment)) {
-                    node.addObserverLocked(uri, index + 1, observer, notifyForDescendants,
-                            observersLock, uid, pid, userHandle);
-                    return;
-                }
+            ObserverNode node = mChildren.get(segment);
+            if (node == null) {
+                // No child found, create one
+                node = new ObserverNode(segment);
+                mChildren.put(segment, node);
             }
-
-            // No child found, create one
-            ObserverNode node = new ObserverNode(segment);
-            mChildren.add(node);
             node.addObserverLocked(uri, index + 1, observer, notifyForDescendants,
                     observersLock, uid, pid, userHandle);
         }
 
         public boolean removeObserverLocked(IContentObserver observer) {
-            int size = mChildren.size();
-            for (int i = 0; i < size; i++) {
-                boolean empty = mChildren.get(i).removeObserverLocked(observer);
+            for (int i = mChildren.size() - 1; i >= 0; i--) {
+                boolean empty = mChildren.valueAt(i).removeObserverLocked(observer);
                 if (empty) {
-                    mChildren.remove(i);
-                    i--;
-                    size--;
+                    mChildren.removeAt(i);
                 }
             }
 
             IBinder observerBinder = observer.asBinder();
-            size = mObservers.size();
+            int size = mObservers.size();
             for (int i = 0; i < size; i++) {
                 ObserverEntry entry = mObservers.get(i);
                 if (entry.observer.asBinder() == observerBinder) {
@@ -1420,16 +1424,18 @@ public final class ContentService extends IContentService.Stub {
                         flags, targetUserHandle, calls);
             }
 
-            int N = mChildren.size();
-            for (int i = 0; i < N; i++) {
-                ObserverNode node = mChildren.get(i);
-                if (segment == null || node.mName.equals(segment)) {
+            if (segment != null) {
+                ObserverNode node = mChildren.get(segment);
+                if (node != null) {
                     // We found the child,
                     node.collectObserversLocked(uri, index + 1, observer,
                             observerWantsSelfNotifications, flags, targetUserHandle, calls);
-                    if (segment != null) {
-                        break;
-                    }
+                }
+            } else {
+                int N = mChildren.size();
+                for (int i = 0; i < N; i++) {
+                    mChildren.valueAt(i).collectObserversLocked(uri, index + 1, observer,
+                            observerWantsSelfNotifications, flags, targetUserHandle, calls);
                 }
             }
         }
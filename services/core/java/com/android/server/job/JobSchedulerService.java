@@ -65,12 +65,14 @@ import android.os.ServiceManager;
 import android.os.SystemClock;
 import android.os.UserHandle;
 import android.provider.Settings;
+import android.util.ArraySet;
 import android.util.KeyValueListParser;
 import android.util.Slog;
 import android.util.SparseArray;
 import android.util.SparseIntArray;
 import android.util.TimeUtils;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.app.IBatteryStats;
 import com.android.internal.app.procstats.ProcessStats;
 import com.android.internal.util.ArrayUtils;
@@ -125,6 +127,7 @@ public final class JobSchedulerService extends com.android.server.SystemService
     static final int MSG_CHECK_JOB = 1;
     static final int MSG_STOP_JOB = 2;
     static final int MSG_CHECK_JOB_GREEDY = 3;
+    static final int MSG_CHECK_CHANGED_JOBS = 4;
 
     /**
      * Track Services that have currently active or pending jobs. The index is provided by
@@ -139,6 +142,29 @@ public final class JobSchedulerService extends com.android.server.SystemService
      */
     final ArrayList<JobStatus> mPendingJobs = new ArrayList<>();
 
+    /**
+     * Constraints reported as changed since jobs were last checked, so that only the jobs
+     * requiring them need to be looked at again.  See {@link #onControllerStateChanged(int)}.
+     */
+    int mChangedConstraints;
+    /** Elapsed time at which the oldest change not yet checked was reported, or 0. */
+    long mFirstUncheckedChangeElapsed;
+    /**
+     * Jobs that were ready to run when last checked, or that have not been checked yet.
+     * Whether one of them runs depends on the others, so they are checked along with the jobs
+     * whose constraints changed.
+     */
+    final ArraySet<JobStatus> mMaybeReadyJobs = new ArraySet<>();
+
+    /** Statistics on how many jobs each kind of check had to look at, for dumpsys. */
+    int mFullCheckCount;
+    long mFullCheckJobCount;
+    int mChangedCheckCount;
+    long mChangedCheckJobCount;
+    /** Time from a controller state change until jobs were checked, for dumpsys. */
+    long mTotalCheckLatency;
+    long mMaxCheckLatency;
+
     int[] mStartedUsers = EmptyArray.INT;
 
     final JobHandler mHandler;
@@ -799,6 +825,19 @@ public final class JobSchedulerService extends com.android.server.SystemService
         mControllers.add(DeviceIdleJobsController.get(this));
     }
 
+    /**
+     * Builds a service around the given job store, without any controllers.
+     */
+    @VisibleForTesting
+    JobSchedulerService(Context context, JobStore jobs) {
+        super(context);
+        mHandler = new JobHandler(context.getMainLooper());
+        mConstants = new Constants(mHandler);
+        mJobSchedulerStub = new JobSchedulerStub();
+        mJobs = jobs;
+        mControllers = new ArrayList<StateController>();
+    }
+
     @Override
     public void onStart() {
         publishLocalService(JobSchedulerInternal.class, new LocalService());
@@ -847,6 +886,7 @@ public final class JobSchedulerService extends com.android.server.SystemService
                 mJobs.forEachJob(new JobStatusFunctor() {
                     @Override
                     public void process(JobStatus job) {
+                        mMaybeReadyJobs.add(job);
                         for (int controller = 0; controller < mControllers.size(); controller++) {
                             final StateController sc = mControllers.get(controller);
                             sc.maybeStartTrackingJobLocked(job, null);
@@ -868,6 +908,7 @@ public final class JobSchedulerService extends com.android.server.SystemService
         synchronized (mLock) {
             final boolean update = mJobs.add(jobStatus);
             if (mReadyToRock) {
+                mMaybeReadyJobs.add(jobStatus);
                 for (int i = 0; i < mControllers.size(); i++) {
                     StateController controller = mControllers.get(i);
                     if (update) {
@@ -888,6 +929,9 @@ public final class JobSchedulerService extends com.android.server.SystemService
         synchronized (mLock) {
             // Remove from store as well as controllers.
             final boolean removed = mJobs.remove(jobStatus, writeBack);
+            if (removed) {
+                mMaybeReadyJobs.remove(jobStatus);
+            }
             if (removed && mReadyToRock) {
                 for (int i=0; i<mControllers.size(); i++) {
                     StateController controller = mControllers.get(i);
@@ -1070,9 +1114,58 @@ public final class JobSchedulerService extends com.android.server.SystemService
      */
     @Override
     public void onControllerStateChanged() {
+        synchronized (mLock) {
+            noteStateChangedLocked();
+        }
         mHandler.obtainMessage(MSG_CHECK_JOB).sendToTarget();
     }
 
+    /**
+     * Like {@link #onControllerStateChanged()}, but only the jobs requiring one of the given
+     * constraints are checked again, along with those that were already ready.  Changes to
+     * constraints every job is subject to still check all jobs.
+     */
+    @Override
+    public void onControllerStateChanged(int changedConstraints) {
+        synchronized (mLock) {
+            noteStateChangedLocked();
+            mChangedConstraints |= changedConstraints;
+            mHandler.obtainMessage(MSG_CHECK_CHANGED_JOBS).sendToTarget();
+        }
+    }
+
+    private void noteStateChangedLocked() {
+        if (mFirstUncheckedChangeElapsed == 0) {
+            mFirstUncheckedChangeElapsed = SystemClock.elapsedRealtime();
+        }
+    }
+
+    private final ArraySet<JobStatus> mChangedJobsTmp = new ArraySet<>();
+    private final JobStatusFunctor mChangedJobCollector = new JobStatusFunctor() {
+        @Override
+        public void process(JobStatus job) {
+            mChangedJobsTmp.add(job);
+        }
+    };
+
+    /**
+     * Collects the jobs to check after the constraint changes reported so far: those that
+     * require one of the changed constraints, along with those that were ready when last
+     * checked.  The caller clears the returned set once done with it.
+     *
+     * @return The jobs to check, or null if a change applies to every job so that all of them
+     *     need to be checked.
+     */
+    @VisibleForTesting
+    ArraySet<JobStatus> collectChangedJobsLocked() {
+        if ((mChangedConstraints & JobStatus.IMPLICIT_CONSTRAINTS) != 0) {
+            return null;
+        }
+        mChangedJobsTmp.addAll(mMaybeReadyJobs);
+        mJobs.forEachJobRequiring(mChangedConstraints, mChangedJobCollector);
+        return mChangedJobsTmp;
+    }
+
     @Override
     public void onRunJobNow(JobStatus jobStatus) {
         mHandler.obtainMessage(MSG_JOB_EXPIRED, jobStatus).sendToTarget();
@@ -1121,6 +1214,25 @@ public final class JobSchedulerService extends com.android.server.SystemService
                         queueReadyJobsForExecutionLockedH();
                     }
                     break;
+                case MSG_CHECK_CHANGED_JOBS:
+                    synchronized (mLock) {
+                        if (mChangedConstraints == 0) {
+                            // Already covered by a check of all jobs.
+                            break;
+                        }
+                        final ArraySet<JobStatus> changedJobs = collectChangedJobsLocked();
+                        if (changedJobs == null) {
+                            if (mReportedActive) {
+                                queueReadyJobsForExecutionLockedH();
+                            } else {
+                                maybeQueueReadyJobsForExecutionLockedH();
+                            }
+                        } else {
+                            queueChangedJobsForExecutionLockedH(changedJobs, mReportedActive
+                                    ? mReadyQueueFunctor : mMaybeQueueFunctor);
+                        }
+                    }
+                    break;
                 case MSG_STOP_JOB:
                     cancelJobImpl((JobStatus)message.obj, null);
                     break;
@@ -1128,6 +1240,73 @@ public final class JobSchedulerService extends com.android.server.SystemService
             maybeRunPendingJobsH();
             // Don't remove JOB_EXPIRED in case one came along while processing the queue.
             removeMessages(MSG_CHECK_JOB);
+            synchronized (mLock) {
+                if (mChangedConstraints == 0) {
+                    removeMessages(MSG_CHECK_CHANGED_JOBS);
+                }
+            }
+        }
+
+        /**
+         * Every job has been or is about to be checked, so pending constraint changes are
+         * taken care of.
+         */
+        private void noteAllJobsCheckedLocked() {
+            mFullCheckCount++;
+            mFullCheckJobCount += mJobs.size();
+            noteChangesCheckedLocked();
+        }
+
+        private void noteChangesCheckedLocked() {
+            mChangedConstraints = 0;
+            if (mFirstUncheckedChangeElapsed != 0) {
+                final long latency = SystemClock.elapsedRealtime() - mFirstUncheckedChangeElapsed;
+                mTotalCheckLatency += latency;
+                if (latency > mMaxCheckLatency) {
+                    mMaxCheckLatency = latency;
+                }
+                mFirstUncheckedChangeElapsed = 0;
+            }
+        }
+
+        /**
+         * Check only the jobs from {@link #collectChangedJobsLocked()}.  Any other job had its
+         * readiness unchanged and was not ready, so this queues the same jobs as a check of all
+         * of them would.
+         */
+        private void queueChangedJobsForExecutionLockedH(ArraySet<JobStatus> changedJobs,
+                JobStatusFunctor queueFunctor) {
+            if (DEBUG) {
+                Slog.d(TAG, "queuing ready jobs for constraints 0x"
+                        + Integer.toHexString(mChangedConstraints));
+            }
+            mChangedCheckCount++;
+            mChangedCheckJobCount += changedJobs.size();
+            noteChangesCheckedLocked();
+
+            noteJobsNonpending(mPendingJobs);
+            mPendingJobs.clear();
+            for (int i = changedJobs.size() - 1; i >= 0; i--) {
+                queueFunctor.process(changedJobs.valueAt(i));
+            }
+            changedJobs.clear();
+            if (queueFunctor == mReadyQueueFunctor) {
+                mReadyQueueFunctor.postProcess();
+            } else {
+                mMaybeQueueFunctor.postProcess();
+            }
+        }
+
+        /**
+         * Remember whether a job that was just checked could be ready to run, so that it gets
+         * checked again after changes to constraints it does not require.
+         */
+        private void noteJobCheckedLocked(JobStatus job) {
+            if (job.isReady()) {
+                mMaybeReadyJobs.add(job);
+            } else {
+                mMaybeReadyJobs.remove(job);
+            }
         }
 
         /**
@@ -1138,6 +1317,7 @@ public final class JobSchedulerService extends com.android.server.SystemService
             if (DEBUG) {
                 Slog.d(TAG, "queuing all ready jobs for execution:");
             }
+            noteAllJobsCheckedLocked();
             noteJobsNonpending(mPendingJobs);
             mPendingJobs.clear();
             mJobs.forEachJob(mReadyQueueFunctor);
@@ -1158,6 +1338,7 @@ public final class JobSchedulerService extends com.android.server.SystemService
 
             @Override
             public void process(JobStatus job) {
+                noteJobCheckedLocked(job);
                 if (isReadyToBeExecutedLocked(job)) {
                     if (DEBUG) {
                         Slog.d(TAG, "    queued " + job.toShortString());
@@ -1206,6 +1387,7 @@ public final class JobSchedulerService extends com.android.server.SystemService
             // Functor method invoked for each job via JobStore.forEachJob()
             @Override
             public void process(JobStatus job) {
+                noteJobCheckedLocked(job);
                 if (isReadyToBeExecutedLocked(job)) {
                     try {
                         if (ActivityManagerNative.getDefault().getAppStartMode(job.getUid(),
@@ -1281,6 +1463,7 @@ public final class JobSchedulerService extends com.android.server.SystemService
         private void maybeQueueReadyJobsForExecutionLockedH() {
             if (DEBUG) Slog.d(TAG, "Maybe queuing ready jobs...");
 
+            noteAllJobsCheckedLocked();
             noteJobsNonpending(mPendingJobs);
             mPendingJobs.clear();
             mJobs.forEachJob(mMaybeQueueFunctor);
@@ -1942,6 +2125,20 @@ public final class JobSchedulerService extends com.android.server.SystemService
                 pw.print("mReadyToRock="); pw.println(mReadyToRock);
                 pw.print("mReportedActive="); pw.println(mReportedActive);
                 pw.print("mMaxActiveJobs="); pw.println(mMaxActiveJobs);
+                pw.println();
+                pw.print("Full checks: "); pw.print(mFullCheckCount);
+                pw.print(", jobs checked: "); pw.println(mFullCheckJobCount);
+                pw.print("Changed-constraint checks: "); pw.print(mChangedCheckCount);
+                pw.print(", jobs checked: "); pw.println(mChangedCheckJobCount);
+                final int checkCount = mFullCheckCount + mChangedCheckCount;
+                if (checkCount > 0) {
+                    pw.print("Check latency: avg ");
+                    TimeUtils.formatDuration(mTotalCheckLatency / checkCount, pw);
+                    pw.print(", max ");
+                    TimeUtils.formatDuration(mMaxCheckLatency, pw);
+                    pw.println();
+                }
+                pw.print("Maybe ready jobs: "); pw.println(mMaybeReadyJobs.size());
             }
         }
         pw.println();
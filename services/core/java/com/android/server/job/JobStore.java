@@ -37,7 +37,10 @@ import com.android.internal.util.FastXmlSerializer;
 import com.android.server.IoThread;
 import com.android.server.job.controllers.JobStatus;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -55,7 +58,8 @@ import org.xmlpull.v1.XmlSerializer;
 /**
  * Maintains the master list of jobs that the job scheduler is tracking. These jobs are compared by
  * reference, so none of the functions in this class should make a copy.
- * Also handles read/write of persisted jobs.
+ * Also handles read/write of persisted jobs. Changes to persisted jobs are appended to a
+ * {@link JobStoreJournal}, and folded back into jobs.xml once the journal outgrows it.
  *
  * Note on locking:
  *      All callers to this class must <strong>lock on the class object they are calling</strong>.
@@ -69,14 +73,33 @@ public class JobStore {
 
     /** Threshold to adjust how often we want to write to the db. */
     private static final int MAX_OPS_BEFORE_WRITE = 1;
+    /**
+     * Journal records we allow before rewriting jobs.xml, unless there are more persisted
+     * jobs than this, in which case we allow as many records as there are jobs.
+     */
+    private static final int MIN_JOURNAL_RECORDS_BEFORE_COMPACTION = 32;
     final Object mLock;
     final JobSet mJobSet; // per-caller-uid tracking
     final Context mContext;
 
     private int mDirtyOperations;
 
+    /** Changes to persisted jobs not yet written to the journal. */
+    private ArrayList<JournalOp> mPendingJournalOps = new ArrayList<>();
+    /** Whether the next write has to rewrite jobs.xml instead of appending to the journal. */
+    private boolean mNeedsCompaction;
+
+    // Only touched on the IoThread once the store is constructed.
+    /** Generation of the current jobs.xml, which the journal has to match. */
+    private long mJobsFileGeneration;
+    /** Records in the journal, or -1 if it has to be started over before appending. */
+    private int mJournalRecords;
+    /** Persisted jobs at the time jobs.xml was last written. */
+    private int mCompactedJobCount;
+
     private static final Object sSingletonLock = new Object();
     private final AtomicFile mJobsFile;
+    private final JobStoreJournal mJournal;
     /** Handler backed by IoThread for writing to disk. */
     private final Handler mIoHandler = IoThread.getHandler();
     private static JobStore sSingleton;
@@ -114,10 +137,15 @@ public class JobStore {
         File jobDir = new File(systemDir, "job");
         jobDir.mkdirs();
         mJobsFile = new AtomicFile(new File(jobDir, "jobs.xml"));
+        mJournal = new JobStoreJournal(new File(jobDir, "jobs.journal"));
 
         mJobSet = new JobSet();
 
-        readJobMapFromDisk(mJobSet);
+        final ReadJobMapFromDiskRunnable reader = new ReadJobMapFromDiskRunnable(mJobSet);
+        reader.run();
+        mJobsFileGeneration = reader.generation;
+        mJournalRecords = reader.journalRecords;
+        mCompactedJobCount = mJobSet.size();
     }
 
     /**
@@ -130,6 +158,7 @@ public class JobStore {
         boolean replaced = mJobSet.remove(jobStatus);
         mJobSet.add(jobStatus);
         if (jobStatus.isPersisted()) {
+            mPendingJournalOps.add(new JournalOp(true, new JobStatus(jobStatus)));
             maybeWriteStatusToDiskAsync();
         }
         if (DEBUG) {
@@ -163,8 +192,12 @@ public class JobStore {
             }
             return false;
         }
-        if (writeBack && jobStatus.isPersisted()) {
-            maybeWriteStatusToDiskAsync();
+        if (jobStatus.isPersisted()) {
+            // Without writeBack, the removal goes to disk along with the next change.
+            mPendingJournalOps.add(new JournalOp(false, jobStatus));
+            if (writeBack) {
+                maybeWriteStatusToDiskAsync();
+            }
         }
         return removed;
     }
@@ -172,6 +205,7 @@ public class JobStore {
     @VisibleForTesting
     public void clear() {
         mJobSet.clear();
+        mNeedsCompaction = true;
         maybeWriteStatusToDiskAsync();
     }
 
@@ -214,12 +248,35 @@ public class JobStore {
         mJobSet.forEachJob(uid, functor);
     }
 
+    /**
+     * Iterate over the jobs that require at least one of the given constraints, visiting
+     * each of them once.
+     */
+    public void forEachJobRequiring(int constraints, JobStatusFunctor functor) {
+        mJobSet.forEachJobRequiring(constraints, functor);
+    }
+
     public interface JobStatusFunctor {
         public void process(JobStatus jobStatus);
     }
 
+    /** A change to a persisted job, waiting to be written to the journal. */
+    private static final class JournalOp {
+        final boolean add;
+        final JobStatus job;
+
+        JournalOp(boolean add, JobStatus job) {
+            this.add = add;
+            this.job = job;
+        }
+    }
+
     /** Version of the db schema. */
     private static final int JOBS_FILE_VERSION = 0;
+    /** Journal record adding or replacing a job, followed by the job as an xml document. */
+    private static final byte JOURNAL_OP_ADD = 1;
+    /** Journal record removing a job, followed by its uid and job id. */
+    private static final byte JOURNAL_OP_REMOVE = 2;
     /** Tag corresponds to constraints this job needs. */
     private static final String XML_TAG_PARAMS_CONSTRAINTS = "constraints";
     /** Tag corresponds to execution parameters. */
@@ -228,8 +285,8 @@ public class JobStore {
     private static final String XML_TAG_EXTRAS = "extras";
 
     /**
-     * Every time the state changes we write all the jobs in one swath, instead of trying to
-     * track incremental changes.
+     * Every time the state changes we append the changed jobs to the journal, and rewrite all
+     * the jobs in one swath once the journal has grown too large.
      * @return Whether the operation was successful. This will only fail for e.g. if the system is
      * low on storage. If this happens, we continue as normal
      */
@@ -249,16 +306,47 @@ public class JobStore {
     }
 
     /**
-     * Runnable that writes {@link #mJobSet} out to xml.
+     * Runnable that appends the pending changes to the journal, or writes {@link #mJobSet} out
+     * to xml when the journal needs to be compacted.
      * NOTE: This Runnable locks on mLock
      */
     private class WriteJobsMapToDiskRunnable implements Runnable {
         @Override
         public void run() {
             final long startElapsed = SystemClock.elapsedRealtime();
+            final ArrayList<JournalOp> ops;
+            boolean compact;
+            synchronized (mLock) {
+                ops = mPendingJournalOps;
+                if (ops.isEmpty() && !mNeedsCompaction) {
+                    // Already written out by an earlier runnable.
+                    return;
+                }
+                mPendingJournalOps = new ArrayList<>();
+                compact = mNeedsCompaction || mJournalRecords < 0
+                        || mJournalRecords + ops.size() > Math.max(
+                                MIN_JOURNAL_RECORDS_BEFORE_COMPACTION, mCompactedJobCount);
+                mNeedsCompaction = false;
+            }
+            if (!compact && !appendToJournal(ops)) {
+                // The journal may be torn now, so start over from a full write.
+                compact = true;
+            }
+            if (compact) {
+                writeJobsMapImpl(copyPersistedJobs());
+            }
+            if (JobSchedulerService.DEBUG) {
+                Slog.v(TAG, "Finished writing " + (compact ? "all jobs" : ops.size() + " changes")
+                        + ", took " + (SystemClock.elapsedRealtime() - startElapsed) + "ms");
+            }
+        }
+
+        private List<JobStatus> copyPersistedJobs() {
             final List<JobStatus> storeCopy = new ArrayList<JobStatus>();
             synchronized (mLock) {
-                // Clone the jobs so we can release the lock before writing.
+                // Clone the jobs so we can release the lock before writing. Changes still
+                // pending are part of this copy, so they don't need to be journaled.
+                mPendingJournalOps.clear();
                 mJobSet.forEachJob(new JobStatusFunctor() {
                     @Override
                     public void process(JobStatus job) {
@@ -268,14 +356,48 @@ public class JobStore {
                     }
                 });
             }
-            writeJobsMapImpl(storeCopy);
-            if (JobSchedulerService.DEBUG) {
-                Slog.v(TAG, "Finished writing, took " + (SystemClock.elapsedRealtime()
-                        - startElapsed) + "ms");
+            return storeCopy;
+        }
+
+        private boolean appendToJournal(List<JournalOp> ops) {
+            try {
+                final ArrayList<byte[]> records = new ArrayList<>(ops.size());
+                for (int i = 0; i < ops.size(); i++) {
+                    records.add(writeJournalRecord(ops.get(i)));
+                }
+                mJournal.append(records);
+                mJournalRecords += records.size();
+                mDirtyOperations = 0;
+                return true;
+            } catch (IOException | XmlPullParserException e) {
+                Slog.w(TAG, "Error appending to job journal.", e);
+                return false;
+            }
+        }
+
+        private byte[] writeJournalRecord(JournalOp op)
+                throws IOException, XmlPullParserException {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(baos);
+            if (op.add) {
+                out.writeByte(JOURNAL_OP_ADD);
+                out.flush();
+                XmlSerializer xml = new FastXmlSerializer();
+                xml.setOutput(baos, StandardCharsets.UTF_8.name());
+                xml.startDocument(null, true);
+                writeJobToXml(xml, op.job);
+                xml.endDocument();
+            } else {
+                out.writeByte(JOURNAL_OP_REMOVE);
+                out.writeInt(op.job.getUid());
+                out.writeInt(op.job.getJobId());
+                out.flush();
             }
+            return baos.toByteArray();
         }
 
         private void writeJobsMapImpl(List<JobStatus> jobList) {
+            final long generation = mJobsFileGeneration + 1;
             try {
                 ByteArrayOutputStream baos = new ByteArrayOutputStream();
                 XmlSerializer out = new FastXmlSerializer();
@@ -285,17 +407,9 @@ public class JobStore {
 
                 out.startTag(null, "job-info");
                 out.attribute(null, "version", Integer.toString(JOBS_FILE_VERSION));
+                out.attribute(null, "generation", Long.toString(generation));
                 for (int i=0; i<jobList.size(); i++) {
-                    JobStatus jobStatus = jobList.get(i);
-                    if (DEBUG) {
-                        Slog.d(TAG, "Saving job " + jobStatus.getJobId());
-                    }
-                    out.startTag(null, "job");
-                    addAttributesToJobTag(out, jobStatus);
-                    writeConstraintsToXml(out, jobStatus);
-                    writeExecutionCriteriaToXml(out, jobStatus);
-                    writeBundleToXml(jobStatus.getExtras(), out);
-                    out.endTag(null, "job");
+                    writeJobToXml(out, jobList.get(i));
                 }
                 out.endTag(null, "job-info");
                 out.endDocument();
@@ -305,17 +419,52 @@ public class JobStore {
                 fos.write(baos.toByteArray());
                 mJobsFile.finishWrite(fos);
                 mDirtyOperations = 0;
+                mJobsFileGeneration = generation;
+                mCompactedJobCount = jobList.size();
             } catch (IOException e) {
                 if (DEBUG) {
                     Slog.v(TAG, "Error writing out job data.", e);
                 }
+                retryCompaction();
+                return;
             } catch (XmlPullParserException e) {
                 if (DEBUG) {
                     Slog.d(TAG, "Error persisting bundle.", e);
                 }
+                retryCompaction();
+                return;
+            }
+
+            // The new jobs.xml already has everything the journal had.
+            try {
+                mJournal.reset(generation);
+                mJournalRecords = 0;
+            } catch (IOException e) {
+                Slog.w(TAG, "Error resetting job journal.", e);
+                mJournalRecords = -1;
+            }
+        }
+
+        private void retryCompaction() {
+            synchronized (mLock) {
+                // The changes dropped for this write still have to reach the disk.
+                mNeedsCompaction = true;
             }
         }
 
+        private void writeJobToXml(XmlSerializer out, JobStatus jobStatus)
+                throws IOException, XmlPullParserException {
+            if (DEBUG) {
+                Slog.d(TAG, "Saving job " + jobStatus.getJobId());
+            }
+            out.startTag(null, "job");
+            addAttributesToJobTag(out, jobStatus);
+            writeConstraintsToXml(out, jobStatus);
+            writeExecutionCriteriaToXml(out, jobStatus);
+            writeBundleToXml(jobStatus.getExtras(), out);
+            out.endTag(null, "job");
+        }
+
         /** Write out a tag with data comprising the required fields and priority of this job and
          * its client.
          */
@@ -424,11 +573,16 @@ public class JobStore {
     }
 
     /**
-     * Runnable that reads list of persisted job from xml. This is run once at start up, so doesn't
-     * need to go through {@link JobStore#add(com.android.server.job.controllers.JobStatus)}.
+     * Runnable that reads list of persisted job from xml, and replays the journal on top of it.
+     * This is run once at start up, so doesn't need to go through
+     * {@link JobStore#add(com.android.server.job.controllers.JobStatus)}.
      */
     private class ReadJobMapFromDiskRunnable implements Runnable {
         private final JobSet jobSet;
+        /** Generation of the jobs.xml that was read. */
+        long generation;
+        /** Records found in the journal, or -1 if it did not match jobs.xml. */
+        int journalRecords = -1;
 
         /**
          * @param jobSet Reference to the (empty) set of JobStatus objects that back the JobStore,
@@ -465,6 +619,56 @@ public class JobStore {
                     Slog.d(TAG, "Error parsing xml.", e);
                 }
             }
+
+            final ArrayList<byte[]> records = mJournal.read(generation);
+            if (records != null) {
+                synchronized (mLock) {
+                    for (int i = 0; i < records.size(); i++) {
+                        replayJournalRecord(records.get(i));
+                    }
+                }
+                journalRecords = records.size();
+            }
+        }
+
+        private void replayJournalRecord(byte[] record) {
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+            try {
+                switch (in.readByte()) {
+                    case JOURNAL_OP_ADD: {
+                        XmlPullParser parser = Xml.newPullParser();
+                        parser.setInput(in, StandardCharsets.UTF_8.name());
+                        if (parser.nextTag() != XmlPullParser.START_TAG
+                                || !"job".equals(parser.getName())) {
+                            Slog.d(TAG, "Error reading job from journal.");
+                            return;
+                        }
+                        JobStatus job = restoreJobFromXml(parser);
+                        if (job == null) {
+                            Slog.d(TAG, "Error reading job from journal.");
+                            return;
+                        }
+                        removeJob(job.getUid(), job.getJobId());
+                        jobSet.add(job);
+                        break;
+                    }
+                    case JOURNAL_OP_REMOVE:
+                        removeJob(in.readInt(), in.readInt());
+                        break;
+                    default:
+                        Slog.d(TAG, "Unknown job journal record, skipping.");
+                        break;
+                }
+            } catch (IOException | XmlPullParserException e) {
+                Slog.d(TAG, "Error replaying job journal record, skipping.", e);
+            }
+        }
+
+        private void removeJob(int uid, int jobId) {
+            final JobStatus existing = jobSet.get(uid, jobId);
+            if (existing != null) {
+                jobSet.remove(existing);
+            }
         }
 
         private List<JobStatus> readJobMapImpl(FileInputStream fis)
@@ -499,6 +703,14 @@ public class JobStore {
                     Slog.e(TAG, "Invalid version number, aborting jobs file read.");
                     return null;
                 }
+                // Files written before the journal existed have no generation.
+                try {
+                    String val = parser.getAttributeValue(null, "generation");
+                    generation = (val != null) ? Long.parseLong(val) : 0;
+                } catch (NumberFormatException e) {
+                    Slog.e(TAG, "Invalid generation, ignoring the job journal.");
+                    generation = -1;
+                }
                 eventType = parser.next();
                 do {
                     // Read each <job/>
@@ -773,9 +985,12 @@ public class JobStore {
     static class JobSet {
         // Key is the getUid() originator of the jobs in each sheaf
         private SparseArray<ArraySet<JobStatus>> mJobs;
+        // Key is a single constraint bit; holds the jobs that require that constraint
+        private SparseArray<ArraySet<JobStatus>> mJobsByConstraint;
 
         public JobSet() {
             mJobs = new SparseArray<ArraySet<JobStatus>>();
+            mJobsByConstraint = new SparseArray<ArraySet<JobStatus>>();
         }
 
         public List<JobStatus> getJobsByUid(int uid) {
@@ -808,7 +1023,21 @@ public class JobStore {
                 jobs = new ArraySet<JobStatus>();
                 mJobs.put(uid, jobs);
             }
-            return jobs.add(job);
+            if (!jobs.add(job)) {
+                return false;
+            }
+            int constraints = job.getRequiredConstraints();
+            while (constraints != 0) {
+                final int bit = Integer.lowestOneBit(constraints);
+                constraints &= ~bit;
+                ArraySet<JobStatus> constrained = mJobsByConstraint.get(bit);
+                if (constrained == null) {
+                    constrained = new ArraySet<JobStatus>();
+                    mJobsByConstraint.put(bit, constrained);
+                }
+                constrained.add(job);
+            }
+            return true;
         }
 
         public boolean remove(JobStatus job) {
@@ -819,6 +1048,20 @@ public class JobStore {
                 // no more jobs for this uid; let the now-empty set object be GC'd.
                 mJobs.remove(uid);
             }
+            if (didRemove) {
+                int constraints = job.getRequiredConstraints();
+                while (constraints != 0) {
+                    final int bit = Integer.lowestOneBit(constraints);
+                    constraints &= ~bit;
+                    ArraySet<JobStatus> constrained = mJobsByConstraint.get(bit);
+                    if (constrained != null) {
+                        constrained.remove(job);
+                        if (constrained.size() == 0) {
+                            mJobsByConstraint.remove(bit);
+                        }
+                    }
+                }
+            }
             return didRemove;
         }
 
@@ -860,6 +1103,7 @@ public class JobStore {
 
         public void clear() {
             mJobs.clear();
+            mJobsByConstraint.clear();
         }
 
         public int size() {
@@ -903,5 +1147,24 @@ public class JobStore {
                 }
             }
         }
+
+        public void forEachJobRequiring(int constraints, JobStatusFunctor functor) {
+            for (int bitIndex = mJobsByConstraint.size() - 1; bitIndex >= 0; bitIndex--) {
+                final int bit = mJobsByConstraint.keyAt(bitIndex);
+                if ((constraints & bit) == 0) {
+                    continue;
+                }
+                // A job requiring several of the changed constraints is only visited from
+                // the lowest of them.
+                final int lowerBits = constraints & (bit - 1);
+                ArraySet<JobStatus> jobs = mJobsByConstraint.valueAt(bitIndex);
+                for (int i = jobs.size() - 1; i >= 0; i--) {
+                    final JobStatus job = jobs.valueAt(i);
+                    if ((job.getRequiredConstraints() & lowerBits) == 0) {
+                        functor.process(job);
+                    }
+                }
+            }
+        }
     }
 }
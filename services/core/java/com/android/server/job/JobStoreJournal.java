@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.job;
+
+import com.android.internal.util.RecordJournal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Append-only file of changes made to the persisted jobs since jobs.xml was last written.
+ * <p>
+ * The journal carries the generation of the jobs.xml it applies to, and is ignored on top
+ * of any other. Each record is an opaque blob written by {@link JobStore}.
+ */
+final class JobStoreJournal {
+    private static final int JOURNAL_MAGIC = 0x4A4F424A;
+    private static final int JOURNAL_VERSION = 1;
+
+    /** Upper bound for a single record, used to reject corrupt lengths. */
+    private static final int MAX_RECORD_SIZE = 1024 * 1024;
+
+    private final RecordJournal mJournal;
+
+    JobStoreJournal(File file) {
+        mJournal = new RecordJournal(file, JOURNAL_MAGIC, JOURNAL_VERSION, MAX_RECORD_SIZE);
+    }
+
+    long length() {
+        return mJournal.length();
+    }
+
+    /**
+     * Discards all records and starts an empty journal on top of the given generation
+     * of jobs.xml.
+     */
+    void reset(long generation) throws IOException {
+        mJournal.reset(generation);
+    }
+
+    /**
+     * Appends the given records. The journal must have been started with
+     * {@link #reset(long)} first.
+     */
+    void append(ArrayList<byte[]> records) throws IOException {
+        mJournal.append(records);
+    }
+
+    /**
+     * Returns the records written on top of the given generation, or null if the journal
+     * is missing, unreadable or belongs to another generation.
+     */
+    ArrayList<byte[]> read(long generation) {
+        final ArrayList<byte[]> records = new ArrayList<>();
+        final int count = mJournal.read(generation, new RecordJournal.RecordHandler() {
+            @Override
+            public void onRecord(byte[] data, int length) {
+                records.add(Arrays.copyOf(data, length));
+            }
+        });
+        return count >= 0 ? records : null;
+    }
+}
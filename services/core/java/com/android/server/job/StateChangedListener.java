@@ -30,6 +30,13 @@ public interface StateChangedListener {
      */
     public void onControllerStateChanged();
 
+    /**
+     * Like {@link #onControllerStateChanged()}, but only the tasks that require one of the given
+     * constraints, or that were already ready to run, need to be checked.
+     * @param changedConstraints Mask of the JobStatus constraints that changed for some task.
+     */
+    public void onControllerStateChanged(int changedConstraints);
+
     /**
      * Called by the controller to notify the JobManager that regardless of the state of the task,
      * it must be run immediately.
@@ -128,7 +128,8 @@ public class ConnectivityController extends StateController implements
                 }
             }
             if (changed) {
-                mStateChangedListener.onControllerStateChanged();
+                mStateChangedListener.onControllerStateChanged(JobStatus.CONSTRAINT_CONNECTIVITY
+                        | JobStatus.CONSTRAINT_UNMETERED | JobStatus.CONSTRAINT_NOT_ROAMING);
             }
         }
     }
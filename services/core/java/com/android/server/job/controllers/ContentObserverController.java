@@ -327,7 +327,8 @@ public class ContentObserverController extends StateController {
             // Let the scheduler know that state has changed. This may or may not result in an
             // execution.
             if (reportChange) {
-                mStateChangedListener.onControllerStateChanged();
+                mStateChangedListener.onControllerStateChanged(
+                        JobStatus.CONSTRAINT_CONTENT_TRIGGER);
             }
         }
 
@@ -87,7 +87,7 @@ public class IdleController extends StateController {
                 task.setIdleConstraintSatisfied(isIdle);
             }
         }
-        mStateChangedListener.onControllerStateChanged();
+        mStateChangedListener.onControllerStateChanged(JobStatus.CONSTRAINT_IDLE);
     }
 
     /**
@@ -56,6 +56,10 @@ public final class JobStatus {
     static final int CONSTRAINT_DEVICE_NOT_DOZING = 1<<8;
     static final int CONSTRAINT_NOT_ROAMING = 1<<9;
 
+    /** Constraints every job is subject to, whether or not it asked for them. */
+    public static final int IMPLICIT_CONSTRAINTS =
+            CONSTRAINT_APP_NOT_IDLE | CONSTRAINT_DEVICE_NOT_DOZING;
+
     // Soft override: ignore constraints like time that don't affect API availability
     public static final int OVERRIDE_SOFT = 1;
     // Full override: ignore all constraints including API-affecting like connectivity
@@ -310,6 +314,13 @@ public final class JobStatus {
         return job.getFlags();
     }
 
+    /**
+     * @return The constraints this job asked for, not including {@link #IMPLICIT_CONSTRAINTS}.
+     */
+    public int getRequiredConstraints() {
+        return requiredConstraints;
+    }
+
     public boolean hasConnectivityConstraint() {
         return (requiredConstraints&CONSTRAINT_CONNECTIVITY) != 0;
     }
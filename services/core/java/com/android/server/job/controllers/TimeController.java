@@ -201,7 +201,8 @@ public class TimeController extends StateController {
                 }
             }
             if (ready) {
-                mStateChangedListener.onControllerStateChanged();
+                mStateChangedListener.onControllerStateChanged(
+                        JobStatus.CONSTRAINT_TIMING_DELAY);
             }
             setDelayExpiredAlarmLocked(nextDelayTime, nextDelayUid);
         }
@@ -80,13 +80,29 @@ public class NetworkStatsCollection implements FileRotator.Reader {
 
     private final long mBucketDuration;
 
+    /** Only buckets overlapping this range are kept; see {@link #isClipped()}. */
+    private final long mClipStartMillis;
+    private final long mClipEndMillis;
+
     private long mStartMillis;
     private long mEndMillis;
     private long mTotalBytes;
     private boolean mDirty;
 
     public NetworkStatsCollection(long bucketDuration) {
+        this(bucketDuration, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Create a collection that only keeps buckets overlapping the given time
+     * range, dropping everything else as it is recorded or read. Queries
+     * about any range inside of it return the same values as they would on a
+     * complete collection.
+     */
+    public NetworkStatsCollection(long bucketDuration, long clipStart, long clipEnd) {
         mBucketDuration = bucketDuration;
+        mClipStartMillis = clipStart;
+        mClipEndMillis = clipEnd;
         reset();
     }
 
@@ -134,6 +150,18 @@ public class NetworkStatsCollection implements FileRotator.Reader {
         return mStartMillis == Long.MAX_VALUE && mEndMillis == Long.MIN_VALUE;
     }
 
+    public boolean isClipped() {
+        return mClipStartMillis != Long.MIN_VALUE || mClipEndMillis != Long.MAX_VALUE;
+    }
+
+    /**
+     * Test if queries about the given time range can be answered from this
+     * collection.
+     */
+    public boolean coversRange(long start, long end) {
+        return mClipStartMillis <= start && end <= mClipEndMillis;
+    }
+
     public int[] getRelevantUids(@NetworkStatsAccess.Level int accessLevel) {
         return getRelevantUids(accessLevel, Binder.getCallingUid());
     }
@@ -263,6 +291,9 @@ public class NetworkStatsCollection implements FileRotator.Reader {
      */
     public void recordData(NetworkIdentitySet ident, int uid, int set, int tag, long start,
             long end, NetworkStats.Entry entry) {
+        // skip when outside of clipped range
+        if (end < mClipStartMillis || start > mClipEndMillis) return;
+
         final NetworkStatsHistory history = findOrCreateHistory(ident, uid, set, tag);
         history.recordData(start, end, entry);
         noteRecordedHistory(history.getStart(), history.getEnd(), entry.rxBytes + entry.txBytes);
@@ -273,6 +304,10 @@ public class NetworkStatsCollection implements FileRotator.Reader {
      */
     private void recordHistory(Key key, NetworkStatsHistory history) {
         if (history.size() == 0) return;
+        if (isClipped()) {
+            recordClippedHistory(key, history);
+            return;
+        }
         noteRecordedHistory(history.getStart(), history.getEnd(), history.getTotalBytes());
 
         NetworkStatsHistory target = mStats.get(key);
@@ -283,6 +318,36 @@ public class NetworkStatsCollection implements FileRotator.Reader {
         target.recordEntireHistory(history);
     }
 
+    /**
+     * Record only those buckets of the given {@link NetworkStatsHistory} which
+     * overlap the clipped range into this collection.
+     */
+    private void recordClippedHistory(Key key, NetworkStatsHistory history) {
+        // recordHistory() copies buckets that lie entirely inside its range,
+        // so widen the range by just under one bucket on each side.
+        final long duration = history.getBucketDuration();
+        final long start = mClipStartMillis < Long.MIN_VALUE + duration ? Long.MIN_VALUE
+                : mClipStartMillis - duration + 1;
+        final long end = mClipEndMillis > Long.MAX_VALUE - duration ? Long.MAX_VALUE
+                : mClipEndMillis + duration - 1;
+        if (history.getEnd() <= start || history.getStart() >= end) return;
+
+        NetworkStatsHistory target = mStats.get(key);
+        final boolean created = target == null;
+        if (created) {
+            target = new NetworkStatsHistory(duration);
+        }
+        final long totalBefore = target.getTotalBytes();
+        target.recordHistory(history, start, end);
+        if (target.size() == 0) return;
+
+        if (created) {
+            mStats.put(key, target);
+        }
+        noteRecordedHistory(target.getStart(), target.getEnd(),
+                target.getTotalBytes() - totalBefore);
+    }
+
     /**
      * Record all {@link NetworkStatsHistory} contained in the given collection
      * into this collection.
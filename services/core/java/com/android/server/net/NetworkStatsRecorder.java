@@ -87,6 +87,7 @@ public class NetworkStatsRecorder {
     private final CombiningRewriter mPendingRewriter;
 
     private WeakReference<NetworkStatsCollection> mComplete;
+    private WeakReference<NetworkStatsCollection> mPartial;
 
     /**
      * Non-persisted recorder, with only one bucket. Used by {@link NetworkStatsObservers}.
@@ -144,6 +145,9 @@ public class NetworkStatsRecorder {
         if (mComplete != null) {
             mComplete.clear();
         }
+        if (mPartial != null) {
+            mPartial.clear();
+        }
     }
 
     public NetworkStats.Entry getTotalSinceBootLocked(NetworkTemplate template) {
@@ -171,18 +175,30 @@ public class NetworkStatsRecorder {
         return res;
     }
 
+    /**
+     * Load history overlapping the given time range, which is enough to answer
+     * queries about that range. Uses the complete history when it is already
+     * loaded, and otherwise keeps only buckets inside the range, caching them
+     * internally as a {@link WeakReference} that is updated with future
+     * {@link #recordSnapshotLocked(NetworkStats, Map, VpnInfo[], long)}
+     * snapshots as long as reference is valid.
+     */
     public NetworkStatsCollection getOrLoadPartialLocked(long start, long end) {
         checkNotNull(mRotator, "missing FileRotator");
         NetworkStatsCollection res = mComplete != null ? mComplete.get() : null;
         if (res == null) {
-            res = loadLocked(start, end);
+            res = mPartial != null ? mPartial.get() : null;
+            if (res == null || !res.coversRange(start, end)) {
+                res = loadLocked(start, end);
+                mPartial = new WeakReference<NetworkStatsCollection>(res);
+            }
         }
         return res;
     }
 
     private NetworkStatsCollection loadLocked(long start, long end) {
         if (LOGD) Slog.d(TAG, "loadLocked() reading from disk for " + mCookie);
-        final NetworkStatsCollection res = new NetworkStatsCollection(mBucketDuration);
+        final NetworkStatsCollection res = new NetworkStatsCollection(mBucketDuration, start, end);
         try {
             mRotator.readMatching(res, start, end);
             res.recordCollection(mPending);
@@ -221,6 +237,7 @@ public class NetworkStatsRecorder {
         }
 
         final NetworkStatsCollection complete = mComplete != null ? mComplete.get() : null;
+        final NetworkStatsCollection partial = mPartial != null ? mPartial.get() : null;
 
         final NetworkStats delta = NetworkStats.subtract(
                 snapshot, mLastSnapshot, mObserver, mCookie);
@@ -260,6 +277,11 @@ public class NetworkStatsRecorder {
                 if (complete != null) {
                     complete.recordData(ident, entry.uid, entry.set, entry.tag, start, end, entry);
                 }
+
+                // and against partial dataset, which ignores data outside its range
+                if (partial != null) {
+                    partial.recordData(ident, entry.uid, entry.set, entry.tag, start, end, entry);
+                }
             }
         }
 
@@ -340,6 +362,10 @@ public class NetworkStatsRecorder {
         if (complete != null) {
             complete.removeUids(uids);
         }
+        final NetworkStatsCollection partial = mPartial != null ? mPartial.get() : null;
+        if (partial != null) {
+            partial.removeUids(uids);
+        }
     }
 
     /**
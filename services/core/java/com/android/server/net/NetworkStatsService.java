@@ -522,6 +522,8 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         return new INetworkStatsSession.Stub() {
             private NetworkStatsCollection mUidComplete;
             private NetworkStatsCollection mUidTagComplete;
+            private NetworkStatsCollection mUidPartial;
+            private NetworkStatsCollection mUidTagPartial;
             private String mCallingPackage = callingPackage;
 
             private NetworkStatsCollection getUidComplete() {
@@ -542,6 +544,30 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                 }
             }
 
+            /**
+             * Return stats able to answer queries about the given range, without
+             * loading the complete history when it isn't already loaded.
+             */
+            private NetworkStatsCollection getUidPartial(long start, long end) {
+                synchronized (mStatsLock) {
+                    if (mUidComplete != null) {
+                        return mUidComplete;
+                    }
+                    mUidPartial = mUidRecorder.getOrLoadPartialLocked(start, end);
+                    return mUidPartial;
+                }
+            }
+
+            private NetworkStatsCollection getUidTagPartial(long start, long end) {
+                synchronized (mStatsLock) {
+                    if (mUidTagComplete != null) {
+                        return mUidTagComplete;
+                    }
+                    mUidTagPartial = mUidTagRecorder.getOrLoadPartialLocked(start, end);
+                    return mUidTagPartial;
+                }
+            }
+
             @Override
             public int[] getRelevantUids() {
                 return getUidComplete().getRelevantUids(checkAccessLevel(mCallingPackage));
@@ -588,9 +614,9 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                     NetworkTemplate template, long start, long end, boolean includeTags) {
                 @NetworkStatsAccess.Level int accessLevel = checkAccessLevel(mCallingPackage);
                 final NetworkStats stats =
-                        getUidComplete().getSummary(template, start, end, accessLevel);
+                        getUidPartial(start, end).getSummary(template, start, end, accessLevel);
                 if (includeTags) {
-                    final NetworkStats tagStats = getUidTagComplete()
+                    final NetworkStats tagStats = getUidTagPartial(start, end)
                             .getSummary(template, start, end, accessLevel);
                     stats.combineAllValues(tagStats);
                 }
@@ -616,11 +642,11 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                     long start, long end) {
                 @NetworkStatsAccess.Level int accessLevel = checkAccessLevel(mCallingPackage);
                 if (tag == TAG_NONE) {
-                    return getUidComplete().getHistory(template, uid, set, tag, fields, start, end,
-                            accessLevel);
-                } else if (uid == Binder.getCallingUid()) {
-                    return getUidTagComplete().getHistory(template, uid, set, tag, fields,
+                    return getUidPartial(start, end).getHistory(template, uid, set, tag, fields,
                             start, end, accessLevel);
+                } else if (uid == Binder.getCallingUid()) {
+                    return getUidTagPartial(start, end).getHistory(template, uid, set, tag,
+                            fields, start, end, accessLevel);
                 } else {
                     throw new SecurityException("Calling package " + mCallingPackage
                             + " cannot access tag information from a different uid");
@@ -631,6 +657,8 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             public void close() {
                 mUidComplete = null;
                 mUidTagComplete = null;
+                mUidPartial = null;
+                mUidTagPartial = null;
             }
         };
     }
@@ -237,6 +237,12 @@ public class NotificationManagerService extends SystemService {
     /** notification_enqueue status value for an ignored notification. */
     private static final int EVENTLOG_ENQUEUE_STATUS_IGNORED = 2;
     private static final long MIN_PACKAGE_OVERRATE_LOG_INTERVAL = 5000; // milliseconds
+
+    // Updates from a package asking for them faster than this are held back for
+    // COALESCE_WINDOW_MS, so that later updates to the same notification replace them
+    // before they are ranked and sent to listeners.
+    static final float COALESCE_UPDATE_RATE = 5f; // updates per second
+    static final long COALESCE_WINDOW_MS = 200;
     private String mRankerServicePackageName;
 
     /** notification light maximum brightness value to use. */
@@ -346,6 +352,9 @@ public class NotificationManagerService extends SystemService {
     private RankingHandler mRankingHandler;
     private long mLastOverRateLogTime;
     private float mMaxPackageEnqueueRate = DEFAULT_MAX_NOTIFICATION_ENQUEUE_RATE;
+
+    // Updates being held back, by notification key; guarded by mNotificationList
+    final ArrayMap<String, EnqueueNotificationRunnable> mCoalescedEnqueues = new ArrayMap<>();
     private String mSystemNotificationSound;
 
     private static class Archive {
@@ -1064,6 +1073,11 @@ public class NotificationManagerService extends SystemService {
         mHandler = handler;
     }
 
+    @VisibleForTesting
+    void setLights(Light notificationLight) {
+        mNotificationLight = notificationLight;
+    }
+
     @VisibleForTesting
     void setSystemNotificationSound(String systemNotificationSound) {
         mSystemNotificationSound = systemNotificationSound;
@@ -2603,6 +2617,7 @@ public class NotificationManagerService extends SystemService {
                     pw.println("  mCallState=" + callStateToString(mCallState));
                     pw.println("  mSystemReady=" + mSystemReady);
                     pw.println("  mMaxPackageEnqueueRate=" + mMaxPackageEnqueueRate);
+                    pw.println("  mCoalescedEnqueues=" + mCoalescedEnqueues.size());
                 }
                 pw.println("  mArchive=" + mArchive.toString());
                 Iterator<StatusBarNotification> iter = mArchive.descendingIterator();
@@ -2822,13 +2837,82 @@ public class NotificationManagerService extends SystemService {
 
         // setup local book-keeping
         final NotificationRecord r = new NotificationRecord(getContext(), n);
-        mHandler.post(new EnqueueNotificationRunnable(userId, r));
+        synchronized (mNotificationList) {
+            final String key = n.getKey();
+            final EnqueueNotificationRunnable held = mCoalescedEnqueues.get(key);
+            final boolean isUpdate = held != null || mNotificationsByKey.get(key) != null;
+            final float updateRate = isUpdate ? mUsageStats.registerUpdateRequestedByApp(pkg) : 0f;
+            if (held != null) {
+                // The update being held back is superseded by this one.
+                held.r = r;
+                mUsageStats.registerCoalescedByApp(pkg);
+            } else if (updateRate > COALESCE_UPDATE_RATE && !isSystemNotification) {
+                holdEnqueueLocked(userId, r);
+            } else {
+                mHandler.post(new EnqueueNotificationRunnable(userId, r));
+            }
+        }
 
         idOut[0] = id;
     }
 
+    /**
+     * Holds back an update to a notification for {@link #COALESCE_WINDOW_MS}, so that later
+     * updates to it within the window can replace it.
+     */
+    @VisibleForTesting
+    void holdEnqueueLocked(int userId, NotificationRecord r) {
+        final String key = r.getKey();
+        mCoalescedEnqueues.put(key, new EnqueueNotificationRunnable(userId, r));
+        mHandler.postDelayed(new CoalescedEnqueueRunnable(key), COALESCE_WINDOW_MS);
+    }
+
+    /**
+     * Applies the update held back for a notification, unless it was already applied.
+     */
+    private class CoalescedEnqueueRunnable implements Runnable {
+        private final String key;
+
+        CoalescedEnqueueRunnable(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            final EnqueueNotificationRunnable held;
+            synchronized (mNotificationList) {
+                held = mCoalescedEnqueues.remove(key);
+            }
+            if (held != null) {
+                held.run();
+            }
+        }
+    }
+
+    /**
+     * Applies any update held back for the given notification right away, so that it does
+     * not come back after being cancelled.  Called on the handler.
+     */
+    private void applyCoalescedEnqueue(String pkg, String tag, int id, int userId) {
+        EnqueueNotificationRunnable held = null;
+        synchronized (mNotificationList) {
+            for (int i = mCoalescedEnqueues.size() - 1; i >= 0; i--) {
+                final NotificationRecord r = mCoalescedEnqueues.valueAt(i).r;
+                if (notificationMatchesUserId(r, userId) && r.sbn.getId() == id
+                        && TextUtils.equals(r.sbn.getTag(), tag)
+                        && r.sbn.getPackageName().equals(pkg)) {
+                    held = mCoalescedEnqueues.removeAt(i);
+                    break;
+                }
+            }
+        }
+        if (held != null) {
+            held.run();
+        }
+    }
+
     private class EnqueueNotificationRunnable implements Runnable {
-        private final NotificationRecord r;
+        private NotificationRecord r;
         private final int userId;
 
         EnqueueNotificationRunnable(int userId, NotificationRecord r) {
@@ -2925,7 +3009,7 @@ public class NotificationManagerService extends SystemService {
                 }
 
                 applyZenModeLocked(r);
-                mRankingHelper.sort(mNotificationList);
+                mRankingHelper.sortUpdated(mNotificationList, r, old);
 
                 if (notification.getSmallIcon() != null) {
                     StatusBarNotification oldSbn = (old != null) ? old.sbn : null;
@@ -3633,6 +3717,7 @@ public class NotificationManagerService extends SystemService {
         }
 
         mNotificationsByKey.remove(r.sbn.getKey());
+        mRankingHelper.onRecordRemoved(r);
         String groupKey = r.getGroupKey();
         NotificationRecord groupSummary = mSummaryByGroupKey.get(groupKey);
         if (groupSummary != null && groupSummary.getKey().equals(r.getKey())) {
@@ -3666,6 +3751,7 @@ public class NotificationManagerService extends SystemService {
         mHandler.post(new Runnable() {
             @Override
             public void run() {
+                applyCoalescedEnqueue(pkg, tag, id, userId);
                 String listenerName = listener == null ? null : listener.component.toShortString();
                 if (DBG) EventLogTags.writeNotificationCancel(callingUid, callingPid, pkg, id, tag,
                         userId, mustHaveFlags, mustNotHaveFlags, reason, listenerName);
@@ -3737,24 +3823,23 @@ public class NotificationManagerService extends SystemService {
                 listenerName);
 
         synchronized (mNotificationList) {
+            // Updates held back for these notifications would otherwise bring them back once
+            // their window ends.
+            for (int i = mCoalescedEnqueues.size() - 1; i >= 0; i--) {
+                final NotificationRecord r = mCoalescedEnqueues.valueAt(i).r;
+                if (matchesCancelAll(r, pkg, mustHaveFlags, mustNotHaveFlags, userId)) {
+                    if (!doit) {
+                        return true;
+                    }
+                    mCoalescedEnqueues.removeAt(i);
+                }
+            }
+
             final int N = mNotificationList.size();
             ArrayList<NotificationRecord> canceledNotifications = null;
             for (int i = N-1; i >= 0; --i) {
                 NotificationRecord r = mNotificationList.get(i);
-                if (!notificationMatchesUserId(r, userId)) {
-                    continue;
-                }
-                // Don't remove notifications to all, if there's no package name specified
-                if (r.getUserId() == UserHandle.USER_ALL && pkg == null) {
-                    continue;
-                }
-                if ((r.getFlags() & mustHaveFlags) != mustHaveFlags) {
-                    continue;
-                }
-                if ((r.getFlags() & mustNotHaveFlags) != 0) {
-                    continue;
-                }
-                if (pkg != null && !r.sbn.getPackageName().equals(pkg)) {
+                if (!matchesCancelAll(r, pkg, mustHaveFlags, mustNotHaveFlags, userId)) {
                     continue;
                 }
                 if (canceledNotifications == null) {
@@ -3781,28 +3866,44 @@ public class NotificationManagerService extends SystemService {
         }
     }
 
+    private boolean matchesCancelAll(NotificationRecord r, String pkg, int mustHaveFlags,
+            int mustNotHaveFlags, int userId) {
+        if (!notificationMatchesUserId(r, userId)) {
+            return false;
+        }
+        // Don't remove notifications to all, if there's no package name specified
+        if (r.getUserId() == UserHandle.USER_ALL && pkg == null) {
+            return false;
+        }
+        if ((r.getFlags() & mustHaveFlags) != mustHaveFlags) {
+            return false;
+        }
+        if ((r.getFlags() & mustNotHaveFlags) != 0) {
+            return false;
+        }
+        return pkg == null || r.sbn.getPackageName().equals(pkg);
+    }
+
     void cancelAllLocked(int callingUid, int callingPid, int userId, int reason,
             ManagedServiceInfo listener, boolean includeCurrentProfiles) {
         String listenerName = listener == null ? null : listener.component.toShortString();
         EventLogTags.writeNotificationCancelAll(callingUid, callingPid,
                 null, userId, 0, 0, reason, listenerName);
 
+        // Held back updates to clearable notifications would otherwise bring them back once
+        // their window ends; updates to the others are still applied.
+        for (int i = mCoalescedEnqueues.size() - 1; i >= 0; i--) {
+            final NotificationRecord r = mCoalescedEnqueues.valueAt(i).r;
+            if (matchesClearAll(r, userId, includeCurrentProfiles)) {
+                mCoalescedEnqueues.removeAt(i);
+            }
+        }
+
         ArrayList<NotificationRecord> canceledNotifications = null;
         final int N = mNotificationList.size();
         for (int i=N-1; i>=0; i--) {
             NotificationRecord r = mNotificationList.get(i);
-            if (includeCurrentProfiles) {
-                if (!notificationMatchesCurrentProfiles(r, userId)) {
-                    continue;
-                }
-            } else {
-                if (!notificationMatchesUserId(r, userId)) {
-                    continue;
-                }
-            }
-
-            if ((r.getFlags() & (Notification.FLAG_ONGOING_EVENT
-                            | Notification.FLAG_NO_CLEAR)) == 0) {
+            if (matchesClearAll(r, userId, includeCurrentProfiles)) {
                 mNotificationList.remove(i);
                 cancelNotificationLocked(r, true, reason);
                 // Make a note so we can cancel children later.
@@ -3820,6 +3921,21 @@ public class NotificationManagerService extends SystemService {
         updateLightsLocked();
     }
 
+    private boolean matchesClearAll(NotificationRecord r, int userId,
+            boolean includeCurrentProfiles) {
+        if (includeCurrentProfiles) {
+            if (!notificationMatchesCurrentProfiles(r, userId)) {
+                return false;
+            }
+        } else {
+            if (!notificationMatchesUserId(r, userId)) {
+                return false;
+            }
+        }
+        return (r.getFlags() & (Notification.FLAG_ONGOING_EVENT
+                | Notification.FLAG_NO_CLEAR)) == 0;
+    }
+
     // Warning: The caller is responsible for invoking updateLightsLocked().
     private void cancelGroupChildrenLocked(NotificationRecord r, int callingUid, int callingPid,
             String listenerName, int reason, boolean sendDelete) {
@@ -3836,12 +3952,18 @@ public class NotificationManagerService extends SystemService {
             return;
         }
 
+        for (int i = mCoalescedEnqueues.size() - 1; i >= 0; i--) {
+            final NotificationRecord childR = mCoalescedEnqueues.valueAt(i).r;
+            if (isGroupChildOf(childR, r)) {
+                mCoalescedEnqueues.removeAt(i);
+            }
+        }
+
         final int N = mNotificationList.size();
         for (int i = N - 1; i >= 0; i--) {
             NotificationRecord childR = mNotificationList.get(i);
             StatusBarNotification childSbn = childR.sbn;
-            if ((childSbn.isGroup() && !childSbn.getNotification().isGroupSummary()) &&
-                    childR.getGroupKey().equals(r.getGroupKey())) {
+            if (isGroupChildOf(childR, r)) {
                 EventLogTags.writeNotificationCancel(callingUid, callingPid, pkg, childSbn.getId(),
                         childSbn.getTag(), userId, 0, 0, reason, listenerName);
                 mNotificationList.remove(i);
@@ -3850,6 +3972,12 @@ public class NotificationManagerService extends SystemService {
         }
     }
 
+    private static boolean isGroupChildOf(NotificationRecord childR, NotificationRecord summary) {
+        final StatusBarNotification childSbn = childR.sbn;
+        return childSbn.isGroup() && !childSbn.getNotification().isGroupSummary()
+                && childR.getGroupKey().equals(summary.getGroupKey());
+    }
+
     private boolean isLedNotificationForcedOn(NotificationRecord r) {
         if (r != null) {
             final Notification n = r.sbn.getNotification();
@@ -236,6 +236,35 @@ public class NotificationUsageStats {
         releaseAggregatedStatsLocked(aggregatedStatsArray);
     }
 
+    /**
+     * Called when an app asks to update a notification that it has already posted, before
+     * the update is possibly coalesced with later ones.
+     *
+     * @return the rate at which the package has been asking for updates, including this one.
+     */
+    public synchronized float registerUpdateRequestedByApp(String packageName) {
+        final long now = SystemClock.elapsedRealtime();
+        AggregatedStats[] aggregatedStatsArray = getAggregatedStatsLocked(packageName);
+        for (AggregatedStats stats : aggregatedStatsArray) {
+            stats.numUpdateRequestsByApp++;
+            stats.updateRequestRate.update(now);
+        }
+        releaseAggregatedStatsLocked(aggregatedStatsArray);
+        AggregatedStats stats = getOrCreateAggregatedStatsLocked(packageName);
+        return stats.updateRequestRate.getRate(now);
+    }
+
+    /**
+     * Called when an update was superseded by a later one before it was delivered.
+     */
+    public synchronized void registerCoalescedByApp(String packageName) {
+        AggregatedStats[] aggregatedStatsArray = getAggregatedStatsLocked(packageName);
+        for (AggregatedStats stats : aggregatedStatsArray) {
+            stats.numCoalescedByApp++;
+        }
+        releaseAggregatedStatsLocked(aggregatedStatsArray);
+    }
+
     public synchronized void registerOverRateQuota(String packageName) {
         AggregatedStats[] aggregatedStatsArray = getAggregatedStatsLocked(packageName);
         for (AggregatedStats stats : aggregatedStatsArray) {
@@ -361,6 +390,8 @@ public class NotificationUsageStats {
         public int numPostedByApp;
         public int numUpdatedByApp;
         public int numRemovedByApp;
+        public int numUpdateRequestsByApp;
+        public int numCoalescedByApp;
         public int numPeopleCacheHit;
         public int numPeopleCacheMiss;;
         public int numWithStaredPeople;
@@ -387,6 +418,7 @@ public class NotificationUsageStats {
         public ImportanceHistogram quietImportance;
         public ImportanceHistogram finalImportance;
         public RateEstimator enqueueRate;
+        public RateEstimator updateRequestRate;
         public int numRateViolations;
         public int numQuotaViolations;
         public long mLastAccessTime;
@@ -399,6 +431,7 @@ public class NotificationUsageStats {
             quietImportance = new ImportanceHistogram(context, "note_imp_quiet_");
             finalImportance = new ImportanceHistogram(context, "note_importance_");
             enqueueRate = new RateEstimator();
+            updateRequestRate = new RateEstimator();
         }
 
         public AggregatedStats getPrevious() {
@@ -510,6 +543,9 @@ public class NotificationUsageStats {
             maybeCount("note_text", (numWithText - previous.numWithText));
             maybeCount("note_sub_text", (numWithSubText - previous.numWithSubText));
             maybeCount("note_info_text", (numWithInfoText - previous.numWithInfoText));
+            maybeCount("note_update_req",
+                    (numUpdateRequestsByApp - previous.numUpdateRequestsByApp));
+            maybeCount("note_coalesced", (numCoalescedByApp - previous.numCoalescedByApp));
             maybeCount("note_over_rate", (numRateViolations - previous.numRateViolations));
             maybeCount("note_over_quota", (numQuotaViolations - previous.numQuotaViolations));
             noisyImportance.maybeCount(previous.noisyImportance);
@@ -520,6 +556,8 @@ public class NotificationUsageStats {
             previous.numPostedByApp = numPostedByApp;
             previous.numUpdatedByApp = numUpdatedByApp;
             previous.numRemovedByApp = numRemovedByApp;
+            previous.numUpdateRequestsByApp = numUpdateRequestsByApp;
+            previous.numCoalescedByApp = numCoalescedByApp;
             previous.numPeopleCacheHit = numPeopleCacheHit;
             previous.numPeopleCacheMiss = numPeopleCacheMiss;
             previous.numWithStaredPeople = numWithStaredPeople;
@@ -592,6 +630,11 @@ public class NotificationUsageStats {
             output.append(indentPlusTwo);
             output.append("numRemovedByApp=").append(numRemovedByApp).append(",\n");
             output.append(indentPlusTwo);
+            output.append("numUpdateRequestsByApp=").append(numUpdateRequestsByApp)
+                    .append(",\n");
+            output.append(indentPlusTwo);
+            output.append("numCoalescedByApp=").append(numCoalescedByApp).append(",\n");
+            output.append(indentPlusTwo);
             output.append("numPeopleCacheHit=").append(numPeopleCacheHit).append(",\n");
             output.append(indentPlusTwo);
             output.append("numWithStaredPeople=").append(numWithStaredPeople).append(",\n");
@@ -653,6 +696,8 @@ public class NotificationUsageStats {
             maybePut(dump, "numPostedByApp", numPostedByApp);
             maybePut(dump, "numUpdatedByApp", numUpdatedByApp);
             maybePut(dump, "numRemovedByApp", numRemovedByApp);
+            maybePut(dump, "numUpdateRequestsByApp", numUpdateRequestsByApp);
+            maybePut(dump, "numCoalescedByApp", numCoalescedByApp);
             maybePut(dump, "numPeopleCacheHit", numPeopleCacheHit);
             maybePut(dump, "numPeopleCacheMiss", numPeopleCacheMiss);
             maybePut(dump, "numWithStaredPeople", numWithStaredPeople);
@@ -25,6 +25,7 @@ import android.text.TextUtils;
 import android.util.ArrayMap;
 import android.util.Slog;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.server.notification.NotificationManagerService.DumpFilter;
 
 import org.json.JSONArray;
@@ -63,12 +64,24 @@ public class RankingHelper implements RankingConfig {
     private static final int DEFAULT_VISIBILITY = Ranking.VISIBILITY_NO_OVERRIDE;
     private static final int DEFAULT_IMPORTANCE = Ranking.IMPORTANCE_UNSPECIFIED;
 
+    // Spacing between the ranks assigned by sort(), so that sortUpdated() can rank a record
+    // between two others without renumbering them.
+    private static final int RANK_GAP = 1 << 12;
+
     private final NotificationSignalExtractor[] mSignalExtractors;
     private final NotificationComparator mPreliminaryComparator = new NotificationComparator();
     private final GlobalSortKeyComparator mFinalComparator = new GlobalSortKeyComparator();
 
     private final ArrayMap<String, Record> mRecords = new ArrayMap<>(); // pkg|uid => Record
     private final ArrayMap<String, NotificationRecord> mProxyByGroupTmp = new ArrayMap<>();
+    private final ArrayList<NotificationRecord> mAffectedRecordsTmp = new ArrayList<>();
+
+    /**
+     * Records in individual ranking order as of the last {@link #sort}, along with those
+     * ranked by {@link #sortUpdated} since, less those removed from the notification list.
+     */
+    @VisibleForTesting
+    final ArrayList<NotificationRecord> mPreliminaryOrder = new ArrayList<>();
     private final ArrayMap<String, Record> mRestoredWithoutUids = new ArrayMap<>(); // pkg => Record
 
     private final Context mContext;
@@ -249,12 +262,14 @@ public class RankingHelper implements RankingConfig {
 
         // rank each record individually
         Collections.sort(notificationList, mPreliminaryComparator);
+        mPreliminaryOrder.clear();
+        mPreliminaryOrder.addAll(notificationList);
 
         synchronized (mProxyByGroupTmp) {
             // record individual ranking result and nominate proxies for each group
             for (int i = N - 1; i >= 0; i--) {
                 final NotificationRecord record = notificationList.get(i);
-                record.setAuthoritativeRank(i);
+                record.setAuthoritativeRank((i + 1) * RANK_GAP);
                 final String groupKey = record.getGroupKey();
                 boolean isGroupSummary = record.getNotification().isGroupSummary();
                 if (isGroupSummary || !mProxyByGroupTmp.containsKey(groupKey)) {
@@ -265,31 +280,7 @@ public class RankingHelper implements RankingConfig {
             //   is_recently_intrusive:group_rank:is_group_summary:group_sort_key:rank
             for (int i = 0; i < N; i++) {
                 final NotificationRecord record = notificationList.get(i);
-                NotificationRecord groupProxy = mProxyByGroupTmp.get(record.getGroupKey());
-                String groupSortKey = record.getNotification().getSortKey();
-
-                // We need to make sure the developer provided group sort key (gsk) is handled
-                // correctly:
-                //   gsk="" < gsk=non-null-string < gsk=null
-                //
-                // We enforce this by using different prefixes for these three cases.
-                String groupSortKeyPortion;
-                if (groupSortKey == null) {
-                    groupSortKeyPortion = "nsk";
-                } else if (groupSortKey.equals("")) {
-                    groupSortKeyPortion = "esk";
-                } else {
-                    groupSortKeyPortion = "gsk=" + groupSortKey;
-                }
-
-                boolean isGroupSummary = record.getNotification().isGroupSummary();
-                record.setGlobalSortKey(
-                        String.format("intrsv=%c:grnk=0x%04x:gsmry=%c:%s:rnk=0x%04x",
-                        record.isRecentlyIntrusive() ? '0' : '1',
-                        groupProxy.getAuthoritativeRank(),
-                        isGroupSummary ? '0' : '1',
-                        groupSortKeyPortion,
-                        record.getAuthoritativeRank()));
+                setGlobalSortKey(record, mProxyByGroupTmp.get(record.getGroupKey()));
             }
             mProxyByGroupTmp.clear();
         }
@@ -298,6 +289,145 @@ public class RankingHelper implements RankingConfig {
         Collections.sort(notificationList, mFinalComparator);
     }
 
+    /**
+     * Forgets a record that was removed from the notification list, so that it neither
+     * takes up room between ranks nor stays referenced until the next {@link #sort}.
+     */
+    public void onRecordRemoved(NotificationRecord record) {
+        for (int i = mPreliminaryOrder.size() - 1; i >= 0; i--) {
+            if (mPreliminaryOrder.get(i) == record) {
+                mPreliminaryOrder.remove(i);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Moves a single new or updated record into place in a list that was put in order by
+     * {@link #sort}, without ranking the other records again.  Only the records in the
+     * groups of the new and the replaced record get new sort keys; any other group keeps
+     * its proxy and therefore its place.  Falls back to {@link #sort} when there is no room
+     * left to rank the record between its neighbors.
+     *
+     * @param record the record that was added to the list, or that replaced {@code previous}
+     *     in it.
+     * @param previous the record that was replaced, or null.
+     */
+    public void sortUpdated(ArrayList<NotificationRecord> notificationList,
+            NotificationRecord record, NotificationRecord previous) {
+        if (previous != null) {
+            onRecordRemoved(previous);
+        }
+
+        // rank the record individually, between its neighbors as of the last sort
+        int index = Collections.binarySearch(mPreliminaryOrder, record, mPreliminaryComparator);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        final int rankBefore = index > 0
+                ? mPreliminaryOrder.get(index - 1).getAuthoritativeRank() : 0;
+        if (rankBefore > Integer.MAX_VALUE - 2 * RANK_GAP) {
+            sort(notificationList);
+            return;
+        }
+        final int rankAfter = index < mPreliminaryOrder.size()
+                ? mPreliminaryOrder.get(index).getAuthoritativeRank() : rankBefore + 2 * RANK_GAP;
+        if (rankAfter - rankBefore < 2) {
+            sort(notificationList);
+            return;
+        }
+        record.setAuthoritativeRank(rankBefore + (rankAfter - rankBefore) / 2);
+        mPreliminaryOrder.add(index, record);
+
+        // take out the records of the affected groups, keeping the others in order
+        final String groupKey = record.getGroupKey();
+        final String previousGroupKey = previous != null ? previous.getGroupKey() : null;
+        final ArrayList<NotificationRecord> affected = mAffectedRecordsTmp;
+        final int N = notificationList.size();
+        int kept = 0;
+        for (int i = 0; i < N; i++) {
+            final NotificationRecord r = notificationList.get(i);
+            final String key = r.getGroupKey();
+            if (r == record || key.equals(groupKey) || key.equals(previousGroupKey)) {
+                affected.add(r);
+            } else {
+                notificationList.set(kept++, r);
+            }
+        }
+        notificationList.subList(kept, N).clear();
+
+        // nominate the proxies the same way sort() does: the best ranked summary, or else
+        // the worst ranked record of the group
+        NotificationRecord proxy = null;
+        NotificationRecord previousProxy = null;
+        for (int i = affected.size() - 1; i >= 0; i--) {
+            final NotificationRecord r = affected.get(i);
+            if (r.getGroupKey().equals(groupKey)) {
+                proxy = pickGroupProxy(proxy, r);
+            } else {
+                previousProxy = pickGroupProxy(previousProxy, r);
+            }
+        }
+
+        // assign new global sort keys and put the records back in place
+        for (int i = affected.size() - 1; i >= 0; i--) {
+            final NotificationRecord r = affected.get(i);
+            setGlobalSortKey(r, r.getGroupKey().equals(groupKey) ? proxy : previousProxy);
+            int position = Collections.binarySearch(notificationList, r, mFinalComparator);
+            if (position < 0) {
+                position = -position - 1;
+            }
+            notificationList.add(position, r);
+        }
+        affected.clear();
+    }
+
+    private static NotificationRecord pickGroupProxy(NotificationRecord proxy,
+            NotificationRecord candidate) {
+        if (proxy == null) {
+            return candidate;
+        }
+        final boolean proxyIsSummary = proxy.getNotification().isGroupSummary();
+        final boolean candidateIsSummary = candidate.getNotification().isGroupSummary();
+        if (proxyIsSummary != candidateIsSummary) {
+            return candidateIsSummary ? candidate : proxy;
+        }
+        if (candidateIsSummary) {
+            return candidate.getAuthoritativeRank() < proxy.getAuthoritativeRank()
+                    ? candidate : proxy;
+        }
+        return candidate.getAuthoritativeRank() > proxy.getAuthoritativeRank()
+                ? candidate : proxy;
+    }
+
+    private static void setGlobalSortKey(NotificationRecord record,
+            NotificationRecord groupProxy) {
+        String groupSortKey = record.getNotification().getSortKey();
+
+        // We need to make sure the developer provided group sort key (gsk) is handled
+        // correctly:
+        //   gsk="" < gsk=non-null-string < gsk=null
+        //
+        // We enforce this by using different prefixes for these three cases.
+        String groupSortKeyPortion;
+        if (groupSortKey == null) {
+            groupSortKeyPortion = "nsk";
+        } else if (groupSortKey.equals("")) {
+            groupSortKeyPortion = "esk";
+        } else {
+            groupSortKeyPortion = "gsk=" + groupSortKey;
+        }
+
+        boolean isGroupSummary = record.getNotification().isGroupSummary();
+        record.setGlobalSortKey(
+                String.format("intrsv=%c:grnk=0x%08x:gsmry=%c:%s:rnk=0x%08x",
+                record.isRecentlyIntrusive() ? '0' : '1',
+                groupProxy.getAuthoritativeRank(),
+                isGroupSummary ? '0' : '1',
+                groupSortKeyPortion,
+                record.getAuthoritativeRank()));
+    }
+
     public int indexOf(ArrayList<NotificationRecord> notificationList, NotificationRecord target) {
         return Collections.binarySearch(notificationList, target, mFinalComparator);
     }
@@ -408,6 +408,8 @@ public class PackageManagerService extends IPackageManager.Stub {
     static final int SCAN_CHECK_ONLY = 1<<14;
     static final int SCAN_DONT_KILL_APP = 1<<15;
     static final int SCAN_IGNORE_FROZEN = 1<<16;
+    // Skips 1<<17, which is REMOVE_CHATTY.
+    static final int SCAN_CERTIFICATES_COLLECTED = 1<<18;
 
     static final int REMOVE_CHATTY = 1<<17;
 
@@ -581,6 +583,33 @@ public class PackageManagerService extends IPackageManager.Stub {
     // Directory containing the regionalization 3rd apps.
     final File mRegionalizationAppInstallDir;
 
+    /**
+     * Directory where parsed packages are cached across boots, or {@code null}
+     * when the cache is disabled.
+     */
+    private final File mPackageParserCacheDir;
+
+    /** Per-stage timings of the boot package scan. */
+    final ParallelPackageParser.Stats mScanStats = new ParallelPackageParser.Stats();
+
+    /**
+     * Lets the parallel scan stage skip certificate collection for packages
+     * whose certificates {@link #collectCertificatesLI} will reuse anyway.
+     */
+    private final ParallelPackageParser.CertificatePolicy mCertificatePolicy =
+            new ParallelPackageParser.CertificatePolicy() {
+        @Override
+        public boolean canReuseCertificates(PackageParser.Package pkg, File scanFile) {
+            final PackageSetting ps;
+            synchronized (mPackages) {
+                ps = peekScannedPackageSettingLPr(pkg);
+            }
+            return ps != null
+                    && ps.codePath.equals(scanFile)
+                    && ps.timeStamp == getCertificateTimeStamp(pkg, scanFile);
+        }
+    };
+
     // ----------------------------------------------------------------
 
     // Lock for state used when installing and doing other long running
@@ -937,7 +966,7 @@ public class PackageManagerService extends IPackageManager.Stub {
                     if (needUpdate) {
                         mSettings.updateIntentFilterVerificationStatusLPw(
                                 packageName, updatedStatus, userId);
-                        scheduleWritePackageRestrictionsLocked(userId);
+                        scheduleWritePackageRestrictionsLocked(packageName, userId);
                     }
                 }
             }
@@ -1499,6 +1528,7 @@ public class PackageManagerService extends IPackageManager.Stub {
                             mSettings.writePackageRestrictionsLPr(userId);
                         }
                         mDirtyUsers.clear();
+                        mSettings.writePendingPackageRestrictionsLPr();
                     }
                     Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
                 } break;
@@ -2005,6 +2035,23 @@ public class PackageManagerService extends IPackageManager.Stub {
         }
     }
 
+    /**
+     * Like {@link #scheduleWritePackageRestrictionsLocked(int)}, for changes
+     * confined to the user state of a single package. Such changes are
+     * journaled rather than rewriting the user's whole restrictions file.
+     */
+    void scheduleWritePackageRestrictionsLocked(String packageName, int userId) {
+        final int[] userIds = (userId == UserHandle.USER_ALL)
+                ? sUserManager.getUserIds() : new int[]{userId};
+        for (int nextUserId : userIds) {
+            if (!sUserManager.exists(nextUserId)) return;
+            mSettings.notePackageRestrictionsChangedLPw(packageName, nextUserId);
+            if (!mHandler.hasMessages(WRITE_PACKAGE_RESTRICTIONS)) {
+                mHandler.sendEmptyMessageDelayed(WRITE_PACKAGE_RESTRICTIONS, WRITE_SETTINGS_DELAY);
+            }
+        }
+    }
+
     public static PackageManagerService main(Context context, Installer installer,
             boolean factoryTest, boolean onlyCore) {
         // Self-check for initial settings.
@@ -2199,6 +2246,7 @@ public class PackageManagerService extends IPackageManager.Stub {
             mAsecInternalPath = new File(dataDir, "app-asec").getPath();
             mDrmAppPrivateInstallDir = new File(dataDir, "app-private");
             mRegionalizationAppInstallDir = new File(dataDir, "app-regional");
+            mPackageParserCacheDir = preparePackageParserCache();
 
             sUserManager = new UserManagerService(context, this, mPackages);
 
@@ -2633,6 +2681,10 @@ public class PackageManagerService extends IPackageManager.Stub {
             mPackageUsage.read(mPackages);
             mCompilerStats.read();
 
+            if (mPackageParserCacheDir != null) {
+                PackageParser.pruneCacheDir(mPackageParserCacheDir);
+            }
+
             EventLog.writeEvent(EventLogTags.BOOT_PROGRESS_PMS_SCAN_END,
                     SystemClock.uptimeMillis());
             Slog.i(TAG, "Time to scan packages: "
@@ -6759,13 +6811,15 @@ public class PackageManagerService extends IPackageManager.Stub {
                     + " flags=0x" + Integer.toHexString(parseFlags));
         }
 
-        Log.d(TAG, "start scanDirLI:"+dir);
-        // use multi thread to speed up scanning
-        int iMultitaskNum = SystemProperties.getInt("persist.pm.multitask", 6);
-        Log.d(TAG, "max thread:" + iMultitaskNum);
-        final MultiTaskDealer dealer = (iMultitaskNum > 1) ? MultiTaskDealer.startDealer(
-                MultiTaskDealer.PACKAGEMANAGER_SCANER, iMultitaskNum) : null;
+        final long startTime = SystemClock.uptimeMillis();
+        final int parallelism = SystemProperties.getInt("persist.pm.multitask",
+                Runtime.getRuntime().availableProcessors());
+        final ParallelPackageParser parallelPackageParser = new ParallelPackageParser(
+                mContext, mSeparateProcesses, mOnlyCore, mOnlyPowerOffAlarm, mMetrics,
+                mPackageParserCacheDir, mCertificatePolicy, mScanStats, parallelism);
 
+        // Submit files for parsing in parallel
+        int fileCount = 0;
         for (File file : files) {
             final boolean isPackage = (isApkFile(file) || file.isDirectory())
                     && !PackageInstallerService.isStageName(file.getName());
@@ -6773,44 +6827,78 @@ public class PackageManagerService extends IPackageManager.Stub {
                 // Ignore entries which are not packages
                 continue;
             }
-           if (RegionalizationEnvironment.isSupported()) {
-             if (RegionalizationEnvironment.isExcludedApp(file.getName())) {
-               Slog.d(TAG, "Regionalization Excluded:" + file.getName());
-               continue;
+            if (RegionalizationEnvironment.isSupported()) {
+                if (RegionalizationEnvironment.isExcludedApp(file.getName())) {
+                    Slog.d(TAG, "Regionalization Excluded:" + file.getName());
+                    continue;
+                }
             }
-           }
+            parallelPackageParser.submit(file, parseFlags | PackageParser.PARSE_MUST_BE_APK);
+            fileCount++;
+        }
+        final int packageCount = fileCount;
 
-            final File ref_file = file;
-            final int ref_parseFlags = parseFlags;
-            final int ref_scanFlags = scanFlags;
-            final long ref_currentTime = currentTime;
-            Runnable scanTask = new Runnable() {
-                public void run() {
+        // Commit the parsed packages one at a time, in completion order
+        long commitTime = 0;
+        try {
+            for (; fileCount > 0; fileCount--) {
+                final ParallelPackageParser.ParseResult parseResult = parallelPackageParser.take();
+                final long commitStart = SystemClock.uptimeMillis();
+                Throwable throwable = parseResult.throwable;
+                int errorCode = PackageManager.INSTALL_SUCCEEDED;
+
+                if (throwable == null) {
+                    final int commitScanFlags = parseResult.certificatesCollected
+                            ? scanFlags | SCAN_CERTIFICATES_COLLECTED : scanFlags;
+                    Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER, "scanPackage");
                     try {
-                        scanPackageTracedLI(ref_file, ref_parseFlags | PackageParser.PARSE_MUST_BE_APK,
-                                ref_scanFlags, ref_currentTime, null);
+                        scanPackageLI(parseResult.pkg, parseResult.scanFile,
+                                parseFlags | PackageParser.PARSE_MUST_BE_APK, commitScanFlags,
+                                currentTime, null);
                     } catch (PackageManagerException e) {
-                        Slog.w(TAG, "Failed to parse " + ref_file + ": " + e.getMessage());
-
-                        // Delete invalid userdata apps
-                        if ((ref_parseFlags & PackageParser.PARSE_IS_SYSTEM) == 0 &&
-                                e.error == PackageManager.INSTALL_FAILED_INVALID_APK) {
-                            logCriticalInfo(Log.WARN, "Deleting invalid package at " + ref_file);
-                            removeCodePathLI(ref_file);
-                        }
-                    }
+                        errorCode = e.error;
+                        Slog.w(TAG, "Failed to scan " + parseResult.scanFile + ": "
+                                + e.getMessage());
+                    } finally {
+                        Trace.traceEnd(TRACE_TAG_PACKAGE_MANAGER);
+                    }
+                } else if (throwable instanceof PackageParser.PackageParserException) {
+                    final PackageParser.PackageParserException e =
+                            (PackageParser.PackageParserException) throwable;
+                    errorCode = e.error;
+                    Slog.w(TAG, "Failed to parse " + parseResult.scanFile + ": " + e.getMessage());
+                } else {
+                    throw new IllegalStateException("Unexpected exception occurred while parsing "
+                            + parseResult.scanFile, throwable);
                 }
-            };
 
-            if (dealer != null)
-                dealer.addTask(scanTask);
-            else
-                scanTask.run();
+                // Delete invalid userdata apps
+                if ((parseFlags & PackageParser.PARSE_IS_SYSTEM) == 0 &&
+                        errorCode == PackageManager.INSTALL_FAILED_INVALID_APK) {
+                    logCriticalInfo(Log.WARN,
+                            "Deleting invalid package at " + parseResult.scanFile);
+                    removeCodePathLI(parseResult.scanFile);
+                }
+                commitTime += SystemClock.uptimeMillis() - commitStart;
+            }
+        } finally {
+            parallelPackageParser.close();
         }
 
-        if (dealer != null)
-            dealer.waitAll();
-        Log.d(TAG, "end scanDirLI:"+dir);
+        mScanStats.noteDir(packageCount, SystemClock.uptimeMillis() - startTime, commitTime,
+                parallelPackageParser.getParallelism());
+    }
+
+    private static File preparePackageParserCache() {
+        if (!SystemProperties.getBoolean("persist.pm.package_cache", true)) {
+            return null;
+        }
+        final File cacheDir = new File(Environment.getDataSystemDirectory(), "package_cache");
+        if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+            Slog.w(TAG, "Unable to create package cache " + cacheDir);
+            return null;
+        }
+        return cacheDir;
     }
 
     private static File getSettingsProblemFile() {
@@ -6858,12 +6946,16 @@ public class PackageManagerService extends IPackageManager.Stub {
         return srcFile.lastModified();
     }
 
-    private void collectCertificatesLI(PackageSetting ps, PackageParser.Package pkg, File srcFile,
-            final int policyFlags) throws PackageManagerException {
+    private long getCertificateTimeStamp(PackageParser.Package pkg, File srcFile) {
         // When upgrading from pre-N MR1, verify the package time stamp using the package
         // directory and not the APK file.
-        final long lastModifiedTime = mIsPreNMR1Upgrade
+        return mIsPreNMR1Upgrade
                 ? new File(pkg.codePath).lastModified() : getLastModifiedTime(pkg, srcFile);
+    }
+
+    private void collectCertificatesLI(PackageSetting ps, PackageParser.Package pkg, File srcFile,
+            final int policyFlags) throws PackageManagerException {
+        final long lastModifiedTime = getCertificateTimeStamp(pkg, srcFile);
         if (ps != null
                 && ps.codePath.equals(srcFile)
                 && ps.timeStamp == lastModifiedTime
@@ -6924,6 +7016,7 @@ public class PackageManagerService extends IPackageManager.Stub {
         pp.setOnlyCoreApps(mOnlyCore);
         pp.setOnlyPowerOffAlarmApps(mOnlyPowerOffAlarm);
         pp.setDisplayMetrics(mMetrics);
+        pp.setCacheDir(mPackageParserCacheDir);
 
         Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER, "parsePackage");
         final PackageParser.Package pkg;
@@ -6978,6 +7071,25 @@ public class PackageManagerService extends IPackageManager.Stub {
         return scannedPkg;
     }
 
+    /**
+     * Returns the existing setting for a scanned package, following a rename
+     * back to its original name when the package declares one.
+     */
+    private PackageSetting peekScannedPackageSettingLPr(PackageParser.Package pkg) {
+        PackageSetting ps = null;
+        String oldName = mSettings.mRenamedPackages.get(pkg.packageName);
+        if (pkg.mOriginalPackages != null && pkg.mOriginalPackages.contains(oldName)) {
+            // This package has been renamed to its original name.  Let's
+            // use that.
+            ps = mSettings.peekPackageLPr(oldName);
+        }
+        // If there was no original package, see one for the real package name.
+        if (ps == null) {
+            ps = mSettings.peekPackageLPr(pkg.packageName);
+        }
+        return ps;
+    }
+
     /**
      *  Scans a package and returns the newly parsed package.
      *  @throws PackageManagerException on a parse error.
@@ -6990,16 +7102,7 @@ public class PackageManagerService extends IPackageManager.Stub {
         // reader
         synchronized (mPackages) {
             // Look to see if we already know about this package.
-            String oldName = mSettings.mRenamedPackages.get(pkg.packageName);
-            if (pkg.mOriginalPackages != null && pkg.mOriginalPackages.contains(oldName)) {
-                // This package has been renamed to its original name.  Let's
-                // use that.
-                ps = mSettings.peekPackageLPr(oldName);
-            }
-            // If there was no original package, see one for the real package name.
-            if (ps == null) {
-                ps = mSettings.peekPackageLPr(pkg.packageName);
-            }
+            ps = peekScannedPackageSettingLPr(pkg);
             // Check to see if this package could be hiding/updating a system
             // package.  Must look for it either under the original or real
             // package name depending on our state.
@@ -7131,8 +7234,11 @@ public class PackageManagerService extends IPackageManager.Stub {
             }
         }
 
-        // Verify certificates against what was last scanned
-        collectCertificatesLI(ps, pkg, scanFile, policyFlags);
+        // Verify certificates against what was last scanned, unless the parallel
+        // scan stage has already collected them.
+        if ((scanFlags & SCAN_CERTIFICATES_COLLECTED) == 0) {
+            collectCertificatesLI(ps, pkg, scanFile, policyFlags);
+        }
 
         /*
          * A new system app appeared, but we already had a non-system one of the
@@ -11854,7 +11960,7 @@ public class PackageManagerService extends IPackageManager.Stub {
 
                 if (pkgSetting.getHidden(userId) != hidden) {
                     pkgSetting.setHidden(hidden, userId);
-                    mSettings.writePackageRestrictionsLPr(userId);
+                    mSettings.writePackageRestrictionsLPr(packageName, userId);
                     if (hidden) {
                         sendRemoved = true;
                     } else {
@@ -11955,7 +12061,7 @@ public class PackageManagerService extends IPackageManager.Stub {
                 if (!pkgSetting.getInstalled(userId)) {
                     pkgSetting.setInstalled(true, userId);
                     pkgSetting.setHidden(false, userId);
-                    mSettings.writePackageRestrictionsLPr(userId);
+                    mSettings.writePackageRestrictionsLPr(packageName, userId);
                     installed = true;
                 }
             }
@@ -12023,7 +12129,7 @@ public class PackageManagerService extends IPackageManager.Stub {
                             continue;
                         }
                         pkgSetting.setSuspended(suspended, userId);
-                        mSettings.writePackageRestrictionsLPr(userId);
+                        mSettings.writePackageRestrictionsLPr(packageName, userId);
                         changed = true;
                         changedPackages.add(packageName);
                     }
@@ -12386,9 +12492,9 @@ public class PackageManagerService extends IPackageManager.Stub {
         boolean result = false;
         synchronized (mPackages) {
             result = mSettings.updateIntentFilterVerificationStatusLPw(packageName, status, userId);
-        }
-        if (result) {
-            scheduleWritePackageRestrictionsLocked(userId);
+            if (result) {
+                scheduleWritePackageRestrictionsLocked(packageName, userId);
+            }
         }
         return result;
     }
@@ -16329,7 +16435,7 @@ public class PackageManagerService extends IPackageManager.Stub {
                 return false;
             }
             ps.setBlockUninstall(blockUninstall, userId);
-            mSettings.writePackageRestrictionsLPr(userId);
+            mSettings.writePackageRestrictionsLPr(packageName, userId);
         }
         return true;
     }
@@ -18138,7 +18244,7 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
                     return;
                 }
             }
-            scheduleWritePackageRestrictionsLocked(userId);
+            scheduleWritePackageRestrictionsLocked(packageName, userId);
             components = mPendingBroadcasts.get(userId, packageName);
             final boolean newPackage = components == null;
             if (newPackage) {
@@ -18185,7 +18291,7 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
         synchronized (mPackages) {
             mSettings.writePackageRestrictionsLPr(userId);
             mDirtyUsers.remove(userId);
-            if (mDirtyUsers.isEmpty()) {
+            if (mDirtyUsers.isEmpty() && !mSettings.hasPendingPackageRestrictionsLPr()) {
                 mHandler.removeMessages(WRITE_PACKAGE_RESTRICTIONS);
             }
         }
@@ -18225,7 +18331,7 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
         synchronized (mPackages) {
             if (mSettings.setPackageStoppedStateLPw(this, packageName, stopped,
                     allowedByPermission, uid, userId)) {
-                scheduleWritePackageRestrictionsLocked(userId);
+                scheduleWritePackageRestrictionsLocked(packageName, userId);
             }
         }
     }
@@ -18444,6 +18550,7 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
         public static final int DUMP_FROZEN = 1 << 19;
         public static final int DUMP_DEXOPT = 1 << 20;
         public static final int DUMP_COMPILER_STATS = 1 << 21;
+        public static final int DUMP_SCAN_STATS = 1 << 22;
 
         public static final int OPTION_SHOW_FILTERS = 1 << 0;
 
@@ -18562,6 +18669,7 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
                 pw.println("    check-permission <permission> <package> [<user>]: does pkg hold perm?");
                 pw.println("    dexopt: dump dexopt state");
                 pw.println("    compiler-stats: dump compiler statistics");
+                pw.println("    scan: dump boot package scan timings");
                 pw.println("    <package.name>: info about given package");
                 return;
             } else if ("--checkin".equals(opt)) {
@@ -18685,6 +18793,8 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
                 dumpState.setDump(DumpState.DUMP_DEXOPT);
             } else if ("compiler-stats".equals(cmd)) {
                 dumpState.setDump(DumpState.DUMP_COMPILER_STATS);
+            } else if ("scan".equals(cmd)) {
+                dumpState.setDump(DumpState.DUMP_SCAN_STATS);
             } else if ("write".equals(cmd)) {
                 synchronized (mPackages) {
                     mSettings.writeLPr();
@@ -19052,6 +19162,13 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
                 dumpCompilerStatsLPr(pw, packageName);
             }
 
+            if (!checkin && dumpState.isDumping(DumpState.DUMP_SCAN_STATS)
+                    && packageName == null) {
+                if (dumpState.onTitlePrinted()) pw.println();
+                pw.println("Package scan timings:");
+                mScanStats.dump(pw, "  ");
+            }
+
             if (!checkin && dumpState.isDumping(DumpState.DUMP_MESSAGES) && packageName == null) {
                 if (dumpState.onTitlePrinted()) pw.println();
                 mSettings.dumpReadMessagesLPr(pw, dumpState);
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import android.content.pm.PackageUserState;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+
+import com.android.internal.util.RecordJournal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Append-only log of per-package user state changes that sits next to a
+ * user's package-restrictions.xml.
+ * <p>
+ * Each record holds the complete {@link PackageUserState} of a single package,
+ * so changing one package costs one small append instead of rewriting the
+ * state of every package. The XML file remains the compacted snapshot: a full
+ * write of it bumps the generation and resets this journal, and records are
+ * only replayed on top of a snapshot carrying the same generation.
+ */
+final class PackageRestrictionsJournal {
+    private static final int JOURNAL_MAGIC = 0x50524a4c;
+    private static final int JOURNAL_VERSION = 1;
+
+    /** Upper bound for a single record, used to reject corrupt lengths. */
+    private static final int MAX_RECORD_SIZE = 1024 * 1024;
+
+    /** Journal size beyond which the owner should compact into a full snapshot. */
+    static final long COMPACT_THRESHOLD_BYTES = 64 * 1024;
+
+    interface RecordHandler {
+        void onRecord(String packageName, PackageUserState state);
+    }
+
+    private final RecordJournal mJournal;
+
+    PackageRestrictionsJournal(File file) {
+        mJournal = new RecordJournal(file, JOURNAL_MAGIC, JOURNAL_VERSION, MAX_RECORD_SIZE);
+    }
+
+    File getFile() {
+        return mJournal.getFile();
+    }
+
+    /** Returns the number of bytes in the journal, including its header. */
+    long length() {
+        return mJournal.length();
+    }
+
+    /**
+     * Discards all records and starts an empty journal for the given snapshot
+     * generation.
+     */
+    void reset(int generation) throws IOException {
+        mJournal.reset(generation);
+    }
+
+    /**
+     * Appends the state of the given packages, keyed by package name. The
+     * journal must have been created with {@link #reset(int)} first.
+     */
+    void append(ArrayMap<String, PackageUserState> states) throws IOException {
+        final ArrayList<byte[]> records = new ArrayList<>(states.size());
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        for (int i = 0; i < states.size(); i++) {
+            bytes.reset();
+            writeState(out, states.keyAt(i), states.valueAt(i));
+            out.flush();
+            records.add(bytes.toByteArray());
+        }
+        mJournal.append(records);
+    }
+
+    /**
+     * Replays the journal if it belongs to the given snapshot generation.
+     * A torn or corrupt tail is cut off so that later appends stay readable.
+     *
+     * @return the number of records replayed, or -1 if the journal is
+     *         missing, unreadable or belongs to another generation.
+     */
+    int replay(int generation, final RecordHandler handler) {
+        return mJournal.read(generation, new RecordJournal.RecordHandler() {
+            @Override
+            public void onRecord(byte[] data, int length) throws IOException {
+                final DataInputStream in = new DataInputStream(
+                        new ByteArrayInputStream(data, 0, length));
+                final String packageName = in.readUTF();
+                handler.onRecord(packageName, readState(in));
+            }
+        });
+    }
+
+    void delete() {
+        mJournal.delete();
+    }
+
+    private static void writeState(DataOutputStream out, String packageName,
+            PackageUserState state) throws IOException {
+        out.writeUTF(packageName);
+        out.writeLong(state.ceDataInode);
+        out.writeInt(state.enabled);
+        out.writeBoolean(state.installed);
+        out.writeBoolean(state.stopped);
+        out.writeBoolean(state.notLaunched);
+        out.writeBoolean(state.hidden);
+        out.writeBoolean(state.suspended);
+        out.writeBoolean(state.blockUninstall);
+        writeNullableString(out, state.lastDisableAppCaller);
+        out.writeInt(state.domainVerificationStatus);
+        out.writeInt(state.appLinkGeneration);
+        writeComponents(out, state.enabledComponents);
+        writeComponents(out, state.disabledComponents);
+        writeComponents(out, state.protectedComponents);
+        writeComponents(out, state.visibleComponents);
+    }
+
+    private static PackageUserState readState(DataInputStream in) throws IOException {
+        final PackageUserState state = new PackageUserState();
+        state.ceDataInode = in.readLong();
+        state.enabled = in.readInt();
+        state.installed = in.readBoolean();
+        state.stopped = in.readBoolean();
+        state.notLaunched = in.readBoolean();
+        state.hidden = in.readBoolean();
+        state.suspended = in.readBoolean();
+        state.blockUninstall = in.readBoolean();
+        state.lastDisableAppCaller = readNullableString(in);
+        state.domainVerificationStatus = in.readInt();
+        state.appLinkGeneration = in.readInt();
+        state.enabledComponents = readComponents(in);
+        state.disabledComponents = readComponents(in);
+        state.protectedComponents = readComponents(in);
+        state.visibleComponents = readComponents(in);
+        return state;
+    }
+
+    private static void writeNullableString(DataOutputStream out, String value)
+            throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullableString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeComponents(DataOutputStream out, ArraySet<String> components)
+            throws IOException {
+        if (components == null) {
+            out.writeInt(-1);
+            return;
+        }
+        final int size = components.size();
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            out.writeUTF(components.valueAt(i));
+        }
+    }
+
+    private static ArraySet<String> readComponents(DataInputStream in) throws IOException {
+        final int size = in.readInt();
+        if (size < 0) {
+            return null;
+        }
+        final ArraySet<String> components = new ArraySet<>(size);
+        for (int i = 0; i < size; i++) {
+            components.add(in.readUTF());
+        }
+        return components;
+    }
+}
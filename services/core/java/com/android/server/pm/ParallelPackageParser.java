@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import static android.os.Trace.TRACE_TAG_PACKAGE_MANAGER;
+
+import android.content.Context;
+import android.content.pm.PackageParser;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.DisplayMetrics;
+import android.util.TimeUtils;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * First stage of the package scan pipeline. Manifest parsing and, when needed,
+ * certificate collection run on a fork-join pool; results are handed back
+ * through {@link #take()} so that the caller can commit them into package
+ * manager state from a single thread.
+ */
+class ParallelPackageParser implements AutoCloseable {
+
+    /**
+     * Decides whether the certificates of a freshly parsed package can later
+     * be reused from its existing package setting, in which case collecting
+     * them up front would be wasted work.
+     */
+    interface CertificatePolicy {
+        boolean canReuseCertificates(PackageParser.Package pkg, File scanFile);
+    }
+
+    static class ParseResult {
+        File scanFile;
+        PackageParser.Package pkg;
+        /** Whether signatures were collected by the parallel stage. */
+        boolean certificatesCollected;
+        Throwable throwable;
+
+        @Override
+        public String toString() {
+            return "ParseResult{scanFile=" + scanFile + ", pkg=" + pkg
+                    + ", certificatesCollected=" + certificatesCollected
+                    + ", throwable=" + throwable + "}";
+        }
+    }
+
+    /**
+     * Cumulative timings for every stage of the boot scan, reported by
+     * {@code dumpsys package scan}.
+     */
+    static class Stats {
+        @GuardedBy("this") private int mDirs;
+        @GuardedBy("this") private int mPackages;
+        @GuardedBy("this") private int mCertificatesCollected;
+        @GuardedBy("this") private long mParseMs;
+        @GuardedBy("this") private long mCertificatesMs;
+        @GuardedBy("this") private long mCommitMs;
+        @GuardedBy("this") private long mWallMs;
+        @GuardedBy("this") private int mParallelism;
+
+        synchronized void noteDir(int packages, long wallMs, long commitMs, int parallelism) {
+            mDirs++;
+            mPackages += packages;
+            mWallMs += wallMs;
+            mCommitMs += commitMs;
+            mParallelism = parallelism;
+        }
+
+        synchronized void noteParse(long parseMs) {
+            mParseMs += parseMs;
+        }
+
+        synchronized void noteCertificates(long certificatesMs) {
+            mCertificatesCollected++;
+            mCertificatesMs += certificatesMs;
+        }
+
+        synchronized void dump(PrintWriter pw, String prefix) {
+            pw.print(prefix); pw.print("parallelism="); pw.print(mParallelism);
+            pw.print(" dirs="); pw.print(mDirs);
+            pw.print(" packages="); pw.println(mPackages);
+            pw.print(prefix); pw.print("parse: ");
+            TimeUtils.formatDuration(mParseMs, pw);
+            pw.println(" (summed over threads)");
+            pw.print(prefix); pw.print("certificates: ");
+            TimeUtils.formatDuration(mCertificatesMs, pw);
+            pw.print(" for "); pw.print(mCertificatesCollected);
+            pw.println(" packages (summed over threads)");
+            pw.print(prefix); pw.print("commit: ");
+            TimeUtils.formatDuration(mCommitMs, pw);
+            pw.println();
+            pw.print(prefix); pw.print("wall: ");
+            TimeUtils.formatDuration(mWallMs, pw);
+            pw.println();
+        }
+    }
+
+    private static final int MAX_QUEUED_RESULTS = 10;
+
+    private final Context mContext;
+    private final String[] mSeparateProcesses;
+    private final boolean mOnlyCore;
+    private final boolean mOnlyPowerOffAlarm;
+    private final DisplayMetrics mMetrics;
+    private final File mCacheDir;
+    private final CertificatePolicy mCertificatePolicy;
+    private final Stats mStats;
+
+    private final BlockingQueue<ParseResult> mQueue;
+    private final ForkJoinPool mPool;
+    private final int mParallelism;
+
+    private volatile String mInterruptedInThread;
+
+    /**
+     * @param context used by the parsers to look up the power off alarm packages
+     */
+    ParallelPackageParser(Context context, String[] separateProcesses, boolean onlyCore,
+            boolean onlyPowerOffAlarm, DisplayMetrics metrics, File cacheDir,
+            CertificatePolicy certificatePolicy, Stats stats, int parallelism) {
+        mContext = context;
+        mSeparateProcesses = separateProcesses;
+        mOnlyCore = onlyCore;
+        mOnlyPowerOffAlarm = onlyPowerOffAlarm;
+        mMetrics = metrics;
+        mCacheDir = cacheDir;
+        mCertificatePolicy = certificatePolicy;
+        mStats = stats;
+        mParallelism = Math.max(1, parallelism);
+        if (mParallelism > 1) {
+            mPool = new ForkJoinPool(mParallelism, sThreadFactory, null, true /*asyncMode*/);
+            // Bounded so that parsed packages don't pile up faster than they are committed.
+            mQueue = new ArrayBlockingQueue<>(MAX_QUEUED_RESULTS);
+        } else {
+            // Everything is parsed inline before the first take(), so nothing may block.
+            mPool = null;
+            mQueue = new LinkedBlockingQueue<>();
+        }
+    }
+
+    int getParallelism() {
+        return mParallelism;
+    }
+
+    /**
+     * Submits a file for parsing. When running without a pool the file is
+     * parsed on the calling thread before this returns.
+     */
+    void submit(final File scanFile, final int parseFlags) {
+        if (mPool == null) {
+            putResult(parse(scanFile, parseFlags));
+            return;
+        }
+        mPool.execute(new Runnable() {
+            @Override
+            public void run() {
+                putResult(parse(scanFile, parseFlags));
+            }
+        });
+    }
+
+    /**
+     * Takes the next parse result, blocking until one is available. Results
+     * are returned in completion order, not submission order.
+     */
+    ParseResult take() {
+        try {
+            if (mInterruptedInThread != null) {
+                throw new InterruptedException("Interrupted in " + mInterruptedInThread);
+            }
+            return mQueue.take();
+        } catch (InterruptedException e) {
+            // We cannot recover from interrupt here
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (mPool == null) {
+            return;
+        }
+        mPool.shutdownNow();
+        try {
+            if (!mPool.awaitTermination(1, TimeUnit.MINUTES)) {
+                throw new IllegalStateException("Package parsing did not finish");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void putResult(ParseResult result) {
+        try {
+            mQueue.put(result);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            mInterruptedInThread = Thread.currentThread().getName();
+        }
+    }
+
+    private ParseResult parse(File scanFile, int parseFlags) {
+        final ParseResult result = new ParseResult();
+        result.scanFile = scanFile;
+        Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER, "parallel parsePackage [" + scanFile + "]");
+        try {
+            final PackageParser pp = new PackageParser(mContext);
+            pp.setSeparateProcesses(mSeparateProcesses);
+            pp.setOnlyCoreApps(mOnlyCore);
+            pp.setOnlyPowerOffAlarmApps(mOnlyPowerOffAlarm);
+            pp.setDisplayMetrics(mMetrics);
+            pp.setCacheDir(mCacheDir);
+
+            final long parseStart = SystemClock.uptimeMillis();
+            result.pkg = pp.parsePackage(scanFile, parseFlags);
+            mStats.noteParse(SystemClock.uptimeMillis() - parseStart);
+
+            if (!mCertificatePolicy.canReuseCertificates(result.pkg, scanFile)) {
+                final long certStart = SystemClock.uptimeMillis();
+                PackageParser.collectCertificates(result.pkg, parseFlags);
+                result.certificatesCollected = true;
+                mStats.noteCertificates(SystemClock.uptimeMillis() - certStart);
+            }
+        } catch (Throwable e) {
+            result.throwable = e;
+        } finally {
+            Trace.traceEnd(TRACE_TAG_PACKAGE_MANAGER);
+        }
+        return result;
+    }
+
+    private static final ForkJoinPool.ForkJoinWorkerThreadFactory sThreadFactory =
+            new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        @Override
+        public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+            final ForkJoinWorkerThread thread = new ForkJoinWorkerThread(pool) {
+                @Override
+                protected void onStart() {
+                    super.onStart();
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
+                }
+            };
+            thread.setName("package-parsing-thread" + mCount.getAndIncrement());
+            return thread;
+        }
+    };
+}
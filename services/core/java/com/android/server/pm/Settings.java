@@ -214,6 +214,7 @@ final class Settings {
     private static final String ATTR_ENABLED_CALLER = "enabledCaller";
     private static final String ATTR_DOMAIN_VERIFICATON_STATE = "domainVerificationStatus";
     private static final String ATTR_APP_LINK_GENERATION = "app-link-generation";
+    private static final String ATTR_RESTRICTIONS_GENERATION = "generation";
 
     private static final String ATTR_PACKAGE_NAME = "packageName";
     private static final String ATTR_FINGERPRINT = "fingerprint";
@@ -384,6 +385,14 @@ final class Settings {
     // App-link priority tracking, per-user
     final SparseIntArray mNextAppLinkGeneration = new SparseIntArray();
 
+    // Generation of each user's package-restrictions.xml snapshot; the user's
+    // restrictions journal only applies on top of a snapshot of the same generation.
+    private final SparseIntArray mPackageRestrictionsGeneration = new SparseIntArray();
+
+    // Packages whose user state changed since the last restrictions write, per user.
+    private final SparseArray<ArraySet<String>> mPendingPackageRestrictions =
+            new SparseArray<ArraySet<String>>();
+
     final StringBuilder mReadMessages = new StringBuilder();
 
     /**
@@ -1374,6 +1383,12 @@ final class Settings {
         return new File(userDir, "package-restrictions.xml");
     }
 
+    private PackageRestrictionsJournal getPackageRestrictionsJournal(int userId) {
+        File userDir = new File(new File(mSystemDir, "users"), Integer.toString(userId));
+        return new PackageRestrictionsJournal(
+                new File(userDir, "package-restrictions-journal"));
+    }
+
     private File getUserRuntimePermissionsFile(int userId) {
         // TODO: Implement a cleaner solution when adding tests.
         // This instead of Environment.getUserSystemDirectory(userId) to support testing.
@@ -1386,6 +1401,85 @@ final class Settings {
                 "package-restrictions-backup.xml");
     }
 
+    /**
+     * Records that the user state of a single package changed, so that the
+     * next {@link #writePendingPackageRestrictionsLPr()} can append it to the
+     * user's journal instead of rewriting package-restrictions.xml.
+     */
+    void notePackageRestrictionsChangedLPw(String packageName, int userId) {
+        ArraySet<String> pending = mPendingPackageRestrictions.get(userId);
+        if (pending == null) {
+            pending = new ArraySet<String>();
+            mPendingPackageRestrictions.put(userId, pending);
+        }
+        pending.add(packageName);
+    }
+
+    /**
+     * Persists all package state recorded through
+     * {@link #notePackageRestrictionsChangedLPw(String, int)}. Changes are
+     * appended to each user's journal; once a journal grows past
+     * {@link PackageRestrictionsJournal#COMPACT_THRESHOLD_BYTES}, or if it is
+     * missing, the full package-restrictions.xml is rewritten instead.
+     */
+    void writePendingPackageRestrictionsLPr() {
+        final int[] userIds = new int[mPendingPackageRestrictions.size()];
+        for (int i = 0; i < userIds.length; i++) {
+            userIds[i] = mPendingPackageRestrictions.keyAt(i);
+        }
+        for (int userId : userIds) {
+            writePendingPackageRestrictionsLPr(userId);
+        }
+    }
+
+    /**
+     * Synchronously persists a change to the user state of a single package,
+     * together with any other pending changes of that user.
+     */
+    void writePackageRestrictionsLPr(String packageName, int userId) {
+        notePackageRestrictionsChangedLPw(packageName, userId);
+        writePendingPackageRestrictionsLPr(userId);
+    }
+
+    private void writePendingPackageRestrictionsLPr(int userId) {
+        final ArraySet<String> pending = mPendingPackageRestrictions.get(userId);
+        if (pending == null) {
+            return;
+        }
+        final PackageRestrictionsJournal journal = getPackageRestrictionsJournal(userId);
+        if (!journal.getFile().exists()
+                || journal.length() >= PackageRestrictionsJournal.COMPACT_THRESHOLD_BYTES) {
+            writePackageRestrictionsLPr(userId);
+            return;
+        }
+
+        final ArrayMap<String, PackageUserState> states =
+                new ArrayMap<String, PackageUserState>(pending.size());
+        for (int i = 0; i < pending.size(); i++) {
+            final String packageName = pending.valueAt(i);
+            final PackageSetting ps = mPackages.get(packageName);
+            if (ps != null) {
+                states.put(packageName, ps.readUserState(userId));
+            }
+        }
+        mPendingPackageRestrictions.remove(userId);
+        if (DEBUG_MU) {
+            Log.i(TAG, "Journaling restrictions of " + states.size()
+                    + " packages for user=" + userId);
+        }
+        try {
+            journal.append(states);
+        } catch (IOException e) {
+            Slog.w(PackageManagerService.TAG, "Unable to append to " + journal.getFile()
+                    + ", rewriting package restrictions", e);
+            writePackageRestrictionsLPr(userId);
+        }
+    }
+
+    boolean hasPendingPackageRestrictionsLPr() {
+        return mPendingPackageRestrictions.size() > 0;
+    }
+
     void writeAllUsersPackageRestrictionsLPr() {
         List<UserInfo> users = getAllUsers();
         if (users == null) return;
@@ -1619,6 +1713,7 @@ final class Settings {
                                 null
                                 );
                     }
+                    getPackageRestrictionsJournal(userId).delete();
                     return;
                 }
                 str = new FileInputStream(userPackagesStateFile);
@@ -1639,6 +1734,8 @@ final class Settings {
                 return;
             }
 
+            final int restrictionsGeneration = XmlUtils.readIntAttribute(parser,
+                    ATTR_RESTRICTIONS_GENERATION, 0);
             int maxAppLinkGeneration = 0;
 
             int outerDepth = parser.getDepth();
@@ -1744,6 +1841,13 @@ final class Settings {
 
             str.close();
 
+            mPackageRestrictionsGeneration.put(userId, restrictionsGeneration);
+            final int journalLinkGeneration = replayPackageRestrictionsJournalLPw(userId,
+                    restrictionsGeneration);
+            if (journalLinkGeneration > maxAppLinkGeneration) {
+                maxAppLinkGeneration = journalLinkGeneration;
+            }
+
             mNextAppLinkGeneration.put(userId, maxAppLinkGeneration + 1);
 
         } catch (XmlPullParserException e) {
@@ -1761,6 +1865,45 @@ final class Settings {
         }
     }
 
+    /**
+     * Applies the user's restrictions journal on top of the snapshot that was
+     * just read, discarding the journal if it belongs to another snapshot.
+     *
+     * @return the highest app-link generation found in the journal.
+     */
+    private int replayPackageRestrictionsJournalLPw(final int userId, int generation) {
+        final PackageRestrictionsJournal journal = getPackageRestrictionsJournal(userId);
+        final int[] maxAppLinkGeneration = new int[1];
+        final int records = journal.replay(generation,
+                new PackageRestrictionsJournal.RecordHandler() {
+            @Override
+            public void onRecord(String packageName, PackageUserState state) {
+                final PackageSetting ps = mPackages.get(packageName);
+                if (ps == null) {
+                    Slog.w(PackageManagerService.TAG, "No package known for journaled package "
+                            + packageName);
+                    return;
+                }
+                ps.setUserState(userId, state.ceDataInode, state.enabled, state.installed,
+                        state.stopped, state.notLaunched, state.hidden, state.suspended,
+                        state.lastDisableAppCaller, state.enabledComponents,
+                        state.disabledComponents, state.blockUninstall,
+                        state.domainVerificationStatus, state.appLinkGeneration, null,
+                        state.protectedComponents, state.visibleComponents);
+                if (state.appLinkGeneration > maxAppLinkGeneration[0]) {
+                    maxAppLinkGeneration[0] = state.appLinkGeneration;
+                }
+            }
+        });
+        if (records < 0) {
+            // Stale journal from an older snapshot; the snapshot already holds its changes.
+            journal.delete();
+        } else if (records > 0) {
+            mReadMessages.append("Replayed " + records + " journaled package restrictions\n");
+        }
+        return maxAppLinkGeneration[0];
+    }
+
     private ArraySet<String> readComponentsLPr(XmlPullParser parser)
             throws IOException, XmlPullParserException {
         ArraySet<String> components = null;
@@ -1967,7 +2110,9 @@ final class Settings {
             serializer.startDocument(null, true);
             serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
 
+            final int generation = mPackageRestrictionsGeneration.get(userId) + 1;
             serializer.startTag(null, TAG_PACKAGE_RESTRICTIONS);
+            XmlUtils.writeIntAttribute(serializer, ATTR_RESTRICTIONS_GENERATION, generation);
 
             for (final PackageSetting pkg : mPackages.values()) {
                 final PackageUserState ustate = pkg.readUserState(userId);
@@ -2075,6 +2220,17 @@ final class Settings {
                     |FileUtils.S_IRGRP|FileUtils.S_IWGRP,
                     -1, -1);
 
+            // The snapshot now holds every pending change, so start a fresh journal.
+            mPackageRestrictionsGeneration.put(userId, generation);
+            mPendingPackageRestrictions.remove(userId);
+            final PackageRestrictionsJournal journal = getPackageRestrictionsJournal(userId);
+            try {
+                journal.reset(generation);
+            } catch (IOException e) {
+                Slog.w(PackageManagerService.TAG, "Unable to reset " + journal.getFile(), e);
+                journal.delete();
+            }
+
             // Done, all is good!
             return;
         } catch(java.io.IOException e) {
@@ -4050,6 +4206,9 @@ final class Settings {
         file = getUserPackagesStateBackupFile(userId);
         file.delete();
         removeCrossProfileIntentFiltersLPw(userId);
+        getPackageRestrictionsJournal(userId).delete();
+        mPackageRestrictionsGeneration.delete(userId);
+        mPendingPackageRestrictions.remove(userId);
 
         mRuntimePermissionsPersistence.onUserRemovedLPw(userId);
 
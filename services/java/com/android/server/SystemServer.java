@@ -36,6 +36,7 @@ import android.os.FileUtils;
 import android.os.IBinder;
 import android.os.IPowerManager;
 import android.os.Looper;
+import android.os.Parcel;
 import android.os.PowerManager;
 import android.os.RemoteException;
 import android.os.ServiceManager;
@@ -196,6 +197,10 @@ public final class SystemServer {
     // will be higher than the system default
     private static final int sMaxBinderThreads = 31;
 
+    // recycled Parcels kept per buffer size in system_server, one for each
+    // binder thread
+    private static final int PARCEL_POOL_DEPTH = 32;
+
     /**
      * Default theme used by the system context. This is used to style
      * system-provided dialogs, such as the Power Off dialog, and other
@@ -333,6 +338,9 @@ public final class SystemServer {
             // Increase the number of binder threads in system_server
             BinderInternal.setMaxThreads(sMaxBinderThreads);
 
+            // Keep enough recycled Parcels for all those binder threads.
+            Parcel.setPoolDepth(PARCEL_POOL_DEPTH);
+
             // Prepare the main looper thread (this thread).
             android.os.Process.setThreadPriority(
                 android.os.Process.THREAD_PRIORITY_FOREGROUND);
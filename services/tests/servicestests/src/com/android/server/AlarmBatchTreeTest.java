@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Checks {@link AlarmBatchTree} against the linear batch list it replaced in
+ * {@link AlarmManagerService}.
+ */
+public class AlarmBatchTreeTest extends AndroidTestCase {
+    private static final int ALARM_COUNT = 1000;
+    private static final int UID_COUNT = 200;
+    private static final long HOUR = 60 * 60 * 1000;
+
+    private static final class TestAlarm {
+        final int uid;
+        final long whenElapsed;
+        final long maxWhenElapsed;
+        final boolean standalone;
+
+        TestAlarm(int uid, long whenElapsed, long maxWhenElapsed, boolean standalone) {
+            this.uid = uid;
+            this.whenElapsed = whenElapsed;
+            this.maxWhenElapsed = maxWhenElapsed;
+            this.standalone = standalone;
+        }
+    }
+
+    /** Mirrors AlarmManagerService.Batch. */
+    private static final class TestBatch {
+        long start;
+        long end;
+        final boolean standalone;
+        final ArrayList<TestAlarm> alarms = new ArrayList<>();
+
+        TestBatch(TestAlarm seed) {
+            start = seed.whenElapsed;
+            end = seed.maxWhenElapsed;
+            standalone = seed.standalone;
+            alarms.add(seed);
+        }
+
+        void add(TestAlarm alarm) {
+            alarms.add(alarm);
+            start = Math.max(start, alarm.whenElapsed);
+            end = Math.min(end, alarm.maxWhenElapsed);
+        }
+    }
+
+    private interface Batches {
+        void set(TestAlarm alarm);
+        void removeUid(int uid);
+        void rebatch();
+        ArrayList<TestBatch> list();
+    }
+
+    /** The original implementation: a sorted list and a linear coalescing scan. */
+    private static final class LinearBatches implements Batches {
+        ArrayList<TestBatch> mBatches = new ArrayList<>();
+
+        @Override
+        public void set(TestAlarm alarm) {
+            int which = -1;
+            if (!alarm.standalone) {
+                for (int i = 0; i < mBatches.size(); i++) {
+                    final TestBatch b = mBatches.get(i);
+                    if (!b.standalone && b.end >= alarm.whenElapsed
+                            && b.start <= alarm.maxWhenElapsed) {
+                        which = i;
+                        break;
+                    }
+                }
+            }
+            final TestBatch batch;
+            if (which < 0) {
+                batch = new TestBatch(alarm);
+            } else {
+                batch = mBatches.remove(which);
+                batch.add(alarm);
+            }
+            int index = mBatches.size();
+            while (index > 0 && mBatches.get(index - 1).start > batch.start) {
+                index--;
+            }
+            mBatches.add(index, batch);
+        }
+
+        @Override
+        public void removeUid(int uid) {
+            for (int i = mBatches.size() - 1; i >= 0; i--) {
+                final TestBatch b = mBatches.get(i);
+                for (int j = b.alarms.size() - 1; j >= 0; j--) {
+                    if (b.alarms.get(j).uid == uid) {
+                        b.alarms.remove(j);
+                    }
+                }
+                if (b.alarms.isEmpty()) {
+                    mBatches.remove(i);
+                }
+            }
+            rebatch();
+        }
+
+        @Override
+        public void rebatch() {
+            final ArrayList<TestBatch> old = mBatches;
+            mBatches = new ArrayList<>();
+            for (TestBatch b : old) {
+                for (TestAlarm a : b.alarms) {
+                    set(a);
+                }
+            }
+        }
+
+        @Override
+        public ArrayList<TestBatch> list() {
+            return mBatches;
+        }
+    }
+
+    private static final class TreeBatches implements Batches {
+        final AlarmBatchTree<TestBatch> mBatches = new AlarmBatchTree<>();
+
+        @Override
+        public void set(TestAlarm alarm) {
+            final int which = alarm.standalone ? -1
+                    : mBatches.findFirstOverlapping(alarm.whenElapsed, alarm.maxWhenElapsed);
+            final TestBatch batch;
+            if (which < 0) {
+                batch = new TestBatch(alarm);
+            } else {
+                batch = mBatches.removeAt(which);
+                batch.add(alarm);
+            }
+            mBatches.add(batch, batch.start, batch.end, !batch.standalone);
+        }
+
+        @Override
+        public void removeUid(int uid) {
+            for (int i = mBatches.size() - 1; i >= 0; i--) {
+                final TestBatch b = mBatches.get(i);
+                for (int j = b.alarms.size() - 1; j >= 0; j--) {
+                    if (b.alarms.get(j).uid == uid) {
+                        b.alarms.remove(j);
+                    }
+                }
+                if (b.alarms.isEmpty()) {
+                    mBatches.removeAt(i);
+                }
+            }
+            rebatch();
+        }
+
+        @Override
+        public void rebatch() {
+            final ArrayList<TestBatch> old = mBatches.toList();
+            mBatches.clear();
+            for (TestBatch b : old) {
+                for (TestAlarm a : b.alarms) {
+                    set(a);
+                }
+            }
+        }
+
+        @Override
+        public ArrayList<TestBatch> list() {
+            return mBatches.toList();
+        }
+    }
+
+    private static ArrayList<TestAlarm> makeAlarms(int count, long seed) {
+        final Random random = new Random(seed);
+        final ArrayList<TestAlarm> alarms = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final long when = (long) (random.nextDouble() * 24 * HOUR);
+            final long window;
+            switch (random.nextInt(4)) {
+                case 0: window = 0; break;
+                case 1: window = random.nextInt(60 * 1000); break;
+                default: window = (long) (random.nextDouble() * 3 * HOUR); break;
+            }
+            alarms.add(new TestAlarm(random.nextInt(UID_COUNT), when, when + window,
+                    random.nextInt(50) == 0));
+        }
+        return alarms;
+    }
+
+    private static void assertSameBatches(ArrayList<TestBatch> expected,
+            ArrayList<TestBatch> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            final TestBatch e = expected.get(i);
+            final TestBatch a = actual.get(i);
+            assertEquals("start of batch " + i, e.start, a.start);
+            assertEquals("end of batch " + i, e.end, a.end);
+            assertEquals("alarms in batch " + i, e.alarms, a.alarms);
+        }
+    }
+
+    public void testPositionalAccess() {
+        final AlarmBatchTree<String> tree = new AlarmBatchTree<>();
+        tree.add("c", 30, 40, true);
+        tree.add("a", 10, 20, true);
+        assertEquals(2, tree.add("c2", 30, 35, true));
+        assertEquals(1, tree.add("b", 20, 20, false));
+
+        assertEquals(4, tree.size());
+        assertEquals("a", tree.get(0));
+        assertEquals("b", tree.get(1));
+        assertEquals("c", tree.get(2));
+        assertEquals("c2", tree.get(3));
+
+        assertEquals("b", tree.removeAt(1));
+        final ArrayList<String> items = new ArrayList<>();
+        for (String item : tree) {
+            items.add(item);
+        }
+        assertEquals(tree.toList(), items);
+        assertEquals("[a, c, c2]", items.toString());
+    }
+
+    public void testFindFirstOverlapping() {
+        final AlarmBatchTree<String> tree = new AlarmBatchTree<>();
+        tree.add("a", 10, 20, true);
+        tree.add("standalone", 25, 100, false);
+        tree.add("b", 30, 40, true);
+        tree.add("c", 50, 90, true);
+
+        assertEquals(0, tree.findFirstOverlapping(15, 15));
+        assertEquals(0, tree.findFirstOverlapping(0, 10));
+        assertEquals(-1, tree.findFirstOverlapping(0, 9));
+        assertEquals(-1, tree.findFirstOverlapping(21, 29));
+        assertEquals(2, tree.findFirstOverlapping(21, 30));
+        assertEquals(3, tree.findFirstOverlapping(41, 60));
+        assertEquals(-1, tree.findFirstOverlapping(91, 200));
+    }
+
+    public void testMatchesLinearBatching() {
+        final ArrayList<TestAlarm> alarms = makeAlarms(ALARM_COUNT, 42);
+        final LinearBatches linear = new LinearBatches();
+        final TreeBatches tree = new TreeBatches();
+        for (TestAlarm alarm : alarms) {
+            linear.set(alarm);
+            tree.set(alarm);
+        }
+        assertSameBatches(linear.list(), tree.list());
+
+        for (int uid = 0; uid < UID_COUNT; uid += 17) {
+            linear.removeUid(uid);
+            tree.removeUid(uid);
+            assertSameBatches(linear.list(), tree.list());
+        }
+    }
+}
@@ -38,6 +38,7 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.Random;
 import java.util.zip.GZIPOutputStream;
 
@@ -517,6 +518,136 @@ public class DropBoxTest extends AndroidTestCase {
         f2.close();
     }
 
+    public void testSmallEntriesShareSegment() throws Exception {
+        File dir = getEmptyDir("testSmallEntriesShareSegment");
+        long before = System.currentTimeMillis();
+        DropBoxManagerService service = new DropBoxManagerService(getContext(), dir);
+        DropBoxManager dropbox = new DropBoxManager(getContext(), service.getServiceStub());
+
+        StringBuilder big = new StringBuilder();
+        for (int i = 0; i < 100; i++) big.append("Compressible line ").append(i).append("\n");
+
+        dropbox.addText("DropBoxTest", "TEST0");
+        dropbox.addText("DropBoxTest", big.toString());
+        dropbox.addData("DropBoxTest", "TEST2".getBytes(), 0);
+
+        // All three entries went to a single segment file
+        String[] names = dir.list();
+        assertEquals(1, names.length);
+        assertTrue(names[0].endsWith(".seg"));
+
+        // A fresh service reads them back from the segment
+        service = new DropBoxManagerService(getContext(), dir);
+        dropbox = new DropBoxManager(getContext(), service.getServiceStub());
+
+        DropBoxManager.Entry e0 = dropbox.getNextEntry("DropBoxTest", before);
+        DropBoxManager.Entry e1 = dropbox.getNextEntry("DropBoxTest", e0.getTimeMillis());
+        DropBoxManager.Entry e2 = dropbox.getNextEntry("DropBoxTest", e1.getTimeMillis());
+        assertTrue(null == dropbox.getNextEntry("DropBoxTest", e2.getTimeMillis()));
+
+        assertEquals("TEST0", e0.getText(80));
+        assertEquals(big.toString(), e1.getText(big.length() + 1));
+        assertEquals(null, e2.getText(80));
+        assertEquals(0, e2.getFlags());
+        assertEquals(5, getEntrySize(e2));
+
+        e0.close();
+        e1.close();
+        e2.close();
+    }
+
+    public void testMostlyDeadSegmentIsCompacted() throws Exception {
+        File dir = getEmptyDir("testMostlyDeadSegmentIsCompacted");
+        DropBoxManagerService service = new DropBoxManagerService(getContext(), dir);
+        DropBoxManager dropbox = new DropBoxManager(getContext(), service.getServiceStub());
+
+        // Random data doesn't compress, so this fills the first segment and starts another
+        for (int i = 0; i < 30; i++) addRandomEntry(dropbox, "DropBoxTest", 10000);
+        assertTrue(new File(dir, "segment-0.seg").exists());
+        assertTrue(new File(dir, "segment-1.seg").exists());
+
+        // Limit to 10 files and add one more entry, leaving the first segment mostly dead
+        ContentResolver cr = getContext().getContentResolver();
+        Settings.Global.putString(cr, Settings.Global.DROPBOX_MAX_FILES, "10");
+        addRandomEntry(dropbox, "DropBoxTest", 10000);
+
+        // Its live entries were copied out and the file deleted
+        assertFalse(new File(dir, "segment-0.seg").exists());
+        ArrayList<Long> timestamps = new ArrayList<Long>();
+        for (DropBoxManager.Entry e = dropbox.getNextEntry("DropBoxTest", 0); e != null;
+                e = dropbox.getNextEntry("DropBoxTest", e.getTimeMillis())) {
+            assertEquals(10000, getEntrySize(e));
+            timestamps.add(e.getTimeMillis());
+            e.close();
+        }
+        assertTrue(timestamps.size() <= 10);
+
+        // A fresh service sees the same entries, without the trimmed ones coming back
+        service = new DropBoxManagerService(getContext(), dir);
+        dropbox = new DropBoxManager(getContext(), service.getServiceStub());
+        ArrayList<Long> replayed = new ArrayList<Long>();
+        for (DropBoxManager.Entry e = dropbox.getNextEntry("DropBoxTest", 0); e != null;
+                e = dropbox.getNextEntry("DropBoxTest", e.getTimeMillis())) {
+            assertEquals(10000, getEntrySize(e));
+            replayed.add(e.getTimeMillis());
+            e.close();
+        }
+        assertEquals(timestamps, replayed);
+    }
+
+    public void testSmallEntriesChargedByRecordSize() throws Exception {
+        File dir = getEmptyDir("testSmallEntriesChargedByRecordSize");
+        int blockSize = new StatFs(dir.getPath()).getBlockSize();
+
+        // Limit storage to 10 blocks, far less than one block per entry
+        int kb = blockSize * 10 / 1024;
+        ContentResolver cr = getContext().getContentResolver();
+        Settings.Global.putString(cr, Settings.Global.DROPBOX_QUOTA_KB, Integer.toString(kb));
+
+        DropBoxManagerService service = new DropBoxManagerService(getContext(), dir);
+        DropBoxManager dropbox = new DropBoxManager(getContext(), service.getServiceStub());
+        for (int i = 0; i < 50; i++) dropbox.addText("DropBoxTest", "TEST" + i);
+
+        // All of them fit, none was replaced by a tombstone
+        int count = 0;
+        for (DropBoxManager.Entry e = dropbox.getNextEntry(null, 0); e != null;
+                e = dropbox.getNextEntry(null, e.getTimeMillis())) {
+            assertEquals("TEST" + count, e.getText(80));
+            count++;
+            e.close();
+        }
+        assertEquals(50, count);
+    }
+
+    public void testExpungedEntriesStayGone() throws Exception {
+        File dir = getEmptyDir("testExpungedEntriesStayGone");
+        DropBoxManagerService service = new DropBoxManagerService(getContext(), dir);
+        DropBoxManager dropbox = new DropBoxManager(getContext(), service.getServiceStub());
+        for (int i = 0; i < 6; i++) dropbox.addText("DropBoxTest", "TEST" + i);
+
+        // Limit to 3 files and add one more entry
+        ContentResolver cr = getContext().getContentResolver();
+        Settings.Global.putString(cr, Settings.Global.DROPBOX_MAX_FILES, "3");
+        dropbox.addText("DropBoxTest", "TEST6");
+
+        // Lift the limit again; a fresh service doesn't bring the expunged entries back
+        Settings.Global.putString(cr, Settings.Global.DROPBOX_MAX_FILES, "");
+        service = new DropBoxManagerService(getContext(), dir);
+        dropbox = new DropBoxManager(getContext(), service.getServiceStub());
+
+        DropBoxManager.Entry e0 = dropbox.getNextEntry(null, 0);
+        DropBoxManager.Entry e1 = dropbox.getNextEntry(null, e0.getTimeMillis());
+        DropBoxManager.Entry e2 = dropbox.getNextEntry(null, e1.getTimeMillis());
+        assertTrue(null == dropbox.getNextEntry(null, e2.getTimeMillis()));
+        assertEquals("TEST4", e0.getText(80));
+        assertEquals("TEST5", e1.getText(80));
+        assertEquals("TEST6", e2.getText(80));
+
+        e0.close();
+        e1.close();
+        e2.close();
+    }
+
     public void testCreateDropBoxManagerWithInvalidDirectory() throws Exception {
         // If created with an invalid directory, the DropBoxManager should suffer quietly
         // and fail all operations (this is how it survives a full disk).
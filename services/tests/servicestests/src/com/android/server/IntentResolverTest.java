@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.test.AndroidTestCase;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.List;
+
+public class IntentResolverTest extends AndroidTestCase {
+    private static final String ACTION = "com.android.server.test.ACTION";
+    private static final String CATEGORY = "com.android.server.test.CATEGORY";
+
+    private static class TestFilter extends IntentFilter {
+        final String packageName;
+
+        TestFilter(String packageName, String action) {
+            super(action);
+            this.packageName = packageName;
+        }
+    }
+
+    private static class TestResolver extends IntentResolver<TestFilter, TestFilter> {
+        @Override
+        protected boolean isPackageForFilter(String packageName, TestFilter filter) {
+            return packageName.equals(filter.packageName);
+        }
+
+        @Override
+        protected TestFilter[] newArray(int size) {
+            return new TestFilter[size];
+        }
+    }
+
+    public void testRepeatedQueryMatchesUncached() {
+        final TestResolver resolver = new TestResolver();
+        final TestFilter a = new TestFilter("a", ACTION);
+        final TestFilter b = new TestFilter("b", ACTION);
+        b.addCategory(CATEGORY);
+        resolver.addFilter(a);
+        resolver.addFilter(b);
+
+        final Intent intent = new Intent(ACTION);
+        for (int i = 0; i < 3; i++) {
+            final List<TestFilter> results = resolver.queryIntent(intent, null, false, 0);
+            assertEquals(2, results.size());
+            assertTrue(results.contains(a));
+            assertTrue(results.contains(b));
+        }
+
+        // Per-caller restrictions still apply to cached matches.
+        intent.setPackage("b");
+        final List<TestFilter> results = resolver.queryIntent(intent, null, false, 0);
+        assertEquals(1, results.size());
+        assertSame(b, results.get(0));
+
+        // Categories are part of the key.
+        final Intent categorized = new Intent(ACTION);
+        categorized.addCategory(CATEGORY);
+        assertEquals(1, resolver.queryIntent(categorized, null, false, 0).size());
+    }
+
+    public void testFilterChangesInvalidate() {
+        final TestResolver resolver = new TestResolver();
+        final TestFilter a = new TestFilter("a", ACTION);
+        resolver.addFilter(a);
+
+        final Intent intent = new Intent(ACTION);
+        assertEquals(1, resolver.queryIntent(intent, null, false, 0).size());
+
+        final TestFilter b = new TestFilter("b", ACTION);
+        resolver.addFilter(b);
+        assertEquals(2, resolver.queryIntent(intent, null, false, 0).size());
+
+        resolver.removeFilter(a);
+        final List<TestFilter> results = resolver.queryIntent(intent, null, false, 0);
+        assertEquals(1, results.size());
+        assertSame(b, results.get(0));
+    }
+
+    public void testDumpIncludesCacheStats() {
+        final TestResolver resolver = new TestResolver();
+        resolver.addFilter(new TestFilter("a", ACTION));
+        final Intent intent = new Intent(ACTION);
+        resolver.queryIntent(intent, null, false, 0);
+        resolver.queryIntent(intent, null, false, 0);
+
+        final StringWriter sw = new StringWriter();
+        final PrintWriter pw = new PrintWriter(sw);
+        resolver.dump(pw, "Resolver:", "  ", null, false, true);
+        pw.flush();
+        assertTrue(sw.toString(), sw.toString().contains("hits=1 misses=1"));
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.app.IApplicationThread;
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.ProviderInfo;
+import android.content.pm.ServiceInfo;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests which processes a partial oom_adj update of a process goes on to
+ * recompute.
+ */
+public class OomAdjDependentsTest extends TestCase {
+
+    private static final IApplicationThread THREAD = (IApplicationThread) Proxy.newProxyInstance(
+            IApplicationThread.class.getClassLoader(), new Class<?>[] { IApplicationThread.class },
+            new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    return null;
+                }
+            });
+
+    @SmallTest
+    public void testHostsOfServicesAndProviders() throws Exception {
+        final ProcessRecord client = makeProcess("client", 10001, true);
+        final ProcessRecord serviceHost = makeProcess("service", 10002, true);
+        final ProcessRecord providerHost = makeProcess("provider", 10003, true);
+        final ProcessRecord unrelated = makeProcess("unrelated", 10004, true);
+        bindService(client, serviceHost);
+        bindService(client, serviceHost);
+        bindProvider(client, providerHost);
+        bindService(unrelated, client);
+
+        final ArrayList<ProcessRecord> queue = new ArrayList<>();
+        queue.add(client);
+        ActivityManagerService.addOomAdjDependentsLocked(client, queue);
+
+        // Each host once, and nothing the client is itself a host for.
+        assertEquals(3, queue.size());
+        assertTrue(queue.contains(serviceHost));
+        assertTrue(queue.contains(providerHost));
+        assertFalse(queue.contains(unrelated));
+    }
+
+    @SmallTest
+    public void testOnlyDirectLiveHosts() throws Exception {
+        final ProcessRecord client = makeProcess("client", 10001, true);
+        final ProcessRecord host = makeProcess("host", 10002, true);
+        final ProcessRecord hostOfHost = makeProcess("hostOfHost", 10003, true);
+        final ProcessRecord dead = makeProcess("dead", 10004, false);
+        bindService(client, host);
+        bindService(host, hostOfHost);
+        bindService(client, dead);
+        bindProvider(client, dead);
+
+        final ArrayList<ProcessRecord> queue = new ArrayList<>();
+        queue.add(client);
+        ActivityManagerService.addOomAdjDependentsLocked(client, queue);
+
+        // Hosts further away are only queued once the host in between changed.
+        assertEquals(2, queue.size());
+        assertSame(host, queue.get(1));
+
+        ActivityManagerService.addOomAdjDependentsLocked(host, queue);
+        assertEquals(3, queue.size());
+        assertSame(hostOfHost, queue.get(2));
+    }
+
+    @SmallTest
+    public void testClientsOfEachOther() throws Exception {
+        final ProcessRecord first = makeProcess("first", 10001, true);
+        final ProcessRecord second = makeProcess("second", 10002, true);
+        bindService(first, second);
+        bindService(second, first);
+
+        final ArrayList<ProcessRecord> queue = new ArrayList<>();
+        queue.add(first);
+        ActivityManagerService.addOomAdjDependentsLocked(first, queue);
+        ActivityManagerService.addOomAdjDependentsLocked(second, queue);
+
+        // The walk ends instead of going around the cycle.
+        assertEquals(2, queue.size());
+    }
+
+    private static ProcessRecord makeProcess(String name, int uid, boolean alive) {
+        final ApplicationInfo info = new ApplicationInfo();
+        info.packageName = "com.android.test." + name;
+        info.uid = uid;
+        final ProcessRecord app = new ProcessRecord(null, info, info.packageName, uid);
+        if (alive) {
+            app.thread = THREAD;
+        }
+        return app;
+    }
+
+    private static void bindService(ProcessRecord client, ProcessRecord host) {
+        final ServiceInfo info = new ServiceInfo();
+        info.applicationInfo = host.info;
+        info.packageName = host.info.packageName;
+        info.processName = host.processName;
+        info.name = "Service";
+        final Intent.FilterComparison intent = new Intent.FilterComparison(new Intent());
+        final ServiceRecord service = new ServiceRecord(null, null,
+                new ComponentName(info.packageName, info.name), intent, info, false, null);
+        service.app = host;
+        final AppBindRecord binding = new AppBindRecord(service,
+                new IntentBindRecord(service, intent), client);
+        client.connections.add(new ConnectionRecord(binding, null, null, 0, 0, null));
+    }
+
+    private static void bindProvider(ProcessRecord client, ProcessRecord host) {
+        final ProviderInfo info = new ProviderInfo();
+        info.applicationInfo = host.info;
+        info.packageName = host.info.packageName;
+        info.processName = host.processName;
+        info.name = "Provider";
+        final ContentProviderRecord provider = new ContentProviderRecord(null, info, host.info,
+                new ComponentName(info.packageName, info.name), false);
+        provider.proc = host;
+        client.conProviders.add(new ContentProviderConnection(provider, client));
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.content;
+
+import android.database.IContentObserver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class ContentNotifyBatcherTest extends AndroidTestCase {
+    // Long enough that only explicit flushes deliver anything.
+    private static final long WINDOW_MS = 60 * 1000;
+
+    private static final Uri URI_A1 = Uri.parse("content://a/1");
+    private static final Uri URI_A2 = Uri.parse("content://a/2");
+    private static final Uri URI_B1 = Uri.parse("content://b/1");
+
+    static class RecordingObserver extends IContentObserver.Stub {
+        final List<List<Uri>> calls = new ArrayList<>();
+
+        @Override
+        public void onChange(boolean selfUpdate, Uri uri, int userId) {
+            calls.add(Arrays.asList(uri));
+        }
+
+        @Override
+        public void onChangeMultiple(boolean selfUpdate, Uri[] uris, int userId) {
+            calls.add(Arrays.asList(uris));
+        }
+    }
+
+    private ContentNotifyBatcher mBatcher;
+    private RecordingObserver mObserver;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mBatcher = new ContentNotifyBatcher(new Handler(Looper.getMainLooper()), WINDOW_MS);
+        mObserver = new RecordingObserver();
+    }
+
+    public void testChangesAreBatchedPerAuthority() throws Exception {
+        mBatcher.notifyChange(mObserver, false, URI_A1, 0);
+        mBatcher.notifyChange(mObserver, false, URI_A2, 0);
+        mBatcher.notifyChange(mObserver, false, URI_B1, 0);
+        assertEquals(0, mObserver.calls.size());
+
+        mBatcher.flush();
+        assertEquals(2, mObserver.calls.size());
+        assertEquals(Arrays.asList(URI_A1, URI_A2), mObserver.calls.get(0));
+        assertEquals(Arrays.asList(URI_B1), mObserver.calls.get(1));
+
+        assertEquals(2, mBatcher.getCollectedCount("a"));
+        assertEquals(1, mBatcher.getDeliveredCount("a"));
+        assertEquals(1, mBatcher.getDeliveredCount("b"));
+    }
+
+    public void testDuplicateChangesAreCoalesced() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            mBatcher.notifyChange(mObserver, false, URI_A1, 0);
+        }
+        mBatcher.flush();
+        assertEquals(1, mObserver.calls.size());
+        assertEquals(Arrays.asList(URI_A1), mObserver.calls.get(0));
+        assertEquals(10, mBatcher.getCollectedCount("a"));
+        assertEquals(1, mBatcher.getDeliveredCount("a"));
+    }
+
+    public void testSelfChangesAreNotMixed() throws Exception {
+        mBatcher.notifyChange(mObserver, false, URI_A1, 0);
+        mBatcher.notifyChange(mObserver, true, URI_A2, 0);
+        mBatcher.flush();
+        assertEquals(2, mObserver.calls.size());
+    }
+
+    public void testNoBatchingDeliversImmediately() throws Exception {
+        final ContentNotifyBatcher batcher = new ContentNotifyBatcher(
+                new Handler(Looper.getMainLooper()), 0);
+        batcher.notifyChange(mObserver, false, URI_A1, 0);
+        batcher.notifyChange(mObserver, false, URI_A2, 0);
+        assertEquals(2, mObserver.calls.size());
+        // Stats are only kept while batching.
+        assertEquals(0, batcher.getCollectedCount("a"));
+        assertEquals(0, batcher.getDeliveredCount("a"));
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.job;
+
+import android.app.job.JobInfo;
+import android.content.ComponentName;
+import android.content.Context;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.ArraySet;
+
+import com.android.server.job.controllers.JobStatus;
+
+/**
+ * Checks which jobs {@link JobSchedulerService} looks at again after a controller reports
+ * changed constraints.
+ */
+public class JobSchedulerServiceTest extends AndroidTestCase {
+    private static final String TEST_PREFIX = "_test_";
+    private static final int SOME_UID = 34234;
+
+    private JobStore mJobStore;
+    private JobSchedulerService mService;
+    private ComponentName mComponent;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        final Context testContext = new RenamingDelegatingContext(getContext(), TEST_PREFIX);
+        mJobStore = JobStore.initAndGetForTesting(testContext, testContext.getFilesDir());
+        mService = new JobSchedulerService(testContext, mJobStore);
+        mComponent = new ComponentName(getContext().getPackageName(),
+                StubClass.class.getName());
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mJobStore.clear();
+        super.tearDown();
+    }
+
+    @SmallTest
+    public void testChangedConstraintsCheckOnlyAffectedJobs() throws Exception {
+        final JobStatus charging = createJob(new JobInfo.Builder(1, mComponent)
+                .setRequiresCharging(true));
+        final JobStatus idle = createJob(new JobInfo.Builder(2, mComponent)
+                .setRequiresDeviceIdle(true));
+        final JobStatus ready = createJob(new JobInfo.Builder(3, mComponent)
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY));
+        synchronized (mService.mLock) {
+            mJobStore.add(charging);
+            mJobStore.add(idle);
+            mJobStore.add(ready);
+            // As if the last check had found it ready.
+            mService.mMaybeReadyJobs.add(ready);
+        }
+
+        mService.onControllerStateChanged(charging.getRequiredConstraints());
+        synchronized (mService.mLock) {
+            final ArraySet<JobStatus> changedJobs = mService.collectChangedJobsLocked();
+            assertNotNull(changedJobs);
+            assertEquals(2, changedJobs.size());
+            assertTrue(changedJobs.contains(charging));
+            assertTrue("Ready jobs are checked along", changedJobs.contains(ready));
+            changedJobs.clear();
+        }
+    }
+
+    @SmallTest
+    public void testImplicitConstraintsCheckAllJobs() throws Exception {
+        synchronized (mService.mLock) {
+            mJobStore.add(createJob(new JobInfo.Builder(1, mComponent)
+                    .setRequiresCharging(true)));
+        }
+
+        mService.onControllerStateChanged(JobStatus.IMPLICIT_CONSTRAINTS);
+        synchronized (mService.mLock) {
+            assertNull(mService.collectChangedJobsLocked());
+        }
+    }
+
+    private static JobStatus createJob(JobInfo.Builder builder) {
+        return JobStatus.createFromJobInfo(builder.build(), SOME_UID, null, -1, null);
+    }
+
+    private static class StubClass {}
+}
@@ -15,7 +15,9 @@ import android.util.ArraySet;
 import com.android.server.job.JobStore.JobSet;
 import com.android.server.job.controllers.JobStatus;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 
 /**
  * Test reading and writing correctly from file.
@@ -263,6 +265,100 @@ public class JobStoreTest extends AndroidTestCase {
         assertEquals("Wrong job persisted.", 43, jobStatus.getJobId());
     }
 
+    /**
+     * Test that removals and replacements written to the journal are applied on read.
+     */
+    public void testJournalReplaysChanges() throws Exception {
+        final JobStatus js1 = JobStatus.createFromJobInfo(new Builder(1, mComponent)
+                .setOverrideDeadline(10000).setPersisted(true).build(), SOME_UID, null, -1, null);
+        final JobStatus js2 = JobStatus.createFromJobInfo(new Builder(2, mComponent)
+                .setOverrideDeadline(10000).setPersisted(true).build(), SOME_UID, null, -1, null);
+        final JobStatus js2Replacement = JobStatus.createFromJobInfo(new Builder(2, mComponent)
+                .setOverrideDeadline(10000).setPriority(7).setPersisted(true).build(),
+                SOME_UID, null, -1, null);
+        mTaskStoreUnderTest.add(js1);
+        mTaskStoreUnderTest.add(js2);
+        Thread.sleep(IO_WAIT);
+
+        mTaskStoreUnderTest.remove(js1, true);
+        mTaskStoreUnderTest.remove(js2, false);
+        mTaskStoreUnderTest.add(js2Replacement);
+        Thread.sleep(IO_WAIT);
+
+        final JobSet jobStatusSet = new JobSet();
+        mTaskStoreUnderTest.readJobMapFromDisk(jobStatusSet);
+        assertEquals("Job count is incorrect.", 1, jobStatusSet.size());
+        JobStatus loaded = jobStatusSet.getAllJobs().iterator().next();
+        assertEquals("Wrong job persisted.", 2, loaded.getJobId());
+        assertEquals("Replacement not persisted.", 7, loaded.getPriority());
+    }
+
+    /**
+     * Test that jobs survive the journal being folded back into the jobs file.
+     */
+    public void testJournalCompaction() throws Exception {
+        final int jobCount = 100;
+        for (int i = 0; i < jobCount; i++) {
+            mTaskStoreUnderTest.add(JobStatus.createFromJobInfo(new Builder(i, mComponent)
+                    .setOverrideDeadline(10000).setPersisted(true).build(),
+                    SOME_UID, null, -1, null));
+        }
+        for (int i = 0; i < jobCount; i += 2) {
+            mTaskStoreUnderTest.remove(mTaskStoreUnderTest.getJobByUidAndJobId(SOME_UID, i), true);
+        }
+        Thread.sleep(IO_WAIT);
+
+        final JobSet jobStatusSet = new JobSet();
+        mTaskStoreUnderTest.readJobMapFromDisk(jobStatusSet);
+        assertEquals("Job count is incorrect.", jobCount / 2, jobStatusSet.size());
+        for (int i = 1; i < jobCount; i += 2) {
+            assertNotNull("Missing job " + i, jobStatusSet.get(SOME_UID, i));
+        }
+    }
+
+    /**
+     * Test that jobs are found by the constraints they require, once each.
+     */
+    public void testForEachJobRequiring() throws Exception {
+        final JobStatus charging = JobStatus.createFromJobInfo(new Builder(1, mComponent)
+                .setRequiresCharging(true).build(), SOME_UID, null, -1, null);
+        final JobStatus idle = JobStatus.createFromJobInfo(new Builder(2, mComponent)
+                .setRequiresDeviceIdle(true).build(), SOME_UID, null, -1, null);
+        final JobStatus both = JobStatus.createFromJobInfo(new Builder(3, mComponent)
+                .setRequiresCharging(true).setRequiresDeviceIdle(true).build(),
+                SOME_UID, null, -1, null);
+        final JobSet jobSet = new JobSet();
+        jobSet.add(charging);
+        jobSet.add(idle);
+        jobSet.add(both);
+
+        final int chargingMask = charging.getRequiredConstraints();
+        final int idleMask = idle.getRequiredConstraints();
+        assertEquals(2, collectJobsRequiring(jobSet, chargingMask).size());
+        assertEquals(2, collectJobsRequiring(jobSet, idleMask).size());
+        final List<JobStatus> matched = collectJobsRequiring(jobSet, chargingMask | idleMask);
+        assertEquals("Job visited more than once.", 3, matched.size());
+        assertEquals(3, new ArraySet<JobStatus>(matched).size());
+
+        jobSet.remove(both);
+        assertEquals(1, collectJobsRequiring(jobSet, chargingMask).size());
+        jobSet.remove(charging);
+        assertEquals(0, collectJobsRequiring(jobSet, chargingMask).size());
+        jobSet.clear();
+        assertEquals(0, collectJobsRequiring(jobSet, idleMask).size());
+    }
+
+    private static List<JobStatus> collectJobsRequiring(JobSet jobSet, int constraints) {
+        final ArrayList<JobStatus> jobs = new ArrayList<JobStatus>();
+        jobSet.forEachJobRequiring(constraints, new JobStore.JobStatusFunctor() {
+            @Override
+            public void process(JobStatus jobStatus) {
+                jobs.add(jobStatus);
+            }
+        });
+        return jobs;
+    }
+
     /**
      * Helper function to throw an error if the provided task and TaskStatus objects are not equal.
      */
@@ -27,6 +27,7 @@ import static android.text.format.DateUtils.MINUTE_IN_MILLIS;
 import android.content.res.Resources;
 import android.net.NetworkIdentity;
 import android.net.NetworkStats;
+import android.net.NetworkStatsHistory;
 import android.net.NetworkTemplate;
 import android.os.Process;
 import android.os.UserHandle;
@@ -217,6 +218,61 @@ public class NetworkStatsCollectionTest extends AndroidTestCase {
                 0, NetworkStatsAccess.Level.DEVICE);
     }
 
+    public void testClippedRange() throws Exception {
+        final NetworkStatsCollection complete = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        final NetworkIdentitySet identSet = new NetworkIdentitySet();
+        identSet.add(new NetworkIdentity(TYPE_MOBILE, TelephonyManager.NETWORK_TYPE_UNKNOWN,
+                TEST_IMSI, null, false, true));
+
+        // record a day of data, spread over 90 minute intervals
+        for (int i = 0; i < 16; i++) {
+            entry.rxBytes = 1024 * (i + 1);
+            entry.txBytes = 512;
+            complete.recordData(identSet, 10000 + (i % 3), SET_DEFAULT, TAG_NONE,
+                    i * 90 * MINUTE_IN_MILLIS, (i + 1) * 90 * MINUTE_IN_MILLIS, entry);
+        }
+
+        final long start = 5 * HOUR_IN_MILLIS + 20 * MINUTE_IN_MILLIS;
+        final long end = 11 * HOUR_IN_MILLIS + 40 * MINUTE_IN_MILLIS;
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        complete.write(new DataOutputStream(bos));
+        final NetworkStatsCollection clipped = new NetworkStatsCollection(
+                HOUR_IN_MILLIS, start, end);
+        clipped.read(new ByteArrayInputStream(bos.toByteArray()));
+
+        // only buckets overlapping the range are kept
+        assertTrue(clipped.isClipped());
+        assertFalse(complete.isClipped());
+        assertEquals(5 * HOUR_IN_MILLIS, clipped.getStartMillis());
+        assertEquals(12 * HOUR_IN_MILLIS, clipped.getEndMillis());
+        assertTrue(clipped.getTotalBytes() < complete.getTotalBytes());
+
+        // queries inside the range see the same values
+        assertTrue(clipped.coversRange(start, end));
+        assertTrue(clipped.coversRange(start + HOUR_IN_MILLIS, end));
+        assertFalse(clipped.coversRange(start - 1, end));
+        final NetworkTemplate template = buildTemplateMobileAll(TEST_IMSI);
+        final NetworkStats expected = complete.getSummary(template, start, end,
+                NetworkStatsAccess.Level.DEVICE);
+        final NetworkStats actual = clipped.getSummary(template, start, end,
+                NetworkStatsAccess.Level.DEVICE);
+        assertEquals(expected.size(), actual.size());
+        assertEquals(expected.getTotalBytes(), actual.getTotalBytes());
+        assertEquals(complete.getHistory(template, 10001, SET_DEFAULT, TAG_NONE,
+                NetworkStatsHistory.FIELD_ALL, start, end, NetworkStatsAccess.Level.DEVICE)
+                .getTotalBytes(),
+                clipped.getHistory(template, 10001, SET_DEFAULT, TAG_NONE,
+                NetworkStatsHistory.FIELD_ALL, start, end, NetworkStatsAccess.Level.DEVICE)
+                .getTotalBytes());
+
+        // data recorded outside the range is ignored
+        final long totalBytes = clipped.getTotalBytes();
+        clipped.recordData(identSet, 10000, SET_DEFAULT, TAG_NONE, 20 * HOUR_IN_MILLIS,
+                21 * HOUR_IN_MILLIS, entry);
+        assertEquals(totalBytes, clipped.getTotalBytes());
+    }
+
     /**
      * Copy a {@link Resources#openRawResource(int)} into {@link File} for
      * testing purposes.
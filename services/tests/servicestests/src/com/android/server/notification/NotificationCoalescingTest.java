@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.notification;
+
+import static android.service.notification.NotificationRankerService.REASON_APP_CANCEL_ALL;
+import static android.service.notification.NotificationRankerService.REASON_DELEGATE_CANCEL_ALL;
+import static android.service.notification.NotificationRankerService.REASON_PACKAGE_BANNED;
+
+import android.app.ActivityManager;
+import android.app.Notification;
+import android.os.Handler;
+import android.os.UserHandle;
+import android.service.notification.StatusBarNotification;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.server.lights.Light;
+
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+/**
+ * Checks that updates held back by notification coalescing don't survive a cancel that
+ * covers them.
+ */
+public class NotificationCoalescingTest extends AndroidTestCase {
+    private static final String PKG = "com.android.server.notification";
+    private static final String OTHER_PKG = "com.android.server.notification.other";
+
+    @Mock Handler mHandler;
+    @Mock Light mLight;
+
+    private NotificationManagerService mService;
+    private final int mUid = 1000;
+    private final int mPid = 2000;
+    private final UserHandle mUser = UserHandle.of(ActivityManager.getCurrentUser());
+
+    @Override
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+
+        mService = new NotificationManagerService(getContext());
+        mService.setHandler(mHandler);
+        mService.setLights(mLight);
+    }
+
+    @SmallTest
+    public void testCancelAllDropsHeldUpdates() throws Exception {
+        hold(getNotificationRecord(PKG, 1, 0));
+        hold(getNotificationRecord(PKG, 2, 0));
+        hold(getNotificationRecord(OTHER_PKG, 1, 0));
+
+        synchronized (mService.mNotificationList) {
+            assertTrue(mService.cancelAllNotificationsInt(mUid, mPid, PKG, 0, 0, true,
+                    mUser.getIdentifier(), REASON_APP_CANCEL_ALL, null));
+        }
+
+        assertEquals(1, mService.mCoalescedEnqueues.size());
+        assertTrue(mService.mCoalescedEnqueues.containsKey(
+                getNotificationRecord(OTHER_PKG, 1, 0).getKey()));
+    }
+
+    @SmallTest
+    public void testCancelAllQueryKeepsHeldUpdates() throws Exception {
+        hold(getNotificationRecord(PKG, 1, 0));
+
+        assertTrue(mService.cancelAllNotificationsInt(mUid, mPid, PKG, 0, 0, false,
+                mUser.getIdentifier(), REASON_PACKAGE_BANNED, null));
+        assertEquals(1, mService.mCoalescedEnqueues.size());
+    }
+
+    @SmallTest
+    public void testCancelAllHonorsFlags() throws Exception {
+        hold(getNotificationRecord(PKG, 1, Notification.FLAG_FOREGROUND_SERVICE));
+        hold(getNotificationRecord(PKG, 2, 0));
+
+        mService.cancelAllNotificationsInt(mUid, mPid, PKG, 0,
+                Notification.FLAG_FOREGROUND_SERVICE, true, mUser.getIdentifier(),
+                REASON_APP_CANCEL_ALL, null);
+
+        assertEquals(1, mService.mCoalescedEnqueues.size());
+        assertTrue(mService.mCoalescedEnqueues.containsKey(
+                getNotificationRecord(PKG, 1, 0).getKey()));
+    }
+
+    @SmallTest
+    public void testUserRemovalDropsHeldUpdates() throws Exception {
+        hold(getNotificationRecord(PKG, 1, 0));
+        hold(getNotificationRecord(OTHER_PKG, 1, Notification.FLAG_ONGOING_EVENT));
+
+        mService.cancelAllNotificationsInt(mUid, mPid, null, 0, 0, true,
+                mUser.getIdentifier(), REASON_APP_CANCEL_ALL, null);
+
+        assertEquals(0, mService.mCoalescedEnqueues.size());
+    }
+
+    @SmallTest
+    public void testClearAllKeepsHeldUpdatesToOngoing() throws Exception {
+        hold(getNotificationRecord(PKG, 1, 0));
+        hold(getNotificationRecord(PKG, 2, Notification.FLAG_ONGOING_EVENT));
+        hold(getNotificationRecord(OTHER_PKG, 1, Notification.FLAG_NO_CLEAR));
+        hold(getNotificationRecord(OTHER_PKG, 2, 0));
+
+        synchronized (mService.mNotificationList) {
+            mService.cancelAllLocked(mUid, mPid, mUser.getIdentifier(),
+                    REASON_DELEGATE_CANCEL_ALL, null, false /* includeCurrentProfiles */);
+        }
+
+        assertEquals(2, mService.mCoalescedEnqueues.size());
+        assertTrue(mService.mCoalescedEnqueues.containsKey(
+                getNotificationRecord(PKG, 2, 0).getKey()));
+        assertTrue(mService.mCoalescedEnqueues.containsKey(
+                getNotificationRecord(OTHER_PKG, 1, 0).getKey()));
+    }
+
+    private void hold(NotificationRecord r) {
+        synchronized (mService.mNotificationList) {
+            mService.holdEnqueueLocked(mUser.getIdentifier(), r);
+        }
+    }
+
+    private NotificationRecord getNotificationRecord(String pkg, int id, int flags) {
+        final Notification n = new Notification.Builder(getContext())
+                .setContentTitle("foo")
+                .setSmallIcon(android.R.drawable.sym_def_app_icon)
+                .build();
+        n.flags |= flags;
+        final StatusBarNotification sbn = new StatusBarNotification(pkg, pkg, id, null, mUid,
+                mPid, 0, n, mUser, System.currentTimeMillis());
+        return new NotificationRecord(getContext(), sbn);
+    }
+}
@@ -140,4 +140,77 @@ public class RankingHelperTest extends AndroidTestCase {
         ArrayList<NotificationRecord> notificationList = new ArrayList<NotificationRecord>();
         mHelper.sort(notificationList);
     }
+
+    @SmallTest
+    public void testSortUpdatedMatchesSortForNewRecord() throws Exception {
+        ArrayList<NotificationRecord> notificationList = new ArrayList<NotificationRecord>();
+        notificationList.add(mRecordGroupGSortA);
+        notificationList.add(mRecordNoGroup);
+        mHelper.sort(notificationList);
+
+        notificationList.add(mRecordGroupGSortB);
+        mHelper.sortUpdated(notificationList, mRecordGroupGSortB, null);
+        notificationList.add(mRecordNoGroup2);
+        mHelper.sortUpdated(notificationList, mRecordNoGroup2, null);
+        assertSortedLikeFullSort(notificationList);
+    }
+
+    @SmallTest
+    public void testSortUpdatedMatchesSortForReplacedRecord() throws Exception {
+        ArrayList<NotificationRecord> notificationList = new ArrayList<NotificationRecord>();
+        notificationList.add(mRecordGroupGSortA);
+        notificationList.add(mRecordGroupGSortB);
+        notificationList.add(mRecordNoGroup);
+        notificationList.add(mRecordNoGroup2);
+        mHelper.sort(notificationList);
+
+        Notification update = new Notification.Builder(getContext())
+                .setContentTitle("B")
+                .setGroup("G")
+                .setSortKey("B")
+                .setWhen(1210)
+                .build();
+        NotificationRecord updated = new NotificationRecord(getContext(),
+                new StatusBarNotification("package", "package", 1, null, 0, 0, 0, update,
+                UserHandle.ALL));
+        notificationList.set(notificationList.indexOf(mRecordGroupGSortB), updated);
+        mHelper.sortUpdated(notificationList, updated, mRecordGroupGSortB);
+        assertSortedLikeFullSort(notificationList);
+        assertTrue(mHelper.indexOf(notificationList, updated) >= 0);
+    }
+
+    @SmallTest
+    public void testRemovedRecordsAreForgotten() throws Exception {
+        ArrayList<NotificationRecord> notificationList = new ArrayList<NotificationRecord>();
+        notificationList.add(mRecordGroupGSortA);
+        notificationList.add(mRecordGroupGSortB);
+        notificationList.add(mRecordNoGroup);
+        mHelper.sort(notificationList);
+
+        notificationList.remove(mRecordNoGroup);
+        mHelper.onRecordRemoved(mRecordNoGroup);
+        assertFalse(mHelper.mPreliminaryOrder.contains(mRecordNoGroup));
+
+        Notification update = new Notification.Builder(getContext())
+                .setContentTitle("B")
+                .setGroup("G")
+                .setSortKey("B")
+                .setWhen(1210)
+                .build();
+        NotificationRecord updated = new NotificationRecord(getContext(),
+                new StatusBarNotification("package", "package", 1, null, 0, 0, 0, update,
+                UserHandle.ALL));
+        notificationList.set(notificationList.indexOf(mRecordGroupGSortB), updated);
+        mHelper.sortUpdated(notificationList, updated, mRecordGroupGSortB);
+        assertFalse(mHelper.mPreliminaryOrder.contains(mRecordGroupGSortB));
+        assertEquals(2, mHelper.mPreliminaryOrder.size());
+        assertSortedLikeFullSort(notificationList);
+    }
+
+    private void assertSortedLikeFullSort(ArrayList<NotificationRecord> notificationList) {
+        ArrayList<NotificationRecord> expected =
+                new ArrayList<NotificationRecord>(notificationList);
+        mHelper.sort(expected);
+        assertEquals(expected, notificationList);
+    }
 }
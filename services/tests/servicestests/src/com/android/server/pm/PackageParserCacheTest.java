@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import android.content.pm.PackageParser;
+import android.os.FileUtils;
+import android.os.Parcel;
+import android.test.AndroidTestCase;
+
+import java.io.File;
+
+public class PackageParserCacheTest extends AndroidTestCase {
+    private File mCacheDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCacheDir = new File(getContext().getCacheDir(), "package_cache");
+        FileUtils.deleteContents(mCacheDir);
+        mCacheDir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteContents(mCacheDir);
+        mCacheDir.delete();
+        super.tearDown();
+    }
+
+    private File getTestApk() {
+        return new File(getContext().getPackageCodePath());
+    }
+
+    public void testParcelRoundTrip() throws Exception {
+        final PackageParser.Package pkg = new PackageParser().parsePackage(getTestApk(), 0);
+
+        final Parcel p = Parcel.obtain();
+        final PackageParser.Package restored;
+        try {
+            pkg.writeToParcel(p, 0);
+            p.setDataPosition(0);
+            restored = new PackageParser.Package(p);
+            assertEquals(0, p.dataAvail());
+        } finally {
+            p.recycle();
+        }
+
+        assertPackagesEqual(pkg, restored);
+    }
+
+    public void testCacheHitMatchesParse() throws Exception {
+        final PackageParser.Package parsed = newCachingParser().parsePackage(getTestApk(), 0);
+        assertEquals(1, mCacheDir.list().length);
+
+        final PackageParser.Package cached = newCachingParser().parsePackage(getTestApk(), 0);
+        assertNotSame(parsed, cached);
+        assertPackagesEqual(parsed, cached);
+    }
+
+    public void testCacheKeyedByFlags() throws Exception {
+        newCachingParser().parsePackage(getTestApk(), 0);
+        newCachingParser().parsePackage(getTestApk(), PackageParser.PARSE_IS_SYSTEM);
+        assertEquals(2, mCacheDir.list().length);
+    }
+
+    public void testCorruptEntryIsDiscarded() throws Exception {
+        newCachingParser().parsePackage(getTestApk(), 0);
+        final File entry = mCacheDir.listFiles()[0];
+        FileUtils.stringToFile(entry, "garbage");
+
+        final PackageParser.Package pkg = newCachingParser().parsePackage(getTestApk(), 0);
+        assertEquals(getContext().getPackageName(), pkg.packageName);
+    }
+
+    public void testPruneRemovesStaleEntries() throws Exception {
+        newCachingParser().parsePackage(getTestApk(), 0);
+        final File stale = new File(mCacheDir, "@data@app@does.not.exist-1-0");
+        FileUtils.stringToFile(stale, "stale");
+
+        PackageParser.pruneCacheDir(mCacheDir);
+        assertFalse(stale.exists());
+        assertEquals(1, mCacheDir.list().length);
+    }
+
+    private PackageParser newCachingParser() {
+        final PackageParser pp = new PackageParser();
+        pp.setCacheDir(mCacheDir);
+        return pp;
+    }
+
+    private static void assertPackagesEqual(PackageParser.Package a, PackageParser.Package b) {
+        assertEquals(a.packageName, b.packageName);
+        assertEquals(a.codePath, b.codePath);
+        assertEquals(a.baseCodePath, b.baseCodePath);
+        assertEquals(a.mVersionCode, b.mVersionCode);
+        assertEquals(a.mVersionName, b.mVersionName);
+        assertEquals(a.applicationInfo.flags, b.applicationInfo.flags);
+        assertEquals(a.applicationInfo.targetSdkVersion, b.applicationInfo.targetSdkVersion);
+        assertEquals(a.requestedPermissions, b.requestedPermissions);
+        assertEquals(a.permissions.size(), b.permissions.size());
+        assertEquals(a.activities.size(), b.activities.size());
+        for (int i = 0; i < a.activities.size(); i++) {
+            final PackageParser.Activity activityA = a.activities.get(i);
+            final PackageParser.Activity activityB = b.activities.get(i);
+            assertEquals(activityA.className, activityB.className);
+            assertSame(b.applicationInfo, activityB.info.applicationInfo);
+            assertSame(b, activityB.owner);
+            assertEquals(activityA.intents.size(), activityB.intents.size());
+            for (int j = 0; j < activityA.intents.size(); j++) {
+                assertEquals(activityA.intents.get(j).countActions(),
+                        activityB.intents.get(j).countActions());
+                assertSame(activityB, activityB.intents.get(j).activity);
+            }
+        }
+        assertEquals(a.receivers.size(), b.receivers.size());
+        assertEquals(a.services.size(), b.services.size());
+        assertEquals(a.providers.size(), b.providers.size());
+        assertEquals(a.instrumentation.size(), b.instrumentation.size());
+    }
+}
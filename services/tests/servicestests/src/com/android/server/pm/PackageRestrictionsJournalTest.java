@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import static android.content.pm.PackageManager.COMPONENT_ENABLED_STATE_DISABLED_USER;
+
+import android.content.pm.PackageUserState;
+import android.test.AndroidTestCase;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+public class PackageRestrictionsJournalTest extends AndroidTestCase {
+    private File mFile;
+    private PackageRestrictionsJournal mJournal;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getContext().getCacheDir(), "package-restrictions-journal");
+        mFile.delete();
+        mJournal = new PackageRestrictionsJournal(mFile);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testMissingJournal() {
+        assertEquals(-1, mJournal.replay(1, new Collector()));
+    }
+
+    public void testRoundTrip() throws Exception {
+        mJournal.reset(3);
+        final PackageUserState state = new PackageUserState();
+        state.enabled = COMPONENT_ENABLED_STATE_DISABLED_USER;
+        state.stopped = true;
+        state.lastDisableAppCaller = "com.example.caller";
+        state.appLinkGeneration = 7;
+        state.disabledComponents = new ArraySet<>();
+        state.disabledComponents.add("com.example.a.Receiver");
+        mJournal.append(states("com.example.a", state));
+        mJournal.append(states("com.example.b", new PackageUserState()));
+
+        final Collector collector = new Collector();
+        assertEquals(2, mJournal.replay(3, collector));
+        final PackageUserState restored = collector.states.get("com.example.a");
+        assertEquals(COMPONENT_ENABLED_STATE_DISABLED_USER, restored.enabled);
+        assertTrue(restored.stopped);
+        assertTrue(restored.installed);
+        assertEquals("com.example.caller", restored.lastDisableAppCaller);
+        assertEquals(7, restored.appLinkGeneration);
+        assertTrue(restored.disabledComponents.contains("com.example.a.Receiver"));
+        assertNull(restored.enabledComponents);
+        assertNull(collector.states.get("com.example.b").lastDisableAppCaller);
+    }
+
+    public void testGenerationMismatch() throws Exception {
+        mJournal.reset(3);
+        mJournal.append(states("com.example.a", new PackageUserState()));
+        assertEquals(-1, mJournal.replay(4, new Collector()));
+    }
+
+    public void testLaterRecordWins() throws Exception {
+        mJournal.reset(1);
+        final PackageUserState stopped = new PackageUserState();
+        stopped.stopped = true;
+        mJournal.append(states("com.example.a", stopped));
+        mJournal.append(states("com.example.a", new PackageUserState()));
+
+        final Collector collector = new Collector();
+        assertEquals(2, mJournal.replay(1, collector));
+        assertFalse(collector.states.get("com.example.a").stopped);
+    }
+
+    public void testTornTailIsTruncated() throws Exception {
+        mJournal.reset(1);
+        mJournal.append(states("com.example.a", new PackageUserState()));
+        final long goodLength = mJournal.length();
+        mJournal.append(states("com.example.b", new PackageUserState()));
+
+        final RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        try {
+            raf.setLength(mJournal.length() - 3);
+        } finally {
+            raf.close();
+        }
+
+        assertEquals(1, mJournal.replay(1, new Collector()));
+        assertEquals(goodLength, mJournal.length());
+
+        // Appends after the truncation must stay readable.
+        mJournal.append(states("com.example.c", new PackageUserState()));
+        final Collector collector = new Collector();
+        assertEquals(2, mJournal.replay(1, collector));
+        assertTrue(collector.states.containsKey("com.example.c"));
+    }
+
+    private static ArrayMap<String, PackageUserState> states(String packageName,
+            PackageUserState state) {
+        final ArrayMap<String, PackageUserState> states = new ArrayMap<>();
+        states.put(packageName, state);
+        return states;
+    }
+
+    private static class Collector implements PackageRestrictionsJournal.RecordHandler {
+        final ArrayMap<String, PackageUserState> states = new ArrayMap<>();
+
+        @Override
+        public void onRecord(String packageName, PackageUserState state) {
+            states.put(packageName, state);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.pm.PackageParser;
+import android.content.res.Resources;
+import android.test.AndroidTestCase;
+
+import com.android.internal.R;
+
+import java.io.File;
+
+public class ParallelPackageParserTest extends AndroidTestCase {
+
+    private File getTestApk() {
+        return new File(getContext().getPackageCodePath());
+    }
+
+    public void testParse() throws Exception {
+        final ParallelPackageParser.ParseResult result = parse(getContext(), false, 1);
+        assertNull(result.throwable);
+        assertEquals(getContext().getPackageName(), result.pkg.packageName);
+        assertTrue(result.certificatesCollected);
+    }
+
+    public void testParseOnPool() throws Exception {
+        final ParallelPackageParser.ParseResult result = parse(getContext(), false, 2);
+        assertNull(result.throwable);
+        assertEquals(getContext().getPackageName(), result.pkg.packageName);
+    }
+
+    public void testPowerOffAlarmPackageParsed() throws Exception {
+        final Context context = withPowerOffAlarmApps(getContext().getPackageName());
+        final ParallelPackageParser.ParseResult result = parse(context, true, 2);
+        assertNull(result.throwable);
+        assertEquals(getContext().getPackageName(), result.pkg.packageName);
+    }
+
+    public void testOtherPackageRejectedForPowerOffAlarm() throws Exception {
+        final Context context = withPowerOffAlarmApps("com.example.alarm");
+        final ParallelPackageParser.ParseResult result = parse(context, true, 1);
+        assertNull(result.pkg);
+        assertTrue(result.throwable instanceof PackageParser.PackageParserException);
+    }
+
+    private ParallelPackageParser.ParseResult parse(Context context, boolean onlyPowerOffAlarm,
+            int parallelism) {
+        final ParallelPackageParser.CertificatePolicy policy =
+                new ParallelPackageParser.CertificatePolicy() {
+            @Override
+            public boolean canReuseCertificates(PackageParser.Package pkg, File scanFile) {
+                return false;
+            }
+        };
+        try (ParallelPackageParser parser = new ParallelPackageParser(context, null,
+                false /*onlyCore*/, onlyPowerOffAlarm, context.getResources().getDisplayMetrics(),
+                null /*cacheDir*/, policy, new ParallelPackageParser.Stats(), parallelism)) {
+            parser.submit(getTestApk(), 0);
+            final ParallelPackageParser.ParseResult result = parser.take();
+            assertEquals(getTestApk(), result.scanFile);
+            return result;
+        }
+    }
+
+    private Context withPowerOffAlarmApps(final String... packageNames) {
+        final Resources base = getContext().getResources();
+        final Resources resources = new Resources(base.getAssets(), base.getDisplayMetrics(),
+                base.getConfiguration()) {
+            @Override
+            public String[] getStringArray(int id) {
+                if (id == R.array.power_off_alarm_apps) {
+                    return packageNames;
+                }
+                return super.getStringArray(id);
+            }
+        };
+        return new ContextWrapper(getContext()) {
+            @Override
+            public Resources getResources() {
+                return resources;
+            }
+        };
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.usage;
+
+import android.app.usage.TimeSparseArray;
+import android.app.usage.UsageEvents;
+import android.app.usage.UsageStatsManager;
+import android.content.res.Configuration;
+import android.os.FileUtils;
+import android.test.AndroidTestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.Locale;
+
+public class UsageEventJournalTest extends AndroidTestCase {
+
+    final static String PACKAGE_1 = "com.android.testpackage1";
+    final static String PACKAGE_2 = "com.android.testpackage2";
+    final static long BEGIN_TIME = 1000000;
+
+    File mStorageDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mStorageDir = new File(getContext().getFilesDir(), "usagejournal");
+        mStorageDir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteContents(mStorageDir);
+        super.tearDown();
+    }
+
+    public void testRoundTrip() throws Exception {
+        final IntervalStats stats = newStats();
+        addEvent(stats, PACKAGE_1, "Activity", 10, UsageEvents.Event.MOVE_TO_FOREGROUND);
+        final UsageEvents.Event config = addEvent(stats, "android", null, 20,
+                UsageEvents.Event.CONFIGURATION_CHANGE);
+        config.mConfiguration = new Configuration();
+        config.mConfiguration.setLocale(Locale.FRANCE);
+        config.mConfiguration.orientation = Configuration.ORIENTATION_LANDSCAPE;
+        addEvent(stats, PACKAGE_2, null, 30, UsageEvents.Event.SHORTCUT_INVOCATION)
+                .mShortcutId = "shortcut";
+
+        final UsageEventJournal journal = newJournal();
+        journal.append(stats, 0);
+
+        final IntervalStats read = newStats();
+        assertTrue(journal.read(read, 0));
+        assertEquals(3, read.events.size());
+
+        final UsageEvents.Event first = read.events.valueAt(0);
+        assertEquals(BEGIN_TIME + 10, first.mTimeStamp);
+        assertEquals(PACKAGE_1, first.mPackage);
+        assertEquals("Activity", first.mClass);
+        assertEquals(UsageEvents.Event.MOVE_TO_FOREGROUND, first.mEventType);
+
+        final UsageEvents.Event second = read.events.valueAt(1);
+        assertNull(second.mClass);
+        assertEquals(Locale.FRANCE, second.mConfiguration.getLocales().get(0));
+        assertEquals(Configuration.ORIENTATION_LANDSCAPE, second.mConfiguration.orientation);
+
+        assertEquals("shortcut", read.events.valueAt(2).mShortcutId);
+    }
+
+    public void testAppendAndRangeRead() throws Exception {
+        final IntervalStats stats = newStats();
+        final UsageEventJournal journal = newJournal();
+        addEvent(stats, PACKAGE_1, null, 10, UsageEvents.Event.MOVE_TO_FOREGROUND);
+        journal.append(stats, 0);
+        addEvent(stats, PACKAGE_1, null, 20, UsageEvents.Event.MOVE_TO_BACKGROUND);
+        addEvent(stats, PACKAGE_2, null, 30, UsageEvents.Event.USER_INTERACTION);
+        journal.append(stats, 1);
+
+        final IntervalStats read = newStats();
+        assertTrue(journal.read(read, 0));
+        assertEquals(3, read.events.size());
+
+        assertTrue(journal.read(read, BEGIN_TIME + 20));
+        assertEquals(2, read.events.size());
+        assertEquals(BEGIN_TIME + 20, read.events.keyAt(0));
+    }
+
+    public void testTornTailIsTruncated() throws Exception {
+        final IntervalStats stats = newStats();
+        final UsageEventJournal journal = newJournal();
+        addEvent(stats, PACKAGE_1, null, 10, UsageEvents.Event.MOVE_TO_FOREGROUND);
+        journal.append(stats, 0);
+        final long goodLength = journal.getFile().length();
+        addEvent(stats, PACKAGE_1, null, 20, UsageEvents.Event.MOVE_TO_BACKGROUND);
+        journal.append(stats, 1);
+
+        final RandomAccessFile raf = new RandomAccessFile(journal.getFile(), "rw");
+        try {
+            raf.setLength(raf.length() - 3);
+        } finally {
+            raf.close();
+        }
+
+        final IntervalStats read = newStats();
+        assertTrue(journal.read(read, 0));
+        assertEquals(1, read.events.size());
+        assertEquals(goodLength, journal.getFile().length());
+    }
+
+    public void testMissingJournal() throws Exception {
+        assertFalse(newJournal().read(newStats(), 0));
+    }
+
+    public void testDatabaseAppendsEvents() throws Exception {
+        final UsageStatsDatabase database = new UsageStatsDatabase(mStorageDir);
+        database.init(BEGIN_TIME + 1000);
+
+        final IntervalStats stats = newStats();
+        stats.endTime = BEGIN_TIME + 100;
+        addEvent(stats, PACKAGE_1, null, 10, UsageEvents.Event.MOVE_TO_FOREGROUND);
+        database.putUsageStats(UsageStatsManager.INTERVAL_DAILY, stats);
+        final File journal = new File(new File(mStorageDir, "events"), Long.toString(BEGIN_TIME));
+        final long firstLength = journal.length();
+
+        addEvent(stats, PACKAGE_1, null, 20, UsageEvents.Event.MOVE_TO_BACKGROUND);
+        database.putUsageStats(UsageStatsManager.INTERVAL_DAILY, stats);
+        assertTrue(journal.length() > firstLength);
+
+        // Nothing new, so nothing is appended.
+        final long secondLength = journal.length();
+        database.putUsageStats(UsageStatsManager.INTERVAL_DAILY, stats);
+        assertEquals(secondLength, journal.length());
+
+        final IntervalStats latest = database.getLatestUsageStats(
+                UsageStatsManager.INTERVAL_DAILY);
+        assertEquals(2, latest.events.size());
+
+        final List<UsageEvents.Event> events = database.queryUsageStats(
+                UsageStatsManager.INTERVAL_DAILY, BEGIN_TIME + 15, BEGIN_TIME + 1000,
+                new UsageStatsDatabase.StatCombiner<UsageEvents.Event>() {
+                    @Override
+                    public void combine(IntervalStats stats, boolean mutable,
+                            List<UsageEvents.Event> accumulatedResult) {
+                        for (int i = 0; i < stats.events.size(); i++) {
+                            accumulatedResult.add(stats.events.valueAt(i));
+                        }
+                    }
+                }, true);
+        assertEquals(1, events.size());
+        assertEquals(UsageEvents.Event.MOVE_TO_BACKGROUND, events.get(0).mEventType);
+    }
+
+    public void testAppendToMissingJournalRewritesIt() throws Exception {
+        final IntervalStats stats = newStats();
+        final UsageEventJournal journal = newJournal();
+        addEvent(stats, PACKAGE_1, null, 10, UsageEvents.Event.MOVE_TO_FOREGROUND);
+        journal.append(stats, 0);
+        journal.delete();
+
+        addEvent(stats, PACKAGE_1, null, 20, UsageEvents.Event.MOVE_TO_BACKGROUND);
+        journal.append(stats, 1);
+
+        final IntervalStats read = newStats();
+        assertTrue(journal.read(read, 0));
+        assertEquals(2, read.events.size());
+    }
+
+    public void testPersistAfterRestore() throws Exception {
+        final UsageStatsDatabase database = new UsageStatsDatabase(mStorageDir);
+        database.init(BEGIN_TIME + 1000);
+
+        final IntervalStats stats = newStats();
+        stats.endTime = BEGIN_TIME + 100;
+        addEvent(stats, PACKAGE_1, null, 10, UsageEvents.Event.MOVE_TO_FOREGROUND);
+        addEvent(stats, PACKAGE_2, null, 20, UsageEvents.Event.MOVE_TO_FOREGROUND);
+        database.putUsageStats(UsageStatsManager.INTERVAL_DAILY, stats);
+
+        // Restoring an empty backup deletes every file, including the event journals.
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(payload);
+        out.writeInt(UsageStatsDatabase.BACKUP_VERSION);
+        for (int i = 0; i < 4; i++) {
+            out.writeInt(0);
+        }
+        out.flush();
+        database.applyRestoredPayload(UsageStatsDatabase.KEY_USAGE_STATS,
+                payload.toByteArray());
+        assertNull(database.getLatestUsageStats(UsageStatsManager.INTERVAL_DAILY));
+
+        // The in-memory stats still believe their first events are on disk.
+        addEvent(stats, PACKAGE_1, null, 30, UsageEvents.Event.MOVE_TO_BACKGROUND);
+        database.putUsageStats(UsageStatsManager.INTERVAL_DAILY, stats);
+
+        final IntervalStats latest = database.getLatestUsageStats(
+                UsageStatsManager.INTERVAL_DAILY);
+        assertEquals(BEGIN_TIME, latest.beginTime);
+        assertEquals(3, latest.events.size());
+        assertEquals(BEGIN_TIME + 10, latest.events.keyAt(0));
+    }
+
+    private UsageEventJournal newJournal() {
+        return new UsageEventJournal(new File(mStorageDir, Long.toString(BEGIN_TIME)));
+    }
+
+    private static IntervalStats newStats() {
+        final IntervalStats stats = new IntervalStats();
+        stats.beginTime = BEGIN_TIME;
+        stats.endTime = BEGIN_TIME + 1;
+        return stats;
+    }
+
+    private static UsageEvents.Event addEvent(IntervalStats stats, String packageName,
+            String className, long offset, int eventType) {
+        final UsageEvents.Event event = stats.buildEvent(packageName, className);
+        event.mTimeStamp = BEGIN_TIME + offset;
+        event.mEventType = eventType;
+        if (stats.events == null) {
+            stats.events = new TimeSparseArray<>();
+        }
+        stats.events.put(event.mTimeStamp, event);
+        return event;
+    }
+}
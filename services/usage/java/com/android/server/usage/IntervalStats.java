@@ -32,6 +32,11 @@ class IntervalStats {
     public Configuration activeConfiguration;
     public TimeSparseArray<UsageEvents.Event> events;
 
+    // How many of the events, up to and including the one at persistedEventTime, are
+    // already in the event journal on disk. Only those after it need to be appended.
+    int persistedEventCount;
+    long persistedEventTime;
+
     // A string cache. This is important as when we're parsing XML files, we don't want to
     // keep hundreds of strings that have the same contents. We will read the string
     // and only keep it if it's not in the cache. The GC will take care of the
@@ -81,6 +86,27 @@ class IntervalStats {
         return event;
     }
 
+    /**
+     * Marks all the events currently held as written to disk.
+     */
+    void markEventsPersisted() {
+        persistedEventCount = events != null ? events.size() : 0;
+        persistedEventTime = persistedEventCount > 0 ? events.keyAt(persistedEventCount - 1) : 0;
+    }
+
+    /**
+     * Returns the index of the first event not yet written to disk, or 0 if the events
+     * changed in a way that requires writing all of them again.
+     */
+    int getFirstUnpersistedEvent() {
+        final int eventCount = events != null ? events.size() : 0;
+        if (persistedEventCount <= 0 || persistedEventCount > eventCount
+                || events.keyAt(persistedEventCount - 1) != persistedEventTime) {
+            return 0;
+        }
+        return persistedEventCount;
+    }
+
     private boolean isStatefulEvent(int eventType) {
         switch (eventType) {
             case UsageEvents.Event.MOVE_TO_FOREGROUND:
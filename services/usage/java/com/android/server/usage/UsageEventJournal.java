@@ -0,0 +1,239 @@
+/**
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.android.server.usage;
+
+import android.app.usage.TimeSparseArray;
+import android.app.usage.UsageEvents;
+import android.content.res.Configuration;
+import android.util.Slog;
+import android.util.Xml;
+
+import com.android.internal.util.FastXmlSerializer;
+import com.android.internal.util.RecordJournal;
+import com.android.internal.util.XmlUtils;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Append-only binary log of the events of one daily {@link IntervalStats}
+ * bucket. Persisting a bucket only appends the events recorded since the
+ * last persist, instead of serializing all of them again as XML.
+ * <p>
+ * Each event is a record that starts with its time offset from the beginning
+ * of the bucket, which is the name of the file, as with the XML files.
+ * Readers check that prefix first, so events before the requested range are
+ * skipped without decoding them.
+ */
+final class UsageEventJournal {
+    private static final String TAG = "UsageEventJournal";
+
+    /** File header magic number: "UEVJ" */
+    private static final int FILE_MAGIC = 0x5545564A;
+    private static final int VERSION_INIT = 1;
+
+    /** Upper bound for a single record, used to reject corrupt lengths. */
+    private static final int MAX_RECORD_SIZE = 64 * 1024;
+
+    private static final String CONFIG_TAG = "config";
+
+    private final RecordJournal mJournal;
+
+    UsageEventJournal(File file) {
+        mJournal = new RecordJournal(file, FILE_MAGIC, VERSION_INIT, MAX_RECORD_SIZE);
+    }
+
+    File getFile() {
+        return mJournal.getFile();
+    }
+
+    boolean exists() {
+        return mJournal.exists();
+    }
+
+    void delete() {
+        mJournal.delete();
+    }
+
+    /**
+     * Appends the events of {@code stats} from index {@code fromIndex} on.
+     * When {@code fromIndex} is 0, or the journal has gone missing since the
+     * events before it were written, the journal is started over.
+     */
+    void append(IntervalStats stats, int fromIndex) throws IOException {
+        if (fromIndex > 0 && !mJournal.isStarted()) {
+            Slog.w(TAG, "Rewriting missing " + mJournal.getFile());
+            fromIndex = 0;
+        }
+        final TimeSparseArray<UsageEvents.Event> events = stats.events;
+        final int eventCount = events != null ? events.size() : 0;
+        final ArrayList<byte[]> records = new ArrayList<>(Math.max(0, eventCount - fromIndex));
+        final ByteArrayOutputStream record = new ByteArrayOutputStream();
+        final DataOutputStream recordOut = new DataOutputStream(record);
+        for (int i = fromIndex; i < eventCount; i++) {
+            record.reset();
+            writeEvent(recordOut, stats, events.valueAt(i));
+            recordOut.flush();
+            records.add(record.toByteArray());
+        }
+
+        if (fromIndex == 0) {
+            mJournal.rewrite(0, records);
+        } else {
+            mJournal.append(records);
+        }
+    }
+
+    /**
+     * Reads the events at or after {@code beginTime} into {@code statsOut},
+     * replacing any it already had.
+     *
+     * @return false if there is no journal for this bucket.
+     */
+    boolean read(final IntervalStats statsOut, final long beginTime) {
+        if (statsOut.events == null) {
+            statsOut.events = new TimeSparseArray<>();
+        } else {
+            statsOut.events.clear();
+        }
+        if (!mJournal.exists()) {
+            return false;
+        }
+
+        final int count = mJournal.read(0, new RecordJournal.RecordHandler() {
+            @Override
+            public void onRecord(byte[] data, int length) throws IOException {
+                if (length < 8) {
+                    throw new IOException("Bad event record size " + length);
+                }
+                final DataInputStream in = new DataInputStream(
+                        new ByteArrayInputStream(data, 0, length));
+                final long timeStamp = statsOut.beginTime + in.readLong();
+                if (timeStamp < beginTime) {
+                    return;
+                }
+                final UsageEvents.Event event = readEvent(in, statsOut);
+                event.mTimeStamp = timeStamp;
+                statsOut.events.put(timeStamp, event);
+            }
+        });
+        if (count < 0 && mJournal.exists()) {
+            Slog.w(TAG, "Discarding " + mJournal.getFile() + " with a bad header");
+            mJournal.delete();
+        }
+        return true;
+    }
+
+    private static void writeEvent(DataOutputStream out, IntervalStats stats,
+            UsageEvents.Event event) throws IOException {
+        out.writeLong(event.mTimeStamp - stats.beginTime);
+        out.writeInt(event.mEventType);
+        out.writeUTF(event.mPackage);
+        writeNullableString(out, event.mClass);
+        switch (event.mEventType) {
+            case UsageEvents.Event.CONFIGURATION_CHANGE:
+                if (event.mConfiguration != null) {
+                    out.writeBoolean(true);
+                    writeConfiguration(out, event.mConfiguration);
+                } else {
+                    out.writeBoolean(false);
+                }
+                break;
+            case UsageEvents.Event.SHORTCUT_INVOCATION:
+                writeNullableString(out, event.mShortcutId);
+                break;
+        }
+    }
+
+    private static UsageEvents.Event readEvent(DataInputStream in, IntervalStats statsOut)
+            throws IOException {
+        final int eventType = in.readInt();
+        final String packageName = in.readUTF();
+        final String className = readNullableString(in);
+        final UsageEvents.Event event = statsOut.buildEvent(packageName, className);
+        event.mEventType = eventType;
+        switch (eventType) {
+            case UsageEvents.Event.CONFIGURATION_CHANGE:
+                if (in.readBoolean()) {
+                    event.mConfiguration = readConfiguration(in);
+                }
+                break;
+            case UsageEvents.Event.SHORTCUT_INVOCATION:
+                final String id = readNullableString(in);
+                event.mShortcutId = (id != null) ? id.intern() : null;
+                break;
+        }
+        return event;
+    }
+
+    /**
+     * Configurations are rare and have no stable binary form, so they are
+     * stored with the same attributes as in the XML files.
+     */
+    private static void writeConfiguration(DataOutputStream out, Configuration config)
+            throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final FastXmlSerializer xml = new FastXmlSerializer();
+        xml.setOutput(bytes, "utf-8");
+        xml.startDocument("utf-8", true);
+        xml.startTag(null, CONFIG_TAG);
+        Configuration.writeXmlAttrs(xml, config);
+        xml.endTag(null, CONFIG_TAG);
+        xml.endDocument();
+
+        out.writeInt(bytes.size());
+        bytes.writeTo(out);
+    }
+
+    private static Configuration readConfiguration(DataInputStream in) throws IOException {
+        final byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+
+        final Configuration config = new Configuration();
+        try {
+            final XmlPullParser parser = Xml.newPullParser();
+            parser.setInput(new ByteArrayInputStream(bytes), "utf-8");
+            XmlUtils.beginDocument(parser, CONFIG_TAG);
+            Configuration.readXmlAttrs(parser, config);
+        } catch (XmlPullParserException e) {
+            throw new IOException(e);
+        }
+        return config;
+    }
+
+    private static void writeNullableString(DataOutputStream out, String value)
+            throws IOException {
+        if (value != null) {
+            out.writeBoolean(true);
+            out.writeUTF(value);
+        } else {
+            out.writeBoolean(false);
+        }
+    }
+
+    private static String readNullableString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
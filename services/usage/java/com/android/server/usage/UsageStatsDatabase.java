@@ -59,6 +59,7 @@ class UsageStatsDatabase {
     private final Object mLock = new Object();
     private final File[] mIntervalDirs;
     private final TimeSparseArray<AtomicFile>[] mSortedStatFiles;
+    private final File mEventsDir;
     private final UnixCalendar mCal;
     private final File mVersionFile;
     private boolean mFirstUpdate;
@@ -71,6 +72,7 @@ class UsageStatsDatabase {
                 new File(dir, "monthly"),
                 new File(dir, "yearly"),
         };
+        mEventsDir = new File(dir, "events");
         mVersionFile = new File(dir, "version");
         mSortedStatFiles = new TimeSparseArray[mIntervalDirs.length];
         mCal = new UnixCalendar(0);
@@ -88,6 +90,7 @@ class UsageStatsDatabase {
                             + f.getAbsolutePath());
                 }
             }
+            mEventsDir.mkdirs();
 
             checkVersionAndBuildLocked();
             indexFilesLocked();
@@ -149,7 +152,7 @@ class UsageStatsDatabase {
             try {
                 IntervalStats stats = new IntervalStats();
                 for (int i = start; i < fileCount - 1; i++) {
-                    UsageStatsXml.read(files.valueAt(i), stats);
+                    readLocked(UsageStatsManager.INTERVAL_DAILY, files.valueAt(i), stats);
                     if (!checkinAction.checkin(stats)) {
                         return false;
                     }
@@ -325,6 +328,7 @@ class UsageStatsDatabase {
                 }
                 files.clear();
             }
+            moveEventJournalsLocked(timeDiffMillis);
 
             logBuilder.append(" files deleted: ").append(filesDeleted);
             logBuilder.append(" files moved: ").append(filesMoved);
@@ -352,7 +356,7 @@ class UsageStatsDatabase {
             try {
                 final AtomicFile f = mSortedStatFiles[intervalType].valueAt(fileCount - 1);
                 IntervalStats stats = new IntervalStats();
-                UsageStatsXml.read(f, stats);
+                readLocked(intervalType, f, stats);
                 return stats;
             } catch (IOException e) {
                 Slog.e(TAG, "Failed to read usage stats file", e);
@@ -386,6 +390,17 @@ class UsageStatsDatabase {
      */
     public <T> List<T> queryUsageStats(int intervalType, long beginTime, long endTime,
             StatCombiner<T> combiner) {
+        return queryUsageStats(intervalType, beginTime, endTime, combiner, false);
+    }
+
+    /**
+     * Find all {@link IntervalStats} for the given range and interval type. If
+     * <code>eventsOnly</code> is set, daily stats are only guaranteed to hold the events
+     * on or after <code>beginTime</code>, and are read from the event journal without
+     * parsing the rest of the stats.
+     */
+    public <T> List<T> queryUsageStats(int intervalType, long beginTime, long endTime,
+            StatCombiner<T> combiner, boolean eventsOnly) {
         synchronized (mLock) {
             if (intervalType < 0 || intervalType >= mIntervalDirs.length) {
                 throw new IllegalArgumentException("Bad interval type " + intervalType);
@@ -438,7 +453,15 @@ class UsageStatsDatabase {
                 }
 
                 try {
-                    UsageStatsXml.read(f, stats);
+                    if (eventsOnly && intervalType == UsageStatsManager.INTERVAL_DAILY) {
+                        stats.beginTime = intervalStats.keyAt(i);
+                        if (getEventJournal(stats.beginTime).read(stats, beginTime)) {
+                            combiner.combine(stats, false, results);
+                            continue;
+                        }
+                    }
+
+                    readLocked(intervalType, f, stats);
                     if (beginTime < stats.endTime) {
                         combiner.combine(stats, false, results);
                     }
@@ -501,6 +524,7 @@ class UsageStatsDatabase {
             mCal.addDays(-7);
             pruneFilesOlderThan(mIntervalDirs[UsageStatsManager.INTERVAL_DAILY],
                     mCal.getTimeInMillis());
+            pruneFilesOlderThan(mEventsDir, mCal.getTimeInMillis());
 
             // We must re-index our file list or we will be trying to read
             // deleted files.
@@ -548,11 +572,74 @@ class UsageStatsDatabase {
                 mSortedStatFiles[intervalType].put(stats.beginTime, f);
             }
 
-            UsageStatsXml.write(f, stats);
+            if (intervalType == UsageStatsManager.INTERVAL_DAILY) {
+                // Append the new events before writing the file that refers to them, so that
+                // a daily file without an event log always has its events in the journal.
+                final int firstEvent = stats.getFirstUnpersistedEvent();
+                final int eventCount = stats.events != null ? stats.events.size() : 0;
+                if (firstEvent == 0 || firstEvent < eventCount) {
+                    getEventJournal(stats.beginTime).append(stats, firstEvent);
+                }
+                stats.markEventsPersisted();
+                UsageStatsXml.write(f, stats, false);
+            } else {
+                UsageStatsXml.write(f, stats);
+            }
             stats.lastTimeSaved = f.getLastModifiedTime();
         }
     }
 
+    private UsageEventJournal getEventJournal(long beginTime) {
+        return new UsageEventJournal(new File(mEventsDir, Long.toString(beginTime)));
+    }
+
+    /**
+     * Reads a stats file. The events of daily stats are read from the event journal,
+     * unless the file still has its own event log from before the journal existed.
+     */
+    private void readLocked(int intervalType, AtomicFile f, IntervalStats statsOut)
+            throws IOException {
+        UsageStatsXml.read(f, statsOut);
+        if (intervalType != UsageStatsManager.INTERVAL_DAILY) {
+            return;
+        }
+
+        if (statsOut.events != null && statsOut.events.size() > 0) {
+            // The journal is rewritten from these events the next time the stats are saved.
+            statsOut.persistedEventCount = 0;
+        } else if (getEventJournal(statsOut.beginTime).read(statsOut, 0)) {
+            statsOut.markEventsPersisted();
+        }
+    }
+
+    private void moveEventJournalsLocked(long timeDiffMillis) {
+        final File[] files = mEventsDir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        // Move the journals in the direction of the change first, so that none of them
+        // is renamed over one that hasn't been moved yet.
+        final TimeSparseArray<File> journals = new TimeSparseArray<>(files.length);
+        for (File f : files) {
+            try {
+                journals.put(UsageStatsXml.parseBeginTime(f), f);
+            } catch (IOException e) {
+                f.delete();
+            }
+        }
+        final int journalCount = journals.size();
+        for (int j = 0; j < journalCount; j++) {
+            final int i = timeDiffMillis > 0 ? journalCount - 1 - j : j;
+            final long newTime = journals.keyAt(i) + timeDiffMillis;
+            if (newTime < 0) {
+                journals.valueAt(i).delete();
+            } else {
+                journals.valueAt(i).renameTo(new File(mEventsDir, Long.toString(newTime)));
+            }
+        }
+    }
+
 
     /* Backup/Restore Code */
     byte[] getBackupPayload(String key) {
@@ -627,6 +714,7 @@ class UsageStatsDatabase {
                     for (int i = 0; i < mIntervalDirs.length; i++) {
                         deleteDirectoryContents(mIntervalDirs[i]);
                     }
+                    deleteDirectoryContents(mEventsDir);
 
                     int fileCount = in.readInt();
                     for (int i = 0; i < fileCount; i++) {
@@ -76,9 +76,14 @@ public class UsageStatsXml {
     }
 
     public static void write(AtomicFile file, IntervalStats stats) throws IOException {
+        write(file, stats, true);
+    }
+
+    public static void write(AtomicFile file, IntervalStats stats, boolean includeEvents)
+            throws IOException {
         FileOutputStream fos = file.startWrite();
         try {
-            write(fos, stats);
+            write(fos, stats, includeEvents);
             file.finishWrite(fos);
             fos = null;
         } finally {
@@ -114,6 +119,11 @@ public class UsageStatsXml {
     }
 
     static void write(OutputStream out, IntervalStats stats) throws IOException {
+        write(out, stats, true);
+    }
+
+    static void write(OutputStream out, IntervalStats stats, boolean includeEvents)
+            throws IOException {
         FastXmlSerializer xml = new FastXmlSerializer();
         xml.setOutput(out, "utf-8");
         xml.startDocument("utf-8", true);
@@ -121,7 +131,7 @@ public class UsageStatsXml {
         xml.startTag(null, USAGESTATS_TAG);
         xml.attribute(null, VERSION_ATTR, Integer.toString(CURRENT_VERSION));
 
-        UsageStatsXmlV1.write(xml, stats);
+        UsageStatsXmlV1.write(xml, stats, includeEvents);
 
         xml.endTag(null, USAGESTATS_TAG);
         xml.endDocument();
@@ -239,8 +239,11 @@ final class UsageStatsXmlV1 {
      *
      * @param xml The serializer to which to write the packageStats data.
      * @param stats The stats object to write to the XML file.
+     * @param includeEvents Whether to write the event log, or leave it to the
+     *                      {@link UsageEventJournal}.
      */
-    public static void write(XmlSerializer xml, IntervalStats stats) throws IOException {
+    public static void write(XmlSerializer xml, IntervalStats stats, boolean includeEvents)
+            throws IOException {
         XmlUtils.writeLongAttribute(xml, END_TIME_ATTR, stats.endTime - stats.beginTime);
 
         xml.startTag(null, PACKAGES_TAG);
@@ -258,6 +261,10 @@ final class UsageStatsXmlV1 {
         }
         xml.endTag(null, CONFIGURATIONS_TAG);
 
+        if (!includeEvents) {
+            return;
+        }
+
         xml.startTag(null, EVENT_LOG_TAG);
         final int eventCount = stats.events != null ? stats.events.size() : 0;
         for (int i = 0; i < eventCount; i++) {
@@ -232,6 +232,11 @@ class UserUsageStatsService {
      */
     private <T> List<T> queryStats(int intervalType, final long beginTime, final long endTime,
             StatCombiner<T> combiner) {
+        return queryStats(intervalType, beginTime, endTime, combiner, false);
+    }
+
+    private <T> List<T> queryStats(int intervalType, final long beginTime, final long endTime,
+            StatCombiner<T> combiner, boolean eventsOnly) {
         if (intervalType == UsageStatsManager.INTERVAL_BEST) {
             intervalType = mDatabase.findBestFitBucket(beginTime, endTime);
             if (intervalType < 0) {
@@ -271,7 +276,7 @@ class UserUsageStatsService {
 
         // Get the stats from disk.
         List<T> results = mDatabase.queryUsageStats(intervalType, beginTime,
-                truncatedEndTime, combiner);
+                truncatedEndTime, combiner, eventsOnly);
         if (DEBUG) {
             Slog.d(TAG, "Got " + (results != null ? results.size() : 0) + " results from disk");
             Slog.d(TAG, "Current stats beginTime=" + currentStats.beginTime +
@@ -334,7 +339,7 @@ class UserUsageStatsService {
                             accumulatedResult.add(event);
                         }
                     }
-                });
+                }, true);
 
         if (results == null || results.isEmpty()) {
             return null;
@@ -604,5 +609,10 @@ class UserUsageStatsService {
 
     void applyRestoredPayload(String key, byte[] payload){
         mDatabase.applyRestoredPayload(key, payload);
+        // The restore replaced the files on disk, so the next persist must write all of
+        // the current events again instead of appending to a journal that is gone.
+        for (IntervalStats stats : mCurrentStats) {
+            stats.persistedEventCount = 0;
+        }
     }
 }